@@ -0,0 +1,84 @@
+package cs.saip.appserver;
+
+import java.util.*;
+
+import org.w3c.dom.Document;
+
+import cs.saip.domain.*;
+
+/**
+ * A builder of HL7 documents that builds no DOM tree, but a LazyHL7Document
+ * that knows the attributes the HL7Builder would set. The tree is built by
+ * the HL7Builder, from the same tele observation and quantities, if a DOM
+ * method is called on the document.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class LazyHL7Builder implements Builder {
+
+  private Map<String, String> attributes;
+  private TeleObservation header;
+  private TeleObservation patientInfo;
+  private TeleObservation observationList;
+  private List<ClinicalQuantity> quantities;
+
+  @Override
+  public void buildHeader(TeleObservation to) {
+    attributes = new HashMap<String, String>();
+    quantities = new ArrayList<ClinicalQuantity>();
+    header = to;
+    put("value", 0, "effectiveTime", "ClinicalDocument", HL7Builder.HL7_TIME_FORMAT.format(to.getTime()));
+  }
+
+  @Override
+  public void buildPatientInfo(TeleObservation to) {
+    patientInfo = to;
+    put("extension", 0, "id", "patient", to.getPatientId());
+  }
+
+  @Override
+  public void buildObservationList(TeleObservation to) {
+    observationList = to;
+  }
+
+  @Override
+  public void appendObservation(ClinicalQuantity quantity) {
+    int index = quantities.size();
+    quantities.add(quantity);
+    put("code", index, "code", "observation", quantity.getCode());
+    put("displayName", index, "code", "observation", quantity.getDisplayName());
+    put("unit", index, "value", "observation", quantity.getUnit());
+    put("value", index, "value", "observation", "" + quantity.getValue());
+  }
+
+  /** Access the final resulting document
+   * once the build process is over.
+   * @return the final document. Is undefined
+   * if the full build process has not been
+   * followed.
+   */
+  public Document getResult() {
+    TeleObservation header = this.header, patientInfo = this.patientInfo,
+        observationList = this.observationList;
+    List<ClinicalQuantity> quantities = this.quantities;
+    return new LazyHL7Document(attributes, () -> {
+      HL7Builder builder = new HL7Builder();
+      builder.buildHeader(header);
+      builder.buildPatientInfo(patientInfo);
+      builder.buildObservationList(observationList);
+      for (ClinicalQuantity quantity : quantities) {
+        builder.appendObservation(quantity);
+      }
+      return builder.getResult();
+    });
+  }
+
+  private void put(String attributeName, int nodeIndex, String nodeName, String enclosingNodeName,
+      String value) {
+    // A missing value is left to the DOM tree
+    if (value != null) {
+      attributes.put(LazyHL7Document.key(attributeName, nodeIndex, nodeName, enclosingNodeName), value);
+    }
+  }
+}
@@ -0,0 +1,666 @@
+package cs.saip.appserver;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+import org.w3c.dom.*;
+
+/**
+ * An HL7 document that is not parsed until it has to be. The XDS backends
+ * return it instead of a DOM tree built from the stored XML or fields, as
+ * the TeleMed servant only reads a few attributes of each document.
+ * <p>
+ * A document is backed either by its XML, which is scanned for the
+ * attribute asked for without building any tree, or by the attributes the
+ * servant reads, given up front by a backend that stores the observation as
+ * fields. XMLUtility asks the document for attributes and, as long as no
+ * tree has been built, returns the compact XML as it is. Any other DOM
+ * method builds the real tree, once, and delegates to it; from then on the
+ * document is an ordinary DOM document. Building the tree is thread safe.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public final class LazyHL7Document implements Document {
+
+  private final String xml;
+  private final boolean compact;
+  private final Map<String, String> attributes;
+  private final Supplier<Document> builder;
+  private volatile Document dom;
+
+  /**
+   * Construct a document backed by its XML.
+   *
+   * @param xml
+   *          the XML of the document
+   * @param compact
+   *          true if the XML is compact, as made by
+   *          XMLUtility.convertXMLDocumentToCompactString
+   */
+  public LazyHL7Document(String xml, boolean compact) {
+    this.xml = xml;
+    this.compact = compact;
+    this.attributes = null;
+    this.builder = () -> XMLUtility.convertXMLStringToDocument(xml);
+  }
+
+  /**
+   * Construct a document backed by some of its attributes.
+   *
+   * @param attributes
+   *          the values of the attributes, by the keys made by key
+   * @param builder
+   *          builds the DOM tree of the document when needed
+   */
+  public LazyHL7Document(Map<String, String> attributes, Supplier<Document> builder) {
+    this.xml = null;
+    this.compact = false;
+    this.attributes = attributes;
+    this.builder = builder;
+  }
+
+  /**
+   * Return the key of an attribute in the map of attributes, with the
+   * parameters of XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc.
+   *
+   * @param attributeName
+   *          name of the attribute
+   * @param nodeIndex
+   *          the number of the enclosing node
+   * @param nodeName
+   *          name of the node with the attribute
+   * @param enclosingNodeName
+   *          name of the node that encloses the node
+   * @return the key
+   */
+  public static String key(String attributeName, int nodeIndex, String nodeName, String enclosingNodeName) {
+    return enclosingNodeName + '[' + nodeIndex + "]/" + nodeName + '@' + attributeName;
+  }
+
+  /**
+   * Return the value of an attribute without building the DOM tree, with the
+   * parameters of XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc.
+   *
+   * @param attributeName
+   *          name of the attribute
+   * @param nodeIndex
+   *          the number of the enclosing node
+   * @param nodeName
+   *          name of the node with the attribute
+   * @param enclosingNodeName
+   *          name of the node that encloses the node
+   * @return the value, or null if it is not found or the DOM tree must be
+   *         asked
+   */
+  public String lookupAttribute(String attributeName, int nodeIndex, String nodeName,
+      String enclosingNodeName) {
+    if (dom != null) { return null; }
+    if (attributes != null) {
+      return attributes.get(key(attributeName, nodeIndex, nodeName, enclosingNodeName));
+    }
+    return new Scanner(xml).attributeOf(attributeName, nodeIndex, nodeName, enclosingNodeName);
+  }
+
+  /**
+   * Return the compact XML of the document, if it is backed by it and no DOM
+   * tree has been built that may have been changed.
+   *
+   * @return the compact XML, or null
+   */
+  public String getCompactXML() {
+    return compact && dom == null ? xml : null;
+  }
+
+  /**
+   * Return a new document backed by the same XML or attributes, with no DOM
+   * tree built. A cache keeps a document it never hands out, and hands out
+   * views of it instead of copies of a tree.
+   *
+   * @return the view, or null if the DOM tree of this document has been
+   *         built, as it may have been changed
+   */
+  public LazyHL7Document view() {
+    if (dom != null) { return null; }
+    return xml != null ? new LazyHL7Document(xml, compact) : new LazyHL7Document(attributes, builder);
+  }
+
+  /**
+   * Return the size of what the document is backed by: the length of its
+   * XML, or of the keys and values of its attributes.
+   *
+   * @return the size in characters
+   */
+  public long getBackingSize() {
+    if (xml != null) { return xml.length(); }
+    long size = 0;
+    for (Map.Entry<String, String> entry : attributes.entrySet()) {
+      size += entry.getKey().length() + entry.getValue().length();
+    }
+    return size;
+  }
+
+  /**
+   * Return true if the DOM tree has been built.
+   *
+   * @return true if built
+   */
+  public boolean isMaterialized() {
+    return dom != null;
+  }
+
+  /**
+   * Return the DOM tree of the document, built if it has not been.
+   *
+   * @return the DOM tree
+   */
+  public Document getDocument() {
+    Document result = dom;
+    if (result == null) {
+      synchronized (this) {
+        result = dom;
+        if (result == null) {
+          result = builder.get();
+          dom = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * A scanner of well-formed XML for a single attribute. It only knows
+   * elements, comments, CDATA sections and processing instructions; for
+   * anything else, like a DOCTYPE, it gives up and the DOM tree is asked.
+   */
+  private static class Scanner {
+    private final String xml;
+
+    Scanner(String xml) {
+      this.xml = xml;
+    }
+
+    String attributeOf(String attributeName, int nodeIndex, String nodeName, String enclosingNodeName) {
+      int count = 0;
+      int depth = 0;
+      // The depth of the children of the enclosing node, once it is found
+      int childDepth = -1;
+      int at = xml.indexOf('<');
+      while (at >= 0 && at + 1 < xml.length()) {
+        char next = xml.charAt(at + 1);
+        int end;
+        if (next == '/') {
+          end = xml.indexOf('>', at);
+          depth--;
+          if (childDepth >= 0 && depth < childDepth) { return null; }
+        } else if (next == '?') {
+          end = endOf("?>", at);
+        } else if (next == '!') {
+          if (xml.startsWith("<!--", at)) {
+            end = endOf("-->", at);
+          } else if (xml.startsWith("<![CDATA[", at)) {
+            end = endOf("]]>", at);
+          } else {
+            return null;
+          }
+        } else {
+          int nameEnd = at + 1;
+          while (nameEnd < xml.length() && " \t\r\n/>".indexOf(xml.charAt(nameEnd)) < 0) {
+            nameEnd++;
+          }
+          end = endOfStartTag(nameEnd);
+          if (end < 0) { return null; }
+          boolean empty = xml.charAt(end - 1) == '/';
+          if (childDepth < 0) {
+            if (xml.regionMatches(at + 1, enclosingNodeName, 0, nameEnd - at - 1)
+                && enclosingNodeName.length() == nameEnd - at - 1) {
+              if (count == nodeIndex) {
+                if (empty) { return null; }
+                childDepth = depth + 1;
+              }
+              count++;
+            }
+          } else if (depth == childDepth && nodeName.length() == nameEnd - at - 1
+              && xml.regionMatches(at + 1, nodeName, 0, nameEnd - at - 1)) {
+            return valueOf(attributeName, nameEnd, end);
+          }
+          if (!empty) { depth++; }
+        }
+        if (end < 0) { return null; }
+        at = xml.indexOf('<', end);
+      }
+      return null;
+    }
+
+    private int endOf(String terminator, int from) {
+      int at = xml.indexOf(terminator, from);
+      return at < 0 ? -1 : at + terminator.length() - 1;
+    }
+
+    /** The index of the '>' of a start tag, skipping quoted attribute values */
+    private int endOfStartTag(int from) {
+      char quote = 0;
+      for (int i = from; i < xml.length(); i++) {
+        char c = xml.charAt(i);
+        if (quote != 0) {
+          if (c == quote) { quote = 0; }
+        } else if (c == '"' || c == '\'') {
+          quote = c;
+        } else if (c == '>') {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /** The value of the attribute of a start tag, or null if it has none */
+    private String valueOf(String attributeName, int from, int end) {
+      int i = from;
+      while (i < end) {
+        while (i < end && Character.isWhitespace(xml.charAt(i))) { i++; }
+        if (i >= end || xml.charAt(i) == '/') { return null; }
+        int nameStart = i;
+        while (i < end && xml.charAt(i) != '=' && !Character.isWhitespace(xml.charAt(i))) { i++; }
+        int nameEnd = i;
+        while (i < end && xml.charAt(i) != '"' && xml.charAt(i) != '\'') { i++; }
+        if (i >= end) { return null; }
+        char quote = xml.charAt(i);
+        int valueStart = i + 1;
+        int valueEnd = xml.indexOf(quote, valueStart);
+        if (valueEnd < 0 || valueEnd > end) { return null; }
+        if (nameEnd - nameStart == attributeName.length()
+            && xml.regionMatches(nameStart, attributeName, 0, attributeName.length())) {
+          return unescape(valueStart, valueEnd);
+        }
+        i = valueEnd + 1;
+      }
+      return null;
+    }
+
+    /**
+     * The normalized value of an attribute, or null if it refers to an
+     * entity that is not predefined.
+     */
+    private String unescape(int from, int to) {
+      StringBuilder value = new StringBuilder(to - from);
+      for (int i = from; i < to; i++) {
+        char c = xml.charAt(i);
+        if (c == '&') {
+          int semicolon = xml.indexOf(';', i);
+          if (semicolon < 0 || semicolon > to) { return null; }
+          String entity = xml.substring(i + 1, semicolon);
+          if (entity.equals("lt")) { value.append('<'); }
+          else if (entity.equals("gt")) { value.append('>'); }
+          else if (entity.equals("amp")) { value.append('&'); }
+          else if (entity.equals("quot")) { value.append('"'); }
+          else if (entity.equals("apos")) { value.append('\''); }
+          else if (entity.startsWith("#")) {
+            try {
+              value.appendCodePoint(entity.startsWith("#x")
+                  ? Integer.parseInt(entity.substring(2), 16) : Integer.parseInt(entity.substring(1)));
+            } catch (IllegalArgumentException e) {
+              return null;
+            }
+          }
+          else { return null; }
+          i = semicolon;
+        } else if (c == '\t' || c == '\n' || c == '\r') {
+          // Attribute value normalization, as done by the parser
+          value.append(' ');
+        } else {
+          value.append(c);
+        }
+      }
+      return value.toString();
+    }
+  }
+
+  // === The node itself, answered without building the tree
+
+  @Override
+  public String getNodeName() {
+    return "#document";
+  }
+
+  @Override
+  public String getNodeValue() throws DOMException {
+    return null;
+  }
+
+  @Override
+  public short getNodeType() {
+    return DOCUMENT_NODE;
+  }
+
+  @Override
+  public Node getParentNode() {
+    return null;
+  }
+
+  @Override
+  public Document getOwnerDocument() {
+    return null;
+  }
+
+  // === Everything else is delegated to the DOM tree
+
+  @Override
+  public void setNodeValue(String nodeValue) throws DOMException {
+    getDocument().setNodeValue(nodeValue);
+  }
+
+  @Override
+  public NodeList getChildNodes() {
+    return getDocument().getChildNodes();
+  }
+
+  @Override
+  public Node getFirstChild() {
+    return getDocument().getFirstChild();
+  }
+
+  @Override
+  public Node getLastChild() {
+    return getDocument().getLastChild();
+  }
+
+  @Override
+  public Node getPreviousSibling() {
+    return null;
+  }
+
+  @Override
+  public Node getNextSibling() {
+    return null;
+  }
+
+  @Override
+  public NamedNodeMap getAttributes() {
+    return null;
+  }
+
+  @Override
+  public Node insertBefore(Node newChild, Node refChild) throws DOMException {
+    return getDocument().insertBefore(newChild, refChild);
+  }
+
+  @Override
+  public Node replaceChild(Node newChild, Node oldChild) throws DOMException {
+    return getDocument().replaceChild(newChild, oldChild);
+  }
+
+  @Override
+  public Node removeChild(Node oldChild) throws DOMException {
+    return getDocument().removeChild(oldChild);
+  }
+
+  @Override
+  public Node appendChild(Node newChild) throws DOMException {
+    return getDocument().appendChild(newChild);
+  }
+
+  @Override
+  public boolean hasChildNodes() {
+    return getDocument().hasChildNodes();
+  }
+
+  @Override
+  public Node cloneNode(boolean deep) {
+    return getDocument().cloneNode(deep);
+  }
+
+  @Override
+  public void normalize() {
+    getDocument().normalize();
+  }
+
+  @Override
+  public boolean isSupported(String feature, String version) {
+    return getDocument().isSupported(feature, version);
+  }
+
+  @Override
+  public String getNamespaceURI() {
+    return null;
+  }
+
+  @Override
+  public String getPrefix() {
+    return null;
+  }
+
+  @Override
+  public void setPrefix(String prefix) throws DOMException {
+    getDocument().setPrefix(prefix);
+  }
+
+  @Override
+  public String getLocalName() {
+    return null;
+  }
+
+  @Override
+  public boolean hasAttributes() {
+    return false;
+  }
+
+  @Override
+  public String getBaseURI() {
+    return getDocument().getBaseURI();
+  }
+
+  @Override
+  public short compareDocumentPosition(Node other) throws DOMException {
+    return getDocument().compareDocumentPosition(unwrap(other));
+  }
+
+  @Override
+  public String getTextContent() throws DOMException {
+    return null;
+  }
+
+  @Override
+  public void setTextContent(String textContent) throws DOMException {
+    getDocument().setTextContent(textContent);
+  }
+
+  @Override
+  public boolean isSameNode(Node other) {
+    return other == this || (dom != null && dom.isSameNode(other));
+  }
+
+  @Override
+  public String lookupPrefix(String namespaceURI) {
+    return getDocument().lookupPrefix(namespaceURI);
+  }
+
+  @Override
+  public boolean isDefaultNamespace(String namespaceURI) {
+    return getDocument().isDefaultNamespace(namespaceURI);
+  }
+
+  @Override
+  public String lookupNamespaceURI(String prefix) {
+    return getDocument().lookupNamespaceURI(prefix);
+  }
+
+  @Override
+  public boolean isEqualNode(Node arg) {
+    return getDocument().isEqualNode(unwrap(arg));
+  }
+
+  @Override
+  public Object getFeature(String feature, String version) {
+    return getDocument().getFeature(feature, version);
+  }
+
+  @Override
+  public Object setUserData(String key, Object data, UserDataHandler handler) {
+    return getDocument().setUserData(key, data, handler);
+  }
+
+  @Override
+  public Object getUserData(String key) {
+    return getDocument().getUserData(key);
+  }
+
+  @Override
+  public DocumentType getDoctype() {
+    return getDocument().getDoctype();
+  }
+
+  @Override
+  public DOMImplementation getImplementation() {
+    return getDocument().getImplementation();
+  }
+
+  @Override
+  public Element getDocumentElement() {
+    return getDocument().getDocumentElement();
+  }
+
+  @Override
+  public Element createElement(String tagName) throws DOMException {
+    return getDocument().createElement(tagName);
+  }
+
+  @Override
+  public DocumentFragment createDocumentFragment() {
+    return getDocument().createDocumentFragment();
+  }
+
+  @Override
+  public Text createTextNode(String data) {
+    return getDocument().createTextNode(data);
+  }
+
+  @Override
+  public Comment createComment(String data) {
+    return getDocument().createComment(data);
+  }
+
+  @Override
+  public CDATASection createCDATASection(String data) throws DOMException {
+    return getDocument().createCDATASection(data);
+  }
+
+  @Override
+  public ProcessingInstruction createProcessingInstruction(String target, String data) throws DOMException {
+    return getDocument().createProcessingInstruction(target, data);
+  }
+
+  @Override
+  public Attr createAttribute(String name) throws DOMException {
+    return getDocument().createAttribute(name);
+  }
+
+  @Override
+  public EntityReference createEntityReference(String name) throws DOMException {
+    return getDocument().createEntityReference(name);
+  }
+
+  @Override
+  public NodeList getElementsByTagName(String tagname) {
+    return getDocument().getElementsByTagName(tagname);
+  }
+
+  @Override
+  public Node importNode(Node importedNode, boolean deep) throws DOMException {
+    return getDocument().importNode(unwrap(importedNode), deep);
+  }
+
+  @Override
+  public Element createElementNS(String namespaceURI, String qualifiedName) throws DOMException {
+    return getDocument().createElementNS(namespaceURI, qualifiedName);
+  }
+
+  @Override
+  public Attr createAttributeNS(String namespaceURI, String qualifiedName) throws DOMException {
+    return getDocument().createAttributeNS(namespaceURI, qualifiedName);
+  }
+
+  @Override
+  public NodeList getElementsByTagNameNS(String namespaceURI, String localName) {
+    return getDocument().getElementsByTagNameNS(namespaceURI, localName);
+  }
+
+  @Override
+  public Element getElementById(String elementId) {
+    return getDocument().getElementById(elementId);
+  }
+
+  @Override
+  public String getInputEncoding() {
+    return getDocument().getInputEncoding();
+  }
+
+  @Override
+  public String getXmlEncoding() {
+    return getDocument().getXmlEncoding();
+  }
+
+  @Override
+  public boolean getXmlStandalone() {
+    return getDocument().getXmlStandalone();
+  }
+
+  @Override
+  public void setXmlStandalone(boolean xmlStandalone) throws DOMException {
+    getDocument().setXmlStandalone(xmlStandalone);
+  }
+
+  @Override
+  public String getXmlVersion() {
+    return getDocument().getXmlVersion();
+  }
+
+  @Override
+  public void setXmlVersion(String xmlVersion) throws DOMException {
+    getDocument().setXmlVersion(xmlVersion);
+  }
+
+  @Override
+  public boolean getStrictErrorChecking() {
+    return getDocument().getStrictErrorChecking();
+  }
+
+  @Override
+  public void setStrictErrorChecking(boolean strictErrorChecking) {
+    getDocument().setStrictErrorChecking(strictErrorChecking);
+  }
+
+  @Override
+  public String getDocumentURI() {
+    return getDocument().getDocumentURI();
+  }
+
+  @Override
+  public void setDocumentURI(String documentURI) {
+    getDocument().setDocumentURI(documentURI);
+  }
+
+  @Override
+  public Node adoptNode(Node source) throws DOMException {
+    return getDocument().adoptNode(unwrap(source));
+  }
+
+  @Override
+  public DOMConfiguration getDomConfig() {
+    return getDocument().getDomConfig();
+  }
+
+  @Override
+  public void normalizeDocument() {
+    getDocument().normalizeDocument();
+  }
+
+  @Override
+  public Node renameNode(Node n, String namespaceURI, String qualifiedName) throws DOMException {
+    return getDocument().renameNode(n, namespaceURI, qualifiedName);
+  }
+
+  /** The DOM tree of a lazy document, as the tree only knows its own nodes */
+  private static Node unwrap(Node node) {
+    return node instanceof LazyHL7Document ? ((LazyHL7Document) node).getDocument() : node;
+  }
+}
@@ -0,0 +1,261 @@
+package cs.saip.appserver;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cs.saip.domain.TeleObservation;
+
+/**
+ * A cache of the decoded observations of the patients recently queried by
+ * TeleMedServant.getObservationsFor, so the polls of the GP dashboards do
+ * not query the XDS and decode the HL7 documents over and over again.
+ * <p>
+ * For each patient the cache holds the observations of the longest
+ * interval, the last month, counted from when they were loaded; the
+ * shorter intervals are answered from the same entry, which stays valid
+ * as the intervals move forward in time. An observation stored through
+ * the servant is added to the entry of its patient, while a correction or
+ * deletion drops the entry. Entries are reloaded after a maximal age, which
+ * bounds how long a change not made through the servant may go unnoticed,
+ * and only the most recently queried patients are kept.
+ * <p>
+ * Each patient has a generation that every write changes; the observations
+ * loaded by a query are only cached if no write to the patient happened
+ * while they were loaded, so the cache never holds stale data.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class ObservationQueryCache {
+
+  private static final int NUMBER_OF_GENERATIONS = 64;
+
+  /** Loads observations of a patient from the XDS on a cache miss */
+  public interface Loader {
+    List<TeleObservation> load(LocalDateTime from, LocalDateTime to);
+  }
+
+  private final int maxPatients;
+  private final Duration maxAge;
+
+  // All state is guarded by this
+  private final LinkedHashMap<String, Entry> entries;
+  private final long[] generations;
+
+  private final AtomicLong hitCount;
+  private final AtomicLong missCount;
+
+  /**
+   * Construct a query cache.
+   *
+   * @param maxPatients
+   *          the maximal number of patients whose observations are cached
+   * @param maxAge
+   *          how long the observations of a patient are cached before they
+   *          are loaded again
+   */
+  public ObservationQueryCache(int maxPatients, Duration maxAge) {
+    this.maxPatients = maxPatients;
+    this.maxAge = maxAge;
+    entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > ObservationQueryCache.this.maxPatients;
+      }
+    };
+    generations = new long[NUMBER_OF_GENERATIONS];
+    hitCount = new AtomicLong();
+    missCount = new AtomicLong();
+  }
+
+  /**
+   * Return the observations of a patient in an interval that ends now and
+   * starts at most a month ago, oldest first; on a miss the last month is
+   * loaded and cached.
+   *
+   * @param patientId
+   *          the patient
+   * @param start
+   *          the start of the interval, inclusive
+   * @param now
+   *          the end of the interval, inclusive
+   * @param loader
+   *          loads the observations of the patient on a miss
+   * @return copies of the observations
+   */
+  public List<TeleObservation> getObservationsFor(String patientId, LocalDateTime start,
+      LocalDateTime now, Loader loader) {
+    long generation;
+    synchronized (this) {
+      Entry entry = entries.get(patientId);
+      if (entry != null && !start.isBefore(entry.from) && now.isBefore(entry.loadedAt.plus(maxAge))) {
+        hitCount.incrementAndGet();
+        return entry.select(start, now);
+      }
+      generation = generations[indexOf(patientId)];
+    }
+    missCount.incrementAndGet();
+
+    LocalDateTime from = now.minusMonths(1);
+    if (start.isBefore(from)) { from = start; }
+    List<TeleObservation> loaded = loader.load(from, now);
+    Entry fresh = new Entry(from, now, generation);
+    for (TeleObservation to : loaded) {
+      fresh.add(copyOf(to));
+    }
+    synchronized (this) {
+      // A write while loading may or may not be in the loaded observations
+      if (generations[indexOf(patientId)] == generation) {
+        entries.put(patientId, fresh);
+      }
+      return fresh.select(start, now);
+    }
+  }
+
+  /**
+   * Announce that an observation of the patient is about to be stored.
+   *
+   * @param patientId
+   *          the patient
+   * @return the stamp to pass to stored when the observation is stored
+   */
+  public synchronized long beginWrite(String patientId) {
+    return ++generations[indexOf(patientId)];
+  }
+
+  /**
+   * Add a stored observation to the entry of its patient.
+   *
+   * @param to
+   *          the observation that has been stored
+   * @param stamp
+   *          the stamp returned by beginWrite before it was stored
+   */
+  public synchronized void stored(TeleObservation to, long stamp) {
+    String patientId = to.getPatientId();
+    Entry entry = entries.get(patientId);
+    if (entry != null) {
+      // Only an entry loaded before the write began surely lacks the observation
+      if (entry.generation < stamp) {
+        if (!to.getTime().isBefore(entry.from)) {
+          entry.add(copyOf(to));
+        }
+      } else {
+        entries.remove(patientId);
+      }
+    }
+    generations[indexOf(patientId)]++;
+  }
+
+  /**
+   * Drop the entry of a patient whose observations have been corrected or
+   * deleted, or whose write failed.
+   *
+   * @param patientId
+   *          the patient
+   */
+  public synchronized void invalidate(String patientId) {
+    entries.remove(patientId);
+    generations[indexOf(patientId)]++;
+  }
+
+  /**
+   * Return the number of queries answered by the cache.
+   *
+   * @return number of hits
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Return the number of queries that loaded observations from the XDS.
+   *
+   * @return number of misses
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Return the number of patients presently cached.
+   *
+   * @return number of patients
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private static int indexOf(String patientId) {
+    int hash = patientId.hashCode();
+    hash ^= (hash >>> 16);
+    return hash & (NUMBER_OF_GENERATIONS - 1);
+  }
+
+  // Observations are mutable, so the cache neither keeps nor hands out the callers' objects
+  private static TeleObservation copyOf(TeleObservation to) {
+    TeleObservation copy = new TeleObservation(to.getPatientId(), to.getSystolic().getValue(),
+        to.getDiastolic().getValue());
+    copy.setTime(to.getTime());
+    return copy;
+  }
+
+  /** The observations of one patient since a point in time, oldest first */
+  private static class Entry {
+    final LocalDateTime from;
+    final LocalDateTime loadedAt;
+    final long generation;
+    final List<TeleObservation> observations;
+
+    Entry(LocalDateTime from, LocalDateTime loadedAt, long generation) {
+      this.from = from;
+      this.loadedAt = loadedAt;
+      this.generation = generation;
+      observations = new ArrayList<TeleObservation>();
+    }
+
+    /** Insert after all observations at the same or an earlier time */
+    void add(TeleObservation to) {
+      observations.add(firstAfter(to.getTime()), to);
+    }
+
+    List<TeleObservation> select(LocalDateTime start, LocalDateTime end) {
+      List<TeleObservation> selected = new ArrayList<TeleObservation>();
+      for (int i = firstAtOrAfter(start); i < observations.size(); i++) {
+        TeleObservation to = observations.get(i);
+        if (to.getTime().isAfter(end)) { break; }
+        selected.add(copyOf(to));
+      }
+      return selected;
+    }
+
+    private int firstAtOrAfter(LocalDateTime time) {
+      int low = 0, high = observations.size();
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (observations.get(middle).getTime().isBefore(time)) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+
+    private int firstAfter(LocalDateTime time) {
+      int low = 0, high = observations.size();
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (observations.get(middle).getTime().isAfter(time)) {
+          high = middle;
+        } else {
+          low = middle + 1;
+        }
+      }
+      return low;
+    }
+  }
+}
@@ -3,6 +3,7 @@ package cs.saip.appserver;
 import java.util.*;
 
 import com.google.gson.*;
+import com.google.gson.reflect.TypeToken;
 
 import cs.saip.broker.*;
 import cs.saip.common.OperationNames;
@@ -63,6 +64,38 @@ public class StandardJSONInvoker implements Invoker {
         int statusCode = (tol == null || tol.size() == 0) ? 404 : 200;
         reply = new ReplyObject(statusCode, gson.toJson(tol));
 
+      } else if (operationName.equals(OperationNames.GET_OBSERVATIONS_FOR_PATIENTS_OPERATION)) {
+        // Parameter convention: [0] = list of patient ids, [1] = time interval
+        List<String> patientIds = gson.fromJson(array.get(0), new TypeToken<List<String>>(){}.getType());
+        TimeInterval interval = gson.fromJson(array.get(1), TimeInterval.class);
+
+        Map<String, List<TeleObservation>> observationsOfPatient = 
+            teleMed.getObservationsForPatients(patientIds, interval, accessToken);
+        // Patients without observations are empty lists of a valid result
+        int statusCode = (observationsOfPatient == null) ? 404 : 200;
+        reply = new ReplyObject(statusCode, gson.toJson(observationsOfPatient));
+
+      } else if (operationName.equals(OperationNames.GET_OBSERVATION_PAGE_FOR_OPERATION)) {
+        // Parameter convention: [0] = time interval, [1] = limit, 
+        // [2] = continuation token or null
+        TimeInterval interval = gson.fromJson(array.get(0), TimeInterval.class);
+        int limit = gson.fromJson(array.get(1), Integer.class);
+        String continuationToken = gson.fromJson(array.get(2), String.class);
+
+        ObservationPage page = 
+            teleMed.getObservationPageFor(objectId, interval, limit, continuationToken, accessToken);
+        int statusCode = (page == null) ? 404 : 200;
+        reply = new ReplyObject(statusCode, gson.toJson(page));
+
+      } else if (operationName.equals(OperationNames.GET_STATISTICS_FOR_OPERATION)) {
+        // Parameter convention: [0] = time interval
+        TimeInterval interval = gson.fromJson(array.get(0), TimeInterval.class);
+
+        List<QuantityStatistics> statistics = teleMed.getStatisticsFor(objectId, interval, accessToken);
+        // No measurements in the interval is a valid, empty, result
+        int statusCode = (statistics == null) ? 404 : 200;
+        reply = new ReplyObject(statusCode, gson.toJson(statistics));
+
       } else if (operationName.equals(OperationNames.CORRECT_OPERATION)) {
         // Parameter convention: [0] = tele observation
         TeleObservation to = gson.fromJson(array.get(0), TeleObservation.class);
@@ -77,6 +110,15 @@ public class StandardJSONInvoker implements Invoker {
         int statusCode = (to == null) ? 404 : 200;
         reply = new ReplyObject(statusCode, gson.toJson(to));
 
+      } else if (operationName.equals(OperationNames.GET_OBSERVATIONS_OPERATION)) {
+        // Parameter convention: [0] = list of unique ids
+        List<String> uniqueIds = gson.fromJson(array.get(0), new TypeToken<List<String>>(){}.getType());
+
+        List<TeleObservation> tol = teleMed.getObservations(uniqueIds, accessToken);
+        // Observations not found are null entries of an otherwise valid result
+        int statusCode = (tol == null) ? 404 : 200;
+        reply = new ReplyObject(statusCode, gson.toJson(tol));
+
       } else if (operationName.equals(OperationNames.DELETE_OPERATION)) {
         // Parameter: none
 
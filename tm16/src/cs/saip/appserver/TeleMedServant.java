@@ -2,6 +2,8 @@ package cs.saip.appserver;
 
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.logging.*;
+import java.util.stream.Stream;
 
 import org.w3c.dom.Document;
 
@@ -19,8 +21,11 @@ import cs.saip.storage.*;
  */
 public class TeleMedServant implements TeleMed, Servant {
 
+  private static final Logger logger = Logger.getLogger("TM16Logger");
+
   private XDSBackend xds;
   private Authorization autorization;
+  private ObservationQueryCache queryCache;
 
 
   public TeleMedServant(XDSBackend xds, Authorization atz) {
@@ -28,6 +33,23 @@ public class TeleMedServant implements TeleMed, Servant {
     this.autorization = atz;
   }
 
+  /**
+   * Construct a servant that answers getObservationsFor from a cache of
+   * decoded observations. The servant must be the only one writing to the
+   * XDS, otherwise changes may go unnoticed until the entry expires.
+   * 
+   * @param xds
+   *          the XDS storing the observations
+   * @param atz
+   *          the authorization of the requests
+   * @param queryCache
+   *          the cache of the query results
+   */
+  public TeleMedServant(XDSBackend xds, Authorization atz, ObservationQueryCache queryCache) {
+    this(xds, atz);
+    this.queryCache = queryCache;
+  }
+
   public void SetAuthorization(Authorization atz)
   {
     this.autorization = atz;
@@ -42,18 +64,26 @@ public class TeleMedServant implements TeleMed, Servant {
       {
         // Generate the XML document representing the
         // observation in HL7 (HealthLevel7) format.
-        HL7Builder builder = new HL7Builder();   
-        Director.construct(teleObs, builder);
-        Document hl7Document = builder.getResult();
+        Document hl7Document = buildHL7Document(teleObs);
 
         // Generate the metadata for the observation
-        MetadataBuilder metaDataBuilder = new MetadataBuilder();
-        Director.construct(teleObs, metaDataBuilder);
-        MetaData metadata = metaDataBuilder.getResult();
+        MetaData metadata = buildMetaData(teleObs);
 
         // Finally store the document in the XDS storage system
         String uniqueId = null;
-        uniqueId = xds.provideAndRegisterDocument(metadata, hl7Document);
+        if (queryCache == null) {
+          uniqueId = xds.provideAndRegisterDocument(metadata, hl7Document);
+        } else {
+          long stamp = queryCache.beginWrite(teleObs.getPatientId());
+          try {
+            uniqueId = xds.provideAndRegisterDocument(metadata, hl7Document);
+          } catch (RuntimeException e) {
+            queryCache.invalidate(teleObs.getPatientId());
+            throw e;
+          }
+          // Extend the cached query result instead of dropping it
+          queryCache.stored(teleObs, stamp);
+        }
 
         return uniqueId;
       }
@@ -71,27 +101,15 @@ public class TeleMedServant implements TeleMed, Servant {
     try {
       if(this.autorization.allowReadPatientData(accessToken, patientId))
       {
-        List<TeleObservation> teleObsList = new ArrayList<>();
         // Calculate the time interval to search within
         LocalDateTime now = LocalDateTime.now(); 
-        LocalDateTime someTimeAgo = null;
-        if (interval == TimeInterval.LAST_DAY) {
-          someTimeAgo = now.minusDays(1);
-        } else if (interval == TimeInterval.LAST_WEEK) {
-          someTimeAgo = now.minusDays(7);
-        } else {
-          someTimeAgo = now.minusMonths(1);
-        }
-
-        // Query the database for those HL7 documents that match query
-        List<Document> docList = xds.retriveDocumentSet(patientId, someTimeAgo, now);
+        LocalDateTime someTimeAgo = startOfInterval(interval, now);
 
-        // Sigh - have to convert back from XML to a TeleObservation
-        docList.stream().forEach( (d) -> { 
-          TeleObservation to = createTeleObsFromHL7Document(d);
-          teleObsList.add(to);
-        } );
-        return teleObsList;
+        if (queryCache != null) {
+          return queryCache.getObservationsFor(patientId, someTimeAgo, now,
+              (from, to) -> loadObservations(patientId, from, to));
+        }
+        return loadObservations(patientId, someTimeAgo, now);
       }
       else
       {
@@ -104,6 +122,81 @@ public class TeleMedServant implements TeleMed, Servant {
     return null;
   }
 
+  @Override
+  public Map<String, List<TeleObservation>> getObservationsForPatients(List<String> patientIds,
+      TimeInterval interval, String accessToken) {
+    // Verify that accessToken is allowed to get the observations of all
+    // the patients; a single one denied fails the whole request
+    try {
+      if(this.autorization.allowReadPatientsData(accessToken, patientIds))
+      {
+        Map<String, List<TeleObservation>> observationsOfPatient = new LinkedHashMap<>();
+        for (String patientId : patientIds) {
+          observationsOfPatient.put(patientId, new ArrayList<>());
+        }
+        LocalDateTime now = LocalDateTime.now(); 
+        // One query for all patients, streamed, so only the tele
+        // observations are held in memory
+        try (Stream<Document> docStream = 
+            xds.streamDocumentSets(patientIds, startOfInterval(interval, now), now)) {
+          docStream.forEach( (d) -> {
+            TeleObservation teleObs = createTeleObsFromHL7Document(d);
+            observationsOfPatient.get(teleObs.getPatientId()).add(teleObs);
+          } );
+        }
+        return observationsOfPatient;
+      }
+    } catch (XDSException e) {
+      // A failing XDS is reported to the client
+      throw e;
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "TeleMedServant: cohort query failed", e);
+    }
+    return null;
+  }
+
+  @Override
+  public ObservationPage getObservationPageFor(String patientId, TimeInterval interval, int limit,
+      String continuationToken, String accessToken) {
+    if (limit <= 0) { return null; }
+    try {
+      if(this.autorization.allowReadPatientData(accessToken, patientId))
+      {
+        LocalDateTime now = LocalDateTime.now(); 
+        DocumentPage page = xds.retriveDocumentPage(patientId, startOfInterval(interval, now), now, 
+            limit, continuationToken);
+        List<TeleObservation> teleObsList = new ArrayList<>();
+        for (Document d : page.getDocuments()) {
+          teleObsList.add(createTeleObsFromHL7Document(d));
+        }
+        return new ObservationPage(teleObsList, page.getContinuationToken());
+      }
+    } catch (XDSException e) {
+      // An invalid token is reported to the client
+      throw e;
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "TeleMedServant: page query failed", e);
+    }
+    return null;
+  }
+
+  @Override
+  public List<QuantityStatistics> getStatisticsFor(String patientId, TimeInterval interval, String accessToken) {
+    try {
+      if(this.autorization.allowReadPatientData(accessToken, patientId))
+      {
+        LocalDateTime now = LocalDateTime.now(); 
+        return xds.computeStatistics(patientId, startOfInterval(interval, now), now);
+      }
+    } catch (XDSException e) {
+      // A failing XDS is reported to the client
+      throw e;
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "TeleMedServant: statistics query failed", e);
+    }
+    return null;
+  }
+
   @Override
   public TeleObservation getObservation(String uniqueId, String accessToken) {
 
@@ -128,6 +221,38 @@ public class TeleMedServant implements TeleMed, Servant {
     return null;
   }
 
+  @Override
+  public List<TeleObservation> getObservations(List<String> uniqueIds, String accessToken) {
+    try {
+      List<Document> docs = xds.retriveDocuments(uniqueIds);
+
+      // Verify that accessToken is allowed to get the observations, asking
+      // only once for each patient
+      Map<String, Boolean> allowedToRead = new HashMap<>();
+      List<TeleObservation> teleObsList = new ArrayList<>(docs.size());
+      for (Document doc : docs) {
+        TeleObservation teleObs = null;
+        if (doc != null) {
+          teleObs = createTeleObsFromHL7Document(doc);
+          Boolean allowed = allowedToRead.get(teleObs.getPatientId());
+          if (allowed == null) {
+            allowed = this.autorization.allowReadPatientData(accessToken, teleObs.getPatientId());
+            allowedToRead.put(teleObs.getPatientId(), allowed);
+          }
+          if (!allowed) { teleObs = null; }
+        }
+        teleObsList.add(teleObs);
+      }
+      return teleObsList;
+    } catch (XDSException e) {
+      // A failing XDS is reported to the client
+      throw e;
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "TeleMedServant: multi-get failed", e);
+    }
+    return null;
+  }
+
   @Override
   public boolean correct(String uniqueId, TeleObservation to, String accessToken) {
     // Find the document if any
@@ -151,7 +276,12 @@ public class TeleMedServant implements TeleMed, Servant {
         Document hl7Document = builder.getResult();
 
         // and correct it in the XDS backtier
-        return xds.correctDocument(uniqueId, XDSBackend.Operation.UPDATE, hl7Document);
+        try {
+          return xds.correctDocument(uniqueId, XDSBackend.Operation.UPDATE, hl7Document);
+        } finally {
+          invalidateCachedQueries(oldTeleObs.getPatientId());
+          invalidateCachedQueries(to.getPatientId());
+        }
       }
     } catch (Exception e) {
       // TODO Auto-generated catch block
@@ -170,7 +300,11 @@ public class TeleMedServant implements TeleMed, Servant {
     try {
       if(this.autorization.allowWritePatientData(accessToken, teleObs.getPatientId()))
       {
-        return xds.correctDocument(uniqueId, XDSBackend.Operation.DELETE, null);
+        try {
+          return xds.correctDocument(uniqueId, XDSBackend.Operation.DELETE, null);
+        } finally {
+          invalidateCachedQueries(teleObs.getPatientId());
+        }
       }
     } catch (Exception e) {
       // TODO Auto-generated catch block
@@ -179,6 +313,48 @@ public class TeleMedServant implements TeleMed, Servant {
     return false;
   }
 
+  private List<TeleObservation> loadObservations(String patientId, LocalDateTime from, LocalDateTime to) {
+    List<TeleObservation> teleObsList = new ArrayList<>();
+    // Query the database for those HL7 documents that match query; they
+    // are streamed, so only one document is held in memory at a time
+    try (Stream<Document> docStream = xds.streamDocumentSet(patientId, from, to)) {
+      // Sigh - have to convert back from XML to a TeleObservation
+      docStream.forEach( (d) -> { 
+        TeleObservation teleObs = createTeleObsFromHL7Document(d);
+        teleObsList.add(teleObs);
+      } );
+    }
+    return teleObsList;
+  }
+
+  private void invalidateCachedQueries(String patientId) {
+    if (queryCache != null) {
+      queryCache.invalidate(patientId);
+    }
+  }
+
+  private Document buildHL7Document(TeleObservation teleObs) {
+    HL7Builder builder = new HL7Builder();   
+    Director.construct(teleObs, builder);
+    return builder.getResult();
+  }
+
+  private MetaData buildMetaData(TeleObservation teleObs) {
+    MetadataBuilder metaDataBuilder = new MetadataBuilder();
+    Director.construct(teleObs, metaDataBuilder);
+    return metaDataBuilder.getResult();
+  }
+
+  private LocalDateTime startOfInterval(TimeInterval interval, LocalDateTime now) {
+    if (interval == TimeInterval.LAST_DAY) {
+      return now.minusDays(1);
+    } else if (interval == TimeInterval.LAST_WEEK) {
+      return now.minusDays(7);
+    } else {
+      return now.minusMonths(1);
+    }
+  }
+
   private TeleObservation createTeleObsFromHL7Document(Document d) {
     TeleObservation to;
     // A bit fragile but we rely on the sequence numbers to retrieve systolic and diastolic measurements
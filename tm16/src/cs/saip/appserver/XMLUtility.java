@@ -27,6 +27,29 @@ public class XMLUtility {
    * @return the string representation of the document.
    */
   public static String convertXMLDocumentToString(Node doc)  {
+    return convertXMLDocumentToString(doc, true);
+  }
+
+  /**
+   * Convert an XML document to a compact string without indentation and
+   * without an XML declaration, as is appropriate for storage.
+   * 
+   * @param doc
+   *          the XML document to convert
+   * @return the compact string representation of the document.
+   */
+  public static String convertXMLDocumentToCompactString(Node doc)  {
+    return convertXMLDocumentToString(doc, false);
+  }
+
+  private static String convertXMLDocumentToString(Node doc, boolean indent)  {
+    if (doc instanceof LazyHL7Document) {
+      // Unless the tree has been built, the stored compact XML is still valid
+      LazyHL7Document lazy = (LazyHL7Document) doc;
+      String compactXML = lazy.getCompactXML();
+      if (!indent && compactXML != null) { return compactXML; }
+      doc = lazy.getDocument();
+    }
 
     Transformer trans = null;
     try {
@@ -34,8 +57,12 @@ public class XMLUtility {
     } catch ( TransformerException e ) {
       throw new RuntimeException(e);
     }
-    trans.setOutputProperty(OutputKeys.INDENT, "yes");
-    trans.setOutputProperty( "{http://xml.apache.org/xslt}indent-amount", "2" ); 
+    if (indent) {
+      trans.setOutputProperty(OutputKeys.INDENT, "yes");
+      trans.setOutputProperty( "{http://xml.apache.org/xslt}indent-amount", "2" ); 
+    } else {
+      trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+    }
 
     //create string from xml tree
     StringWriter sw = new StringWriter();
@@ -100,6 +127,11 @@ public class XMLUtility {
    */
   public static String getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc( String attributeName, int nodeIndex, String nodeName,
       String enclosingNodeName, Document doc) {
+    if (doc instanceof LazyHL7Document) {
+      // Answered without building the tree, if possible
+      String value = ((LazyHL7Document) doc).lookupAttribute(attributeName, nodeIndex, nodeName, enclosingNodeName);
+      if (value != null) { return value; }
+    }
     NodeList list = doc.getElementsByTagName(enclosingNodeName);
       NodeList childrenOfEnclosed = list.item(nodeIndex).getChildNodes();
       for ( int j = 0; j < childrenOfEnclosed.getLength(); j++ ) {
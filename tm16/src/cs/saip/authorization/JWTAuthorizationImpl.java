@@ -78,6 +78,26 @@ public class JWTAuthorizationImpl extends AbstractAuthorization {
     }
   }
 
+  @Override
+  public Boolean allowReadPatientsData(String accessToken, Collection<String> pIds) throws Exception {
+
+    // Verify the token once, then check the read rights for each patient
+    JWTClaimsSet jss = getJWTClaimsSet(accessToken);
+    if (jss == null || jss.getSubject() == null) {
+      logger.warning("User not found");
+      return false;
+    }
+    for (String pId : new LinkedHashSet<String>(pIds)) {
+      boolean granted = CheckAccess(jss, pId, "r");
+      String accessStatus = granted ? "GRANTED" : "DENIED";
+      logger.info(Utility.convertUnixEpochToLocalDateTime(new Date().getTime()) + " : " + jss.getSubject() + " was " + accessStatus + " access to read data for patien id: " + pId);
+      if (!granted) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   private String getUserID(String accessToken) throws Exception {
     JWTClaimsSet jss = getJWTClaimsSet(accessToken);
 
@@ -94,8 +114,11 @@ public class JWTAuthorizationImpl extends AbstractAuthorization {
   private Boolean CheckAccess(String accessToken, String pId, String accessToCheckFor) throws Exception
   {
     // Parse accessToken to JWT claimsset
-    JWTClaimsSet jss = getJWTClaimsSet(accessToken);
+    return CheckAccess(getJWTClaimsSet(accessToken), pId, accessToCheckFor);
+  }
 
+  private Boolean CheckAccess(JWTClaimsSet jss, String pId, String accessToCheckFor) throws Exception
+  {
     if (jss != null) {
       // Check if the accessToken is in the map
       if(AuthorizationMap.containsKey(jss.getSubject()))
@@ -40,6 +40,30 @@ public class TeleMedProxy implements TeleMed, ClientProxy {
         OperationNames.GET_OBSERVATIONS_FOR_OPERATION, collectionType, accessToken, interval);
   }
 
+  @Override
+  public Map<String, List<TeleObservation>> getObservationsForPatients(List<String> patientIds,
+      TimeInterval interval, String accessToken) {
+    // All patients go in a single request; there is no single object to address
+    Type mapType = new TypeToken<Map<String, List<TeleObservation>>>(){}.getType();
+    return requestor.sendRequestAndAwaitReply("",
+        OperationNames.GET_OBSERVATIONS_FOR_PATIENTS_OPERATION, mapType, accessToken, patientIds, interval);
+  }
+
+  @Override
+  public ObservationPage getObservationPageFor(String patientId, TimeInterval interval, int limit,
+      String continuationToken, String accessToken) {
+    return requestor.sendRequestAndAwaitReply(patientId,
+        OperationNames.GET_OBSERVATION_PAGE_FOR_OPERATION, ObservationPage.class, accessToken,
+        interval, limit, continuationToken);
+  }
+
+  @Override
+  public List<QuantityStatistics> getStatisticsFor(String patientId, TimeInterval interval, String accessToken) {
+    Type collectionType = new TypeToken<List<QuantityStatistics>>(){}.getType();
+    return requestor.sendRequestAndAwaitReply(patientId,
+        OperationNames.GET_STATISTICS_FOR_OPERATION, collectionType, accessToken, interval);
+  }
+
   @Override
   public boolean correct(String uniqueId, TeleObservation to, String accessToken) {
     return requestor.sendRequestAndAwaitReply(uniqueId, 
@@ -52,6 +76,14 @@ public class TeleMedProxy implements TeleMed, ClientProxy {
         OperationNames.GET_OBSERVATION_OPERATION, TeleObservation.class, accessToken);
   }
 
+  @Override
+  public List<TeleObservation> getObservations(List<String> uniqueIds, String accessToken) {
+    // All ids go in a single request; there is no single object to address
+    Type collectionType = new TypeToken<List<TeleObservation>>(){}.getType();
+    return requestor.sendRequestAndAwaitReply("", 
+        OperationNames.GET_OBSERVATIONS_OPERATION, collectionType, accessToken, uniqueIds);
+  }
+
   @Override
   public boolean delete(String uniqueId, String accessToken) {
     return requestor.sendRequestAndAwaitReply(uniqueId, 
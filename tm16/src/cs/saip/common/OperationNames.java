@@ -9,8 +9,12 @@ package cs.saip.common;
 public class OperationNames {
   public static final String PROCESS_AND_STORE_OPERATION = "processAndStore_method";
   public static final String GET_OBSERVATIONS_FOR_OPERATION = "getObservationsFor_method";
+  public static final String GET_OBSERVATIONS_FOR_PATIENTS_OPERATION = "getObservationsForPatients_method";
+  public static final String GET_OBSERVATION_PAGE_FOR_OPERATION = "getObservationPageFor_method";
+  public static final String GET_STATISTICS_FOR_OPERATION = "getStatisticsFor_method";
   public static final String CORRECT_OPERATION = "correct_method";
   public static final String GET_OBSERVATION_OPERATION = "getObservation_method";
+  public static final String GET_OBSERVATIONS_OPERATION = "getObservations_method";
   public static final String DELETE_OPERATION = "delete_method";
 
 }
@@ -1,5 +1,6 @@
 package cs.saip.domain;
 
+import java.util.*;
 import java.util.logging.Logger;
 
 /**
@@ -38,4 +39,25 @@ public interface Authorization
    * @throws Exception 
    */
   public Boolean allowReadPatientData(String token, String pId) throws Exception;
+
+  /**
+   * Will check if the client token has access to read data for all the
+   * patients with the given pIds. Implementations override this to verify
+   * the token once instead of once per patient.
+   * 
+   * @param token
+   *      The clients authorization token
+   * @param pIds
+   *      The ids of the patients, which the client tries to access
+   * @return
+   *      True = Allowed to read the data of every one of them
+   *      False = Not allowed to read the data of at least one of them
+   * @throws Exception 
+   */
+  public default Boolean allowReadPatientsData(String token, Collection<String> pIds) throws Exception {
+    for (String pId : new LinkedHashSet<String>(pIds)) {
+      if (!Boolean.TRUE.equals(allowReadPatientData(token, pId))) { return false; }
+    }
+    return true;
+  }
 }
@@ -0,0 +1,52 @@
+package cs.saip.domain;
+
+import java.util.List;
+
+/**
+ * A page of tele observations, newest first, along with the token that
+ * fetches the next page.
+ * 
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class ObservationPage {
+
+  private List<TeleObservation> observations;
+  private String continuationToken;
+
+  /**
+   * Construct a page.
+   * 
+   * @param observations
+   *          the observations of the page, newest first
+   * @param continuationToken
+   *          the token to pass to fetch the next page, null if this is the
+   *          last page
+   */
+  public ObservationPage(List<TeleObservation> observations, String continuationToken) {
+    this.observations = observations;
+    this.continuationToken = continuationToken;
+  }
+
+  public List<TeleObservation> getObservations() {
+    return observations;
+  }
+
+  public String getContinuationToken() {
+    return continuationToken;
+  }
+
+  /**
+   * Return true if there are more observations than those on this page
+   * 
+   * @return true if a next page exists
+   */
+  public boolean hasNextPage() {
+    return continuationToken != null;
+  }
+
+  @Override
+  public String toString() {
+    return "ObservationPage (" + observations.size() + " observations, next=" + continuationToken + ")";
+  }
+}
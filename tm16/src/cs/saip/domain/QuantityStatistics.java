@@ -0,0 +1,120 @@
+package cs.saip.domain;
+
+import java.util.Arrays;
+
+/**
+ * Summary statistics of the values of one clinical quantity, e.g. the
+ * systolic blood pressure, measured for a patient in a time interval: the
+ * count, minimum, maximum, mean, and a fixed set of percentiles.
+ * <p>
+ * Percentiles are computed by the nearest rank method, so each is one of the
+ * measured values.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class QuantityStatistics {
+
+  /** The percentiles computed, in increasing order */
+  public static final int[] PERCENTILES = { 5, 25, 50, 75, 95 };
+
+  private String code;
+  private String displayName;
+  private String unit;
+  private long count;
+  private double min;
+  private double max;
+  private double mean;
+  private double[] percentiles;
+
+  /**
+   * Construct the statistics of a quantity.
+   *
+   * @param code
+   *          the code of the quantity, e.g. "MSC88019"
+   * @param displayName
+   *          the human readable name of the code
+   * @param unit
+   *          the unit of the values
+   * @param count
+   *          the number of values
+   * @param min
+   *          the smallest value
+   * @param max
+   *          the largest value
+   * @param mean
+   *          the mean of the values
+   * @param percentiles
+   *          the values at the percentiles given by PERCENTILES, in the same
+   *          order
+   */
+  public QuantityStatistics(String code, String displayName, String unit, long count,
+      double min, double max, double mean, double[] percentiles) {
+    if (percentiles.length != PERCENTILES.length) {
+      throw new IllegalArgumentException("Expected " + PERCENTILES.length + " percentiles, got "
+          + percentiles.length);
+    }
+    this.code = code;
+    this.displayName = displayName;
+    this.unit = unit;
+    this.count = count;
+    this.min = min;
+    this.max = max;
+    this.mean = mean;
+    this.percentiles = percentiles.clone();
+  }
+
+  public String getCode() {
+    return code;
+  }
+
+  public String getDisplayName() {
+    return displayName;
+  }
+
+  public String getUnit() {
+    return unit;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMin() {
+    return min;
+  }
+
+  public double getMax() {
+    return max;
+  }
+
+  public double getMean() {
+    return mean;
+  }
+
+  /**
+   * Return the value at the given percentile.
+   *
+   * @param percentile
+   *          one of the PERCENTILES
+   * @return the value at that percentile
+   */
+  public double getPercentile(int percentile) {
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      if (PERCENTILES[i] == percentile) { return percentiles[i]; }
+    }
+    throw new IllegalArgumentException("Percentile " + percentile + " is not computed, only "
+        + Arrays.toString(PERCENTILES));
+  }
+
+  public double getMedian() {
+    return getPercentile(50);
+  }
+
+  @Override
+  public String toString() {
+    return "QuantityStatistics (" + displayName + " [" + code + "]: n=" + count + ", min=" + min
+        + ", max=" + max + ", mean=" + mean + ", percentiles " + Arrays.toString(PERCENTILES)
+        + "=" + Arrays.toString(percentiles) + " " + unit + ")";
+  }
+}
@@ -1,6 +1,6 @@
 package cs.saip.domain;
 
-import java.util.List;
+import java.util.*;
 
 /**
  * The central role in the TeleMed medical system, the application server that
@@ -39,6 +39,59 @@ public interface TeleMed {
    */
   List<TeleObservation> getObservationsFor(String patientId, TimeInterval interval, String accessToken);
 
+  /**
+   * Retrieve all observations for the given time interval for each of the
+   * given patients, e.g. the patient panel of a clinic, in a single query.
+   * The request is denied as a whole if the access token does not allow
+   * reading the data of every one of the patients.
+   * 
+   * @param patientIds
+   *          the IDs of the patients to retrieve observations for
+   * @param interval
+   *          define the time interval that measurements are wanted for
+   * @param accessToken
+   *          The access token obtained from the authenticate method
+   * @return the list of all observations of each patient, in the order of
+   *         the ids, or null if access is denied
+   */
+  Map<String, List<TeleObservation>> getObservationsForPatients(List<String> patientIds, 
+      TimeInterval interval, String accessToken);
+
+  /**
+   * Retrieve one page of the observations for the given time interval for
+   * the given patient, newest first.
+   * 
+   * @param patientId
+   *          the ID of the patient to retrieve observations for
+   * @param interval
+   *          define the time interval that measurements are wanted for
+   * @param limit
+   *          the maximal number of observations on the page
+   * @param continuationToken
+   *          the token of the previous page, or null for the first page
+   * @param accessToken
+   *          The access token obtained from the authenticate method
+   * @return the page of observations
+   */
+  ObservationPage getObservationPageFor(String patientId, TimeInterval interval, int limit, 
+      String continuationToken, String accessToken);
+
+  /**
+   * Compute the statistics of each measured quantity, e.g. systolic blood
+   * pressure, for the given time interval for the given patient: the number
+   * of measurements, min, max, mean and percentiles. The statistics are
+   * computed in the storage tier, so only a few numbers are returned.
+   * 
+   * @param patientId
+   *          the ID of the patient to compute statistics for
+   * @param interval
+   *          define the time interval that measurements are wanted for
+   * @param accessToken
+   *          The access token obtained from the authenticate method
+   * @return the statistics of each quantity, empty if there are no
+   *         measurements in the interval
+   */
+  List<QuantityStatistics> getStatisticsFor(String patientId, TimeInterval interval, String accessToken);
   
   /**
    * Return the tele observation with the assigned ID
@@ -51,6 +104,20 @@ public interface TeleMed {
    */
   TeleObservation getObservation(String uniqueId, String accessToken);
 
+  /**
+   * Return the tele observations with the assigned IDs, fetched from the
+   * storage tier in one go. Access is checked once for each patient the
+   * observations belong to.
+   * 
+   * @param uniqueIds
+   *          the unique ids of the tele observations
+   * @param accessToken
+   *          The access token obtained from the authenticate method
+   * @return the tele observations in the order of the ids, with null for
+   *         each observation that is not present or may not be read
+   */
+  List<TeleObservation> getObservations(List<String> uniqueIds, String accessToken);
+
   /**
    * Correct an existing observation, note that the time stamp changes are
    * ignored
@@ -21,4 +21,13 @@ public class Utility {
     LocalDateTime zdt = LocalDateTime.ofInstant(instant, CET);
     return zdt;
   }
+
+  /** Convert a local date time in CET into a unix epoch timestamp
+   * @param time the local date time in CET
+   * @return the unix epoch timestamp in milliseconds
+   */
+  public static long convertLocalDateTimeToUnixEpoch(LocalDateTime time) {
+    ZonedDateTime zdt = time.atZone(CET);
+    return zdt.toInstant().toEpochMilli();
+  }
 }
@@ -50,7 +50,8 @@ public class FakeObjectXDSDatabase implements XDSBackend {
     lastStoredObservation = observationAsHL7;
 
     countOfProvidedDocuments++;
-    String uniqueId = "uid-"+countOfProvidedDocuments; 
+    // Deterministic ids: node and shard 0, the count as sequence
+    String uniqueId = new ObservationId(metaData.getTimestamp(), 0, 0, countOfProvidedDocuments).toString();
     // Store the observation in an internal 'database'
     db.add( new Pair(uniqueId, metaData, observationAsHL7));
     return uniqueId;
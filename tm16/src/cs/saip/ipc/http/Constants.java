@@ -3,4 +3,5 @@ package cs.saip.ipc.http;
 public class Constants {
   public static final String APPLICATION_JSON = "application/json";
   public static final String BLOODPRESSURE_PATH = "bp/";
+  public static final String PATIENT_PATH = "patient/";
 }
@@ -2,7 +2,7 @@ package cs.saip.ipc.rest;
 
 import static spark.Spark.*;
 
-import java.util.List;
+import java.util.*;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -11,7 +11,8 @@ import com.google.gson.*;
 import cs.saip.broker.*;
 import cs.saip.domain.*;
 import cs.saip.ipc.http.Constants;
-import cs.saip.storage.XDSBackend;
+import cs.saip.storage.*;
+import spark.*;
 
 /** A REST based implementation of the ServerRequestHandler and Invoker
  * roles using Spark-Java. 
@@ -95,6 +96,59 @@ public class RESTServerRequestHandlerInvoker
       return returnValue;
     });
 
+    // GET on the collection = getObservations, the ids given as repeated
+    // 'id' query parameters
+    get(storeRoute, (req, res) -> {
+      String[] ids = req.queryParamsValues("id");
+      List<String> uniqueIds = ids == null ? new ArrayList<>() : Arrays.asList(ids);
+
+      List<TeleObservation> theList = teleMed.getObservations(uniqueIds, SecurityToken);
+      return replyOf(theList, res);
+    });
+
+    // GET = getObservationsFor
+    String patientRoute = "/" + Constants.PATIENT_PATH + ":patientId/bp";
+
+    get(patientRoute, (req, res) -> {
+      List<TeleObservation> theList = teleMed.getObservationsFor(req.params(":patientId"),
+          intervalOf(req), SecurityToken);
+      return replyOf(theList, res);
+    });
+
+    // GET = getObservationPageFor, the token of the previous page as the
+    // 'token' query parameter
+    get(patientRoute + "/page", (req, res) -> {
+      int limit = limitOf(req);
+      ObservationPage page = teleMed.getObservationPageFor(req.params(":patientId"),
+          intervalOf(req), limit, req.queryParams("token"), SecurityToken);
+      return replyOf(page, res);
+    });
+
+    // GET = getStatisticsFor
+    get(patientRoute + "/statistics", (req, res) -> {
+      List<QuantityStatistics> theList = teleMed.getStatisticsFor(req.params(":patientId"),
+          intervalOf(req), SecurityToken);
+      return replyOf(theList, res);
+    });
+
+    // GET on the patient collection = getObservationsForPatients, the
+    // patients given as repeated 'patientId' query parameters
+    get("/" + Constants.PATIENT_PATH, (req, res) -> {
+      String[] ids = req.queryParamsValues("patientId");
+      List<String> patientIds = ids == null ? new ArrayList<>() : Arrays.asList(ids);
+
+      Map<String, List<TeleObservation>> theMap = teleMed.getObservationsForPatients(patientIds,
+          intervalOf(req), SecurityToken);
+      return replyOf(theMap, res);
+    });
+
+    // A failing XDS, or an invalid continuation token, is reported to the
+    // client as an internal error with the message of the exception
+    exception(XDSException.class, (e, req, res) -> {
+      res.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      res.body(e.getMessage());
+    });
+
     // PUT = correct
     String correctRoute = "/" + Constants.BLOODPRESSURE_PATH + ":id";
 
@@ -159,6 +213,44 @@ public class RESTServerRequestHandlerInvoker
 
   }
 
+  /** The interval of the 'interval' query parameter, the last day if none */
+  private TimeInterval intervalOf(Request req) {
+    String interval = req.queryParams("interval");
+    if (interval == null) { return TimeInterval.LAST_DAY; }
+    try {
+      return TimeInterval.valueOf(interval);
+    } catch (IllegalArgumentException e) {
+      halt(HttpServletResponse.SC_BAD_REQUEST, "Invalid interval: " + interval);
+      return null;
+    }
+  }
+
+  /** Return the 'limit' query parameter; a missing or invalid one is a bad request */
+  private int limitOf(Request req) {
+    String limit = req.queryParams("limit");
+    int value = 0;
+    try {
+      value = limit == null ? 0 : Integer.parseInt(limit);
+    } catch (NumberFormatException e) {
+      // Reported below
+    }
+    if (value <= 0) {
+      halt(HttpServletResponse.SC_BAD_REQUEST, "The limit must be a positive number, was " + limit);
+    }
+    return value;
+  }
+
+  /** Set the status and return the json of a result; null is not found */
+  private String replyOf(Object result, Response res) {
+    res.type(Constants.APPLICATION_JSON);
+    if (result == null) {
+      res.status(HttpServletResponse.SC_NOT_FOUND);
+      return "{}"; // a null JSON object
+    }
+    res.status(HttpServletResponse.SC_OK);
+    return gson.toJson(result);
+  }
+
   public void closedown() {
     stop();
   }
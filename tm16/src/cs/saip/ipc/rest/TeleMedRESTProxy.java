@@ -1,12 +1,15 @@
 package cs.saip.ipc.rest;
 
-import java.util.List;
+import java.lang.reflect.Type;
+import java.util.*;
 
 import javax.servlet.http.HttpServletResponse;
 
 import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
 import com.mashape.unirest.http.*;
 import com.mashape.unirest.http.exceptions.UnirestException;
+import com.mashape.unirest.request.HttpRequest;
 
 import cs.saip.broker.IPCException;
 import cs.saip.domain.*;
@@ -85,10 +88,55 @@ public class TeleMedRESTProxy implements TeleMed {
     return teleObs;
   }
 
+  @Override
+  public List<TeleObservation> getObservations(List<String> uniqueIds, String accessToken) {
+    // GET on path /bp/?id={id}&id={id}...
+    HttpRequest request = Unirest.get(baseURL + Constants.BLOODPRESSURE_PATH).
+        queryString("id", uniqueIds);
+    Type collectionType = new TypeToken<List<TeleObservation>>(){}.getType();
+    return getAndDemarshal(request, "getObservations", collectionType);
+  }
+
   @Override
   public List<TeleObservation> getObservationsFor(String patientId, TimeInterval interval, String accessToken) {
-    // TODO Implementation of 'getObservationsFor' pending
-    return null;
+    // GET on path /patient/{patientId}/bp
+    HttpRequest request = Unirest.get(baseURL + Constants.PATIENT_PATH + patientId + "/bp").
+        queryString("interval", interval.name());
+    Type collectionType = new TypeToken<List<TeleObservation>>(){}.getType();
+    return getAndDemarshal(request, "getObservationsFor", collectionType);
+  }
+
+  @Override
+  public Map<String, List<TeleObservation>> getObservationsForPatients(List<String> patientIds,
+      TimeInterval interval, String accessToken) {
+    // GET on path /patient/?patientId={patientId}&patientId={patientId}...
+    HttpRequest request = Unirest.get(baseURL + Constants.PATIENT_PATH).
+        queryString("patientId", patientIds).
+        queryString("interval", interval.name());
+    Type mapType = new TypeToken<Map<String, List<TeleObservation>>>(){}.getType();
+    return getAndDemarshal(request, "getObservationsForPatients", mapType);
+  }
+
+  @Override
+  public ObservationPage getObservationPageFor(String patientId, TimeInterval interval, int limit,
+      String continuationToken, String accessToken) {
+    // GET on path /patient/{patientId}/bp/page
+    HttpRequest request = Unirest.get(baseURL + Constants.PATIENT_PATH + patientId + "/bp/page").
+        queryString("interval", interval.name()).
+        queryString("limit", limit);
+    if (continuationToken != null) {
+      request = request.queryString("token", continuationToken);
+    }
+    return getAndDemarshal(request, "getObservationPageFor", ObservationPage.class);
+  }
+
+  @Override
+  public List<QuantityStatistics> getStatisticsFor(String patientId, TimeInterval interval, String accessToken) {
+    // GET on path /patient/{patientId}/bp/statistics
+    HttpRequest request = Unirest.get(baseURL + Constants.PATIENT_PATH + patientId + "/bp/statistics").
+        queryString("interval", interval.name());
+    Type collectionType = new TypeToken<List<QuantityStatistics>>(){}.getType();
+    return getAndDemarshal(request, "getStatisticsFor", collectionType);
   }
 
 
@@ -134,4 +182,23 @@ public class TeleMedRESTProxy implements TeleMed {
     return statusCode == HttpServletResponse.SC_NO_CONTENT;
   }
 
+  /** Send a GET request and demarshal the returned json; null if it is not found */
+  private <T> T getAndDemarshal(HttpRequest request, String operationName, Type typeOfReturnValue) {
+    HttpResponse<String> response = null;
+    try {
+      response = request.
+          header("accept", Constants.APPLICATION_JSON).asString();
+    } catch (UnirestException e) {
+      throw new IPCException("UniRest GET failed for '" + operationName + "'", e);
+    }
+
+    int statusCode = response.getStatus();
+    if (statusCode == HttpServletResponse.SC_NOT_FOUND) { return null; }
+    if (statusCode != HttpServletResponse.SC_OK) {
+      throw new IPCException("Failure during client requesting operation '" + operationName
+          + "'. ErrorMessage is: " + response.getBody());
+    }
+    return gson.fromJson(response.getBody(), typeOfReturnValue);
+  }
+
 }
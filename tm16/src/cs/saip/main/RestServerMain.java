@@ -5,9 +5,9 @@ import java.util.logging.*;
 import cs.saip.appserver.TeleMedServant;
 import cs.saip.authorization.JWTAuthorizationImpl;
 import cs.saip.domain.*;
-import cs.saip.doubles.FakeObjectXDSDatabase;
 import cs.saip.ipc.rest.RESTServerRequestHandlerInvoker;
 import cs.saip.storage.XDSBackend;
+import cs.saip.storage.memory.IndexedMemoryXDS;
 
 /** Jetty/Spark-java based server responding to REST calls.
  * 
@@ -32,7 +32,7 @@ public class RestServerMain {
   public RestServerMain(String portNo) throws Exception {
     // Define the server side delegates
     XDSBackend xds = null;
-    xds = new FakeObjectXDSDatabase();
+    xds = new IndexedMemoryXDS();
     Logger logger = Logger.getLogger("TM16Logger");
     logger.addHandler(new StreamHandler(System.out, new SimpleFormatter()));
     Authorization atz = new JWTAuthorizationImpl(logger);
@@ -1,13 +1,23 @@
 package cs.saip.main;
 
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+
 import cs.saip.appserver.*;
 import cs.saip.authorization.AuthorizeAllStub;
 import cs.saip.broker.Invoker;
 import cs.saip.domain.TeleMed;
-import cs.saip.doubles.FakeObjectXDSDatabase;
 import cs.saip.ipc.http.UriTunnelServerRequestHandler;
-import cs.saip.storage.XDSBackend;
-import cs.saip.storage.mongo.MongoXDSAdapter;
+import cs.saip.storage.*;
+import cs.saip.storage.codec.DictionaryDeflateCodec;
+import cs.saip.storage.file.LogStructuredXDS;
+import cs.saip.storage.lsm.LSMTreeXDS;
+import cs.saip.storage.memory.DurableMemoryXDS;
+import cs.saip.storage.wal.FsyncPolicy;
+import cs.saip.storage.mongo.*;
+import cs.saip.storage.registry.*;
+import cs.saip.storage.shard.ShardedXDS;
 
 /** Jetty/Spark-java based server responding to URI Tunneled POST
  * uploads and GET requests.
@@ -27,7 +37,8 @@ public class ServerMain {
   
   private static void explainAndDie() {
     System.out.println("Usage: ServerMain {type}");
-    System.out.println("       type = 'memory'|{host} indicate the type of DB to use");
+    System.out.println("       type = 'memory'|'file'|'lsm'|'registry'|{host} indicate the type of DB to use");
+    System.out.println("       {host1},{host2},... shards the patients across several MongoDBs");
     System.exit(-1);
   }
 
@@ -36,12 +47,69 @@ public class ServerMain {
     // Define the server side delegates
     XDSBackend xds = null;
     if (type.equals("memory")) {
-    xds = new FakeObjectXDSDatabase();
+      // Write-ahead log and snapshots in folder 'xds-memory', group commit
+      // every 5 ms and a snapshot every 5 minutes
+      xds = new DurableMemoryXDS(Paths.get("xds-memory"),
+          FsyncPolicy.GROUP_COMMIT, 5, 300);
+    } else if (type.equals("file")) {
+      // Segments in folder 'xds-data', merged when half of them is dead,
+      // documents deflated against the HL7 dictionary; the last 31 days of
+      // the 10000 most recently queried patients are also kept in memory,
+      // swept every minute
+      xds = new TieredXDS(new LogStructuredXDS(Paths.get("xds-data"),
+          LogStructuredXDS.DEFAULT_SEGMENT_CAPACITY, 0.5, 60, new DictionaryDeflateCodec()),
+          Duration.ofDays(31), 10000, 60);
+    } else if (type.equals("lsm")) {
+      // Log-structured merge-tree in folder 'xds-lsm' for write heavy
+      // ingestion, group commit every 5 ms, documents deflated against the
+      // HL7 dictionary, flushed and compacted in the background
+      xds = new LSMTreeXDS(Paths.get("xds-lsm"), LSMTreeXDS.DEFAULT_MEMTABLE_BYTES,
+          LSMTreeXDS.DEFAULT_LEVEL_BASE_BYTES, FsyncPolicy.GROUP_COMMIT, 5,
+          new DictionaryDeflateCodec(), true);
+    } else if (type.equals("registry")) {
+      // Registry log in folder 'xds-registry', documents in 'xds-documents'
+      DocumentRegistry registry = new DocumentRegistry(Paths.get("xds-registry"),
+          FsyncPolicy.GROUP_COMMIT, 5);
+      List<DocumentRepository> repositories = new ArrayList<>();
+      repositories.add(new FileDocumentRepository("file", Paths.get("xds-documents"),
+          new DictionaryDeflateCodec()));
+      xds = new RegistryXDS(registry, repositories, 4);
+    } else if (type.contains(",")) {
+      // One MongoDB per host, named by the host so the names are stable
+      Map<String, XDSBackend> shards = new HashMap<>();
+      List<MongoXDSAdapter> adapters = new ArrayList<>();
+      for (String host : type.split(",")) {
+        MongoXDSAdapter adapter = new MongoXDSAdapter(host, 27017, StorageFormat.STRUCTURED);
+        shards.put(host, adapter);
+        adapters.add(adapter);
+      }
+      xds = new CachingXDS(new MicroBatchingXDS(new ShardedXDS(shards), 5, 500),
+          10000, 32 * 1024 * 1024);
+      // Patients and days without documents are answered without a query;
+      // the filters in folder 'xds-bloom' are seeded from the shards, and
+      // seeded again if the shards, counted every 5 minutes, hold documents
+      // stored by others
+      xds = new BloomFilteredXDS(xds, Paths.get("xds-bloom"), true, 300,
+          () -> adapters.stream().flatMap(MongoXDSAdapter::streamMetaData),
+          () -> adapters.stream().mapToLong(MongoXDSAdapter::getDocumentCount).sum());
     } else {
-      xds = new MongoXDSAdapter(type, 27017);
+      // Concurrent uploads are merged into batches within a 5 ms window, and
+      // up to 10000 documents, at most 32 MB, are cached for repeated reads
+      MongoXDSAdapter adapter = new MongoXDSAdapter(type, 27017, StorageFormat.STRUCTURED);
+      xds = new CachingXDS(new MicroBatchingXDS(adapter, 5, 500),
+          10000, 32 * 1024 * 1024);
+      // Patients and days without documents are answered without a query;
+      // the filters in folder 'xds-bloom' are seeded from the database, and
+      // seeded again if it, counted every 5 minutes, holds documents stored
+      // by others
+      xds = new BloomFilteredXDS(xds, Paths.get("xds-bloom"), true, 300, adapter::streamMetaData,
+          adapter::getDocumentCount);
     }
     // Create server side implementation of Broker roles
-    TeleMed tsServant = new TeleMedServant(xds, new AuthorizeAllStub());
+    // The servant is the only writer, so it may cache the query results of
+    // the 10000 most recently queried patients, reloaded every 5 minutes
+    TeleMed tsServant = new TeleMedServant(xds, new AuthorizeAllStub(),
+        new ObservationQueryCache(10000, Duration.ofMinutes(5)));
     Invoker invoker = new StandardJSONInvoker(tsServant);
     UriTunnelServerRequestHandler srh = 
         new UriTunnelServerRequestHandler(invoker, xds, port);
@@ -0,0 +1,127 @@
+package cs.saip.storage;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A bloom filter of strings, which answers if a string may have been added
+ * or surely has not. With ten bits per string and seven hash functions,
+ * about one in a hundred strings not added are reported as maybe added.
+ * <p>
+ * The hash functions are derived from two 64 bit hashes of the string by
+ * double hashing. The filter is not thread safe.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public final class BloomFilter {
+
+  static final int BITS_PER_KEY = 10;
+  static final int NUMBER_OF_HASHES = 7;
+
+  private final long[] bits;
+  private final int numberOfHashes;
+
+  /**
+   * Construct an empty filter for the given number of strings, with ten bits
+   * per string.
+   *
+   * @param expectedKeys
+   *          the number of strings to be added
+   */
+  public BloomFilter(int expectedKeys) {
+    this(new long[Math.max(1, (expectedKeys * BITS_PER_KEY + 63) / 64)], NUMBER_OF_HASHES);
+  }
+
+  /**
+   * Construct an empty filter for the given number of strings, sized so
+   * that the given fraction of the strings not added are reported as maybe
+   * added once they are all added.
+   *
+   * @param expectedKeys
+   *          the number of strings to be added
+   * @param falsePositiveRate
+   *          the rate of false positives when full, between 0 and 1
+   */
+  public BloomFilter(int expectedKeys, double falsePositiveRate) {
+    this(new long[(int) Math.max(1, (bitsFor(expectedKeys, falsePositiveRate) + 63) / 64)],
+        (int) Math.max(1, Math.round(-Math.log(falsePositiveRate) / Math.log(2))));
+  }
+
+  private BloomFilter(long[] bits, int numberOfHashes) {
+    this.bits = bits;
+    this.numberOfHashes = numberOfHashes;
+  }
+
+  public void add(String key) {
+    long h1 = hash(key, 0x9E3779B97F4A7C15L);
+    long h2 = hash(key, 0xC2B2AE3D27D4EB4FL);
+    long numberOfBits = bits.length * 64L;
+    for (int i = 0; i < numberOfHashes; i++) {
+      long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numberOfBits;
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  public boolean mightContain(String key) {
+    long h1 = hash(key, 0x9E3779B97F4A7C15L);
+    long h2 = hash(key, 0xC2B2AE3D27D4EB4FL);
+    long numberOfBits = bits.length * 64L;
+    for (int i = 0; i < numberOfHashes; i++) {
+      long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numberOfBits;
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) { return false; }
+    }
+    return true;
+  }
+
+  /**
+   * Return the estimated rate of false positives, from the fraction of the
+   * bits that are set.
+   *
+   * @return the false positive rate, between 0 and 1
+   */
+  public double getFalsePositiveRate() {
+    long set = 0;
+    for (long word : bits) {
+      set += Long.bitCount(word);
+    }
+    return Math.pow((double) set / (bits.length * 64L), numberOfHashes);
+  }
+
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeInt(numberOfHashes);
+    out.writeInt(bits.length);
+    for (long word : bits) {
+      out.writeLong(word);
+    }
+  }
+
+  public static BloomFilter readFrom(DataInput in) throws IOException {
+    int numberOfHashes = in.readInt();
+    long[] bits = new long[in.readInt()];
+    for (int i = 0; i < bits.length; i++) {
+      bits[i] = in.readLong();
+    }
+    return new BloomFilter(bits, numberOfHashes);
+  }
+
+  /** The optimal number of bits, -n ln p / (ln 2)^2 */
+  private static long bitsFor(int expectedKeys, double falsePositiveRate) {
+    return (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+  }
+
+  /** A 64 bit hash of the UTF-8 bytes of the key, mixed as in MurmurHash3 */
+  private static long hash(String key, long seed) {
+    long h = seed;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      h ^= b & 0xff;
+      h *= 0x100000001B3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
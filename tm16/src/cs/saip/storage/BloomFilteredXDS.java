@@ -0,0 +1,640 @@
+package cs.saip.storage;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.Stream;
+
+import org.w3c.dom.Document;
+
+import cs.saip.domain.*;
+import cs.saip.storage.wal.*;
+
+/**
+ * A decorator of an XDS that answers the queries that must be empty without
+ * asking the decoratee, e.g. dashboards asking about patients who have never
+ * uploaded anything.
+ * <p>
+ * A scalable bloom filter holds the patients that have documents, and
+ * optionally a filter per day holds the patients with documents of that
+ * day. Both are maintained when documents are stored, before they reach the
+ * decoratee. A query for a patient the filters rule out, or for an interval
+ * with no day that may hold documents of the patient, returns an empty
+ * result without any I/O; the rest go to the decoratee. Deleted documents
+ * stay in the filters, which just makes them answer maybe.
+ * <p>
+ * The filters are persisted in a directory of their own: patients new to a
+ * filter are appended to a write-ahead log before their documents are
+ * stored, and a snapshot of the filters replaces the log now and then, and
+ * when the XDS is closed. For a new directory the filters are rebuilt from
+ * a seed, the meta data of the documents already in the decoratee.
+ * <p>
+ * Documents stored without passing this XDS, by another app server or a
+ * restore of the database, would be missing from the filters, which would
+ * then rule out queries that have results. The filters therefore count the
+ * documents they cover: those of the seed plus those stored and minus
+ * those deleted through this XDS. Each snapshot records that count, and
+ * at start the filters are rebuilt from the seed if the decoratee holds
+ * another number. At each snapshot interval the decoratee is counted
+ * again; if it holds more documents than the filters cover, no query is
+ * ruled out until the seed has been added to the filters. Writes that are
+ * matched by as many deletes go unnoticed, as does anything when no
+ * document count is given.
+ * <p>
+ * The estimated false positive rate of the patient filter and the observed
+ * rate, the fraction of the empty queries that were not ruled out, are
+ * exposed as getters.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class BloomFilteredXDS implements XDSBackend, Closeable {
+
+  private static final String SNAPSHOT_NAME = "filters.bin";
+  private static final int SNAPSHOT_MAGIC = 0x54324246; // 'T2BF'
+  // Snapshots made before the document count was recorded
+  private static final int SNAPSHOT_MAGIC_UNCOUNTED = 0x54314246; // 'T1BF'
+
+  private static final Logger logger = Logger.getLogger("TM16Logger");
+
+  private static final int INITIAL_PATIENTS = 1024;
+  private static final int INITIAL_PATIENTS_PER_DAY = 64;
+  private static final double FALSE_POSITIVE_RATE = 0.01;
+  private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+
+  private final XDSBackend decoratee;
+  private final Path directory;
+  private final boolean perDayFilters;
+  private final Supplier<Stream<MetaData>> seed;
+  private final LongSupplier documentCount;
+
+  private ScalableBloomFilter patients;
+  private NavigableMap<Long, ScalableBloomFilter> days;
+  private WriteAheadLog log;
+
+  // Writers share the barrier while they log and add to the filters, a
+  // snapshot takes it exclusively to find an lsn the filters cover
+  private ReadWriteLock barrier;
+  private Object snapshotMonitor;
+  private ScheduledExecutorService snapshotter;
+
+  // Documents in the decoratee that are in the filters, and documents in
+  // the filters whose store has not returned yet
+  private final AtomicLong coveredCount;
+  private final AtomicLong pendingCount;
+  // True while documents stored elsewhere are added to the filters
+  private volatile boolean reseeding;
+
+  private final AtomicLong skipCount;
+  private final AtomicLong passedEmptyCount;
+  private final AtomicLong passedCount;
+
+  /**
+   * Construct a filtered XDS without per-day filters or periodic snapshots.
+   *
+   * @param decoratee
+   *          the XDS to filter queries to
+   * @param directory
+   *          the directory of the log and the snapshot of the filters; if it
+   *          is new, the decoratee must be empty
+   * @throws IOException
+   *           if the filters cannot be recovered
+   */
+  public BloomFilteredXDS(XDSBackend decoratee, Path directory) throws IOException {
+    this(decoratee, directory, false, 0, null, null);
+  }
+
+  /**
+   * Construct a filtered XDS that trusts its directory to hold filters of
+   * all the documents in the decoratee; only use it if no other process
+   * stores documents in the decoratee.
+   *
+   * @param decoratee
+   *          the XDS to filter queries to
+   * @param directory
+   *          the directory of the log and the snapshot of the filters
+   * @param perDayFilters
+   *          true to also keep a filter of the patients of each day
+   * @param snapshotIntervalSeconds
+   *          how often a snapshot is taken; 0 disables periodic snapshots
+   * @param seed
+   *          supplies the meta data of all documents in the decoratee; null
+   *          if the decoratee is empty
+   * @throws IOException
+   *           if the filters cannot be recovered
+   */
+  public BloomFilteredXDS(XDSBackend decoratee, Path directory, boolean perDayFilters,
+      int snapshotIntervalSeconds, Supplier<Stream<MetaData>> seed) throws IOException {
+    this(decoratee, directory, perDayFilters, snapshotIntervalSeconds, seed, null);
+  }
+
+  /**
+   * Construct a filtered XDS.
+   *
+   * @param decoratee
+   *          the XDS to filter queries to
+   * @param directory
+   *          the directory of the log and the snapshot of the filters
+   * @param perDayFilters
+   *          true to also keep a filter of the patients of each day, which
+   *          rules out intervals without documents of a known patient
+   * @param snapshotIntervalSeconds
+   *          how often a snapshot is taken; 0 disables periodic snapshots
+   * @param seed
+   *          supplies the meta data of all documents in the decoratee, used
+   *          to rebuild the filters when the directory holds none, the
+   *          per-day filters are new, or the document count has changed;
+   *          null if the decoratee is empty
+   * @param documentCount
+   *          supplies the number of documents in the decoratee, which is
+   *          compared to the count of the snapshot at start and to the
+   *          documents stored through this XDS at each snapshot interval;
+   *          null to trust the directory
+   * @throws IOException
+   *           if the filters cannot be recovered
+   */
+  public BloomFilteredXDS(XDSBackend decoratee, Path directory, boolean perDayFilters,
+      int snapshotIntervalSeconds, Supplier<Stream<MetaData>> seed, LongSupplier documentCount)
+      throws IOException {
+    this.decoratee = decoratee;
+    this.directory = directory;
+    this.perDayFilters = perDayFilters;
+    this.seed = seed;
+    this.documentCount = documentCount;
+    coveredCount = new AtomicLong();
+    pendingCount = new AtomicLong();
+    barrier = new ReentrantReadWriteLock();
+    snapshotMonitor = new Object();
+    skipCount = new AtomicLong();
+    passedEmptyCount = new AtomicLong();
+    passedCount = new AtomicLong();
+
+    Files.createDirectories(directory);
+    long[] snapshotCount = { -1 };
+    long snapshotLsn = loadSnapshot(snapshotCount);
+    coveredCount.set(Math.max(snapshotCount[0], 0));
+    log = new WriteAheadLog(directory.resolve("wal"), FsyncPolicy.GROUP_COMMIT, 5);
+    boolean isNew = snapshotLsn < 0 && log.lastLsn() == 0;
+    log.replay(Math.max(snapshotLsn, 0), (lsn, record) -> redo(record));
+    if (!isNew && seed != null && documentCount != null
+        && snapshotCount[0] != documentCount.getAsLong()) {
+      // Documents were stored or deleted elsewhere since the snapshot
+      logger.info("BloomFilteredXDS: the document count differs from the snapshot in "
+          + directory + ", rebuilding the filters");
+      rebuild(seed);
+    } else if (isNew || (perDayFilters && days == null)) {
+      if (!isNew && seed == null) {
+        throw new IOException("The filters in " + directory + " have no per-day filters, "
+            + "a seed is needed to build them");
+      }
+      rebuild(seed);
+    } else if (!perDayFilters) {
+      days = null;
+    }
+
+    if (snapshotIntervalSeconds > 0) {
+      snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "xds-bloom-snapshotter");
+        t.setDaemon(true);
+        return t;
+      });
+      snapshotter.scheduleWithFixedDelay(() -> {
+        try {
+          if (!reseedIfStoredElsewhere()) {
+            snapshot();
+          }
+        } catch (IOException | RuntimeException e) {
+          // The log still holds everything, the next snapshot may succeed
+          logger.log(Level.WARNING, "BloomFilteredXDS: snapshot failed", e);
+        }
+      }, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  @Override
+  public String provideAndRegisterDocument(MetaData metaData, Document observationAsHL7) {
+    register(Collections.singletonList(metaData));
+    boolean stored = false;
+    try {
+      String uniqueId = decoratee.provideAndRegisterDocument(metaData, observationAsHL7);
+      stored = true;
+      return uniqueId;
+    } finally {
+      settle(1, stored ? 1 : 0);
+    }
+  }
+
+  @Override
+  public List<String> provideAndRegisterDocuments(List<DocumentSubmission> submissions) {
+    List<MetaData> metaData = new ArrayList<MetaData>(submissions.size());
+    for (DocumentSubmission submission : submissions) {
+      metaData.add(submission.getMetaData());
+    }
+    register(metaData);
+    int stored = 0;
+    try {
+      List<String> uniqueIds = decoratee.provideAndRegisterDocuments(submissions);
+      stored = uniqueIds.size();
+      return uniqueIds;
+    } catch (PartialBatchException e) {
+      for (int i = 0; i < e.getUniqueIds().size(); i++) {
+        if (e.isStored(i)) { stored++; }
+      }
+      throw e;
+    } finally {
+      settle(metaData.size(), stored);
+    }
+  }
+
+  @Override
+  public List<Document> retriveDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+    if (mustBeEmpty(personID, start, end)) { return new ArrayList<Document>(); }
+    return observe(decoratee.retriveDocumentSet(personID, start, end));
+  }
+
+  @Override
+  public Stream<Document> streamDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+    if (mustBeEmpty(personID, start, end)) { return Stream.empty(); }
+    boolean[] empty = { true };
+    return decoratee.streamDocumentSet(personID, start, end).
+        peek(doc -> empty[0] = false).
+        onClose(() -> {
+          if (empty[0]) {
+            passedEmptyCount.incrementAndGet();
+          }
+        });
+  }
+
+  @Override
+  public Stream<Document> streamDocumentSets(List<String> personIDs, LocalDateTime start,
+      LocalDateTime end) {
+    List<String> candidates = new ArrayList<String>();
+    for (String personID : new LinkedHashSet<String>(personIDs)) {
+      if (!mustBeEmpty(personID, start, end)) {
+        candidates.add(personID);
+      }
+    }
+    if (candidates.isEmpty()) { return Stream.empty(); }
+    return decoratee.streamDocumentSets(candidates, start, end);
+  }
+
+  @Override
+  public DocumentPage retriveDocumentPage(String personID, LocalDateTime start, LocalDateTime end,
+      int limit, String continuationToken) {
+    // A continuation token means the first page was not empty
+    if (continuationToken == null && mustBeEmpty(personID, start, end)) {
+      return new DocumentPage(new ArrayList<Document>(), null);
+    }
+    return decoratee.retriveDocumentPage(personID, start, end, limit, continuationToken);
+  }
+
+  @Override
+  public List<QuantityStatistics> computeStatistics(String personID, LocalDateTime start,
+      LocalDateTime end) {
+    if (mustBeEmpty(personID, start, end)) { return new ArrayList<QuantityStatistics>(); }
+    return observe(decoratee.computeStatistics(personID, start, end));
+  }
+
+  @Override
+  public Document retriveDocument(String uniqueId) {
+    return decoratee.retriveDocument(uniqueId);
+  }
+
+  @Override
+  public List<Document> retriveDocuments(List<String> uniqueIds) {
+    return decoratee.retriveDocuments(uniqueIds);
+  }
+
+  @Override
+  public boolean correctDocument(String uniqueId, Operation operation, Document doc) {
+    // Neither the patient nor the time of a document is corrected
+    boolean corrected = decoratee.correctDocument(uniqueId, operation, doc);
+    if (corrected && operation == Operation.DELETE) {
+      coveredCount.decrementAndGet();
+    }
+    return corrected;
+  }
+
+  /**
+   * Count the documents in the decoratee, and if it holds more than the
+   * filters cover, stop ruling out queries until the seed has been added to
+   * the filters, and take a snapshot. Called at each snapshot interval.
+   *
+   * @return true if documents stored elsewhere were found and added
+   * @throws IOException
+   *           if the snapshot could not be written
+   */
+  public boolean reseedIfStoredElsewhere() throws IOException {
+    if (seed == null || documentCount == null) { return false; }
+    synchronized (snapshotMonitor) {
+      // Counted before the covered documents, so a document stored through
+      // this XDS in between is in both
+      long count = documentCount.getAsLong();
+      if (count <= coveredCount.get() + pendingCount.get()) { return false; }
+      logger.warning("BloomFilteredXDS: the decoratee holds " + count + " documents, the filters "
+          + "cover " + (coveredCount.get() + pendingCount.get()) + ", adding the seed to them");
+      reseeding = true;
+      try {
+        // Added to the filters in place, so nothing registered meanwhile is
+        // lost; documents stored through this XDS while counting may be
+        // counted twice, which just makes the next start rebuild the filters
+        long covered = coveredCount.get();
+        count = documentCount.getAsLong();
+        try (Stream<MetaData> all = seed.get()) {
+          all.forEach(md -> add(md.getPersonID(), md.getTimestamp()));
+        }
+        coveredCount.addAndGet(count - covered);
+        snapshot();
+      } finally {
+        reseeding = false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Write a snapshot of the filters, and delete the log files it makes
+   * obsolete.
+   *
+   * @throws IOException
+   *           if the snapshot could not be written
+   */
+  public void snapshot() throws IOException {
+    synchronized (snapshotMonitor) {
+      long count;
+      long lsn;
+      ByteArrayOutputStream image = new ByteArrayOutputStream();
+      barrier.writeLock().lock();
+      try {
+        // All logged patients up to lsn are in the filters, and so are the
+        // documents counted; a store that fails later just makes the next
+        // start rebuild the filters
+        lsn = log.rotate();
+        count = coveredCount.get() + pendingCount.get();
+        DataOutputStream out = new DataOutputStream(image);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeLong(lsn);
+        out.writeLong(count);
+        synchronized (this) {
+          patients.writeTo(out);
+          out.writeBoolean(days != null);
+          if (days != null) {
+            out.writeInt(days.size());
+            for (Map.Entry<Long, ScalableBloomFilter> day : days.entrySet()) {
+              out.writeLong(day.getKey());
+              day.getValue().writeTo(out);
+            }
+          }
+        }
+      } finally {
+        barrier.writeLock().unlock();
+      }
+      Path temporary = directory.resolve(SNAPSHOT_NAME + ".tmp");
+      Files.write(temporary, image.toByteArray());
+      try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+        channel.force(true);
+      }
+      Files.move(temporary, directory.resolve(SNAPSHOT_NAME),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      log.truncate(lsn);
+    }
+  }
+
+  /**
+   * Return the number of queries answered as empty without asking the
+   * decoratee.
+   *
+   * @return number of skipped queries
+   */
+  public long getSkipCount() {
+    return skipCount.get();
+  }
+
+  /**
+   * Return the estimated false positive rate of the patient filter, the
+   * probability that it answers maybe for a patient without documents.
+   *
+   * @return the false positive rate, between 0 and 1
+   */
+  public synchronized double getFalsePositiveRate() {
+    return patients.getFalsePositiveRate();
+  }
+
+  /**
+   * Return the fraction of the empty queries that the filters did not rule
+   * out. Without per-day filters this includes the empty intervals of known
+   * patients, which no patient filter can rule out.
+   *
+   * @return the observed false positive rate, between 0 and 1; 0 if no
+   *         query has been empty
+   */
+  public double getObservedFalsePositiveRate() {
+    long passedEmpty = passedEmptyCount.get();
+    long empty = passedEmpty + skipCount.get();
+    return empty == 0 ? 0.0 : (double) passedEmpty / empty;
+  }
+
+  /**
+   * Return the number of patients in the patient filter.
+   *
+   * @return number of patients
+   */
+  public synchronized long getPatientCount() {
+    return patients.size();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("BloomFilteredXDS (%d patients, estimated false positive rate %.4f, "
+        + "observed %.4f, %d skipped, %d passed)", getPatientCount(), getFalsePositiveRate(),
+        getObservedFalsePositiveRate(), getSkipCount(), passedCount.get());
+  }
+
+  /**
+   * Stop periodic snapshots, take a final snapshot and close the log. The
+   * decoratee is not closed.
+   */
+  @Override
+  public void close() throws IOException {
+    if (snapshotter != null) {
+      snapshotter.shutdownNow();
+    }
+    snapshot();
+    synchronized (snapshotMonitor) {
+      log.close();
+    }
+  }
+
+  // === Filtering
+
+  /** Return true if the filters rule out documents of the person in [start;end] */
+  private boolean mustBeEmpty(String personID, LocalDateTime start, LocalDateTime end) {
+    if (reseeding) {
+      passedCount.incrementAndGet();
+      return false;
+    }
+    boolean ruledOut;
+    synchronized (this) {
+      ruledOut = !patients.mightContain(personID);
+      if (!ruledOut && days != null) {
+        ruledOut = true;
+        long first = dayOf(Utility.convertLocalDateTimeToUnixEpoch(start));
+        long last = dayOf(Utility.convertLocalDateTimeToUnixEpoch(end));
+        if (first <= last) {
+          for (ScalableBloomFilter day : days.subMap(first, true, last, true).values()) {
+            if (day.mightContain(personID)) {
+              ruledOut = false;
+              break;
+            }
+          }
+        }
+      }
+    }
+    if (ruledOut) {
+      skipCount.incrementAndGet();
+    } else {
+      passedCount.incrementAndGet();
+    }
+    return ruledOut;
+  }
+
+  private <T> List<T> observe(List<T> result) {
+    if (result.isEmpty()) {
+      passedEmptyCount.incrementAndGet();
+    }
+    return result;
+  }
+
+  /**
+   * Log the patients and days new to the filters, then add them; the
+   * documents are pending until settled
+   */
+  private void register(List<MetaData> metaData) {
+    barrier.readLock().lock();
+    try {
+      pendingCount.addAndGet(metaData.size());
+      List<MetaData> fresh = new ArrayList<MetaData>();
+      synchronized (this) {
+        for (MetaData md : metaData) {
+          if (!contains(md)) {
+            fresh.add(md);
+          }
+        }
+      }
+      if (fresh.isEmpty()) { return; }
+      List<byte[]> records = new ArrayList<byte[]>(fresh.size());
+      for (MetaData md : fresh) {
+        records.add(encode(md));
+      }
+      // Logged before the documents are stored, so the filters never miss
+      // a stored document after a crash
+      log.appendAll(records);
+      synchronized (this) {
+        for (MetaData md : fresh) {
+          add(md.getPersonID(), md.getTimestamp());
+        }
+      }
+    } catch (IOException e) {
+      pendingCount.addAndGet(-metaData.size());
+      throw new XDSException("Failed to log patients: " + e.getMessage());
+    } finally {
+      barrier.readLock().unlock();
+    }
+  }
+
+  /** Settle pending documents once the decoratee has stored some of them */
+  private void settle(int pending, int stored) {
+    // Covered before no longer pending, so their sum never drops below the
+    // documents stored through this XDS
+    coveredCount.addAndGet(stored);
+    pendingCount.addAndGet(-pending);
+  }
+
+  private synchronized boolean contains(MetaData md) {
+    if (!patients.mightContain(md.getPersonID())) { return false; }
+    if (days == null) { return true; }
+    ScalableBloomFilter day = days.get(dayOf(md.getTimestamp()));
+    return day != null && day.mightContain(md.getPersonID());
+  }
+
+  private synchronized void add(String personID, long timestamp) {
+    patients.add(personID);
+    if (days != null) {
+      days.computeIfAbsent(dayOf(timestamp),
+          d -> new ScalableBloomFilter(INITIAL_PATIENTS_PER_DAY, FALSE_POSITIVE_RATE)).add(personID);
+    }
+  }
+
+  private static long dayOf(long timestamp) {
+    return Math.floorDiv(timestamp, MILLIS_PER_DAY);
+  }
+
+  // === Recovery
+
+  /**
+   * Load the snapshot if there is one; return its lsn, or -1 if there is
+   * none. The document count it records, or -1, is put in count[0]
+   */
+  private long loadSnapshot(long[] count) throws IOException {
+    patients = new ScalableBloomFilter(INITIAL_PATIENTS, FALSE_POSITIVE_RATE);
+    days = perDayFilters ? new TreeMap<Long, ScalableBloomFilter>() : null;
+    Path snapshot = directory.resolve(SNAPSHOT_NAME);
+    if (!Files.exists(snapshot)) { return -1; }
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(snapshot)))) {
+      int magic = in.readInt();
+      if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_UNCOUNTED) {
+        throw new IOException("Not a snapshot of bloom filters: " + snapshot);
+      }
+      long lsn = in.readLong();
+      count[0] = magic == SNAPSHOT_MAGIC ? in.readLong() : -1;
+      patients = ScalableBloomFilter.readFrom(in);
+      days = null;
+      if (in.readBoolean()) {
+        days = new TreeMap<Long, ScalableBloomFilter>();
+        int dayCount = in.readInt();
+        for (int i = 0; i < dayCount; i++) {
+          long day = in.readLong();
+          days.put(day, ScalableBloomFilter.readFrom(in));
+        }
+      }
+      return lsn;
+    }
+  }
+
+  private void redo(byte[] record) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    add(in.readUTF(), in.readLong());
+  }
+
+  /** Rebuild the filters from the seed and take a snapshot of them */
+  private void rebuild(Supplier<Stream<MetaData>> seed) throws IOException {
+    patients = new ScalableBloomFilter(INITIAL_PATIENTS, FALSE_POSITIVE_RATE);
+    days = perDayFilters ? new TreeMap<Long, ScalableBloomFilter>() : null;
+    // Counted before the seed is read, so documents stored meanwhile are
+    // found by the next count
+    coveredCount.set(documentCount == null ? 0 : documentCount.getAsLong());
+    if (seed != null) {
+      try (Stream<MetaData> all = seed.get()) {
+        all.forEach(md -> add(md.getPersonID(), md.getTimestamp()));
+      }
+    }
+    snapshot();
+  }
+
+  private static byte[] encode(MetaData md) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeUTF(md.getPersonID());
+    out.writeLong(md.getTimestamp());
+    out.flush();
+    return bytes.toByteArray();
+  }
+}
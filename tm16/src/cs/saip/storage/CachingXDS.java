@@ -0,0 +1,467 @@
+package cs.saip.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.domain.QuantityStatistics;
+
+/**
+ * A decorator of an XDS that caches the documents read by
+ * retriveDocument, bounded both by the number of documents and by their
+ * size in bytes.
+ * <p>
+ * The cache follows W-TinyLFU: new documents enter a small LRU window, and
+ * a document leaving the window is only admitted to the main LRU region if
+ * it has been read more often than the document the main region would
+ * evict for it. The read frequencies are kept approximately in a count-min
+ * sketch of small counters, which are halved now and then so old
+ * popularity fades. A burst of reads of documents that are never read
+ * again thus cannot flush the documents the GPs keep coming back to.
+ * <p>
+ * The cached documents are never handed out; a reader gets a copy, so no
+ * caller can change the cached one. A LazyHL7Document whose tree is not
+ * built is cached as it is backed, by compact XML or by attributes, and a
+ * reader gets a new lazy view of it, so a read of the attributes never
+ * builds a tree; only documents with a built tree are cloned.
+ * correctDocument removes the document from the cache, and a document read
+ * while a correction is made is not cached, so a stale document is never
+ * served.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class CachingXDS implements XDSBackend {
+
+  // Share of the documents held by the window
+  private static final int WINDOW_PERCENTAGE = 1;
+
+  private final XDSBackend decoratee;
+  private final int maxEntries;
+  private final long maxBytes;
+  private final int maxWindowEntries;
+
+  // Both regions in LRU order, guarded by this
+  private final LinkedHashMap<String, Cached> window;
+  private final LinkedHashMap<String, Cached> main;
+  private final FrequencySketch sketch;
+  private long bytes;
+
+  // Incremented by every correction; a read that overlaps one is not cached
+  private final AtomicLong corrections;
+
+  private final AtomicLong hitCount;
+  private final AtomicLong missCount;
+  private final AtomicLong evictionCount;
+  private final AtomicLong rejectionCount;
+
+  /**
+   * Decorate the given XDS with a document cache.
+   *
+   * @param decoratee
+   *          the XDS whose documents are cached
+   * @param maxEntries
+   *          the maximal number of cached documents
+   * @param maxBytes
+   *          the maximal total size of the cached documents, measured as
+   *          compact XML, or as the size of the attributes of lazy
+   *          documents backed by them
+   */
+  public CachingXDS(XDSBackend decoratee, int maxEntries, long maxBytes) {
+    this.decoratee = decoratee;
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    maxWindowEntries = Math.max(1, maxEntries * WINDOW_PERCENTAGE / 100);
+    window = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+    main = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+    sketch = new FrequencySketch(maxEntries);
+    corrections = new AtomicLong();
+    hitCount = new AtomicLong();
+    missCount = new AtomicLong();
+    evictionCount = new AtomicLong();
+    rejectionCount = new AtomicLong();
+  }
+
+  @Override
+  public String provideAndRegisterDocument(MetaData metaData, Document observationAsHL7) {
+    return decoratee.provideAndRegisterDocument(metaData, observationAsHL7);
+  }
+
+  @Override
+  public List<String> provideAndRegisterDocuments(List<DocumentSubmission> submissions) {
+    return decoratee.provideAndRegisterDocuments(submissions);
+  }
+
+  @Override
+  public List<Document> retriveDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+    return decoratee.retriveDocumentSet(personID, start, end);
+  }
+
+  @Override
+  public Stream<Document> streamDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+    return decoratee.streamDocumentSet(personID, start, end);
+  }
+
+  @Override
+  public Stream<Document> streamDocumentSets(List<String> personIDs, LocalDateTime start, LocalDateTime end) {
+    return decoratee.streamDocumentSets(personIDs, start, end);
+  }
+
+  @Override
+  public DocumentPage retriveDocumentPage(String personID, LocalDateTime start, LocalDateTime end,
+      int limit, String continuationToken) {
+    return decoratee.retriveDocumentPage(personID, start, end, limit, continuationToken);
+  }
+
+  @Override
+  public List<QuantityStatistics> computeStatistics(String personID, LocalDateTime start, LocalDateTime end) {
+    return decoratee.computeStatistics(personID, start, end);
+  }
+
+  @Override
+  public Document retriveDocument(String uniqueId) {
+    Cached cached;
+    synchronized (this) {
+      sketch.increment(uniqueId);
+      cached = window.get(uniqueId);
+      if (cached == null) {
+        cached = main.get(uniqueId);
+      }
+    }
+    if (cached != null) {
+      hitCount.incrementAndGet();
+      return cached.copy();
+    }
+    missCount.incrementAndGet();
+
+    long correctionsBefore = corrections.get();
+    Document doc = decoratee.retriveDocument(uniqueId);
+    if (doc == null) { return null; }
+    // The cache keeps its own copy, the caller may change the one returned
+    Cached fresh = cachedOf(uniqueId, doc);
+    synchronized (this) {
+      if (corrections.get() == correctionsBefore) {
+        insert(fresh);
+      }
+    }
+    return doc;
+  }
+
+  @Override
+  public List<Document> retriveDocuments(List<String> uniqueIds) {
+    List<Document> documents = new ArrayList<Document>(uniqueIds.size());
+    List<Cached> hits = new ArrayList<Cached>(uniqueIds.size());
+    // The ids that miss, each once, and where they go in the result
+    Map<String, List<Integer>> missing = new LinkedHashMap<String, List<Integer>>();
+    synchronized (this) {
+      for (String uniqueId : uniqueIds) {
+        sketch.increment(uniqueId);
+        Cached cached = window.get(uniqueId);
+        if (cached == null) {
+          cached = main.get(uniqueId);
+        }
+        if (cached != null) {
+          hitCount.incrementAndGet();
+        } else {
+          missCount.incrementAndGet();
+          missing.computeIfAbsent(uniqueId, id -> new ArrayList<Integer>()).add(hits.size());
+        }
+        hits.add(cached);
+      }
+    }
+    for (Cached cached : hits) {
+      documents.add(cached == null ? null : cached.copy());
+    }
+    if (missing.isEmpty()) { return documents; }
+
+    // The misses are fetched from the decoratee in one go
+    long correctionsBefore = corrections.get();
+    List<String> missingIds = new ArrayList<String>(missing.keySet());
+    List<Document> fetched = decoratee.retriveDocuments(missingIds);
+    List<Cached> fresh = new ArrayList<Cached>();
+    for (int i = 0; i < missingIds.size(); i++) {
+      Document doc = fetched.get(i);
+      if (doc == null) { continue; }
+      Cached cached = cachedOf(missingIds.get(i), doc);
+      fresh.add(cached);
+      boolean first = true;
+      for (int at : missing.get(missingIds.get(i))) {
+        // A repeated id gets a copy of its own
+        documents.set(at, first ? doc : cached.copy());
+        first = false;
+      }
+    }
+    synchronized (this) {
+      if (corrections.get() == correctionsBefore) {
+        for (Cached cached : fresh) {
+          insert(cached);
+        }
+      }
+    }
+    return documents;
+  }
+
+  @Override
+  public boolean correctDocument(String uniqueId, Operation operation, Document doc) {
+    corrections.incrementAndGet();
+    invalidate(uniqueId);
+    try {
+      return decoratee.correctDocument(uniqueId, operation, doc);
+    } finally {
+      // A read may have cached the old document while the correction ran
+      corrections.incrementAndGet();
+      invalidate(uniqueId);
+    }
+  }
+
+  /**
+   * Return the number of reads answered by the cache.
+   *
+   * @return number of hits
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Return the number of reads passed on to the decorated XDS.
+   *
+   * @return number of misses
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Return the share of reads answered by the cache.
+   *
+   * @return the hit rate, between 0 and 1; 0 if nothing has been read
+   */
+  public double getHitRate() {
+    long hits = hitCount.get();
+    long total = hits + missCount.get();
+    return total == 0 ? 0.0 : (double) hits / total;
+  }
+
+  /**
+   * Return the number of documents evicted from the main region to make
+   * room for more frequently read ones.
+   *
+   * @return number of evictions
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /**
+   * Return the number of documents leaving the window that were not
+   * admitted to the main region, as they were read too rarely.
+   *
+   * @return number of rejections
+   */
+  public long getRejectionCount() {
+    return rejectionCount.get();
+  }
+
+  /**
+   * Return the number of documents presently cached.
+   *
+   * @return number of documents
+   */
+  public synchronized int size() {
+    return window.size() + main.size();
+  }
+
+  /**
+   * Return the total size of the documents presently cached.
+   *
+   * @return size in bytes
+   */
+  public synchronized long sizeInBytes() {
+    return bytes;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("CachingXDS (hit rate %.3f, %d hits, %d misses, %d evictions, %d rejections)",
+        getHitRate(), getHitCount(), getMissCount(), getEvictionCount(), getRejectionCount());
+  }
+
+  private synchronized void invalidate(String uniqueId) {
+    Cached removed = window.remove(uniqueId);
+    if (removed == null) {
+      removed = main.remove(uniqueId);
+    }
+    if (removed != null) {
+      bytes -= removed.weight;
+    }
+  }
+
+  /** Put a document in the window, and move the ones leaving it on; holds this */
+  private void insert(Cached fresh) {
+    if (fresh.weight > maxBytes || maxEntries < 1) { return; }
+    if (window.containsKey(fresh.uniqueId) || main.containsKey(fresh.uniqueId)) { return; }
+    window.put(fresh.uniqueId, fresh);
+    bytes += fresh.weight;
+    while (window.size() > maxWindowEntries) {
+      Cached candidate = removeEldest(window);
+      bytes -= candidate.weight;
+      admit(candidate);
+    }
+    // A heavy document in the window may alone exceed the bytes left
+    while (isOverBudget()) {
+      LinkedHashMap<String, Cached> region = main.isEmpty() ? window : main;
+      if (region.size() <= 1 && region == window) { break; }
+      bytes -= removeEldest(region).weight;
+      evictionCount.incrementAndGet();
+    }
+  }
+
+  /** Let a candidate from the window into the main region, or not; holds this */
+  private void admit(Cached candidate) {
+    main.put(candidate.uniqueId, candidate);
+    bytes += candidate.weight;
+    while (isOverBudget() && main.size() > 1) {
+      Cached victim = eldestOtherThan(candidate);
+      if (sketch.frequency(candidate.uniqueId) > sketch.frequency(victim.uniqueId)) {
+        main.remove(victim.uniqueId);
+        bytes -= victim.weight;
+        evictionCount.incrementAndGet();
+      } else {
+        main.remove(candidate.uniqueId);
+        bytes -= candidate.weight;
+        rejectionCount.incrementAndGet();
+        return;
+      }
+    }
+  }
+
+  private boolean isOverBudget() {
+    return window.size() + main.size() > maxEntries || bytes > maxBytes;
+  }
+
+  private Cached eldestOtherThan(Cached candidate) {
+    for (Cached c : main.values()) {
+      if (c != candidate) { return c; }
+    }
+    return candidate;
+  }
+
+  private static Cached removeEldest(LinkedHashMap<String, Cached> region) {
+    Iterator<Cached> iterator = region.values().iterator();
+    Cached eldest = iterator.next();
+    iterator.remove();
+    return eldest;
+  }
+
+  /** Make the entry of a document read from the decoratee, leaving it unbuilt if it is lazy */
+  private static Cached cachedOf(String uniqueId, Document doc) {
+    if (doc instanceof LazyHL7Document) {
+      LazyHL7Document lazy = ((LazyHL7Document) doc).view();
+      if (lazy != null) {
+        return new Cached(uniqueId, lazy, lazy.getBackingSize());
+      }
+    }
+    return new Cached(uniqueId, copyOf(doc), weightOf(doc));
+  }
+
+  private static Document copyOf(Document doc) {
+    return (Document) doc.cloneNode(true);
+  }
+
+  private static long weightOf(Document doc) {
+    return XMLUtility.convertXMLDocumentToCompactString(doc).getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  /**
+   * A cached document and its size; immutable. The document is a DOM tree,
+   * or a LazyHL7Document whose tree is never built.
+   */
+  private static class Cached {
+    final String uniqueId;
+    final Document doc;
+    final long weight;
+
+    Cached(String uniqueId, Document doc, long weight) {
+      this.uniqueId = uniqueId;
+      this.doc = doc;
+      this.weight = weight;
+    }
+
+    /** Return a copy of the document, which the reader may change */
+    Document copy() {
+      return doc instanceof LazyHL7Document ? ((LazyHL7Document) doc).view() : copyOf(doc);
+    }
+  }
+
+  /**
+   * A count-min sketch of counters up to 15 estimating how often each key has
+   * been read; after ten reads per cached document all counters are halved.
+   */
+  private static class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+    private final byte[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int maxEntries) {
+      // Sixteen counters per cached document keep collisions rare
+      int width = (Integer.highestOneBit(Math.max(16, maxEntries) - 1) << 1) * 16;
+      counters = new byte[DEPTH][width];
+      mask = width - 1;
+      sampleSize = 10 * Math.max(16, maxEntries);
+    }
+
+    void increment(String key) {
+      int hash = spread(key.hashCode());
+      boolean added = false;
+      for (int i = 0; i < DEPTH; i++) {
+        int index = indexOf(hash, i);
+        if (counters[i][index] < MAX_COUNT) {
+          counters[i][index]++;
+          added = true;
+        }
+      }
+      if (added && ++additions >= sampleSize) {
+        reset();
+      }
+    }
+
+    int frequency(String key) {
+      int hash = spread(key.hashCode());
+      int frequency = MAX_COUNT;
+      for (int i = 0; i < DEPTH; i++) {
+        frequency = Math.min(frequency, counters[i][indexOf(hash, i)]);
+      }
+      return frequency;
+    }
+
+    private void reset() {
+      for (byte[] row : counters) {
+        for (int j = 0; j < row.length; j++) {
+          row[j] >>= 1;
+        }
+      }
+      additions /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+      int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int spread(int x) {
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      return (x >>> 16) ^ x;
+    }
+  }
+}
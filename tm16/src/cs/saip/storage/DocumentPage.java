@@ -0,0 +1,148 @@
+package cs.saip.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.w3c.dom.Document;
+
+/**
+ * A page of the documents of a patient in a time interval, newest first,
+ * along with the continuation token that fetches the next page, see
+ * XDSBackend.retriveDocumentPage.
+ * <p>
+ * The token is opaque to clients. Backends that index documents by time
+ * encode the key (timestamp, uniqueId) of the last document of the page in
+ * it, so the next page starts right after that key without skipping or
+ * counting documents (keyset pagination); others encode an offset.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class DocumentPage {
+
+  private static final String KEYSET = "k";
+  private static final String OFFSET = "o";
+  private static final String SEPARATOR = "|";
+
+  private final List<Document> documents;
+  private final String continuationToken;
+
+  /**
+   * Construct a page.
+   *
+   * @param documents
+   *          the documents of the page, newest first
+   * @param continuationToken
+   *          the token of the next page, null if this is the last page
+   */
+  public DocumentPage(List<Document> documents, String continuationToken) {
+    this.documents = documents;
+    this.continuationToken = continuationToken;
+  }
+
+  public List<Document> getDocuments() {
+    return documents;
+  }
+
+  public String getContinuationToken() {
+    return continuationToken;
+  }
+
+  /**
+   * Return a continuation token that continues after the document with the
+   * given key.
+   *
+   * @param timestamp
+   *          the timestamp of the last document on the page
+   * @param uniqueId
+   *          the uniqueId of the last document on the page
+   * @return the token
+   */
+  public static String keysetToken(long timestamp, String uniqueId) {
+    return encode(KEYSET + SEPARATOR + timestamp + SEPARATOR + uniqueId);
+  }
+
+  /**
+   * Return the timestamp of a token made by keysetToken.
+   *
+   * @param token
+   *          the continuation token
+   * @return the timestamp of the last document of the previous page
+   * @throws XDSException
+   *           if the token is not a keyset token
+   */
+  public static long timestampOf(String token) {
+    String[] parts = decode(token, KEYSET);
+    try {
+      return Long.parseLong(parts[1]);
+    } catch (NumberFormatException e) {
+      throw new XDSException("Invalid continuation token: " + token);
+    }
+  }
+
+  /**
+   * Return the uniqueId of a token made by keysetToken.
+   *
+   * @param token
+   *          the continuation token
+   * @return the uniqueId of the last document of the previous page
+   * @throws XDSException
+   *           if the token is not a keyset token
+   */
+  public static String uniqueIdOf(String token) {
+    return decode(token, KEYSET)[2];
+  }
+
+  /**
+   * Return a continuation token that continues at the given position.
+   *
+   * @param offset
+   *          the number of documents on this and the previous pages
+   * @return the token
+   */
+  public static String offsetToken(int offset) {
+    return encode(OFFSET + SEPARATOR + offset);
+  }
+
+  /**
+   * Return the offset of a token made by offsetToken.
+   *
+   * @param token
+   *          the continuation token
+   * @return the number of documents to skip
+   * @throws XDSException
+   *           if the token is not an offset token
+   */
+  public static int offsetOf(String token) {
+    String[] parts = decode(token, OFFSET);
+    try {
+      return Integer.parseInt(parts[1]);
+    } catch (NumberFormatException e) {
+      throw new XDSException("Invalid continuation token: " + token);
+    }
+  }
+
+  private static String encode(String plain) {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String[] decode(String token, String kind) {
+    try {
+      String plain = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+      // The uniqueId is last, and may itself contain the separator
+      String[] parts = plain.split("\\" + SEPARATOR, 3);
+      int expected = kind.equals(KEYSET) ? 3 : 2;
+      if (!parts[0].equals(kind) || parts.length != expected) {
+        throw new XDSException("Invalid continuation token: " + token);
+      }
+      return parts;
+    } catch (IllegalArgumentException e) {
+      throw new XDSException("Invalid continuation token: " + token);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "DocumentPage (" + documents.size() + " documents, next=" + continuationToken + ")";
+  }
+}
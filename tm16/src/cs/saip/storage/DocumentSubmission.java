@@ -0,0 +1,34 @@
+package cs.saip.storage;
+
+import org.w3c.dom.Document;
+
+/**
+ * A document and its meta data, submitted for storage in the XDS as part of
+ * a batch, see XDSBackend.provideAndRegisterDocuments.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class DocumentSubmission {
+
+  private final MetaData metaData;
+  private final Document observationAsHL7;
+
+  public DocumentSubmission(MetaData metaData, Document observationAsHL7) {
+    this.metaData = metaData;
+    this.observationAsHL7 = observationAsHL7;
+  }
+
+  public MetaData getMetaData() {
+    return metaData;
+  }
+
+  public Document getObservationAsHL7() {
+    return observationAsHL7;
+  }
+
+  @Override
+  public String toString() {
+    return "DocumentSubmission (" + metaData + ")";
+  }
+}
@@ -0,0 +1,251 @@
+package cs.saip.storage;
+
+import java.io.Closeable;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.w3c.dom.Document;
+
+import cs.saip.domain.QuantityStatistics;
+
+/**
+ * A decorator of an XDS that merges concurrent calls of
+ * provideAndRegisterDocument into batches, stored by a single call of
+ * provideAndRegisterDocuments on the decorated XDS.
+ * <p>
+ * A caller is blocked until its document is stored. A batcher thread collects
+ * the documents arriving within a small time window after the first one, or
+ * until the batch is full, and stores them in one go. This trades a few
+ * milliseconds of latency for far fewer, larger writes when many devices
+ * upload at the same time. If the decorated XDS stores only part of a batch,
+ * each caller gets its own uniqueId or failure. Queries and corrections go
+ * directly to the decorated XDS.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class MicroBatchingXDS implements XDSBackend, Closeable {
+
+  private final XDSBackend decoratee;
+  private final long windowMillis;
+  private final int maxBatchSize;
+
+  private final BlockingQueue<Pending> queue;
+  private final Thread batcher;
+  // Set and tested under submitLock, so nothing is queued after the last drain
+  private final Object submitLock;
+  private volatile boolean closed;
+
+  private final AtomicLong batchCount;
+  private final AtomicLong documentCount;
+
+  /**
+   * Decorate the given XDS with micro batching.
+   *
+   * @param decoratee
+   *          the XDS that stores the batches
+   * @param windowMillis
+   *          how long to wait for more documents after the first one of a
+   *          batch has arrived
+   * @param maxBatchSize
+   *          the batch is stored at once when it reaches this size
+   */
+  public MicroBatchingXDS(XDSBackend decoratee, long windowMillis, int maxBatchSize) {
+    this.decoratee = decoratee;
+    this.windowMillis = windowMillis;
+    this.maxBatchSize = maxBatchSize;
+    queue = new LinkedBlockingQueue<Pending>();
+    submitLock = new Object();
+    batchCount = new AtomicLong();
+    documentCount = new AtomicLong();
+
+    batcher = new Thread(this::collectAndStoreBatches, "xds-micro-batcher");
+    batcher.setDaemon(true);
+    batcher.start();
+  }
+
+  @Override
+  public String provideAndRegisterDocument(MetaData metaData, Document observationAsHL7) {
+    Pending pending = new Pending(new DocumentSubmission(metaData, observationAsHL7));
+    synchronized (submitLock) {
+      if (closed) { throw new XDSException("Micro batching XDS is closed"); }
+      queue.add(pending);
+    }
+    try {
+      return pending.uniqueId.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new XDSException("Interrupted while waiting for batch to be stored");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new XDSException("Failed to store batch: " + e.getCause());
+    }
+  }
+
+  @Override
+  public List<String> provideAndRegisterDocuments(List<DocumentSubmission> submissions) {
+    // Already a batch
+    return decoratee.provideAndRegisterDocuments(submissions);
+  }
+
+  @Override
+  public List<Document> retriveDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+    return decoratee.retriveDocumentSet(personID, start, end);
+  }
+
+  @Override
+  public Stream<Document> streamDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+    return decoratee.streamDocumentSet(personID, start, end);
+  }
+
+  @Override
+  public Stream<Document> streamDocumentSets(List<String> personIDs, LocalDateTime start, LocalDateTime end) {
+    return decoratee.streamDocumentSets(personIDs, start, end);
+  }
+
+  @Override
+  public DocumentPage retriveDocumentPage(String personID, LocalDateTime start, LocalDateTime end,
+      int limit, String continuationToken) {
+    return decoratee.retriveDocumentPage(personID, start, end, limit, continuationToken);
+  }
+
+  @Override
+  public List<QuantityStatistics> computeStatistics(String personID, LocalDateTime start, LocalDateTime end) {
+    return decoratee.computeStatistics(personID, start, end);
+  }
+
+  @Override
+  public Document retriveDocument(String uniqueId) {
+    return decoratee.retriveDocument(uniqueId);
+  }
+
+  @Override
+  public List<Document> retriveDocuments(List<String> uniqueIds) {
+    return decoratee.retriveDocuments(uniqueIds);
+  }
+
+  @Override
+  public boolean correctDocument(String uniqueId, Operation operation, Document doc) {
+    return decoratee.correctDocument(uniqueId, operation, doc);
+  }
+
+  /**
+   * Return the number of batches stored so far.
+   *
+   * @return number of batches
+   */
+  public long getBatchCount() {
+    return batchCount.get();
+  }
+
+  /**
+   * Return the number of documents stored in batches so far.
+   *
+   * @return number of documents
+   */
+  public long getDocumentCount() {
+    return documentCount.get();
+  }
+
+  /**
+   * Stop accepting documents; documents already waiting are stored before
+   * the batcher thread ends.
+   */
+  @Override
+  public void close() {
+    synchronized (submitLock) {
+      closed = true;
+    }
+    try {
+      batcher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void collectAndStoreBatches() {
+    List<Pending> batch = new ArrayList<Pending>(maxBatchSize);
+    try {
+      while (!closed || !queue.isEmpty()) {
+        // Wake up now and then to notice close
+        Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) { continue; }
+        batch.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        while (batch.size() < maxBatchSize) {
+          long remaining = deadline - System.nanoTime();
+          Pending next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+          if (next == null) { break; }
+          batch.add(next);
+        }
+        store(batch);
+        batch.clear();
+      }
+      // Documents that arrived after the last batch are rejected, not lost
+      rejectQueued("Micro batching XDS is closed");
+    } catch (InterruptedException e) {
+      // Do not leave any caller waiting forever, nor let any more wait
+      synchronized (submitLock) {
+        closed = true;
+      }
+      for (Pending p : batch) {
+        p.uniqueId.completeExceptionally(new XDSException("Micro batcher interrupted"));
+      }
+      rejectQueued("Micro batcher interrupted");
+    }
+  }
+
+  private void rejectQueued(String reason) {
+    for (Pending p = queue.poll(); p != null; p = queue.poll()) {
+      p.uniqueId.completeExceptionally(new XDSException(reason));
+    }
+  }
+
+  private void store(List<Pending> batch) {
+    List<DocumentSubmission> submissions = new ArrayList<DocumentSubmission>(batch.size());
+    for (Pending p : batch) {
+      submissions.add(p.submission);
+    }
+    try {
+      List<String> uniqueIds = decoratee.provideAndRegisterDocuments(submissions);
+      batchCount.incrementAndGet();
+      documentCount.addAndGet(batch.size());
+      for (int i = 0; i < batch.size(); i++) {
+        batch.get(i).uniqueId.complete(uniqueIds.get(i));
+      }
+    } catch (PartialBatchException e) {
+      // Each caller learns the fate of its own document; a caller whose
+      // document is stored must not retry and store it twice
+      batchCount.incrementAndGet();
+      for (int i = 0; i < batch.size(); i++) {
+        if (e.isStored(i)) {
+          documentCount.incrementAndGet();
+          batch.get(i).uniqueId.complete(e.getUniqueIds().get(i));
+        } else {
+          batch.get(i).uniqueId.completeExceptionally(new XDSException(e.getErrors().get(i)));
+        }
+      }
+    } catch (RuntimeException e) {
+      // The whole batch fails; each caller sees the exception
+      for (Pending p : batch) {
+        p.uniqueId.completeExceptionally(e);
+      }
+    }
+  }
+
+  /** A submitted document and the future uniqueId of it */
+  private static class Pending {
+    final DocumentSubmission submission;
+    final CompletableFuture<String> uniqueId;
+
+    Pending(DocumentSubmission submission) {
+      this.submission = submission;
+      uniqueId = new CompletableFuture<String>();
+    }
+  }
+}
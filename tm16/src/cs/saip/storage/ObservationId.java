@@ -0,0 +1,176 @@
+package cs.saip.storage;
+
+/**
+ * The uniqueId of a stored observation, which tells where the observation is
+ * stored without a lookup: the timestamp of the observation, the node (app
+ * server) that generated the id, the shard it is stored in, and a sequence
+ * number which makes the id unique for the node and shard.
+ * <p>
+ * The id is 128 bits, like a UUID: the most significant 64 bits are the
+ * timestamp in milliseconds since the epoch, the least significant are 11
+ * bits of node, 12 bits of shard and 40 bits of sequence number. Its string
+ * form is the 32 hex digits of the bits, so ids sort by the time of the
+ * observation both as strings and as objects. The string form is the
+ * uniqueId of the TeleMed API.
+ * <p>
+ * Instances are immutable; they are generated by an ObservationIdGenerator.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public final class ObservationId implements Comparable<ObservationId> {
+
+  public static final int NODE_BITS = 11;
+  public static final int SHARD_BITS = 12;
+  public static final int SEQUENCE_BITS = 40;
+
+  public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+  public static final int MAX_SHARD = (1 << SHARD_BITS) - 1;
+  public static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+  private static final int LENGTH = 32;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final long timestamp;
+  private final long leastSignificantBits;
+
+  /**
+   * Construct an id from its fields.
+   *
+   * @param timestamp
+   *          the timestamp of the observation, in milliseconds since the
+   *          epoch
+   * @param node
+   *          the node that generated the id, between 0 and MAX_NODE
+   * @param shard
+   *          the shard the observation is stored in, between 0 and MAX_SHARD
+   * @param sequence
+   *          the sequence number, between 0 and MAX_SEQUENCE
+   * @throws IllegalArgumentException
+   *           if a field is out of its range
+   */
+  public ObservationId(long timestamp, int node, int shard, long sequence) {
+    if (timestamp < 0) {
+      throw new IllegalArgumentException("Timestamp before the epoch: " + timestamp);
+    }
+    if (node < 0 || node > MAX_NODE) {
+      throw new IllegalArgumentException("Node out of range: " + node);
+    }
+    if (shard < 0 || shard > MAX_SHARD) {
+      throw new IllegalArgumentException("Shard out of range: " + shard);
+    }
+    if (sequence < 0 || sequence > MAX_SEQUENCE) {
+      throw new IllegalArgumentException("Sequence out of range: " + sequence);
+    }
+    this.timestamp = timestamp;
+    this.leastSignificantBits = ((long) node << (SHARD_BITS + SEQUENCE_BITS))
+        | ((long) shard << SEQUENCE_BITS) | sequence;
+  }
+
+  private ObservationId(long timestamp, long leastSignificantBits) {
+    this.timestamp = timestamp;
+    this.leastSignificantBits = leastSignificantBits;
+  }
+
+  /**
+   * Parse the string form of an id.
+   *
+   * @param uniqueId
+   *          the string form, as returned by toString
+   * @return the id
+   * @throws IllegalArgumentException
+   *           if the string is not the string form of an id
+   */
+  public static ObservationId parse(String uniqueId) {
+    if (!isObservationId(uniqueId)) {
+      throw new IllegalArgumentException("Not an observation id: " + uniqueId);
+    }
+    return new ObservationId(Long.parseUnsignedLong(uniqueId.substring(0, LENGTH / 2), 16),
+        Long.parseUnsignedLong(uniqueId.substring(LENGTH / 2), 16));
+  }
+
+  /**
+   * Return true if the string is the string form of an id. Backends use it to
+   * tell their ids from the ids they handed out before this scheme, which
+   * they still resolve.
+   *
+   * @param uniqueId
+   *          the string
+   * @return true if parse accepts it
+   */
+  public static boolean isObservationId(String uniqueId) {
+    if (uniqueId == null || uniqueId.length() != LENGTH) { return false; }
+    for (int i = 0; i < LENGTH; i++) {
+      char c = uniqueId.charAt(i);
+      if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) { return false; }
+    }
+    // The first and the 17th digit hold the sign bits, which are never set
+    return uniqueId.charAt(0) < '8' && uniqueId.charAt(LENGTH / 2) < '8';
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public int getNode() {
+    return (int) (leastSignificantBits >>> (SHARD_BITS + SEQUENCE_BITS));
+  }
+
+  public int getShard() {
+    return (int) (leastSignificantBits >>> SEQUENCE_BITS) & MAX_SHARD;
+  }
+
+  public long getSequence() {
+    return leastSignificantBits & MAX_SEQUENCE;
+  }
+
+  /**
+   * Return node, shard and sequence as one number, which is never negative
+   * and unique among the ids of the same timestamp. Backends use it to break
+   * ties in their time ordered indices.
+   *
+   * @return the least significant 64 bits of the id
+   */
+  public long getLeastSignificantBits() {
+    return leastSignificantBits;
+  }
+
+  /**
+   * Return the id with another shard.
+   *
+   * @param shard
+   *          the shard, between 0 and MAX_SHARD
+   * @return the id that differs from this one in the shard only
+   */
+  public ObservationId withShard(int shard) {
+    return new ObservationId(timestamp, getNode(), shard, getSequence());
+  }
+
+  @Override
+  public int compareTo(ObservationId other) {
+    int result = Long.compare(timestamp, other.timestamp);
+    return result != 0 ? result : Long.compare(leastSignificantBits, other.leastSignificantBits);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof ObservationId)) { return false; }
+    ObservationId other = (ObservationId) o;
+    return timestamp == other.timestamp && leastSignificantBits == other.leastSignificantBits;
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(timestamp) * 31 + Long.hashCode(leastSignificantBits);
+  }
+
+  @Override
+  public String toString() {
+    char[] digits = new char[LENGTH];
+    for (int i = 0; i < LENGTH / 2; i++) {
+      digits[LENGTH / 2 - 1 - i] = HEX[(int) (timestamp >>> (4 * i)) & 0xf];
+      digits[LENGTH - 1 - i] = HEX[(int) (leastSignificantBits >>> (4 * i)) & 0xf];
+    }
+    return new String(digits);
+  }
+}
@@ -0,0 +1,111 @@
+package cs.saip.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generator of the ObservationIds of one node and shard. The generator is
+ * thread safe and lock free: the sequence number is an atomic counter.
+ * <p>
+ * The counter starts at the milliseconds since 2016 and is never behind the
+ * clock, so a node that restarts continues above the sequence numbers it
+ * handed out before, as long as it averages less than one id per
+ * millisecond. Backends that store their ids also advance the counter past
+ * the ids they recover. Nodes sharing a backend must have distinct node
+ * numbers, which by default is the system property tm16.node.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public final class ObservationIdGenerator {
+
+  public static final String NODE_PROPERTY = "tm16.node";
+
+  /** 2016-01-01T00:00Z, the start of the sequence numbers */
+  private static final long EPOCH = 1451606400000L;
+
+  private final int node;
+  private final int shard;
+  private final AtomicLong lastSequence;
+
+  /**
+   * Construct a generator of shard 0 for the node given by the system
+   * property tm16.node, or node 0 if it is not set.
+   */
+  public ObservationIdGenerator() {
+    this(Integer.getInteger(NODE_PROPERTY, 0), 0);
+  }
+
+  /**
+   * Construct a generator.
+   *
+   * @param node
+   *          the node, between 0 and ObservationId.MAX_NODE
+   * @param shard
+   *          the shard, between 0 and ObservationId.MAX_SHARD
+   * @throws IllegalArgumentException
+   *           if node or shard is out of range
+   */
+  public ObservationIdGenerator(int node, int shard) {
+    // Validate the fields once and for all
+    new ObservationId(0, node, shard, 0);
+    this.node = node;
+    this.shard = shard;
+    lastSequence = new AtomicLong();
+  }
+
+  /**
+   * Generate the id of an observation.
+   *
+   * @param timestamp
+   *          the timestamp of the observation, in milliseconds since the
+   *          epoch
+   * @return an id that has not been generated before
+   */
+  public ObservationId next(long timestamp) {
+    long clock = System.currentTimeMillis() - EPOCH;
+    long sequence = lastSequence.accumulateAndGet(clock, (last, now) -> Math.max(last + 1, now));
+    return new ObservationId(timestamp, node, shard, sequence);
+  }
+
+  /**
+   * Make sure the sequence numbers generated are above that of an id handed
+   * out before, if it is of this node and shard.
+   *
+   * @param id
+   *          the id
+   */
+  public void advancePast(ObservationId id) {
+    if (id.getNode() == node && id.getShard() == shard) {
+      advancePast(id.getSequence());
+    }
+  }
+
+  /**
+   * Make sure the sequence numbers generated are above a given one, as
+   * returned by getLastSequence before a restart.
+   *
+   * @param sequence
+   *          the sequence number
+   */
+  public void advancePast(long sequence) {
+    lastSequence.accumulateAndGet(sequence, Math::max);
+  }
+
+  /**
+   * Return the sequence number of the last id generated, or the one
+   * advanced past.
+   *
+   * @return the sequence number
+   */
+  public long getLastSequence() {
+    return lastSequence.get();
+  }
+
+  public int getNode() {
+    return node;
+  }
+
+  public int getShard() {
+    return shard;
+  }
+}
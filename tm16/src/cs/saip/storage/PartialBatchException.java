@@ -0,0 +1,105 @@
+package cs.saip.storage;
+
+import java.util.*;
+
+/**
+ * Thrown by provideAndRegisterDocuments when some documents of a batch were
+ * stored and others were not. It tells which were stored, and under which
+ * uniqueIds, so a caller can report each document on its own; failing the
+ * whole batch would make clients retry, and store again, the documents that
+ * were stored.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class PartialBatchException extends XDSException {
+
+  private final List<String> uniqueIds;
+  private final List<String> errors;
+
+  /**
+   * Construct the exception of a batch.
+   *
+   * @param uniqueIds
+   *          the uniqueIds of the documents, in the order of the submissions;
+   *          null for those that were not stored
+   * @param errors
+   *          why each document was not stored, in the order of the
+   *          submissions; null for those that were stored
+   */
+  public PartialBatchException(List<String> uniqueIds, List<String> errors) {
+    super(messageOf(errors));
+    this.uniqueIds = Collections.unmodifiableList(new ArrayList<String>(uniqueIds));
+    this.errors = Collections.unmodifiableList(new ArrayList<String>(errors));
+  }
+
+  /**
+   * Return the uniqueIds of the documents of the batch.
+   *
+   * @return the uniqueIds, in the order of the submissions; null for the
+   *         documents that were not stored
+   */
+  public List<String> getUniqueIds() {
+    return uniqueIds;
+  }
+
+  /**
+   * Return why each document of the batch was not stored.
+   *
+   * @return the errors, in the order of the submissions; null for the
+   *         documents that were stored
+   */
+  public List<String> getErrors() {
+    return errors;
+  }
+
+  /**
+   * Return true if the document at the given position of the batch was stored.
+   *
+   * @param index
+   *          position of the submission
+   * @return true if it was stored
+   */
+  public boolean isStored(int index) {
+    return uniqueIds.get(index) != null;
+  }
+
+  /**
+   * Return the exception to throw for a batch of which some documents were
+   * not stored.
+   *
+   * @param uniqueIds
+   *          the uniqueIds of the documents; null for those not stored
+   * @param errors
+   *          why each document was not stored; null for those stored
+   * @param first
+   *          the first exception met while storing the batch
+   * @return first, if no document was stored, as the batch simply failed;
+   *         otherwise a PartialBatchException
+   */
+  public static RuntimeException failureOf(List<String> uniqueIds, List<String> errors,
+      RuntimeException first) {
+    for (String uniqueId : uniqueIds) {
+      if (uniqueId != null) { return new PartialBatchException(uniqueIds, errors); }
+    }
+    return first;
+  }
+
+  private static String messageOf(List<String> errors) {
+    int failed = 0;
+    String first = null;
+    for (String error : errors) {
+      if (error != null) {
+        failed++;
+        first = first == null ? error : first;
+      }
+    }
+    return failed + " of " + errors.size() + " documents of the batch were not stored, first: " + first;
+  }
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = 1L;
+
+}
@@ -0,0 +1,112 @@
+package cs.saip.storage;
+
+import java.util.*;
+
+import org.w3c.dom.*;
+
+import cs.saip.domain.QuantityStatistics;
+
+/**
+ * Collects the values of the clinical quantities of a set of observations,
+ * grouped by code, and computes their statistics. Values are kept in
+ * primitive arrays, as the percentiles need all of them.
+ * <p>
+ * Not thread safe; a collector is used by a single query.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class QuantityStatisticsCollector {
+
+  private final Map<String, Values> valuesOfCode;
+
+  public QuantityStatisticsCollector() {
+    valuesOfCode = new TreeMap<String, Values>();
+  }
+
+  /**
+   * Add the values of all observations in an HL7 document.
+   *
+   * @param hl7
+   *          the HL7 document
+   */
+  public void add(Document hl7) {
+    NodeList list = hl7.getElementsByTagName("observation");
+    for (int i = 0; i < list.getLength(); i++) {
+      Element observation = (Element) list.item(i);
+      Element code = (Element) observation.getElementsByTagName("code").item(0);
+      Element value = (Element) observation.getElementsByTagName("value").item(0);
+      add(code.getAttribute("code"), code.getAttribute("displayName"), value.getAttribute("unit"),
+          Double.parseDouble(value.getAttribute("value")));
+    }
+  }
+
+  /**
+   * Add a single value of a quantity.
+   *
+   * @param code
+   *          the code of the quantity
+   * @param displayName
+   *          the human readable name of the code
+   * @param unit
+   *          the unit of the value
+   * @param value
+   *          the value
+   */
+  public void add(String code, String displayName, String unit, double value) {
+    Values values = valuesOfCode.get(code);
+    if (values == null) {
+      values = new Values(displayName, unit);
+      valuesOfCode.put(code, values);
+    }
+    values.add(value);
+  }
+
+  /**
+   * Compute the statistics of the values added so far.
+   *
+   * @return the statistics of each quantity, ordered by code; empty if no
+   *         values were added
+   */
+  public List<QuantityStatistics> getResult() {
+    List<QuantityStatistics> result = new ArrayList<QuantityStatistics>();
+    for (Map.Entry<String, Values> entry : valuesOfCode.entrySet()) {
+      result.add(entry.getValue().statisticsOf(entry.getKey()));
+    }
+    return result;
+  }
+
+  /** The values of one quantity */
+  private static class Values {
+    final String displayName;
+    final String unit;
+    double[] values = new double[16];
+    int size = 0;
+    double sum = 0.0;
+
+    Values(String displayName, String unit) {
+      this.displayName = displayName;
+      this.unit = unit;
+    }
+
+    void add(double value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+      sum += value;
+    }
+
+    QuantityStatistics statisticsOf(String code) {
+      Arrays.sort(values, 0, size);
+      double[] percentiles = new double[QuantityStatistics.PERCENTILES.length];
+      for (int i = 0; i < percentiles.length; i++) {
+        // Nearest rank: the smallest value with at least p percent at or below it
+        int rank = (int) Math.ceil(QuantityStatistics.PERCENTILES[i] / 100.0 * size);
+        percentiles[i] = values[Math.max(rank, 1) - 1];
+      }
+      return new QuantityStatistics(code, displayName, unit, size,
+          values[0], values[size - 1], sum / size, percentiles);
+    }
+  }
+}
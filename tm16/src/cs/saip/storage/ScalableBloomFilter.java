@@ -0,0 +1,140 @@
+package cs.saip.storage;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A bloom filter that grows with the number of strings added, so it need
+ * not be sized up front (a scalable bloom filter, as by Almeida et al.).
+ * <p>
+ * The filter is a series of bloom filters. Strings are added to the last
+ * one, and when it holds as many as it was sized for, a new one is started
+ * that is twice as large and has half the false positive rate. A string
+ * might be contained if any of the filters says so, so the false positive
+ * rate of the whole series stays below the rate given. The filter is not
+ * thread safe.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public final class ScalableBloomFilter {
+
+  private static final int GROWTH = 2;
+  private static final double TIGHTENING = 0.5;
+
+  private final double falsePositiveRate;
+  private final List<BloomFilter> filters;
+  private final List<Integer> capacities;
+  private int countInLast;
+  private long count;
+
+  /**
+   * Construct an empty filter.
+   *
+   * @param initialCapacity
+   *          the number of strings the first filter of the series is sized
+   *          for
+   * @param falsePositiveRate
+   *          the maximal rate of false positives, between 0 and 1
+   */
+  public ScalableBloomFilter(int initialCapacity, double falsePositiveRate) {
+    this.falsePositiveRate = falsePositiveRate;
+    filters = new ArrayList<BloomFilter>();
+    capacities = new ArrayList<Integer>();
+    start(initialCapacity);
+  }
+
+  /**
+   * Add a string, unless the filter might contain it already.
+   *
+   * @param key
+   *          the string
+   * @return true if the string was added, false if the filter might
+   *         already contain it
+   */
+  public boolean add(String key) {
+    if (mightContain(key)) { return false; }
+    int last = filters.size() - 1;
+    if (countInLast == capacities.get(last)) {
+      start(capacities.get(last) * GROWTH);
+      last++;
+    }
+    filters.get(last).add(key);
+    countInLast++;
+    count++;
+    return true;
+  }
+
+  public boolean mightContain(String key) {
+    for (BloomFilter filter : filters) {
+      if (filter.mightContain(key)) { return true; }
+    }
+    return false;
+  }
+
+  /**
+   * Return the number of strings added.
+   *
+   * @return number of strings
+   */
+  public long size() {
+    return count;
+  }
+
+  /**
+   * Return the estimated rate of false positives of the series, from the
+   * fraction of bits set in each filter.
+   *
+   * @return the false positive rate, between 0 and 1
+   */
+  public double getFalsePositiveRate() {
+    double none = 1.0;
+    for (BloomFilter filter : filters) {
+      none *= 1.0 - filter.getFalsePositiveRate();
+    }
+    return 1.0 - none;
+  }
+
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeDouble(falsePositiveRate);
+    out.writeLong(count);
+    out.writeInt(countInLast);
+    out.writeInt(filters.size());
+    for (int i = 0; i < filters.size(); i++) {
+      out.writeInt(capacities.get(i));
+      filters.get(i).writeTo(out);
+    }
+  }
+
+  public static ScalableBloomFilter readFrom(DataInput in) throws IOException {
+    double falsePositiveRate = in.readDouble();
+    long count = in.readLong();
+    int countInLast = in.readInt();
+    int size = in.readInt();
+    ScalableBloomFilter filter = new ScalableBloomFilter(falsePositiveRate);
+    for (int i = 0; i < size; i++) {
+      filter.capacities.add(in.readInt());
+      filter.filters.add(BloomFilter.readFrom(in));
+    }
+    filter.count = count;
+    filter.countInLast = countInLast;
+    return filter;
+  }
+
+  private ScalableBloomFilter(double falsePositiveRate) {
+    this.falsePositiveRate = falsePositiveRate;
+    filters = new ArrayList<BloomFilter>();
+    capacities = new ArrayList<Integer>();
+  }
+
+  /**
+   * Start a new filter; the rates of the series are p/2, p/4, ..., which
+   * sum to less than p.
+   */
+  private void start(int capacity) {
+    double rate = falsePositiveRate * Math.pow(TIGHTENING, filters.size() + 1);
+    filters.add(new BloomFilter(capacity, rate));
+    capacities.add(capacity);
+    countInLast = 0;
+  }
+}
@@ -0,0 +1,473 @@
+package cs.saip.storage;
+
+import java.io.Closeable;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.domain.*;
+
+/**
+ * An XDS of two tiers: a hot in-memory tier holding the recent documents
+ * of the patients being queried, in front of a cold XDS holding all
+ * documents, like the log structured file XDS or MongoDB.
+ * <p>
+ * Writes go through to the cold tier first, so it is always complete and
+ * nothing is lost if the server stops; the hot tier is a copy. For each
+ * patient it keeps the documents of the recent window, e.g. the 31 days
+ * that cover every TeleMed time interval, in time order, so interval
+ * queries within the window are answered from memory. The window of a
+ * patient is loaded from the cold tier on the first query. Loading a window
+ * beyond the maximal number of patients unloads the window of the patient
+ * queried least recently, which bounds the heap, and a sweeper thread
+ * demotes documents that have grown older than the window. As the cold tier
+ * already holds every document, demoting one is just dropping it from
+ * memory. Older intervals, pages and point reads of documents not in the
+ * hot tier fall through to the cold tier, and a correction unloads the
+ * window of the patient.
+ * <p>
+ * The cold tier does not tell the uniqueIds of the documents an interval
+ * query returns, so only documents written through this XDS while the
+ * window of their patient is loaded are found by uniqueId in the hot tier.
+ * A point read of a document loaded with a window is thus passed on to the
+ * cold tier, like one of a document outside the window.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class TieredXDS implements XDSBackend, Closeable {
+
+  private final XDSBackend cold;
+  private final Duration window;
+  private final int maxPatients;
+
+  private final ConcurrentMap<String, RecentWindow> windows;
+  private final ConcurrentMap<String, HotEntry> hotIndex;
+  // The number of loaded windows
+  private final AtomicInteger loadedCount;
+  // Incremented before and after every correction; a window loaded
+  // meanwhile is loaded again
+  private final AtomicLong corrections;
+  private ScheduledExecutorService sweeper;
+
+  private final AtomicLong hotQueryCount;
+  private final AtomicLong coldQueryCount;
+
+  /**
+   * Construct a tiered XDS.
+   *
+   * @param cold
+   *          the XDS holding all documents
+   * @param window
+   *          how far back the hot tier keeps the documents of a patient
+   * @param maxPatients
+   *          the maximal number of patients whose window is kept; loading
+   *          one more unloads the one queried least recently
+   * @param sweepIntervalSeconds
+   *          how often documents are demoted; 0 leaves it to calls of sweep
+   */
+  public TieredXDS(XDSBackend cold, Duration window, int maxPatients, int sweepIntervalSeconds) {
+    this.cold = cold;
+    this.window = window;
+    this.maxPatients = maxPatients;
+    windows = new ConcurrentHashMap<String, RecentWindow>();
+    hotIndex = new ConcurrentHashMap<String, HotEntry>();
+    loadedCount = new AtomicInteger();
+    corrections = new AtomicLong();
+    hotQueryCount = new AtomicLong();
+    coldQueryCount = new AtomicLong();
+
+    if (sweepIntervalSeconds > 0) {
+      sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "xds-tier-sweeper");
+        t.setDaemon(true);
+        return t;
+      });
+      sweeper.scheduleWithFixedDelay(() -> sweep(LocalDateTime.now()),
+          sweepIntervalSeconds, sweepIntervalSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  @Override
+  public String provideAndRegisterDocument(MetaData metaData, Document observationAsHL7) {
+    return provideAndRegisterDocuments(
+        Collections.singletonList(new DocumentSubmission(metaData, observationAsHL7))).get(0);
+  }
+
+  @Override
+  public List<String> provideAndRegisterDocuments(List<DocumentSubmission> submissions) {
+    // Announce the writes, so windows loaded meanwhile are loaded again
+    List<RecentWindow> touched = new ArrayList<RecentWindow>(submissions.size());
+    List<Boolean> wasLoaded = new ArrayList<Boolean>(submissions.size());
+    for (DocumentSubmission submission : submissions) {
+      RecentWindow recent = beginWrite(submission.getMetaData().getPersonID());
+      touched.add(recent);
+      synchronized (recent) {
+        wasLoaded.add(recent.loaded);
+      }
+    }
+    List<String> uniqueIds = null;
+    try {
+      uniqueIds = cold.provideAndRegisterDocuments(submissions);
+    } catch (PartialBatchException e) {
+      // The documents that were stored go into the windows all the same
+      uniqueIds = e.getUniqueIds();
+      throw e;
+    } finally {
+      for (int i = 0; i < submissions.size(); i++) {
+        RecentWindow recent = touched.get(i);
+        synchronized (recent) {
+          recent.writesInFlight--;
+          recent.writeCount++;
+          // A window loaded before the write began surely lacks the document
+          if (uniqueIds != null && uniqueIds.get(i) != null && wasLoaded.get(i) && recent.loaded) {
+            MetaData metaData = submissions.get(i).getMetaData();
+            if (metaData.getTimestamp() >= recent.from) {
+              HotEntry entry = new HotEntry(uniqueIds.get(i), metaData.getPersonID(),
+                  metaData.getTimestamp(), submissions.get(i).getObservationAsHL7());
+              recent.add(entry);
+              hotIndex.put(entry.uniqueId, entry);
+            }
+          }
+        }
+      }
+    }
+    return uniqueIds;
+  }
+
+  @Override
+  public List<Document> retriveDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+    LocalDateTime now = LocalDateTime.now();
+    if (start.isBefore(now.minus(window))) {
+      coldQueryCount.incrementAndGet();
+      return cold.retriveDocumentSet(personID, start, end);
+    }
+    hotQueryCount.incrementAndGet();
+    while (true) {
+      RecentWindow recent = loadedWindowOf(personID, now);
+      synchronized (recent) {
+        // It may have been unloaded right after it was loaded
+        if (!recent.loaded) { continue; }
+        recent.lastAccess = System.nanoTime();
+        return recent.select(Utility.convertLocalDateTimeToUnixEpoch(start),
+            Utility.convertLocalDateTimeToUnixEpoch(end));
+      }
+    }
+  }
+
+  @Override
+  public List<QuantityStatistics> computeStatistics(String personID, LocalDateTime start, LocalDateTime end) {
+    if (start.isBefore(LocalDateTime.now().minus(window))) {
+      // Computed where the data is
+      coldQueryCount.incrementAndGet();
+      return cold.computeStatistics(personID, start, end);
+    }
+    QuantityStatisticsCollector collector = new QuantityStatisticsCollector();
+    retriveDocumentSet(personID, start, end).forEach(collector::add);
+    return collector.getResult();
+  }
+
+  @Override
+  public DocumentPage retriveDocumentPage(String personID, LocalDateTime start, LocalDateTime end,
+      int limit, String continuationToken) {
+    // The tokens are those of the cold tier
+    coldQueryCount.incrementAndGet();
+    return cold.retriveDocumentPage(personID, start, end, limit, continuationToken);
+  }
+
+  @Override
+  public Document retriveDocument(String uniqueId) {
+    HotEntry entry = hotIndex.get(uniqueId);
+    if (entry != null) { return entry.doc; }
+    return cold.retriveDocument(uniqueId);
+  }
+
+  @Override
+  public List<Document> retriveDocuments(List<String> uniqueIds) {
+    List<Document> documents = new ArrayList<Document>(uniqueIds.size());
+    List<String> coldIds = new ArrayList<String>();
+    List<Integer> coldPositions = new ArrayList<Integer>();
+    for (String uniqueId : uniqueIds) {
+      HotEntry entry = hotIndex.get(uniqueId);
+      if (entry == null) {
+        coldIds.add(uniqueId);
+        coldPositions.add(documents.size());
+      }
+      documents.add(entry == null ? null : entry.doc);
+    }
+    // The documents not in a window are fetched from the cold tier in one go
+    if (!coldIds.isEmpty()) {
+      List<Document> fetched = cold.retriveDocuments(coldIds);
+      for (int i = 0; i < coldIds.size(); i++) {
+        documents.set(coldPositions.get(i), fetched.get(i));
+      }
+    }
+    return documents;
+  }
+
+  @Override
+  public boolean correctDocument(String uniqueId, Operation operation, Document doc) {
+    // Find the patient before the document may be gone
+    HotEntry entry = hotIndex.get(uniqueId);
+    String personID = entry == null ? null : entry.personID;
+    if (personID == null) {
+      Document old = cold.retriveDocument(uniqueId);
+      if (old == null) { return false; }
+      personID = XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("extension", 0,
+          "id", "patient", old);
+    }
+    corrections.incrementAndGet();
+    try {
+      return cold.correctDocument(uniqueId, operation, doc);
+    } finally {
+      // Corrections are rare; the next query loads the window again
+      corrections.incrementAndGet();
+      unload(personID);
+    }
+  }
+
+  /**
+   * Demote the documents that have grown older than the window, and remove
+   * the windows left behind by writes for patients who are not queried.
+   *
+   * @param now
+   *          the present time
+   */
+  public void sweep(LocalDateTime now) {
+    long horizon = Utility.convertLocalDateTimeToUnixEpoch(now.minus(window));
+    for (RecentWindow recent : windows.values()) {
+      synchronized (recent) {
+        for (HotEntry demoted : recent.trimBefore(horizon)) {
+          if (demoted.uniqueId != null) {
+            hotIndex.remove(demoted.uniqueId, demoted);
+          }
+        }
+      }
+    }
+    for (RecentWindow recent : windows.values()) {
+      synchronized (recent) {
+        if (!recent.loaded && recent.writesInFlight == 0) {
+          // Left behind by writes for a patient who is not queried
+          windows.remove(recent.personID, recent);
+          recent.removed = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Return the number of interval queries answered by the hot tier.
+   *
+   * @return number of hot queries
+   */
+  public long getHotQueryCount() {
+    return hotQueryCount.get();
+  }
+
+  /**
+   * Return the number of queries passed on to the cold tier.
+   *
+   * @return number of cold queries
+   */
+  public long getColdQueryCount() {
+    return coldQueryCount.get();
+  }
+
+  /**
+   * Return the number of documents in the hot tier.
+   *
+   * @return number of hot documents
+   */
+  public int getHotDocumentCount() {
+    int count = 0;
+    for (RecentWindow recent : windows.values()) {
+      synchronized (recent) {
+        count += recent.entries.size();
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public void close() {
+    if (sweeper != null) {
+      sweeper.shutdownNow();
+    }
+  }
+
+  private void unload(String personID) {
+    RecentWindow recent = windows.get(personID);
+    if (recent == null) { return; }
+    synchronized (recent) {
+      for (HotEntry entry : recent.entries) {
+        if (entry.uniqueId != null) {
+          hotIndex.remove(entry.uniqueId, entry);
+        }
+      }
+      recent.entries.clear();
+      if (recent.loaded) {
+        loadedCount.decrementAndGet();
+      }
+      recent.loaded = false;
+      // A window with writes in flight stays, so a new load waits for them
+      if (recent.writesInFlight == 0) {
+        windows.remove(personID, recent);
+        recent.removed = true;
+      }
+    }
+  }
+
+  /** Return the window of a patient, with one more write in flight */
+  private RecentWindow beginWrite(String personID) {
+    while (true) {
+      RecentWindow recent = windows.computeIfAbsent(personID, RecentWindow::new);
+      synchronized (recent) {
+        if (!recent.removed) {
+          recent.writesInFlight++;
+          return recent;
+        }
+      }
+    }
+  }
+
+  /** Return the window of a patient, loaded from the cold tier if need be */
+  private RecentWindow loadedWindowOf(String personID, LocalDateTime now) {
+    while (true) {
+      RecentWindow recent = windows.computeIfAbsent(personID, RecentWindow::new);
+      long writeCount, correctionCount;
+      synchronized (recent) {
+        if (recent.removed) { continue; }
+        if (recent.loaded) { return recent; }
+        writeCount = recent.writeCount;
+        correctionCount = corrections.get();
+      }
+      // Load without holding the window, so writers are not blocked
+      LocalDateTime from = now.minus(window);
+      coldQueryCount.incrementAndGet();
+      List<Document> docs = cold.retriveDocumentSet(personID, from, now.plusYears(1));
+      synchronized (recent) {
+        if (recent.removed) { continue; }
+        if (recent.loaded) { return recent; }
+        // A write or correction made meanwhile may or may not be in the
+        // loaded documents; load again then
+        if (recent.writesInFlight > 0 || recent.writeCount != writeCount
+            || corrections.get() != correctionCount) {
+          continue;
+        }
+        recent.from = Utility.convertLocalDateTimeToUnixEpoch(from);
+        // The cold tier does not hand out the uniqueIds of a query, so the
+        // loaded documents are only reachable by interval
+        for (Document doc : docs) {
+          recent.add(new HotEntry(null, personID, timestampOf(doc), doc));
+        }
+        recent.loaded = true;
+        recent.lastAccess = System.nanoTime();
+      }
+      if (loadedCount.incrementAndGet() > maxPatients) {
+        unloadLeastRecent(recent);
+      }
+      return recent;
+    }
+  }
+
+  /** Unload the least recently queried windows other than the given one, until few enough are loaded */
+  private void unloadLeastRecent(RecentWindow keep) {
+    while (loadedCount.get() > maxPatients) {
+      RecentWindow eldest = null;
+      long eldestAccess = 0;
+      for (RecentWindow recent : windows.values()) {
+        if (recent == keep) { continue; }
+        synchronized (recent) {
+          if (recent.loaded && (eldest == null || recent.lastAccess - eldestAccess < 0)) {
+            eldest = recent;
+            eldestAccess = recent.lastAccess;
+          }
+        }
+      }
+      if (eldest == null) { return; }
+      unload(eldest.personID);
+    }
+  }
+
+  private static long timestampOf(Document doc) {
+    String time = XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("value", 0,
+        "effectiveTime", "ClinicalDocument", doc);
+    return Utility.convertLocalDateTimeToUnixEpoch(LocalDateTime.parse(time, HL7Builder.HL7_TIME_FORMAT));
+  }
+
+  /** A document in the hot tier; immutable */
+  private static class HotEntry {
+    final String uniqueId;
+    final String personID;
+    final long timestamp;
+    final Document doc;
+
+    HotEntry(String uniqueId, String personID, long timestamp, Document doc) {
+      this.uniqueId = uniqueId;
+      this.personID = personID;
+      this.timestamp = timestamp;
+      this.doc = doc;
+    }
+  }
+
+  /** The recent documents of one patient in time order; guarded by itself */
+  private static class RecentWindow {
+    final String personID;
+    final List<HotEntry> entries;
+    long from;
+    boolean loaded;
+    // Set when the window is no longer in the map of windows
+    boolean removed;
+    int writesInFlight;
+    long writeCount;
+    long lastAccess;
+
+    RecentWindow(String personID) {
+      this.personID = personID;
+      entries = new ArrayList<HotEntry>();
+      lastAccess = System.nanoTime();
+    }
+
+    /** Insert after the entries at the same time; new documents usually go last */
+    void add(HotEntry entry) {
+      int at = entries.size();
+      while (at > 0 && entries.get(at - 1).timestamp > entry.timestamp) {
+        at--;
+      }
+      entries.add(at, entry);
+    }
+
+    List<Document> select(long start, long end) {
+      // Binary search for the first entry at or after start
+      int low = 0, high = entries.size();
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (entries.get(middle).timestamp < start) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      List<Document> selected = new ArrayList<Document>();
+      for (int i = low; i < entries.size() && entries.get(i).timestamp <= end; i++) {
+        selected.add(entries.get(i).doc);
+      }
+      return selected;
+    }
+
+    List<HotEntry> trimBefore(long horizon) {
+      int count = 0;
+      while (count < entries.size() && entries.get(count).timestamp < horizon) {
+        count++;
+      }
+      List<HotEntry> trimmed = new ArrayList<HotEntry>(entries.subList(0, count));
+      entries.subList(0, count).clear();
+      from = Math.max(from, horizon);
+      return trimmed;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package cs.saip.storage;
+
+/**
+ * Key of a time ordered index of documents, like the per patient index of
+ * the XDS backends. Several observations may share the same timestamp, so
+ * the sequence number of the document breaks ties.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class TimeKey implements Comparable<TimeKey> {
+  public final long timestamp;
+  public final long sequence;
+
+  public TimeKey(long timestamp, long sequence) {
+    this.timestamp = timestamp;
+    this.sequence = sequence;
+  }
+
+  /** The smallest key with the given timestamp */
+  public static TimeKey first(long timestamp) {
+    return new TimeKey(timestamp, Long.MIN_VALUE);
+  }
+
+  /** The largest key with the given timestamp */
+  public static TimeKey last(long timestamp) {
+    return new TimeKey(timestamp, Long.MAX_VALUE);
+  }
+
+  @Override
+  public int compareTo(TimeKey other) {
+    int result = Long.compare(timestamp, other.timestamp);
+    if (result != 0) { return result; }
+    return Long.compare(sequence, other.sequence);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof TimeKey)) { return false; }
+    TimeKey other = (TimeKey) o;
+    return timestamp == other.timestamp && sequence == other.sequence;
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(timestamp) * 31 + Long.hashCode(sequence);
+  }
+
+  @Override
+  public String toString() {
+    return "TimeKey (" + timestamp + "," + sequence + ")";
+  }
+}
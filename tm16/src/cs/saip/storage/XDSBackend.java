@@ -2,9 +2,12 @@ package cs.saip.storage;
 
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.stream.Stream;
 
 import org.w3c.dom.Document;
 
+import cs.saip.domain.QuantityStatistics;
+
 /**
  * Facade for the XDS (Cross-Enterprise Document Storage) system. This is a
  * database system that stores XML documents representing the tele observations
@@ -45,6 +48,39 @@ public interface XDSBackend {
    *         correctDocument
    */
   public String provideAndRegisterDocument(MetaData metaData, Document observationAsHL7);
+
+  /**
+   * Store a batch of observations, as if provideAndRegisterDocument was
+   * called for each in turn. Backends override this to store the batch in
+   * fewer round trips or writes.
+   * 
+   * @param submissions
+   *          the meta data and HL7 documents to store
+   * 
+   * @return the uniqueIds generated for the documents, in the order of the
+   *         submissions
+   * @throws PartialBatchException
+   *           if some documents were stored and others were not
+   */
+  public default List<String> provideAndRegisterDocuments(List<DocumentSubmission> submissions) {
+    List<String> uniqueIds = new ArrayList<String>(submissions.size());
+    List<String> errors = new ArrayList<String>(submissions.size());
+    RuntimeException failure = null;
+    for (DocumentSubmission submission : submissions) {
+      try {
+        uniqueIds.add(provideAndRegisterDocument(submission.getMetaData(), submission.getObservationAsHL7()));
+        errors.add(null);
+      } catch (RuntimeException e) {
+        failure = failure == null ? e : failure;
+        uniqueIds.add(null);
+        errors.add(e.getMessage());
+      }
+    }
+    if (failure != null) {
+      throw PartialBatchException.failureOf(uniqueIds, errors, failure);
+    }
+    return uniqueIds;
+  }
   
   /**
    * Query the XDS for all documents whose metadata fulfill criteria: A) the id
@@ -60,6 +96,109 @@ public interface XDSBackend {
    */
   public List<Document> retriveDocumentSet(String personID, LocalDateTime start, LocalDateTime end);
 
+  /**
+   * Query the XDS for the same documents as retriveDocumentSet, but as a
+   * stream that produces the documents one at a time as it is consumed, so
+   * the full result is never held in memory. The stream may hold database
+   * resources and must be closed, preferably in a try-with-resources
+   * statement. Backends override this; the default streams the list.
+   * 
+   * @param personID
+   *          id of the person searched for
+   * @param start
+   *          begin of time interval
+   * @param end
+   *          end of time interval
+   * @return stream of all documents that fulfil criteria
+   */
+  public default Stream<Document> streamDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+    return retriveDocumentSet(personID, start, end).stream();
+  }
+
+  /**
+   * Query the XDS for the documents of several persons in the time interval
+   * [start;end], as a stream like streamDocumentSet. The documents of each
+   * person come in time order, while the order of the persons, and whether
+   * their documents are interleaved, is up to the backend; a time
+   * partitioned backend answers partition by partition. The stream must be
+   * closed. Backends override this
+   * to answer the query in one round trip; the default streams the
+   * documents of one person after the other.
+   * 
+   * @param personIDs
+   *          ids of the persons searched for
+   * @param start
+   *          begin of time interval
+   * @param end
+   *          end of time interval
+   * @return stream of all documents that fulfil criteria
+   */
+  public default Stream<Document> streamDocumentSets(List<String> personIDs, LocalDateTime start,
+      LocalDateTime end) {
+    // flatMap closes the stream of each person when it is consumed
+    return personIDs.stream().distinct().flatMap(personID -> streamDocumentSet(personID, start, end));
+  }
+
+  /**
+   * Query the XDS for one page of the documents of a person in the time
+   * interval [start;end], newest first. The first page is fetched without a
+   * continuation token, the following ones with the token of the previous
+   * page. Backends override this to fetch only the documents of the page;
+   * the default pages through the result of retriveDocumentSet by offset.
+   * 
+   * @param personID
+   *          id of the person searched for
+   * @param start
+   *          begin of time interval
+   * @param end
+   *          end of time interval
+   * @param limit
+   *          the maximal number of documents on the page, positive
+   * @param continuationToken
+   *          the token of the previous page, or null for the first page
+   * @return the page, whose token is null if it is the last one
+   * @throws XDSException
+   *           if the continuation token is invalid
+   */
+  public default DocumentPage retriveDocumentPage(String personID, LocalDateTime start, LocalDateTime end,
+      int limit, String continuationToken) {
+    List<Document> newestFirst = new ArrayList<Document>(retriveDocumentSet(personID, start, end));
+    Collections.reverse(newestFirst);
+    int offset = continuationToken == null ? 0 : DocumentPage.offsetOf(continuationToken);
+    int to = Math.min(newestFirst.size(), offset + limit);
+    List<Document> page = new ArrayList<Document>();
+    if (offset < to) {
+      page.addAll(newestFirst.subList(offset, to));
+    }
+    return new DocumentPage(page, to < newestFirst.size() ? DocumentPage.offsetToken(to) : null);
+  }
+
+  /**
+   * Compute the statistics of the values of each clinical quantity in the
+   * documents of a person in the time interval [start;end], e.g. the mean
+   * and median systolic blood pressure. Backends override this to compute
+   * the statistics where the data is, so only a few numbers are returned
+   * instead of all the documents; the default scans the result of
+   * streamDocumentSet.
+   * 
+   * @param personID
+   *          id of the person searched for
+   * @param start
+   *          begin of time interval
+   * @param end
+   *          end of time interval
+   * @return the statistics of each quantity, ordered by code; empty if there
+   *         are no documents in the interval
+   */
+  public default List<QuantityStatistics> computeStatistics(String personID, LocalDateTime start,
+      LocalDateTime end) {
+    QuantityStatisticsCollector collector = new QuantityStatisticsCollector();
+    try (Stream<Document> documents = streamDocumentSet(personID, start, end)) {
+      documents.forEach(collector::add);
+    }
+    return collector.getResult();
+  }
+
   /**
    * Given a uniqueId assigned to a document, fetch that particular document.
    * 
@@ -69,6 +208,24 @@ public interface XDSBackend {
    */
   public Document retriveDocument(String uniqueId);
 
+  /**
+   * Given a list of uniqueIds, fetch the documents with those ids. Backends
+   * override this to fetch them in a single query or round trip; the
+   * default calls retriveDocument for each in turn.
+   * 
+   * @param uniqueIds
+   *          the ids of the documents, which may repeat
+   * @return the documents in the order of the ids, with null for each id
+   *         whose document is not found
+   */
+  public default List<Document> retriveDocuments(List<String> uniqueIds) {
+    List<Document> documents = new ArrayList<Document>(uniqueIds.size());
+    for (String uniqueId : uniqueIds) {
+      documents.add(retriveDocument(uniqueId));
+    }
+    return documents;
+  }
+
   /** Valid corrections of documents using the correctDocument method */
   enum Operation { UPDATE, DELETE }
 
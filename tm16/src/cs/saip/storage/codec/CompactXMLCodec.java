@@ -0,0 +1,28 @@
+package cs.saip.storage.codec;
+
+import java.nio.charset.StandardCharsets;
+
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+
+/**
+ * The plain codec: a document is stored as its compact XML string, UTF-8
+ * encoded. A decoded document is only parsed when more than its attributes
+ * are asked for, see LazyHL7Document.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class CompactXMLCodec implements DocumentCodec {
+
+  @Override
+  public byte[] encode(Document document) {
+    return XMLUtility.convertXMLDocumentToCompactString(document).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public Document decode(byte[] encoded) {
+    return new LazyHL7Document(new String(encoded, StandardCharsets.UTF_8), true);
+  }
+}
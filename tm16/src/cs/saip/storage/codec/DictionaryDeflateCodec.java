@@ -0,0 +1,313 @@
+package cs.saip.storage.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.*;
+
+import org.w3c.dom.Document;
+
+import cs.saip.storage.XDSException;
+
+/**
+ * A codec that deflates the compact XML of a document against a preset
+ * dictionary shared by all documents.
+ * <p>
+ * Every HL7 document made by the HL7Builder has the same skeleton of
+ * elements, codes and units, and only a few values differ. A single document
+ * is too small for deflate to find much repetition in it, but with the
+ * skeleton given up front as a dictionary, most of the document is encoded
+ * as back references into it. The dictionary is trained from sample
+ * documents, see train.
+ * <p>
+ * The dictionary is part of the stored format: data encoded with one
+ * dictionary can only be decoded with the same one. The HL7 dictionaries
+ * are therefore shipped as fixed versions, see HL7Dictionary, and never
+ * retrained. Deflate records the Adler-32 checksum of the dictionary in
+ * the header of each encoded document, and the codec uses it as the id of
+ * the dictionary: a document is decoded with the dictionary of that id,
+ * which may be the codec's own or any shipped version, and a document of
+ * an unknown dictionary is reported instead of returning garbage.
+ * Documents stored as plain compact XML, by the CompactXMLCodec, are still
+ * decoded, so a store can switch to this codec without a migration.
+ * <p>
+ * The codec counts the bytes and time spent, to report compression ratio
+ * and throughput.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class DictionaryDeflateCodec implements DocumentCodec {
+
+  /** Deflate only refers back 32 KB, so a larger dictionary is not used */
+  public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+  private static final int BUFFER_SIZE = 1024;
+
+  private final byte[] dictionary;
+  private final int dictionaryId;
+  // The dictionaries documents may be decoded with, by id
+  private final Map<Integer, byte[]> dictionaries;
+  private final CompactXMLCodec xmlCodec;
+
+  // Deflater and Inflater are not thread safe, and expensive to create
+  private final ThreadLocal<Deflater> deflaters;
+  private final ThreadLocal<Inflater> inflaters;
+
+  private final LongAdder encodeCount;
+  private final LongAdder decodeCount;
+  private final LongAdder encodedRawBytes;
+  private final LongAdder encodedBytes;
+  private final LongAdder decodedRawBytes;
+  private final LongAdder encodeNanos;
+  private final LongAdder decodeNanos;
+
+  /**
+   * Construct a codec encoding with the latest shipped HL7 dictionary.
+   */
+  public DictionaryDeflateCodec() {
+    this(HL7Dictionary.of(HL7Dictionary.LATEST));
+  }
+
+  /**
+   * Construct a codec encoding with a given version of the shipped HL7
+   * dictionary, e.g. to keep encoding with the version older app servers
+   * can decode.
+   *
+   * @param hl7DictionaryVersion
+   *          the version of the HL7 dictionary
+   */
+  public DictionaryDeflateCodec(int hl7DictionaryVersion) {
+    this(HL7Dictionary.of(hl7DictionaryVersion));
+  }
+
+  /**
+   * Construct a codec encoding with the given dictionary. Documents encoded
+   * with it or with a shipped HL7 dictionary are decoded.
+   *
+   * @param dictionary
+   *          the dictionary, typically made by train
+   */
+  public DictionaryDeflateCodec(byte[] dictionary) {
+    if (dictionary.length == 0 || dictionary.length > MAX_DICTIONARY_SIZE) {
+      throw new IllegalArgumentException("Dictionary must be 1 to " + MAX_DICTIONARY_SIZE
+          + " bytes, was " + dictionary.length);
+    }
+    this.dictionary = dictionary.clone();
+    dictionaryId = idOf(dictionary);
+    dictionaries = new HashMap<Integer, byte[]>();
+    for (int version = 1; version <= HL7Dictionary.LATEST; version++) {
+      byte[] shipped = HL7Dictionary.of(version);
+      dictionaries.put(idOf(shipped), shipped);
+    }
+    dictionaries.put(dictionaryId, this.dictionary);
+    xmlCodec = new CompactXMLCodec();
+    deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION));
+    inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    encodeCount = new LongAdder();
+    decodeCount = new LongAdder();
+    encodedRawBytes = new LongAdder();
+    encodedBytes = new LongAdder();
+    decodedRawBytes = new LongAdder();
+    encodeNanos = new LongAdder();
+    decodeNanos = new LongAdder();
+  }
+
+  @Override
+  public byte[] encode(Document document) {
+    long begin = System.nanoTime();
+    byte[] raw = xmlCodec.encode(document);
+    Deflater deflater = deflaters.get();
+    deflater.reset();
+    deflater.setDictionary(dictionary);
+    deflater.setInput(raw);
+    deflater.finish();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+    byte[] buffer = new byte[BUFFER_SIZE];
+    while (!deflater.finished()) {
+      int count = deflater.deflate(buffer);
+      out.write(buffer, 0, count);
+    }
+    byte[] encoded = out.toByteArray();
+
+    encodeNanos.add(System.nanoTime() - begin);
+    encodeCount.increment();
+    encodedRawBytes.add(raw.length);
+    encodedBytes.add(encoded.length);
+    return encoded;
+  }
+
+  @Override
+  public Document decode(byte[] encoded) {
+    long begin = System.nanoTime();
+    byte[] raw;
+    if (encoded.length > 0 && encoded[0] == '<') {
+      // Stored as plain XML before the codec was introduced
+      raw = encoded;
+    } else {
+      raw = inflate(encoded);
+    }
+    Document document = xmlCodec.decode(raw);
+
+    decodeNanos.add(System.nanoTime() - begin);
+    decodeCount.increment();
+    decodedRawBytes.add(raw.length);
+    return document;
+  }
+
+  private byte[] inflate(byte[] encoded) {
+    Inflater inflater = inflaters.get();
+    inflater.reset();
+    inflater.setInput(encoded);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length * 4);
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try {
+      while (!inflater.finished()) {
+        int count = inflater.inflate(buffer);
+        if (count > 0) {
+          out.write(buffer, 0, count);
+        } else if (inflater.needsDictionary()) {
+          byte[] used = dictionaries.get(inflater.getAdler());
+          if (used == null) {
+            throw new XDSException("Document was encoded with an unknown dictionary, id "
+                + Integer.toHexString(inflater.getAdler()));
+          }
+          inflater.setDictionary(used);
+        } else if (inflater.needsInput()) {
+          throw new XDSException("Encoded document is truncated");
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new XDSException("Encoded document is corrupt: " + e.getMessage());
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Return a copy of the dictionary, so it can be stored next to the data.
+   *
+   * @return the dictionary
+   */
+  public byte[] getDictionary() {
+    return dictionary.clone();
+  }
+
+  /**
+   * Return the id of the dictionary documents are encoded with, its Adler-32
+   * checksum, which deflate writes in each encoded document.
+   *
+   * @return the dictionary id
+   */
+  public int getDictionaryId() {
+    return dictionaryId;
+  }
+
+  /**
+   * Return the number of documents encoded.
+   *
+   * @return count of encodings
+   */
+  public long getEncodeCount() {
+    return encodeCount.sum();
+  }
+
+  /**
+   * Return the number of documents decoded.
+   *
+   * @return count of decodings
+   */
+  public long getDecodeCount() {
+    return decodeCount.sum();
+  }
+
+  /**
+   * Return the compression ratio of the documents encoded so far, that is,
+   * the size of their compact XML divided by their encoded size.
+   *
+   * @return the compression ratio, 0 if nothing has been encoded
+   */
+  public double getCompressionRatio() {
+    long encoded = encodedBytes.sum();
+    return encoded == 0 ? 0.0 : (double) encodedRawBytes.sum() / encoded;
+  }
+
+  /**
+   * Return the encode throughput measured in MB of compact XML per second,
+   * including the conversion of the document to XML.
+   *
+   * @return MB per second, 0 if nothing has been encoded
+   */
+  public double getEncodeThroughput() {
+    return megabytesPerSecond(encodedRawBytes.sum(), encodeNanos.sum());
+  }
+
+  /**
+   * Return the decode throughput measured in MB of compact XML per second,
+   * including the parsing of the XML.
+   *
+   * @return MB per second, 0 if nothing has been decoded
+   */
+  public double getDecodeThroughput() {
+    return megabytesPerSecond(decodedRawBytes.sum(), decodeNanos.sum());
+  }
+
+  private static double megabytesPerSecond(long bytes, long nanos) {
+    return nanos == 0 ? 0.0 : bytes / 1e6 / (nanos / 1e9);
+  }
+
+  private static int idOf(byte[] dictionary) {
+    Adler32 adler = new Adler32();
+    adler.update(dictionary);
+    return (int) adler.getValue();
+  }
+
+  /**
+   * Train a dictionary from sample documents. The compact XML of each
+   * sample is split into its tags, and the tags are laid out with the most
+   * frequent last, where deflate reaches them with the shortest distances.
+   * Tags that occur equally often keep their order in the documents, so the
+   * skeleton shared by all samples ends the dictionary as one contiguous
+   * string.
+   *
+   * @param samples
+   *          representative documents
+   * @param maxSize
+   *          the maximal size of the dictionary in bytes
+   * @return the dictionary
+   */
+  public static byte[] train(List<Document> samples, int maxSize) {
+    if (samples.isEmpty()) {
+      throw new IllegalArgumentException("Cannot train a dictionary without samples");
+    }
+    // The number of samples each tag occurs in, in order of first occurrence
+    Map<String, Integer> occurrences = new LinkedHashMap<String, Integer>();
+    CompactXMLCodec xmlCodec = new CompactXMLCodec();
+    for (Document sample : samples) {
+      String xml = new String(xmlCodec.encode(sample), StandardCharsets.UTF_8);
+      Set<String> tags = new LinkedHashSet<String>();
+      for (int from = 0; from < xml.length(); ) {
+        int to = xml.indexOf('<', from + 1);
+        if (to < 0) { to = xml.length(); }
+        tags.add(xml.substring(from, to));
+        from = to;
+      }
+      for (String tag : tags) {
+        occurrences.merge(tag, 1, Integer::sum);
+      }
+    }
+    List<String> ordered = new ArrayList<String>(occurrences.keySet());
+    // A stable sort, so ties keep document order
+    ordered.sort(Comparator.comparing(occurrences::get));
+
+    StringBuilder dictionary = new StringBuilder();
+    for (String tag : ordered) {
+      dictionary.append(tag);
+    }
+    byte[] bytes = dictionary.toString().getBytes(StandardCharsets.UTF_8);
+    int size = Math.min(Math.min(maxSize, MAX_DICTIONARY_SIZE), bytes.length);
+    // Keep the end, that is, the most frequent tags
+    return Arrays.copyOfRange(bytes, bytes.length - size, bytes.length);
+  }
+}
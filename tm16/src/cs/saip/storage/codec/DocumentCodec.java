@@ -0,0 +1,31 @@
+package cs.saip.storage.codec;
+
+import org.w3c.dom.Document;
+
+/**
+ * The role of converting an HL7 document into the bytes stored by an XDS,
+ * and back. Codecs are thread safe.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public interface DocumentCodec {
+
+  /**
+   * Encode a document for storage.
+   *
+   * @param document
+   *          the HL7 document
+   * @return the bytes to store
+   */
+  byte[] encode(Document document);
+
+  /**
+   * Decode stored bytes into a document.
+   *
+   * @param encoded
+   *          bytes produced by encode
+   * @return the HL7 document
+   */
+  Document decode(byte[] encoded);
+}
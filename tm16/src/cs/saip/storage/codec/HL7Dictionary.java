@@ -0,0 +1,102 @@
+package cs.saip.storage.codec;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The dictionaries of HL7 documents shipped with the DictionaryDeflateCodec,
+ * by version.
+ * <p>
+ * A dictionary is part of the stored format, so a shipped version is never
+ * changed: documents deflated against it must still be inflated after the
+ * HL7Builder or the XML serializer changes. A better dictionary is added as
+ * a new version, and the older versions stay to decode the documents stored
+ * with them.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+final class HL7Dictionary {
+
+  /**
+   * Version 1, trained by DictionaryDeflateCodec.train from 16 documents of
+   * the HL7Builder of 2016; its Adler-32 checksum is f79c911d
+   */
+  static final int VERSION_1 = 1;
+
+  /** The version new documents are encoded with by default */
+  static final int LATEST = VERSION_1;
+
+  private static final String DICTIONARY_1 =
+      "<effectiveTime value=\"20160501083000\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"110.0\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"70.0\"/>" +
+      "<effectiveTime value=\"20160502083700\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"113.0\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"71.0\"/>" +
+      "<effectiveTime value=\"20160503084400\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"116.0\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"72.0\"/>" +
+      "<effectiveTime value=\"20160504085100\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"119.0\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"73.0\"/>" +
+      "<effectiveTime value=\"20160505085800\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"122.0\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"74.0\"/>" +
+      "<effectiveTime value=\"20160506090500\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"125.0\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"75.0\"/>" +
+      "<effectiveTime value=\"20160507091200\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"128.0\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"76.0\"/>" +
+      "<effectiveTime value=\"20160508091900\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"131.0\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"77.0\"/>" +
+      "<effectiveTime value=\"20160509092600\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"134.0\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"78.0\"/>" +
+      "<effectiveTime value=\"20160510093300\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"137.0\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"79.0\"/>" +
+      "<effectiveTime value=\"20160511094000\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"140.0\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"80.0\"/>" +
+      "<effectiveTime value=\"20160512094700\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"143.0\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"81.0\"/>" +
+      "<effectiveTime value=\"20160513095400\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"146.0\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"82.0\"/>" +
+      "<effectiveTime value=\"20160514100100\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"149.0\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"83.0\"/>" +
+      "<effectiveTime value=\"20160515100800\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"152.0\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"84.0\"/>" +
+      "<effectiveTime value=\"20160516101500\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"155.0\"/>" +
+      "<value unit=\"mm(Hg)\" value=\"85.0\"/><id extension=\"pid000\"/>" +
+      "<id extension=\"pid001\"/><id extension=\"pid002\"/>" +
+      "<id extension=\"pid003\"/><id extension=\"pid004\"/>" +
+      "<id extension=\"pid005\"/><id extension=\"pid006\"/>" +
+      "<id extension=\"pid007\"/><ClinicalDocument><patient></patient>" +
+      "<component><observation>" +
+      "<code code=\"MSC88019\" displayName=\"Systolisk BT\"/></observation>" +
+      "<code code=\"MSC88020\" displayName=\"Diastolisk BT\"/></component>" +
+      "</ClinicalDocument>";
+
+  private HL7Dictionary() {}
+
+  /**
+   * Return the dictionary of a version.
+   *
+   * @param version
+   *          the version, 1 to LATEST
+   * @return a new copy of the dictionary
+   */
+  static byte[] of(int version) {
+    if (version == VERSION_1) {
+      return DICTIONARY_1.getBytes(StandardCharsets.UTF_8);
+    }
+    throw new IllegalArgumentException("No HL7 dictionary of version " + version);
+  }
+}
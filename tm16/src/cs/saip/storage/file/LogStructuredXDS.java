@@ -0,0 +1,935 @@
+package cs.saip.storage.file;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.logging.*;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.w3c.dom.Document;
+
+import cs.saip.domain.Utility;
+import cs.saip.storage.*;
+import cs.saip.storage.codec.*;
+
+/**
+ * A file based implementation of the XDS for single node deployments, built
+ * as an append-only log (in the style of Bitcask).
+ * <p>
+ * Documents are encoded by a codec, by default as compact HL7, and appended
+ * as records to segment files that are accessed through memory mapped file
+ * channels. A DictionaryDeflateCodec shrinks the records to a fraction of
+ * their size, and can be configured for an existing log. An UPDATE
+ * appends a new version of the record, a DELETE appends a tombstone; nothing
+ * is ever overwritten. When the active segment is full it is sealed, and a
+ * hint file with the headers of all its records is written next to it.
+ * <p>
+ * In memory, a keydir maps each uniqueId to the location of the latest
+ * version of its record, and a per patient time index supports interval
+ * queries in O(log n + k). At startup the keydir is rebuilt from the hint
+ * files of the sealed segments, so no XML is parsed; only the active segment
+ * has its record headers scanned.
+ * <p>
+ * A background merge copies the live records of all sealed segments into
+ * new, compact segments and drops old versions and tombstones. A merge
+ * manifest makes the final swap of files safe against crashes.
+ * <p>
+ * The uniqueIds are ObservationIds. Logs written before them hold uniqueIds
+ * of the form log-N, which are still resolved.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class LogStructuredXDS implements XDSBackend, Closeable {
+
+  /** Default capacity of a single segment file */
+  public static final int DEFAULT_SEGMENT_CAPACITY = 64 * 1024 * 1024;
+
+  private static final String LEGACY_UNIQUE_ID_PREFIX = "log-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String HINT_SUFFIX = ".hint";
+  private static final String MERGE_SUFFIX = ".merge";
+  private static final String MANIFEST_NAME = "merge.manifest";
+  private static final String SEQUENCE_NAME = "sequence";
+
+  // Record types, a zero byte marks the end of the data in a segment
+  private static final byte END_OF_DATA = 0;
+  private static final byte PUT = 1;
+  private static final byte TOMBSTONE = 2;
+
+  // type, crc, uid length, pid length, timestamp, payload length
+  private static final int HEADER_SIZE = 1 + 4 + 2 + 2 + 8 + 4;
+
+  private static final Logger logger = Logger.getLogger("TM16Logger");
+
+  private final Path directory;
+  private final int segmentCapacity;
+  private final double mergeDeadRatio;
+  private final DocumentCodec codec;
+
+  private NavigableMap<Integer, Segment> segments;
+  private Segment active;
+
+  private Map<String, Location> keydir;
+  private Map<String, NavigableMap<TimeKey, String>> patientIndex;
+  private ObservationIdGenerator generator;
+
+  private ReadWriteLock lock;
+  private Object mergeMonitor;
+  private ScheduledExecutorService merger;
+
+  /**
+   * Construct a log structured XDS storing its segments in the given
+   * directory, using default segment size and no background merging.
+   *
+   * @param directory
+   *          the directory of the segment files, created if missing
+   * @throws IOException
+   *           if the segments cannot be opened
+   */
+  public LogStructuredXDS(Path directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_CAPACITY, 0.5, 0);
+  }
+
+  /**
+   * Construct a log structured XDS storing its segments in the given
+   * directory.
+   *
+   * @param directory
+   *          the directory of the segment files, created if missing
+   * @param segmentCapacity
+   *          the size in bytes of each segment file
+   * @param mergeDeadRatio
+   *          the fraction of dead bytes in the sealed segments that makes the
+   *          background merge compact them
+   * @param mergeIntervalSeconds
+   *          how often the background merge checks the dead ratio; 0 disables
+   *          background merging
+   * @throws IOException
+   *           if the segments cannot be opened
+   */
+  public LogStructuredXDS(Path directory, int segmentCapacity,
+      double mergeDeadRatio, int mergeIntervalSeconds) throws IOException {
+    this(directory, segmentCapacity, mergeDeadRatio, mergeIntervalSeconds, new CompactXMLCodec());
+  }
+
+  /**
+   * Construct a log structured XDS storing its segments in the given
+   * directory, with the documents encoded by the given codec.
+   *
+   * @param directory
+   *          the directory of the segment files, created if missing
+   * @param segmentCapacity
+   *          the size in bytes of each segment file
+   * @param mergeDeadRatio
+   *          the fraction of dead bytes in the sealed segments that makes the
+   *          background merge compact them
+   * @param mergeIntervalSeconds
+   *          how often the background merge checks the dead ratio; 0 disables
+   *          background merging
+   * @param codec
+   *          the codec of the documents; it must decode the records already
+   *          in the directory
+   * @throws IOException
+   *           if the segments cannot be opened
+   */
+  public LogStructuredXDS(Path directory, int segmentCapacity,
+      double mergeDeadRatio, int mergeIntervalSeconds, DocumentCodec codec) throws IOException {
+    this.directory = directory;
+    this.segmentCapacity = segmentCapacity;
+    this.mergeDeadRatio = mergeDeadRatio;
+    this.codec = codec;
+    segments = new TreeMap<Integer, Segment>();
+    keydir = new HashMap<String, Location>();
+    patientIndex = new HashMap<String, NavigableMap<TimeKey, String>>();
+    generator = new ObservationIdGenerator();
+    lock = new ReentrantReadWriteLock();
+    mergeMonitor = new Object();
+
+    Files.createDirectories(directory);
+    completeInterruptedMerge();
+    openSegments();
+    readSequenceFile();
+
+    if (mergeIntervalSeconds > 0) {
+      merger = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "xds-log-merger");
+        t.setDaemon(true);
+        return t;
+      });
+      merger.scheduleWithFixedDelay(this::mergeIfWorthwhile,
+          mergeIntervalSeconds, mergeIntervalSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  @Override
+  public String provideAndRegisterDocument(MetaData metaData, Document observationAsHL7) {
+    byte[] payload = serialize(observationAsHL7);
+    lock.writeLock().lock();
+    try {
+      return appendDocument(metaData, payload);
+    } catch (IOException e) {
+      throw new XDSException("Failed to append to log: " + e.getMessage());
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public List<String> provideAndRegisterDocuments(List<DocumentSubmission> submissions) {
+    // Serialize outside the lock, then append the batch in one go
+    List<byte[]> payloads = new ArrayList<byte[]>(submissions.size());
+    for (DocumentSubmission submission : submissions) {
+      payloads.add(serialize(submission.getObservationAsHL7()));
+    }
+    List<String> uniqueIds = new ArrayList<String>(submissions.size());
+    lock.writeLock().lock();
+    try {
+      for (int i = 0; i < submissions.size(); i++) {
+        uniqueIds.add(appendDocument(submissions.get(i).getMetaData(), payloads.get(i)));
+      }
+      return uniqueIds;
+    } catch (IOException e) {
+      throw failureOf(uniqueIds, submissions.size(),
+          new XDSException("Failed to append to log: " + e.getMessage()));
+    } catch (XDSException e) {
+      throw failureOf(uniqueIds, submissions.size(), e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Return the exception of a batch whose appends stopped at a failure; the
+   * documents appended before it are stored, the rest are not tried
+   */
+  private static RuntimeException failureOf(List<String> appended, int size, XDSException failure) {
+    List<String> uniqueIds = new ArrayList<String>(appended);
+    List<String> errors = new ArrayList<String>(size);
+    for (int i = 0; i < size; i++) {
+      errors.add(i < appended.size() ? null : failure.getMessage());
+    }
+    while (uniqueIds.size() < size) {
+      uniqueIds.add(null);
+    }
+    return PartialBatchException.failureOf(uniqueIds, errors, failure);
+  }
+
+  /** Append a new document under a fresh uniqueId, the write lock must be held */
+  private String appendDocument(MetaData metaData, byte[] payload) throws IOException {
+    String uniqueId = generator.next(metaData.getTimestamp()).toString();
+    Location location = append(PUT, uniqueId, metaData.getPersonID(),
+        metaData.getTimestamp(), payload);
+    register(uniqueId, location);
+    return uniqueId;
+  }
+
+  @Override
+  public List<Document> retriveDocumentSet(String personID, LocalDateTime startTime,
+      LocalDateTime endTime) {
+    List<byte[]> payloads = payloadsOf(personID, startTime, endTime);
+    // Parse outside the lock
+    List<Document> thelist = new ArrayList<Document>();
+    for (byte[] payload : payloads) {
+      thelist.add(deserialize(payload));
+    }
+    return thelist;
+  }
+
+  @Override
+  public Stream<Document> streamDocumentSet(String personID, LocalDateTime startTime,
+      LocalDateTime endTime) {
+    // Each payload is parsed as the stream is consumed
+    return payloadsOf(personID, startTime, endTime).stream().map(this::deserialize);
+  }
+
+  private List<byte[]> payloadsOf(String personID, LocalDateTime startTime, LocalDateTime endTime) {
+    long start = Utility.convertLocalDateTimeToUnixEpoch(startTime);
+    long end = Utility.convertLocalDateTimeToUnixEpoch(endTime);
+    List<byte[]> payloads = new ArrayList<byte[]>();
+    lock.readLock().lock();
+    try {
+      NavigableMap<TimeKey, String> timeIndex = patientIndex.get(personID);
+      if (timeIndex != null && start <= end) {
+        for (String uniqueId :
+          timeIndex.subMap(TimeKey.first(start), true, TimeKey.last(end), true).values()) {
+          payloads.add(readPayload(keydir.get(uniqueId)));
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return payloads;
+  }
+
+  @Override
+  public DocumentPage retriveDocumentPage(String personID, LocalDateTime startTime,
+      LocalDateTime endTime, int limit, String continuationToken) {
+    long start = Utility.convertLocalDateTimeToUnixEpoch(startTime);
+    long end = Utility.convertLocalDateTimeToUnixEpoch(endTime);
+    TimeKey before = TimeKey.last(end);
+    boolean inclusive = true;
+    if (continuationToken != null) {
+      // Continue just before the last document of the previous page
+      long sequence;
+      try {
+        sequence = sequenceOf(DocumentPage.uniqueIdOf(continuationToken));
+      } catch (XDSException e) {
+        throw new XDSException("Invalid continuation token: " + continuationToken);
+      }
+      before = new TimeKey(DocumentPage.timestampOf(continuationToken), sequence);
+      inclusive = false;
+      if (before.compareTo(TimeKey.last(end)) > 0) {
+        before = TimeKey.last(end);
+        inclusive = true;
+      }
+    }
+
+    List<byte[]> payloads = new ArrayList<byte[]>();
+    String next = null;
+    lock.readLock().lock();
+    try {
+      NavigableMap<TimeKey, String> timeIndex = patientIndex.get(personID);
+      if (timeIndex != null && start <= end && TimeKey.first(start).compareTo(before) <= 0) {
+        NavigableMap<TimeKey, String> newestFirst =
+            timeIndex.subMap(TimeKey.first(start), true, before, inclusive).descendingMap();
+        Map.Entry<TimeKey, String> lastOnPage = null;
+        for (Map.Entry<TimeKey, String> entry : newestFirst.entrySet()) {
+          if (payloads.size() == limit) {
+            next = DocumentPage.keysetToken(lastOnPage.getKey().timestamp, lastOnPage.getValue());
+            break;
+          }
+          payloads.add(readPayload(keydir.get(entry.getValue())));
+          lastOnPage = entry;
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    List<Document> page = new ArrayList<Document>();
+    for (byte[] payload : payloads) {
+      page.add(deserialize(payload));
+    }
+    return new DocumentPage(page, next);
+  }
+
+  @Override
+  public Document retriveDocument(String uniqueId) {
+    byte[] payload;
+    lock.readLock().lock();
+    try {
+      Location location = keydir.get(uniqueId);
+      if (location == null) { return null; }
+      payload = readPayload(location);
+    } finally {
+      lock.readLock().unlock();
+    }
+    return deserialize(payload);
+  }
+
+  @Override
+  public boolean correctDocument(String uniqueId, Operation operation, Document doc) {
+    byte[] payload = operation == Operation.UPDATE ? serialize(doc) : new byte[0];
+    lock.writeLock().lock();
+    try {
+      Location existing = keydir.get(uniqueId);
+      if (existing == null) { return false; }
+      if (operation == Operation.UPDATE) {
+        Location location = append(PUT, uniqueId, existing.personID,
+            existing.timestamp, payload);
+        register(uniqueId, location);
+      } else if (operation == Operation.DELETE) {
+        Location location = append(TOMBSTONE, uniqueId, existing.personID,
+            existing.timestamp, payload);
+        unregister(uniqueId);
+        location.segment.deadBytes += location.recordLength;
+      }
+      return true;
+    } catch (IOException e) {
+      throw new XDSException("Failed to append to log: " + e.getMessage());
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Return the number of documents presently stored.
+   *
+   * @return number of documents
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return keydir.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Return the number of segment files presently in use.
+   *
+   * @return number of segments
+   */
+  public int segmentCount() {
+    lock.readLock().lock();
+    try {
+      return segments.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Force all appended records to disk.
+   */
+  public void flush() {
+    lock.writeLock().lock();
+    try {
+      active.buffer.force();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Stop background merging, force all records to disk and release the
+   * segment files.
+   */
+  @Override
+  public void close() throws IOException {
+    if (merger != null) {
+      merger.shutdownNow();
+    }
+    synchronized (mergeMonitor) {
+      lock.writeLock().lock();
+      try {
+        active.buffer.force();
+        for (Segment segment : segments.values()) {
+          segment.channel.close();
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  // === Appending and indexing
+
+  private Location append(byte type, String uniqueId, String personID,
+      long timestamp, byte[] payload) throws IOException {
+    byte[] uid = uniqueId.getBytes(StandardCharsets.UTF_8);
+    byte[] pid = personID.getBytes(StandardCharsets.UTF_8);
+    int recordLength = HEADER_SIZE + uid.length + pid.length + payload.length;
+    if (recordLength > segmentCapacity) {
+      throw new XDSException("Document of " + payload.length + " bytes exceeds segment capacity");
+    }
+    if (active.writePosition + recordLength > segmentCapacity) {
+      seal(active);
+      active = createSegment(active.id + 1, segmentPath(active.id + 1));
+      segments.put(active.id, active);
+    }
+
+    ByteBuffer record = ByteBuffer.allocate(recordLength);
+    record.put(type);
+    record.putInt(0); // crc is filled in below
+    record.putShort((short) uid.length);
+    record.putShort((short) pid.length);
+    record.putLong(timestamp);
+    record.putInt(payload.length);
+    record.put(uid);
+    record.put(pid);
+    record.put(payload);
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), 5, recordLength - 5);
+    record.putInt(1, (int) crc.getValue());
+
+    int offset = active.writePosition;
+    ByteBuffer view = active.buffer.duplicate();
+    view.position(offset);
+    view.put(record.array());
+    active.writePosition += recordLength;
+
+    return new Location(active, offset, recordLength, payload.length, personID, timestamp);
+  }
+
+  private void register(String uniqueId, Location location) {
+    Location old = keydir.put(uniqueId, location);
+    if (old != null) {
+      old.segment.deadBytes += old.recordLength;
+      if (old.timestamp != location.timestamp || !old.personID.equals(location.personID)) {
+        removeFromTimeIndex(uniqueId, old);
+        addToTimeIndex(uniqueId, location);
+      }
+    } else {
+      addToTimeIndex(uniqueId, location);
+    }
+  }
+
+  private void unregister(String uniqueId) {
+    Location old = keydir.remove(uniqueId);
+    if (old != null) {
+      old.segment.deadBytes += old.recordLength;
+      removeFromTimeIndex(uniqueId, old);
+    }
+  }
+
+  private void addToTimeIndex(String uniqueId, Location location) {
+    NavigableMap<TimeKey, String> timeIndex = patientIndex.get(location.personID);
+    if (timeIndex == null) {
+      timeIndex = new TreeMap<TimeKey, String>();
+      patientIndex.put(location.personID, timeIndex);
+    }
+    timeIndex.put(new TimeKey(location.timestamp, sequenceOf(uniqueId)), uniqueId);
+  }
+
+  private void removeFromTimeIndex(String uniqueId, Location location) {
+    NavigableMap<TimeKey, String> timeIndex = patientIndex.get(location.personID);
+    timeIndex.remove(new TimeKey(location.timestamp, sequenceOf(uniqueId)));
+    if (timeIndex.isEmpty()) {
+      patientIndex.remove(location.personID);
+    }
+  }
+
+  /**
+   * Return the tie breaker of the time index of a uniqueId: the low bits of
+   * an ObservationId, or the counter of a uniqueId of an older log.
+   */
+  private static long sequenceOf(String uniqueId) {
+    if (ObservationId.isObservationId(uniqueId)) {
+      return ObservationId.parse(uniqueId).getLeastSignificantBits();
+    }
+    try {
+      if (uniqueId.startsWith(LEGACY_UNIQUE_ID_PREFIX)) {
+        return Long.parseLong(uniqueId.substring(LEGACY_UNIQUE_ID_PREFIX.length()));
+      }
+    } catch (NumberFormatException e) {
+      // Fall through
+    }
+    throw new XDSException("Not a uniqueId of this XDS: " + uniqueId);
+  }
+
+  private byte[] readPayload(Location location) {
+    byte[] payload = new byte[location.payloadLength];
+    ByteBuffer view = location.segment.buffer.duplicate();
+    view.position(location.offset + location.recordLength - location.payloadLength);
+    view.get(payload);
+    return payload;
+  }
+
+  private byte[] serialize(Document doc) {
+    return codec.encode(doc);
+  }
+
+  private Document deserialize(byte[] payload) {
+    return codec.decode(payload);
+  }
+
+  // === Segments and hint files
+
+  private void openSegments() throws IOException {
+    List<Integer> ids = new ArrayList<Integer>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*" + SEGMENT_SUFFIX)) {
+      for (Path path : stream) {
+        ids.add(segmentIdOf(path));
+      }
+    }
+    Collections.sort(ids);
+    if (ids.isEmpty()) {
+      active = createSegment(1, segmentPath(1));
+      segments.put(active.id, active);
+      return;
+    }
+    for (int i = 0; i < ids.size(); i++) {
+      int id = ids.get(i);
+      Segment segment = createSegment(id, segmentPath(id));
+      segments.put(id, segment);
+      boolean isLast = i == ids.size() - 1;
+      Path hint = hintPath(id);
+      if (!isLast && Files.exists(hint)) {
+        loadHintFile(segment, hint);
+      } else {
+        // The active segment, or a sealed one without hints, is scanned
+        segment.writePosition = scan(segment, true, (type, uid, pid, ts, offset, length, payloadLength) ->
+          apply(segment, type, uid, pid, ts, offset, length, payloadLength));
+        wipeTornRecord(segment);
+      }
+    }
+    active = segments.lastEntry().getValue();
+  }
+
+  private Segment createSegment(int id, Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentCapacity);
+    return new Segment(id, channel, buffer);
+  }
+
+  private void seal(Segment segment) throws IOException {
+    segment.buffer.force();
+    writeHintFile(segment, hintPath(segment.id));
+  }
+
+  private void readSequenceFile() throws IOException {
+    Path path = directory.resolve(SEQUENCE_NAME);
+    if (Files.exists(path)) {
+      String value = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim();
+      generator.advancePast(Long.parseLong(value));
+    }
+  }
+
+  /** Apply a record found when loading a segment to the keydir */
+  private void apply(Segment segment, byte type, String uniqueId, String personID,
+      long timestamp, int offset, int recordLength, int payloadLength) {
+    if (ObservationId.isObservationId(uniqueId)) {
+      generator.advancePast(ObservationId.parse(uniqueId));
+    }
+    if (type == PUT) {
+      register(uniqueId, new Location(segment, offset, recordLength, payloadLength, personID, timestamp));
+    } else {
+      unregister(uniqueId);
+      segment.deadBytes += recordLength;
+    }
+  }
+
+  private interface RecordVisitor {
+    void visit(byte type, String uniqueId, String personID, long timestamp,
+        int offset, int recordLength, int payloadLength);
+  }
+
+  /**
+   * Scan the record headers of a segment, skipping the payloads.
+   *
+   * @return the position after the last valid record
+   */
+  private int scan(Segment segment, boolean verify, RecordVisitor visitor) {
+    ByteBuffer view = segment.buffer.duplicate();
+    int position = 0;
+    while (position + HEADER_SIZE <= segmentCapacity) {
+      view.position(position);
+      byte type = view.get();
+      if (type != PUT && type != TOMBSTONE) { break; }
+      int crc = view.getInt();
+      int uidLength = view.getShort();
+      int pidLength = view.getShort();
+      long timestamp = view.getLong();
+      int payloadLength = view.getInt();
+      int recordLength = HEADER_SIZE + uidLength + pidLength + payloadLength;
+      if (uidLength < 0 || pidLength < 0 || payloadLength < 0
+          || position + recordLength > segmentCapacity) {
+        break;
+      }
+      if (verify) {
+        byte[] rest = new byte[recordLength - 5];
+        view.position(position + 5);
+        view.get(rest);
+        CRC32 check = new CRC32();
+        check.update(rest);
+        if ((int) check.getValue() != crc) { break; }
+      }
+      byte[] uid = new byte[uidLength], pid = new byte[pidLength];
+      view.position(position + HEADER_SIZE);
+      view.get(uid);
+      view.get(pid);
+      visitor.visit(type, new String(uid, StandardCharsets.UTF_8),
+          new String(pid, StandardCharsets.UTF_8), timestamp,
+          position, recordLength, payloadLength);
+      position += recordLength;
+    }
+    return position;
+  }
+
+  /** A record torn by a crash is zeroed, so it is not read as data again */
+  private void wipeTornRecord(Segment segment) {
+    ByteBuffer view = segment.buffer.duplicate();
+    view.position(segment.writePosition);
+    if (view.hasRemaining() && view.get(view.position()) != END_OF_DATA) {
+      while (view.hasRemaining()) {
+        view.put(END_OF_DATA);
+      }
+      segment.buffer.force();
+    }
+  }
+
+  private void writeHintFile(Segment segment, Path path) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+      scan(segment, false, (type, uid, pid, ts, offset, length, payloadLength) -> {
+        try {
+          out.writeByte(type);
+          out.writeUTF(uid);
+          out.writeUTF(pid);
+          out.writeLong(ts);
+          out.writeInt(offset);
+          out.writeInt(payloadLength);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    }
+  }
+
+  private void loadHintFile(Segment segment, Path path) throws IOException {
+    int end = 0;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      while (true) {
+        byte type;
+        try {
+          type = in.readByte();
+        } catch (EOFException e) {
+          break;
+        }
+        String uid = in.readUTF();
+        String pid = in.readUTF();
+        long timestamp = in.readLong();
+        int offset = in.readInt();
+        int payloadLength = in.readInt();
+        int recordLength = HEADER_SIZE
+            + uid.getBytes(StandardCharsets.UTF_8).length
+            + pid.getBytes(StandardCharsets.UTF_8).length + payloadLength;
+        apply(segment, type, uid, pid, timestamp, offset, recordLength, payloadLength);
+        end = offset + recordLength;
+      }
+    }
+    segment.writePosition = end;
+  }
+
+  private Path segmentPath(int id) {
+    return directory.resolve(String.format("segment-%08d", id) + SEGMENT_SUFFIX);
+  }
+
+  private Path hintPath(int id) {
+    return directory.resolve(String.format("segment-%08d", id) + HINT_SUFFIX);
+  }
+
+  private int segmentIdOf(Path path) {
+    String name = path.getFileName().toString();
+    return Integer.parseInt(name.substring("segment-".length(), name.indexOf('.')));
+  }
+
+  // === Merging
+
+  private void mergeIfWorthwhile() {
+    try {
+      long used = 0, dead = 0;
+      lock.readLock().lock();
+      try {
+        for (Segment segment : segments.headMap(active.id).values()) {
+          used += segment.writePosition;
+          dead += segment.deadBytes;
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+      if (used > 0 && (double) dead / used >= mergeDeadRatio) {
+        merge();
+      }
+    } catch (IOException e) {
+      // Merging is an optimization, the next attempt may succeed
+      logger.log(Level.WARNING, "LogStructuredXDS: merge of segments failed", e);
+    }
+  }
+
+  /**
+   * Merge all sealed segments, that is, copy their live records into new
+   * segments and drop old versions and tombstones. Appends and reads may
+   * proceed while the records are copied.
+   *
+   * @throws IOException
+   *           if the merged segments could not be written
+   */
+  public void merge() throws IOException {
+    synchronized (mergeMonitor) {
+      List<Segment> inputs;
+      List<Map.Entry<String, Location>> live = new ArrayList<>();
+      lock.readLock().lock();
+      try {
+        inputs = new ArrayList<Segment>(segments.headMap(active.id).values());
+        if (inputs.isEmpty()) { return; }
+        Set<Segment> inputSet = new HashSet<Segment>(inputs);
+        for (Map.Entry<String, Location> entry : keydir.entrySet()) {
+          if (inputSet.contains(entry.getValue().segment)) {
+            live.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+          }
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+      // Copy in log order, sealed segments never change so no lock is needed
+      live.sort((a, b) -> {
+        Location la = a.getValue(), lb = b.getValue();
+        int result = Integer.compare(la.segment.id, lb.segment.id);
+        return result != 0 ? result : Integer.compare(la.offset, lb.offset);
+      });
+
+      List<Segment> outputs = new ArrayList<Segment>();
+      Map<String, Location> moved = new HashMap<String, Location>();
+      Segment output = null;
+      for (Map.Entry<String, Location> entry : live) {
+        Location from = entry.getValue();
+        if (output == null || output.writePosition + from.recordLength > segmentCapacity) {
+          if (outputs.size() == inputs.size()) {
+            throw new IOException("Merge produced more segments than it consumed");
+          }
+          int id = inputs.get(outputs.size()).id;
+          output = createSegment(id, mergePath(segmentPath(id)));
+          outputs.add(output);
+        }
+        byte[] record = new byte[from.recordLength];
+        ByteBuffer source = from.segment.buffer.duplicate();
+        source.position(from.offset);
+        source.get(record);
+        ByteBuffer target = output.buffer.duplicate();
+        target.position(output.writePosition);
+        target.put(record);
+        moved.put(entry.getKey(), new Location(output, output.writePosition,
+            from.recordLength, from.payloadLength, from.personID, from.timestamp));
+        output.writePosition += from.recordLength;
+      }
+      for (Segment segment : outputs) {
+        segment.buffer.force();
+        writeHintFile(segment, mergePath(hintPath(segment.id)));
+      }
+      // Tombstones are dropped, so the highest uniqueId handed out must be
+      // remembered elsewhere for it never to be handed out again
+      writeSequenceFile();
+      writeManifest(inputs, outputs);
+
+      lock.writeLock().lock();
+      try {
+        completeInterruptedMerge();
+        for (Segment segment : inputs) {
+          segments.remove(segment.id);
+        }
+        for (Segment segment : outputs) {
+          segments.put(segment.id, segment);
+        }
+        for (Map.Entry<String, Location> entry : live) {
+          Location current = keydir.get(entry.getKey());
+          Location copy = moved.get(entry.getKey());
+          if (current == entry.getValue()) {
+            keydir.put(entry.getKey(), copy);
+          } else {
+            // Corrected while we were copying
+            copy.segment.deadBytes += copy.recordLength;
+          }
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+      for (Segment segment : inputs) {
+        segment.channel.close();
+      }
+    }
+  }
+
+  private Path mergePath(Path path) {
+    return path.resolveSibling(path.getFileName() + MERGE_SUFFIX);
+  }
+
+  private void writeSequenceFile() throws IOException {
+    long sequence = generator.getLastSequence();
+    Path temporary = directory.resolve(SEQUENCE_NAME + MERGE_SUFFIX);
+    Files.write(temporary, Long.toString(sequence).getBytes(StandardCharsets.UTF_8));
+    Files.move(temporary, directory.resolve(SEQUENCE_NAME),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void writeManifest(List<Segment> inputs, List<Segment> outputs) throws IOException {
+    Path temporary = directory.resolve(MANIFEST_NAME + MERGE_SUFFIX);
+    List<String> lines = new ArrayList<String>();
+    for (Segment segment : inputs) {
+      lines.add("input " + segment.id);
+    }
+    for (Segment segment : outputs) {
+      lines.add("output " + segment.id);
+    }
+    Files.write(temporary, lines, StandardCharsets.UTF_8);
+    Files.move(temporary, directory.resolve(MANIFEST_NAME), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Finish the file swap of a merge whose manifest has been written; or, if
+   * there is no manifest, remove the files of a merge that never finished.
+   */
+  private void completeInterruptedMerge() throws IOException {
+    Path manifest = directory.resolve(MANIFEST_NAME);
+    if (Files.exists(manifest)) {
+      Set<Integer> outputIds = new HashSet<Integer>();
+      List<Integer> inputIds = new ArrayList<Integer>();
+      for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+        String[] parts = line.split(" ");
+        int id = Integer.parseInt(parts[1]);
+        if (parts[0].equals("output")) {
+          outputIds.add(id);
+        } else {
+          inputIds.add(id);
+        }
+      }
+      for (int id : outputIds) {
+        moveIfExists(mergePath(segmentPath(id)), segmentPath(id));
+        moveIfExists(mergePath(hintPath(id)), hintPath(id));
+      }
+      for (int id : inputIds) {
+        if (!outputIds.contains(id)) {
+          Files.deleteIfExists(segmentPath(id));
+          Files.deleteIfExists(hintPath(id));
+        }
+      }
+      Files.delete(manifest);
+    } else {
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + MERGE_SUFFIX)) {
+        for (Path path : stream) {
+          Files.delete(path);
+        }
+      }
+    }
+  }
+
+  private void moveIfExists(Path from, Path to) throws IOException {
+    if (Files.exists(from)) {
+      Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+
+  /** A segment file and its mapping */
+  private static class Segment {
+    final int id;
+    final FileChannel channel;
+    final MappedByteBuffer buffer;
+    int writePosition;
+    long deadBytes;
+
+    Segment(int id, FileChannel channel, MappedByteBuffer buffer) {
+      this.id = id;
+      this.channel = channel;
+      this.buffer = buffer;
+    }
+  }
+
+  /** Location of the latest record of a document, an entry in the keydir */
+  private static class Location {
+    final Segment segment;
+    final int offset;
+    final int recordLength;
+    final int payloadLength;
+    final String personID;
+    final long timestamp;
+
+    Location(Segment segment, int offset, int recordLength, int payloadLength,
+        String personID, long timestamp) {
+      this.segment = segment;
+      this.offset = offset;
+      this.recordLength = recordLength;
+      this.payloadLength = payloadLength;
+      this.personID = personID;
+      this.timestamp = timestamp;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package cs.saip.storage.lsm;
+
+import java.io.*;
+
+/**
+ * An entry of the LSM tree: a key and its value, or a tombstone that
+ * shadows the older values of the key until compaction drops them.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+final class Entry {
+
+  final Key key;
+  /** The value, null for a tombstone */
+  final byte[] value;
+
+  Entry(Key key, byte[] value) {
+    this.key = key;
+    this.value = value;
+  }
+
+  static Entry tombstone(Key key) {
+    return new Entry(key, null);
+  }
+
+  boolean isTombstone() {
+    return value == null;
+  }
+
+  void writeTo(DataOutput out) throws IOException {
+    key.writeTo(out);
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(value.length);
+      out.write(value);
+    }
+  }
+
+  static Entry readFrom(DataInput in) throws IOException {
+    Key key = Key.readFrom(in);
+    int length = in.readInt();
+    if (length < 0) { return tombstone(key); }
+    byte[] value = new byte[length];
+    in.readFully(value);
+    return new Entry(key, value);
+  }
+
+  /** The approximate number of bytes the entry takes */
+  int size() {
+    return key.size() + 4 + (value == null ? 0 : value.length);
+  }
+}
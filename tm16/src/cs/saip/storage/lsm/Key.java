@@ -0,0 +1,104 @@
+package cs.saip.storage.lsm;
+
+import java.io.*;
+
+/**
+ * The key of an entry in the LSM tree. The tree holds two kinds of entries:
+ * the documents, keyed by (patientId, timestamp, uniqueId) so the documents
+ * of a patient in a time interval are a single range of keys; and the id
+ * entries, keyed by uniqueId alone, that tell the patient and timestamp of
+ * a document so it can be found from its uniqueId.
+ * <p>
+ * Id entries sort before all document entries.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+final class Key implements Comparable<Key> {
+
+  static final byte ID = 0;
+  static final byte DOCUMENT = 1;
+
+  final byte kind;
+  final String personID;
+  final long timestamp;
+  final String uniqueId;
+
+  private Key(byte kind, String personID, long timestamp, String uniqueId) {
+    this.kind = kind;
+    this.personID = personID;
+    this.timestamp = timestamp;
+    this.uniqueId = uniqueId;
+  }
+
+  static Key document(String personID, long timestamp, String uniqueId) {
+    return new Key(DOCUMENT, personID, timestamp, uniqueId);
+  }
+
+  static Key id(String uniqueId) {
+    return new Key(ID, "", 0, uniqueId);
+  }
+
+  /**
+   * Return the smallest document key of the patient at the given time, so
+   * [first(p, t1), first(p, t2 + 1)) are the documents in [t1;t2].
+   */
+  static Key first(String personID, long timestamp) {
+    return new Key(DOCUMENT, personID, timestamp, "");
+  }
+
+  /**
+   * Return the string added to the bloom filter of a table for this key.
+   * Document keys add their patient, so a filter also tells if a table has
+   * any documents of a patient.
+   */
+  String bloomKey() {
+    return kind == ID ? "i" + uniqueId : "p" + personID;
+  }
+
+  void writeTo(DataOutput out) throws IOException {
+    out.writeByte(kind);
+    out.writeUTF(personID);
+    out.writeLong(timestamp);
+    out.writeUTF(uniqueId);
+  }
+
+  static Key readFrom(DataInput in) throws IOException {
+    byte kind = in.readByte();
+    String personID = in.readUTF();
+    long timestamp = in.readLong();
+    String uniqueId = in.readUTF();
+    return new Key(kind, personID, timestamp, uniqueId);
+  }
+
+  /** The approximate number of bytes the key takes */
+  int size() {
+    return 1 + 2 + personID.length() + 8 + 2 + uniqueId.length();
+  }
+
+  @Override
+  public int compareTo(Key other) {
+    int result = Byte.compare(kind, other.kind);
+    if (result != 0) { return result; }
+    result = personID.compareTo(other.personID);
+    if (result != 0) { return result; }
+    result = Long.compare(timestamp, other.timestamp);
+    if (result != 0) { return result; }
+    return uniqueId.compareTo(other.uniqueId);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof Key && compareTo((Key) o) == 0;
+  }
+
+  @Override
+  public int hashCode() {
+    return (31 * personID.hashCode() + Long.hashCode(timestamp)) * 31 + uniqueId.hashCode() + kind;
+  }
+
+  @Override
+  public String toString() {
+    return kind == ID ? "id " + uniqueId : personID + "@" + timestamp + "/" + uniqueId;
+  }
+}
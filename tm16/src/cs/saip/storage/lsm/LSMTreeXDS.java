@@ -0,0 +1,998 @@
+package cs.saip.storage.lsm;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.logging.*;
+import java.util.stream.Stream;
+
+import org.w3c.dom.Document;
+
+import cs.saip.domain.Utility;
+import cs.saip.storage.*;
+import cs.saip.storage.codec.*;
+import cs.saip.storage.wal.*;
+
+/**
+ * A file based implementation of the XDS tuned for sustained writes, built
+ * as a log-structured merge-tree (in the style of LevelDB).
+ * <p>
+ * A write is appended to a write-ahead log and put into the memtable, a
+ * sorted map in memory; nothing on disk is updated in place. The documents
+ * are keyed by (patientId, timestamp, uniqueId), so the documents of a
+ * patient in a time interval are one range of keys, and an id entry per
+ * document maps its uniqueId to that key. An UPDATE puts a new version of
+ * the document, a DELETE puts tombstones.
+ * <p>
+ * When the memtable is full it is frozen and flushed as an immutable sorted
+ * table file (an SSTable) with a sparse block index and a bloom filter, and
+ * the log files it covers are deleted. The tables are organized in levels:
+ * level 0 holds the flushed tables, which may overlap; in each deeper level
+ * the tables are disjoint, and the level may hold ten times the bytes of the
+ * one above. Leveled compaction merges a table, or all of level 0, into the
+ * overlapping tables of the next level, dropping old versions, and dropping
+ * tombstones once no deeper level can hold what they shadow. A manifest
+ * records the tables of each level and is replaced atomically.
+ * <p>
+ * A lookup checks the memtables, the level 0 tables newest first, and one
+ * table per deeper level, skipping the tables whose bloom filter rules the
+ * key out. The filters also hold the patients of each table, so an interval
+ * query skips the tables without documents of the patient. A page of an
+ * interval query merges the key range in descending order, starting just
+ * before the key of the last document of the previous page, so no page
+ * reads the documents of the pages before it.
+ * <p>
+ * Write amplification (bytes written to the log and the tables per byte
+ * written by clients) and read amplification (blocks read per lookup or
+ * query) are exposed as getters.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class LSMTreeXDS implements XDSBackend, Closeable {
+
+  /** Default size of the memtable before it is flushed */
+  public static final int DEFAULT_MEMTABLE_BYTES = 4 * 1024 * 1024;
+  /** Default maximal size of level 1; each deeper level may be ten times larger */
+  public static final long DEFAULT_LEVEL_BASE_BYTES = 10 * 1024 * 1024;
+
+  private static final String TABLE_PREFIX = "sst-";
+  private static final String TABLE_SUFFIX = ".sst";
+  private static final String MANIFEST_NAME = "MANIFEST";
+
+  private static final int NUMBER_OF_LEVELS = 7;
+  private static final int LEVEL_MULTIPLIER = 10;
+  // Number of level 0 tables that triggers their compaction into level 1
+  private static final int LEVEL_0_COMPACTION_TRIGGER = 4;
+
+  private static final int NUMBER_OF_STRIPES = 64;
+
+  private static final Logger logger = Logger.getLogger("TM16Logger");
+
+  private final Path directory;
+  private final int memtableBytes;
+  private final long levelBaseBytes;
+  private final DocumentCodec codec;
+
+  private WriteAheadLog log;
+  private ObservationIdGenerator generator;
+
+  // Writers share the lock while they log and put into the memtable; it is
+  // taken exclusively to switch memtables and install new tables. Readers
+  // share it while they read, so no table is closed under them.
+  private ReadWriteLock lock;
+  private ReentrantLock[] stripes;
+  private volatile ConcurrentSkipListMap<Key, Entry> memtable;
+  private AtomicLong memtableSize;
+  private volatile ConcurrentSkipListMap<Key, Entry> immutable;
+  private long immutableLsn;
+  // The tables of each level; level 0 newest first, deeper levels by key.
+  // The lists are replaced, never changed, so a reader can hold on to one.
+  private volatile List<List<SSTable>> levels;
+  private long flushedLsn;
+  private long nextTableNumber;
+  private Key[] compactionPointers;
+
+  // Flushes and compactions are done one at a time
+  private Object maintenance;
+  private ScheduledExecutorService compactor;
+
+  private LongAdder userBytes;
+  private LongAdder logBytes;
+  private LongAdder flushBytes;
+  private LongAdder compactionBytes;
+  private LongAdder readCount;
+  private LongAdder blockReads;
+  private LongAdder bloomFilterSkips;
+  private AtomicLong compactionCount;
+  private AtomicLong stallCount;
+
+  /**
+   * Open an LSM tree in the given directory with default sizes, group
+   * commit of the log, compact HL7 documents, and no background thread;
+   * flushes and compactions are then done by the writer that fills the
+   * memtable.
+   *
+   * @param directory
+   *          the directory of the log, the tables and the manifest, created
+   *          if missing
+   * @throws IOException
+   *           if recovery fails
+   */
+  public LSMTreeXDS(Path directory) throws IOException {
+    this(directory, DEFAULT_MEMTABLE_BYTES, DEFAULT_LEVEL_BASE_BYTES,
+        FsyncPolicy.GROUP_COMMIT, 5, new CompactXMLCodec(), false);
+  }
+
+  /**
+   * Open an LSM tree in the given directory, recovering the documents stored
+   * by earlier instances.
+   *
+   * @param directory
+   *          the directory of the log, the tables and the manifest, created
+   *          if missing
+   * @param memtableBytes
+   *          the size in bytes of the memtable before it is flushed; also the
+   *          target size of the tables written by compaction
+   * @param levelBaseBytes
+   *          the maximal size in bytes of level 1
+   * @param policy
+   *          the fsync policy of the write-ahead log
+   * @param flushIntervalMillis
+   *          the interval between batched fsyncs of the log
+   * @param codec
+   *          the codec of the documents; it must decode the documents already
+   *          in the directory
+   * @param background
+   *          true to flush and compact in a background thread, false to do
+   *          it in the writer that fills the memtable
+   * @throws IOException
+   *           if recovery fails
+   */
+  public LSMTreeXDS(Path directory, int memtableBytes, long levelBaseBytes, FsyncPolicy policy,
+      long flushIntervalMillis, DocumentCodec codec, boolean background) throws IOException {
+    this.directory = directory;
+    this.memtableBytes = memtableBytes;
+    this.levelBaseBytes = levelBaseBytes;
+    this.codec = codec;
+    generator = new ObservationIdGenerator();
+    lock = new ReentrantReadWriteLock();
+    stripes = new ReentrantLock[NUMBER_OF_STRIPES];
+    for (int i = 0; i < NUMBER_OF_STRIPES; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+    memtable = new ConcurrentSkipListMap<Key, Entry>();
+    memtableSize = new AtomicLong();
+    compactionPointers = new Key[NUMBER_OF_LEVELS];
+    maintenance = new Object();
+    userBytes = new LongAdder();
+    logBytes = new LongAdder();
+    flushBytes = new LongAdder();
+    compactionBytes = new LongAdder();
+    readCount = new LongAdder();
+    blockReads = new LongAdder();
+    bloomFilterSkips = new LongAdder();
+    compactionCount = new AtomicLong();
+    stallCount = new AtomicLong();
+
+    Files.createDirectories(directory);
+    readManifest();
+    log = new WriteAheadLog(directory.resolve("wal"), policy, flushIntervalMillis);
+    log.replay(flushedLsn, (lsn, record) -> {
+      for (Entry entry : decodeRecord(record)) {
+        put(entry);
+        if (ObservationId.isObservationId(entry.key.uniqueId)) {
+          generator.advancePast(ObservationId.parse(entry.key.uniqueId));
+        }
+      }
+    });
+
+    if (background) {
+      compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "xds-lsm-compactor");
+        t.setDaemon(true);
+        return t;
+      });
+      compactor.execute(this::flushAndCompactInBackground);
+    }
+  }
+
+  @Override
+  public String provideAndRegisterDocument(MetaData metaData, Document observationAsHL7) {
+    byte[] payload = codec.encode(observationAsHL7);
+    String uniqueId = generator.next(metaData.getTimestamp()).toString();
+    write(entriesOf(uniqueId, metaData, payload));
+    return uniqueId;
+  }
+
+  @Override
+  public List<String> provideAndRegisterDocuments(List<DocumentSubmission> submissions) {
+    List<String> uniqueIds = new ArrayList<String>(submissions.size());
+    List<Entry> batch = new ArrayList<Entry>(2 * submissions.size());
+    for (DocumentSubmission submission : submissions) {
+      String uniqueId = generator.next(submission.getMetaData().getTimestamp()).toString();
+      uniqueIds.add(uniqueId);
+      batch.addAll(entriesOf(uniqueId, submission.getMetaData(),
+          codec.encode(submission.getObservationAsHL7())));
+    }
+    // One log record for the whole batch
+    write(batch);
+    return uniqueIds;
+  }
+
+  @Override
+  public List<Document> retriveDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+    List<Document> thelist = new ArrayList<Document>();
+    // Decode outside the lock
+    for (byte[] payload : payloadsOf(personID, start, end)) {
+      thelist.add(codec.decode(payload));
+    }
+    return thelist;
+  }
+
+  @Override
+  public Stream<Document> streamDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+    // Each payload is decoded as the stream is consumed
+    return payloadsOf(personID, start, end).stream().map(codec::decode);
+  }
+
+  @Override
+  public DocumentPage retriveDocumentPage(String personID, LocalDateTime startTime,
+      LocalDateTime endTime, int limit, String continuationToken) {
+    long start = Utility.convertLocalDateTimeToUnixEpoch(startTime);
+    long end = Utility.convertLocalDateTimeToUnixEpoch(endTime);
+    if (start > end) { return new DocumentPage(new ArrayList<Document>(), null); }
+    Key from = Key.first(personID, start);
+    Key to = Key.first(personID, end + 1);
+    if (continuationToken != null) {
+      // Continue just before the last document of the previous page
+      Key last = Key.document(personID, DocumentPage.timestampOf(continuationToken),
+          DocumentPage.uniqueIdOf(continuationToken));
+      if (last.compareTo(to) < 0) {
+        to = last;
+      }
+    }
+
+    List<byte[]> payloads = new ArrayList<byte[]>();
+    String next = null;
+    readCount.increment();
+    lock.readLock().lock();
+    try {
+      if (from.compareTo(to) < 0) {
+        // The key range newest first, merged from the memtables and tables
+        Iterator<Entry> merged = new MergingIterator(sourcesOf(from, to, true), true);
+        Key lastOnPage = null;
+        while (merged.hasNext()) {
+          Entry entry = merged.next();
+          if (entry.isTombstone()) { continue; }
+          if (payloads.size() == limit) {
+            next = DocumentPage.keysetToken(lastOnPage.timestamp, lastOnPage.uniqueId);
+            break;
+          }
+          payloads.add(entry.value);
+          lastOnPage = entry.key;
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    List<Document> page = new ArrayList<Document>(payloads.size());
+    for (byte[] payload : payloads) {
+      page.add(codec.decode(payload));
+    }
+    return new DocumentPage(page, next);
+  }
+
+  private List<byte[]> payloadsOf(String personID, LocalDateTime startTime, LocalDateTime endTime) {
+    long start = Utility.convertLocalDateTimeToUnixEpoch(startTime);
+    long end = Utility.convertLocalDateTimeToUnixEpoch(endTime);
+    List<byte[]> payloads = new ArrayList<byte[]>();
+    if (start > end) { return payloads; }
+    Key from = Key.first(personID, start);
+    Key to = Key.first(personID, end + 1);
+    readCount.increment();
+    lock.readLock().lock();
+    try {
+      Iterator<Entry> merged = new MergingIterator(sourcesOf(from, to, false));
+      while (merged.hasNext()) {
+        Entry entry = merged.next();
+        if (!entry.isTombstone()) {
+          payloads.add(entry.value);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return payloads;
+  }
+
+  /**
+   * Return iterators of the document entries in [from;to) of the memtables
+   * and of the tables that may hold documents of the patient, newest first;
+   * holds the read lock.
+   */
+  private List<Iterator<Entry>> sourcesOf(Key from, Key to, boolean descending) {
+    List<Iterator<Entry>> newestFirst = new ArrayList<Iterator<Entry>>();
+    newestFirst.add(rangeOf(memtable, from, to, descending));
+    if (immutable != null) {
+      newestFirst.add(rangeOf(immutable, from, to, descending));
+    }
+    String bloomKey = from.bloomKey();
+    for (List<SSTable> level : levels) {
+      for (SSTable table : level) {
+        if (!table.overlaps(from, to)) { continue; }
+        if (table.mightContain(bloomKey)) {
+          // The tables of a deeper level are disjoint, so their order is
+          // irrelevant to the merge
+          newestFirst.add(descending ? table.scanDescending(from, to) : table.scan(from, to));
+        } else {
+          bloomFilterSkips.increment();
+        }
+      }
+    }
+    return newestFirst;
+  }
+
+  private static Iterator<Entry> rangeOf(ConcurrentSkipListMap<Key, Entry> table, Key from, Key to,
+      boolean descending) {
+    ConcurrentNavigableMap<Key, Entry> range = table.subMap(from, to);
+    return (descending ? range.descendingMap() : range).values().iterator();
+  }
+
+  @Override
+  public Document retriveDocument(String uniqueId) {
+    byte[] payload;
+    readCount.increment();
+    lock.readLock().lock();
+    try {
+      Key key = documentKeyOf(uniqueId);
+      if (key == null) { return null; }
+      Entry entry = get(key);
+      if (entry == null || entry.isTombstone()) { return null; }
+      payload = entry.value;
+    } finally {
+      lock.readLock().unlock();
+    }
+    return codec.decode(payload);
+  }
+
+  @Override
+  public boolean correctDocument(String uniqueId, Operation operation, Document doc) {
+    byte[] payload = operation == Operation.UPDATE ? codec.encode(doc) : null;
+    ReentrantLock stripe = stripes[(uniqueId.hashCode() & 0x7fffffff) % NUMBER_OF_STRIPES];
+    stripe.lock();
+    try {
+      Key key;
+      readCount.increment();
+      lock.readLock().lock();
+      try {
+        key = documentKeyOf(uniqueId);
+      } finally {
+        lock.readLock().unlock();
+      }
+      if (key == null) { return false; }
+      if (operation == Operation.UPDATE) {
+        write(Collections.singletonList(new Entry(key, payload)));
+      } else {
+        write(Arrays.asList(Entry.tombstone(Key.id(uniqueId)), Entry.tombstone(key)));
+      }
+      return true;
+    } finally {
+      stripe.unlock();
+    }
+  }
+
+  /**
+   * Flush the memtable to a table in level 0, so the log files can be
+   * deleted.
+   *
+   * @throws IOException
+   *           if the table could not be written
+   */
+  public void flush() throws IOException {
+    synchronized (maintenance) {
+      flushImmutable();
+      lock.writeLock().lock();
+      try {
+        if (!memtable.isEmpty()) {
+          freezeMemtable();
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+      flushImmutable();
+    }
+    compactWhenNeeded();
+  }
+
+  /**
+   * Compact the levels until each holds no more than its maximal size.
+   *
+   * @throws IOException
+   *           if a table could not be written
+   */
+  public void compact() throws IOException {
+    synchronized (maintenance) {
+      while (compactOnce()) {
+        // until no level is too large
+      }
+    }
+  }
+
+  /**
+   * Return the number of bytes written to the log and to the tables per
+   * byte of keys and documents written by clients. Compaction rewrites the
+   * data once per level it passes, so this grows with the number of levels.
+   *
+   * @return the write amplification; 0 if nothing has been written
+   */
+  public double getWriteAmplification() {
+    long user = userBytes.sum();
+    long written = logBytes.sum() + flushBytes.sum() + compactionBytes.sum();
+    return user == 0 ? 0.0 : (double) written / user;
+  }
+
+  /**
+   * Return the number of table blocks read per lookup or interval query.
+   * Bloom filters keep this low by skipping the tables that cannot hold the
+   * key or the patient; blocks read by compaction are not counted.
+   *
+   * @return the read amplification; 0 if nothing has been read
+   */
+  public double getReadAmplification() {
+    long reads = readCount.sum();
+    return reads == 0 ? 0.0 : (double) blockReads.sum() / reads;
+  }
+
+  /**
+   * Return the number of tables that a lookup or query did not read because
+   * their bloom filter ruled out the key or the patient.
+   *
+   * @return number of tables skipped
+   */
+  public long getBloomFilterSkipCount() {
+    return bloomFilterSkips.sum();
+  }
+
+  /**
+   * Return the number of compactions done, including tables moved to the
+   * next level without rewriting them.
+   *
+   * @return number of compactions
+   */
+  public long getCompactionCount() {
+    return compactionCount.get();
+  }
+
+  /**
+   * Return the number of times a writer waited for a flush because both
+   * memtables were full.
+   *
+   * @return number of write stalls
+   */
+  public long getStallCount() {
+    return stallCount.get();
+  }
+
+  /**
+   * Return the number of tables in a level.
+   *
+   * @param level
+   *          the level, 0 for the flushed tables
+   * @return number of tables
+   */
+  public int tableCount(int level) {
+    return levels.get(level).size();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder tables = new StringBuilder();
+    for (List<SSTable> level : levels) {
+      tables.append(tables.length() == 0 ? "" : "/").append(level.size());
+    }
+    return String.format("LSMTreeXDS (tables %s, write amplification %.2f, read amplification %.2f, "
+        + "%d bloom filter skips, %d compactions, %d stalls)", tables, getWriteAmplification(),
+        getReadAmplification(), getBloomFilterSkipCount(), getCompactionCount(), getStallCount());
+  }
+
+  /**
+   * Stop the background thread, force the log to disk and release the table
+   * files. The memtable is not flushed; it is recovered from the log.
+   */
+  @Override
+  public void close() throws IOException {
+    if (compactor != null) {
+      compactor.shutdownNow();
+    }
+    synchronized (maintenance) {
+      lock.writeLock().lock();
+      try {
+        log.close();
+        for (List<SSTable> level : levels) {
+          for (SSTable table : level) {
+            table.close();
+          }
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  // === Writing
+
+  private List<Entry> entriesOf(String uniqueId, MetaData metaData, byte[] payload) {
+    Key key = Key.document(metaData.getPersonID(), metaData.getTimestamp(), uniqueId);
+    return Arrays.asList(new Entry(key, payload), new Entry(Key.id(uniqueId), locationOf(key)));
+  }
+
+  /** Log a batch of entries as one record and put them into the memtable */
+  private void write(List<Entry> batch) {
+    byte[] record = encodeRecord(batch);
+    awaitRoomInMemtable();
+    lock.readLock().lock();
+    try {
+      log.append(record);
+      for (Entry entry : batch) {
+        put(entry);
+        userBytes.add(entry.size());
+      }
+      logBytes.add(record.length);
+    } catch (IOException e) {
+      throw new XDSException("Failed to log documents: " + e.getMessage());
+    } finally {
+      lock.readLock().unlock();
+    }
+    if (memtableSize.get() >= memtableBytes) {
+      freezeFullMemtable();
+    }
+  }
+
+  private void put(Entry entry) {
+    Entry previous = memtable.put(entry.key, entry);
+    memtableSize.addAndGet(entry.size() - (previous == null ? 0 : previous.size()));
+  }
+
+  /** Wait while the memtable is full and the frozen one is not flushed yet */
+  private void awaitRoomInMemtable() {
+    if (memtableSize.get() < memtableBytes || immutable == null) { return; }
+    stallCount.incrementAndGet();
+    synchronized (memtableSize) {
+      while (memtableSize.get() >= memtableBytes && immutable != null) {
+        try {
+          memtableSize.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new XDSException("Interrupted while waiting for a flush");
+        }
+      }
+    }
+  }
+
+  private void freezeFullMemtable() {
+    boolean frozen = false;
+    lock.writeLock().lock();
+    try {
+      if (memtableSize.get() >= memtableBytes && immutable == null) {
+        freezeMemtable();
+        frozen = true;
+      }
+    } catch (IOException e) {
+      throw new XDSException("Failed to rotate log: " + e.getMessage());
+    } finally {
+      lock.writeLock().unlock();
+    }
+    if (!frozen) { return; }
+    if (compactor != null) {
+      compactor.execute(this::flushAndCompactInBackground);
+    } else {
+      try {
+        synchronized (maintenance) {
+          flushImmutable();
+          while (compactOnce()) {
+            // until no level is too large
+          }
+        }
+      } catch (IOException e) {
+        throw new XDSException("Failed to flush memtable: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Make the memtable immutable and start a new one, the write lock must be
+   * held. As writers hold the read lock from logging till their entries are
+   * in the memtable, the frozen memtable covers the log up to the rotation.
+   */
+  private void freezeMemtable() throws IOException {
+    immutableLsn = log.rotate();
+    immutable = memtable;
+    memtable = new ConcurrentSkipListMap<Key, Entry>();
+    memtableSize.set(0);
+  }
+
+  private void flushAndCompactInBackground() {
+    try {
+      synchronized (maintenance) {
+        flushImmutable();
+        while (compactOnce()) {
+          // until no level is too large
+        }
+      }
+    } catch (IOException e) {
+      // The log and the old tables still hold everything, try again later
+      logger.log(Level.WARNING, "LSMTreeXDS: flush or compaction failed, retrying", e);
+      compactor.schedule(this::flushAndCompactInBackground, 1, TimeUnit.SECONDS);
+    }
+  }
+
+  private void compactWhenNeeded() throws IOException {
+    if (compactor != null) {
+      compactor.execute(this::flushAndCompactInBackground);
+    } else {
+      compact();
+    }
+  }
+
+  // === Flushing and compaction, the maintenance monitor must be held
+
+  private void flushImmutable() throws IOException {
+    ConcurrentSkipListMap<Key, Entry> frozen = immutable;
+    if (frozen == null) { return; }
+    List<List<SSTable>> next = copyOfLevels();
+    if (!frozen.isEmpty()) {
+      SSTable.Writer writer = new SSTable.Writer(nextTableNumber, pathOf(nextTableNumber));
+      nextTableNumber++;
+      try {
+        for (Entry entry : frozen.values()) {
+          writer.add(entry);
+        }
+      } catch (IOException e) {
+        writer.abandon();
+        throw e;
+      }
+      SSTable table = writer.finish(blockReads);
+      flushBytes.add(table.sizeInBytes);
+      next.get(0).add(0, table);
+    }
+    writeManifest(next, immutableLsn);
+    lock.writeLock().lock();
+    try {
+      levels = next;
+      flushedLsn = immutableLsn;
+      immutable = null;
+    } finally {
+      lock.writeLock().unlock();
+    }
+    synchronized (memtableSize) {
+      memtableSize.notifyAll();
+    }
+    log.truncate(flushedLsn);
+  }
+
+  /** Compact the level most in need of it; return false if none is */
+  private boolean compactOnce() throws IOException {
+    List<List<SSTable>> current = levels;
+    int level = -1;
+    double worst = 1.0;
+    for (int l = 0; l < NUMBER_OF_LEVELS - 1; l++) {
+      double score = l == 0
+          ? (double) current.get(0).size() / LEVEL_0_COMPACTION_TRIGGER
+          : (double) bytesOf(current.get(l)) / maxBytesOf(l);
+      if (score >= worst) {
+        worst = score;
+        level = l;
+      }
+    }
+    if (level < 0) { return false; }
+
+    List<SSTable> inputs = new ArrayList<SSTable>();
+    if (level == 0) {
+      inputs.addAll(current.get(0));
+    } else {
+      inputs.add(nextToCompact(current.get(level), level));
+    }
+    Key smallest = inputs.get(0).smallest, largest = inputs.get(0).largest;
+    for (SSTable table : inputs) {
+      smallest = table.smallest.compareTo(smallest) < 0 ? table.smallest : smallest;
+      largest = table.largest.compareTo(largest) > 0 ? table.largest : largest;
+    }
+    List<SSTable> overlapping = new ArrayList<SSTable>();
+    for (SSTable table : current.get(level + 1)) {
+      if (table.largest.compareTo(smallest) >= 0 && table.smallest.compareTo(largest) <= 0) {
+        overlapping.add(table);
+      }
+    }
+    compactionPointers[level] = largest;
+
+    List<List<SSTable>> next = copyOfLevels();
+    next.get(level).removeAll(inputs);
+    next.get(level + 1).removeAll(overlapping);
+    if (level > 0 && overlapping.isEmpty()) {
+      // Nothing to merge with, the table moves down as it is
+      next.get(level + 1).addAll(inputs);
+      inputs.clear();
+    } else {
+      next.get(level + 1).addAll(merge(inputs, overlapping, isBottommost(current, level + 1)));
+    }
+    next.get(level + 1).sort((a, b) -> a.smallest.compareTo(b.smallest));
+
+    writeManifest(next, flushedLsn);
+    lock.writeLock().lock();
+    try {
+      levels = next;
+    } finally {
+      lock.writeLock().unlock();
+    }
+    compactionCount.incrementAndGet();
+    // No reader can see the old tables any more
+    for (SSTable table : inputs) {
+      delete(table);
+    }
+    for (SSTable table : overlapping) {
+      delete(table);
+    }
+    return true;
+  }
+
+  /** The first table after the key where the last compaction of the level ended */
+  private SSTable nextToCompact(List<SSTable> level, int number) {
+    Key pointer = compactionPointers[number];
+    for (SSTable table : level) {
+      if (pointer == null || table.smallest.compareTo(pointer) > 0) { return table; }
+    }
+    return level.get(0);
+  }
+
+  private List<SSTable> merge(List<SSTable> newestFirst, List<SSTable> older, boolean dropTombstones)
+      throws IOException {
+    List<Iterator<Entry>> sources = new ArrayList<Iterator<Entry>>();
+    for (SSTable table : newestFirst) {
+      sources.add(table.entries());
+    }
+    for (SSTable table : older) {
+      sources.add(table.entries());
+    }
+    Iterator<Entry> merged = new MergingIterator(sources);
+    List<SSTable> outputs = new ArrayList<SSTable>();
+    SSTable.Writer writer = null;
+    try {
+      while (merged.hasNext()) {
+        Entry entry = merged.next();
+        if (dropTombstones && entry.isTombstone()) { continue; }
+        if (writer == null) {
+          writer = new SSTable.Writer(nextTableNumber, pathOf(nextTableNumber));
+          nextTableNumber++;
+        }
+        writer.add(entry);
+        if (writer.size() >= memtableBytes) {
+          outputs.add(finish(writer));
+          writer = null;
+        }
+      }
+      if (writer != null) {
+        outputs.add(finish(writer));
+      }
+    } catch (IOException | RuntimeException e) {
+      if (writer != null) {
+        writer.abandon();
+      }
+      for (SSTable table : outputs) {
+        delete(table);
+      }
+      throw e;
+    }
+    return outputs;
+  }
+
+  private SSTable finish(SSTable.Writer writer) throws IOException {
+    SSTable table = writer.finish(blockReads);
+    compactionBytes.add(table.sizeInBytes);
+    return table;
+  }
+
+  /** True if no level below the given one holds any table */
+  private boolean isBottommost(List<List<SSTable>> current, int level) {
+    for (int l = level + 1; l < NUMBER_OF_LEVELS; l++) {
+      if (!current.get(l).isEmpty()) { return false; }
+    }
+    return true;
+  }
+
+  private long maxBytesOf(int level) {
+    long max = levelBaseBytes;
+    for (int l = 1; l < level; l++) {
+      max *= LEVEL_MULTIPLIER;
+    }
+    return max;
+  }
+
+  private static long bytesOf(List<SSTable> level) {
+    long bytes = 0;
+    for (SSTable table : level) {
+      bytes += table.sizeInBytes;
+    }
+    return bytes;
+  }
+
+  private List<List<SSTable>> copyOfLevels() {
+    List<List<SSTable>> copy = new ArrayList<List<SSTable>>(NUMBER_OF_LEVELS);
+    for (List<SSTable> level : levels) {
+      copy.add(new ArrayList<SSTable>(level));
+    }
+    return copy;
+  }
+
+  private void delete(SSTable table) throws IOException {
+    table.close();
+    Files.deleteIfExists(table.path);
+  }
+
+  // === Reading, the read lock must be held
+
+  /** Return the newest entry of the key, or null if there is none */
+  private Entry get(Key key) {
+    Entry entry = memtable.get(key);
+    if (entry != null) { return entry; }
+    ConcurrentSkipListMap<Key, Entry> frozen = immutable;
+    if (frozen != null && (entry = frozen.get(key)) != null) { return entry; }
+    for (SSTable table : levels.get(0)) {
+      if ((entry = getFrom(table, key)) != null) { return entry; }
+    }
+    for (int l = 1; l < NUMBER_OF_LEVELS; l++) {
+      SSTable table = tableOf(levels.get(l), key);
+      if (table != null && (entry = getFrom(table, key)) != null) { return entry; }
+    }
+    return null;
+  }
+
+  private Entry getFrom(SSTable table, Key key) {
+    if (key.compareTo(table.smallest) < 0 || key.compareTo(table.largest) > 0) { return null; }
+    if (!table.mightContain(key)) {
+      bloomFilterSkips.increment();
+      return null;
+    }
+    return table.get(key);
+  }
+
+  /** The table of a level of disjoint tables whose range holds the key, or null */
+  private static SSTable tableOf(List<SSTable> level, Key key) {
+    int low = 0, high = level.size() - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      SSTable table = level.get(middle);
+      if (table.largest.compareTo(key) < 0) {
+        low = middle + 1;
+      } else if (table.smallest.compareTo(key) > 0) {
+        high = middle - 1;
+      } else {
+        return table;
+      }
+    }
+    return null;
+  }
+
+  /** The key of the document with the given uniqueId, or null if it is not stored */
+  private Key documentKeyOf(String uniqueId) {
+    Entry entry = get(Key.id(uniqueId));
+    if (entry == null || entry.isTombstone()) { return null; }
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry.value));
+      return Key.document(in.readUTF(), in.readLong(), uniqueId);
+    } catch (IOException e) {
+      throw new XDSException("Corrupt id entry of " + uniqueId + ": " + e.getMessage());
+    }
+  }
+
+  private static byte[] locationOf(Key key) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeUTF(key.personID);
+      out.writeLong(key.timestamp);
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new XDSException("Failed to encode id entry: " + e.getMessage());
+    }
+  }
+
+  // === Log records
+
+  private static byte[] encodeRecord(List<Entry> batch) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(batch.size());
+      for (Entry entry : batch) {
+        entry.writeTo(out);
+      }
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new XDSException("Failed to encode log record: " + e.getMessage());
+    }
+  }
+
+  private static List<Entry> decodeRecord(byte[] record) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    int count = in.readInt();
+    List<Entry> batch = new ArrayList<Entry>(count);
+    for (int i = 0; i < count; i++) {
+      batch.add(Entry.readFrom(in));
+    }
+    return batch;
+  }
+
+  // === Manifest
+
+  /**
+   * Write the manifest of the given levels, the sequence and the lsn of the
+   * log up to which the tables hold all writes, to a temporary file that
+   * then replaces the manifest.
+   */
+  private void writeManifest(List<List<SSTable>> next, long lsn) throws IOException {
+    StringBuilder manifest = new StringBuilder();
+    manifest.append("sequence ").append(generator.getLastSequence()).append('\n');
+    manifest.append("lsn ").append(lsn).append('\n');
+    manifest.append("next ").append(nextTableNumber).append('\n');
+    for (int l = 0; l < NUMBER_OF_LEVELS; l++) {
+      for (SSTable table : next.get(l)) {
+        manifest.append("table ").append(l).append(' ').append(table.number).append('\n');
+      }
+    }
+    Path temporary = directory.resolve(MANIFEST_NAME + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(temporary.toFile())) {
+      out.write(manifest.toString().getBytes(StandardCharsets.UTF_8));
+      out.getFD().sync();
+    }
+    Files.move(temporary, directory.resolve(MANIFEST_NAME),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Open the tables listed in the manifest, and delete the table files it
+   * does not list, left by a flush or compaction that did not complete.
+   */
+  private void readManifest() throws IOException {
+    List<List<SSTable>> opened = new ArrayList<List<SSTable>>(NUMBER_OF_LEVELS);
+    for (int l = 0; l < NUMBER_OF_LEVELS; l++) {
+      opened.add(new ArrayList<SSTable>());
+    }
+    Set<Path> listed = new HashSet<Path>();
+    Path manifest = directory.resolve(MANIFEST_NAME);
+    if (Files.exists(manifest)) {
+      for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+        String[] fields = line.split(" ");
+        if (fields[0].equals("sequence")) {
+          generator.advancePast(Long.parseLong(fields[1]));
+        } else if (fields[0].equals("lsn")) {
+          flushedLsn = Long.parseLong(fields[1]);
+        } else if (fields[0].equals("next")) {
+          nextTableNumber = Long.parseLong(fields[1]);
+        } else if (fields[0].equals("table")) {
+          long number = Long.parseLong(fields[2]);
+          Path path = pathOf(number);
+          opened.get(Integer.parseInt(fields[1])).add(SSTable.open(number, path, blockReads));
+          listed.add(path);
+        }
+      }
+    }
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, TABLE_PREFIX + "*")) {
+      for (Path path : stream) {
+        if (!listed.contains(path)) {
+          Files.delete(path);
+        }
+      }
+    }
+    levels = opened;
+  }
+
+  private Path pathOf(long number) {
+    return directory.resolve(String.format(TABLE_PREFIX + "%08d" + TABLE_SUFFIX, number));
+  }
+}
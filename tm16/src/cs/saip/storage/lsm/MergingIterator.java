@@ -0,0 +1,78 @@
+package cs.saip.storage.lsm;
+
+import java.util.*;
+
+/**
+ * Merges iterators of entries in key order into one iterator in key order,
+ * ascending or descending. The sources are given newest first; when several
+ * sources hold the same key, only the entry of the newest is returned, so
+ * older versions and the entries shadowed by tombstones are skipped.
+ * Tombstones themselves are returned, it is up to the caller to drop them.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+final class MergingIterator implements Iterator<Entry> {
+
+  private final PriorityQueue<Head> heads;
+
+  MergingIterator(List<Iterator<Entry>> newestFirst) {
+    this(newestFirst, false);
+  }
+
+  /**
+   * Merge sources that are all in ascending, or all in descending, key order.
+   */
+  MergingIterator(List<Iterator<Entry>> newestFirst, boolean descending) {
+    Comparator<Head> byKey = (a, b) -> a.entry.key.compareTo(b.entry.key);
+    if (descending) {
+      byKey = byKey.reversed();
+    }
+    // The newest of the sources holding the same key comes first
+    heads = new PriorityQueue<Head>(Math.max(1, newestFirst.size()),
+        byKey.thenComparing((a, b) -> Integer.compare(a.age, b.age)));
+    for (int i = 0; i < newestFirst.size(); i++) {
+      Iterator<Entry> source = newestFirst.get(i);
+      if (source.hasNext()) {
+        heads.add(new Head(source.next(), i, source));
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    return !heads.isEmpty();
+  }
+
+  @Override
+  public Entry next() {
+    Head newest = heads.poll();
+    if (newest == null) { throw new NoSuchElementException(); }
+    // Skip the older versions of the key in the other sources
+    while (!heads.isEmpty() && heads.peek().entry.key.equals(newest.entry.key)) {
+      advance(heads.poll());
+    }
+    Entry entry = newest.entry;
+    advance(newest);
+    return entry;
+  }
+
+  private void advance(Head head) {
+    if (head.source.hasNext()) {
+      heads.add(new Head(head.source.next(), head.age, head.source));
+    }
+  }
+
+  /** The next entry of a source */
+  private static class Head {
+    final Entry entry;
+    final int age;
+    final Iterator<Entry> source;
+
+    Head(Entry entry, int age, Iterator<Entry> source) {
+      this.entry = entry;
+      this.age = age;
+      this.source = source;
+    }
+  }
+}
@@ -0,0 +1,438 @@
+package cs.saip.storage.lsm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import cs.saip.storage.BloomFilter;
+import cs.saip.storage.XDSException;
+
+/**
+ * An immutable file of entries sorted by key, a sorted string table.
+ * <p>
+ * The entries are written in blocks of about BLOCK_SIZE bytes. A sparse
+ * index holds the first key, the position and the checksum of each block,
+ * so a lookup reads a single block. A bloom filter of the keys, see
+ * Key.bloomKey, lets a lookup skip a table that surely does not hold the
+ * key, or any documents of the patient. The index and the filter are kept
+ * in memory while the table is open; the blocks are read from the file.
+ * <p>
+ * File layout: the blocks, the index, the bloom filter, and a footer with
+ * the positions of the index and the filter.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+final class SSTable implements Closeable {
+
+  static final int BLOCK_SIZE = 4096;
+
+  private static final int MAGIC = 0x4C534D54; // 'LSMT'
+  // index position, bloom filter position, entry count, magic
+  private static final int FOOTER_SIZE = 8 + 8 + 8 + 4;
+
+  final long number;
+  final Path path;
+  final Key smallest;
+  final Key largest;
+  final long entryCount;
+  final long sizeInBytes;
+
+  private final FileChannel channel;
+  private final Key[] firstKeys;
+  private final long[] positions;
+  private final int[] lengths;
+  private final int[] checksums;
+  private final BloomFilter bloom;
+  private final LongAdder blockReads;
+
+  private SSTable(long number, Path path, FileChannel channel, Key[] firstKeys, long[] positions,
+      int[] lengths, int[] checksums, Key largest, BloomFilter bloom, long entryCount,
+      LongAdder blockReads) throws IOException {
+    this.number = number;
+    this.path = path;
+    this.channel = channel;
+    this.firstKeys = firstKeys;
+    this.positions = positions;
+    this.lengths = lengths;
+    this.checksums = checksums;
+    this.smallest = firstKeys[0];
+    this.largest = largest;
+    this.bloom = bloom;
+    this.entryCount = entryCount;
+    this.sizeInBytes = channel.size();
+    this.blockReads = blockReads;
+  }
+
+  /**
+   * Open an existing table, reading its index and bloom filter.
+   *
+   * @param number
+   *          the number of the table
+   * @param path
+   *          the file of the table
+   * @param blockReads
+   *          counter incremented for each block read from the file
+   * @return the open table
+   * @throws IOException
+   *           if the table cannot be read
+   */
+  static SSTable open(long number, Path path, LongAdder blockReads) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      if (size < FOOTER_SIZE) { throw new IOException("Table " + path + " is truncated"); }
+      ByteBuffer footer = read(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+      long indexPosition = footer.getLong();
+      long bloomPosition = footer.getLong();
+      long entryCount = footer.getLong();
+      if (footer.getInt() != MAGIC) { throw new IOException("Table " + path + " has no footer"); }
+
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+          read(channel, indexPosition, (int) (bloomPosition - indexPosition)).array()));
+      int blocks = in.readInt();
+      Key[] firstKeys = new Key[blocks];
+      long[] positions = new long[blocks];
+      int[] lengths = new int[blocks];
+      int[] checksums = new int[blocks];
+      for (int i = 0; i < blocks; i++) {
+        firstKeys[i] = Key.readFrom(in);
+        positions[i] = in.readLong();
+        lengths[i] = in.readInt();
+        checksums[i] = in.readInt();
+      }
+      Key largest = Key.readFrom(in);
+      in = new DataInputStream(new ByteArrayInputStream(
+          read(channel, bloomPosition, (int) (size - FOOTER_SIZE - bloomPosition)).array()));
+      BloomFilter bloom = BloomFilter.readFrom(in);
+      return new SSTable(number, path, channel, firstKeys, positions, lengths, checksums,
+          largest, bloom, entryCount, blockReads);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Return true if the key is within the key range of the table and the
+   * bloom filter does not rule it out.
+   */
+  boolean mightContain(Key key) {
+    return key.compareTo(smallest) >= 0 && key.compareTo(largest) <= 0
+        && bloom.mightContain(key.bloomKey());
+  }
+
+  /**
+   * Return true if the bloom filter does not rule out the given bloom key;
+   * see Key.bloomKey.
+   */
+  boolean mightContain(String bloomKey) {
+    return bloom.mightContain(bloomKey);
+  }
+
+  /**
+   * Return true if some key of the table may be in [from;toExclusive).
+   */
+  boolean overlaps(Key from, Key toExclusive) {
+    return largest.compareTo(from) >= 0 && (toExclusive == null || smallest.compareTo(toExclusive) < 0);
+  }
+
+  /**
+   * Look up a key, reading the one block that may hold it.
+   *
+   * @param key
+   *          the key
+   * @return the entry of the key, which may be a tombstone, or null if the
+   *         table does not hold the key
+   */
+  Entry get(Key key) {
+    int block = blockOf(key);
+    if (block < 0) { return null; }
+    for (Entry entry : readBlock(block, true)) {
+      int compared = entry.key.compareTo(key);
+      if (compared == 0) { return entry; }
+      if (compared > 0) { break; }
+    }
+    return null;
+  }
+
+  /**
+   * Return the entries with keys in [from;toExclusive) in key order. The
+   * blocks are read as the iterator proceeds.
+   *
+   * @param from
+   *          the first key
+   * @param toExclusive
+   *          the key after the last, or null for all keys from the first
+   * @return iterator of the entries
+   */
+  Iterator<Entry> scan(Key from, Key toExclusive) {
+    return scan(from, toExclusive, true);
+  }
+
+  /**
+   * Return the entries with keys in [from;toExclusive) in descending key
+   * order. The blocks are read, last first, as the iterator proceeds.
+   *
+   * @param from
+   *          the first key
+   * @param toExclusive
+   *          the key after the last
+   * @return iterator of the entries, the last first
+   */
+  Iterator<Entry> scanDescending(Key from, Key toExclusive) {
+    return new Iterator<Entry>() {
+      // The last block that may hold a key before toExclusive
+      private int block = blockOf(toExclusive);
+      private ListIterator<Entry> inBlock = Collections.<Entry>emptyList().listIterator();
+      private Entry next = advance();
+
+      private Entry advance() {
+        while (true) {
+          while (inBlock.hasPrevious()) {
+            Entry entry = inBlock.previous();
+            if (entry.key.compareTo(from) < 0) { return null; }
+            if (entry.key.compareTo(toExclusive) < 0) { return entry; }
+          }
+          if (block < 0) { return null; }
+          List<Entry> entries = readBlock(block--, true);
+          inBlock = entries.listIterator(entries.size());
+        }
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public Entry next() {
+        if (next == null) { throw new NoSuchElementException(); }
+        Entry entry = next;
+        next = advance();
+        return entry;
+      }
+    };
+  }
+
+  /**
+   * Return all entries in key order, for compaction; the blocks read are not
+   * counted as block reads.
+   */
+  Iterator<Entry> entries() {
+    return scan(smallest, null, false);
+  }
+
+  private Iterator<Entry> scan(Key from, Key toExclusive, boolean counted) {
+    return new Iterator<Entry>() {
+      private int block = Math.max(0, blockOf(from));
+      private Iterator<Entry> inBlock = Collections.emptyIterator();
+      private Entry next = advance();
+
+      private Entry advance() {
+        while (true) {
+          while (inBlock.hasNext()) {
+            Entry entry = inBlock.next();
+            if (toExclusive != null && entry.key.compareTo(toExclusive) >= 0) { return null; }
+            if (entry.key.compareTo(from) >= 0) { return entry; }
+          }
+          if (block >= firstKeys.length
+              || (toExclusive != null && firstKeys[block].compareTo(toExclusive) >= 0)) {
+            return null;
+          }
+          inBlock = readBlock(block++, counted).iterator();
+        }
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public Entry next() {
+        if (next == null) { throw new NoSuchElementException(); }
+        Entry entry = next;
+        next = advance();
+        return entry;
+      }
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /** The index of the last block whose first key is not after the key, or -1 */
+  private int blockOf(Key key) {
+    int low = 0, high = firstKeys.length - 1, found = -1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (firstKeys[middle].compareTo(key) <= 0) {
+        found = middle;
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return found;
+  }
+
+  private List<Entry> readBlock(int block, boolean counted) {
+    if (counted) {
+      blockReads.increment();
+    }
+    try {
+      byte[] bytes = read(channel, positions[block], lengths[block]).array();
+      CRC32 crc = new CRC32();
+      crc.update(bytes);
+      if ((int) crc.getValue() != checksums[block]) {
+        throw new XDSException("Block " + block + " of table " + path + " is corrupt");
+      }
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      List<Entry> entries = new ArrayList<Entry>();
+      while (in.available() > 0) {
+        entries.add(Entry.readFrom(in));
+      }
+      return entries;
+    } catch (IOException e) {
+      throw new XDSException("Failed to read table " + path + ": " + e.getMessage());
+    }
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("Unexpected end of table at " + (position + buffer.position()));
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Writer of a new table. Entries must be added in key order; the table
+   * is written to a temporary file, forced to disk, and given its name by
+   * finish, so a table file is never seen half written.
+   */
+  static final class Writer {
+    private final long number;
+    private final Path path;
+    private final Path temporary;
+    private final FileOutputStream file;
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream block;
+    private final DataOutputStream blockOut;
+    private final Set<String> bloomKeys;
+    private final List<Key> firstKeys;
+    private final List<long[]> handles;
+    private Key firstInBlock;
+    private Key last;
+    private long position;
+    private long entryCount;
+
+    Writer(long number, Path path) throws IOException {
+      this.number = number;
+      this.path = path;
+      temporary = path.resolveSibling(path.getFileName() + ".tmp");
+      file = new FileOutputStream(temporary.toFile());
+      out = new DataOutputStream(new BufferedOutputStream(file));
+      block = new ByteArrayOutputStream(BLOCK_SIZE * 2);
+      blockOut = new DataOutputStream(block);
+      bloomKeys = new HashSet<String>();
+      firstKeys = new ArrayList<Key>();
+      handles = new ArrayList<long[]>();
+    }
+
+    void add(Entry entry) throws IOException {
+      if (last != null && entry.key.compareTo(last) <= 0) {
+        throw new IllegalStateException("Entries must be added in key order: " + entry.key + " after " + last);
+      }
+      if (firstInBlock == null) {
+        firstInBlock = entry.key;
+      }
+      entry.writeTo(blockOut);
+      bloomKeys.add(entry.key.bloomKey());
+      last = entry.key;
+      entryCount++;
+      if (block.size() >= BLOCK_SIZE) {
+        finishBlock();
+      }
+    }
+
+    /** The number of bytes written so far */
+    long size() {
+      return position + block.size();
+    }
+
+    boolean isEmpty() {
+      return entryCount == 0;
+    }
+
+    /**
+     * Write the index, the bloom filter and the footer, and open the table.
+     *
+     * @param blockReads
+     *          counter of block reads of the opened table
+     * @return the table
+     * @throws IOException
+     *           if the table cannot be written
+     */
+    SSTable finish(LongAdder blockReads) throws IOException {
+      if (entryCount == 0) { throw new IllegalStateException("A table must hold an entry"); }
+      finishBlock();
+      long indexPosition = position;
+      ByteArrayOutputStream tail = new ByteArrayOutputStream();
+      DataOutputStream tailOut = new DataOutputStream(tail);
+      tailOut.writeInt(firstKeys.size());
+      for (int i = 0; i < firstKeys.size(); i++) {
+        firstKeys.get(i).writeTo(tailOut);
+        tailOut.writeLong(handles.get(i)[0]);
+        tailOut.writeInt((int) handles.get(i)[1]);
+        tailOut.writeInt((int) handles.get(i)[2]);
+      }
+      last.writeTo(tailOut);
+      long bloomPosition = indexPosition + tail.size();
+      BloomFilter bloom = new BloomFilter(bloomKeys.size());
+      for (String bloomKey : bloomKeys) {
+        bloom.add(bloomKey);
+      }
+      bloom.writeTo(tailOut);
+      tailOut.writeLong(indexPosition);
+      tailOut.writeLong(bloomPosition);
+      tailOut.writeLong(entryCount);
+      tailOut.writeInt(MAGIC);
+      out.write(tail.toByteArray());
+      out.flush();
+      file.getFD().sync();
+      out.close();
+      Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+      return open(number, path, blockReads);
+    }
+
+    /** Remove the temporary file of a table that is not finished */
+    void abandon() throws IOException {
+      out.close();
+      Files.deleteIfExists(temporary);
+    }
+
+    private void finishBlock() throws IOException {
+      if (block.size() == 0) { return; }
+      byte[] bytes = block.toByteArray();
+      CRC32 crc = new CRC32();
+      crc.update(bytes);
+      firstKeys.add(firstInBlock);
+      handles.add(new long[] { position, bytes.length, (int) crc.getValue() });
+      out.write(bytes);
+      position += bytes.length;
+      block.reset();
+      firstInBlock = null;
+    }
+  }
+}
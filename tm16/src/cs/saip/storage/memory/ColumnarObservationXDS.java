@@ -0,0 +1,431 @@
+package cs.saip.storage.memory;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.stream.Stream;
+
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.domain.*;
+import cs.saip.storage.*;
+
+/**
+ * An in-memory implementation of the XDS that stores blood pressure
+ * observations column-wise in primitive arrays instead of as HL7 documents.
+ * <p>
+ * A stored observation costs a timestamp, the systolic and the diastolic
+ * value, and an ordinal into a table of interned patient ids, plus an entry
+ * in the time sorted row index of the patient; about 32 bytes, compared to
+ * kilobytes for a DOM tree. The HL7 document is only rebuilt as a DOM tree
+ * when a caller needs more than its attributes, and the scan method allows
+ * a patient's observations to be traversed without allocating any objects
+ * per row.
+ * <p>
+ * Columns are allocated in chunks so growing the store never copies the
+ * rows already stored. Reads share a read lock, writes take the write lock.
+ * <p>
+ * As the store only knows the blood pressure columns, documents that do not
+ * have a systolic and a diastolic observation are rejected. The patient and
+ * timestamp of a rebuilt document are taken from the metadata.
+ * <p>
+ * The uniqueIds are ObservationIds whose sequence number is the row, so a
+ * document is found without any index on uniqueId. The store is not
+ * persistent, so the row numbers of a node are not reused.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class ColumnarObservationXDS implements XDSBackend {
+
+  private static final String SYSTOLIC_CODE = "MSC88019";
+  private static final String DIASTOLIC_CODE = "MSC88020";
+
+  // The codes, names and units of the quantities of rebuilt documents
+  private static final TeleObservation BLOOD_PRESSURE_TEMPLATE = new TeleObservation("", 0.0, 0.0);
+
+  private static final int CHUNK_BITS = 16;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  // The columns, indexed by row number
+  private long[][] timestamps;
+  private double[][] systolic;
+  private double[][] diastolic;
+  private int[][] patientOrdinal;
+  private BitSet deleted;
+  private int rowCount;
+  private int liveCount;
+
+  // Interned patient ids and the time sorted rows of each patient
+  private Map<String, Integer> ordinalOfPatient;
+  private List<String> patientOfOrdinal;
+  private List<RowIndex> rowsOfPatient;
+
+  private ReadWriteLock lock;
+
+  // The node and shard of the uniqueIds
+  private final int node;
+  private final int shard;
+
+  /**
+   * Visitor for scanning observations without allocating objects per row.
+   */
+  public interface ObservationVisitor {
+    /**
+     * Visit a single observation.
+     *
+     * @param timestamp
+     *          the unix epoch timestamp of the observation
+     * @param systolic
+     *          the systolic blood pressure
+     * @param diastolic
+     *          the diastolic blood pressure
+     */
+    void visit(long timestamp, double systolic, double diastolic);
+  }
+
+  public ColumnarObservationXDS() {
+    this(new ObservationIdGenerator());
+  }
+
+  /**
+   * Construct an XDS whose uniqueIds are of the node and shard of a given
+   * generator; the sequence numbers are the rows, not generated.
+   *
+   * @param generator
+   *          the generator giving node and shard
+   */
+  public ColumnarObservationXDS(ObservationIdGenerator generator) {
+    node = generator.getNode();
+    shard = generator.getShard();
+    timestamps = new long[1][];
+    systolic = new double[1][];
+    diastolic = new double[1][];
+    patientOrdinal = new int[1][];
+    deleted = new BitSet();
+    rowCount = 0;
+    liveCount = 0;
+    ordinalOfPatient = new HashMap<String, Integer>();
+    patientOfOrdinal = new ArrayList<String>();
+    rowsOfPatient = new ArrayList<RowIndex>();
+    lock = new ReentrantReadWriteLock();
+  }
+
+  @Override
+  public String provideAndRegisterDocument(MetaData metaData, Document observationAsHL7) {
+    double sys = valueOfObservation(0, SYSTOLIC_CODE, observationAsHL7);
+    double dia = valueOfObservation(1, DIASTOLIC_CODE, observationAsHL7);
+
+    lock.writeLock().lock();
+    try {
+      return appendRow(metaData, sys, dia);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public List<String> provideAndRegisterDocuments(List<DocumentSubmission> submissions) {
+    // Extract all values first, so a malformed document rejects the batch
+    // before any row is appended
+    double[] sys = new double[submissions.size()];
+    double[] dia = new double[submissions.size()];
+    for (int i = 0; i < submissions.size(); i++) {
+      Document doc = submissions.get(i).getObservationAsHL7();
+      sys[i] = valueOfObservation(0, SYSTOLIC_CODE, doc);
+      dia[i] = valueOfObservation(1, DIASTOLIC_CODE, doc);
+    }
+
+    List<String> uniqueIds = new ArrayList<String>(submissions.size());
+    lock.writeLock().lock();
+    try {
+      // Likewise an id that cannot be made, e.g. of a timestamp out of range
+      for (int i = 0; i < submissions.size(); i++) {
+        uniqueIds.add(idOf(submissions.get(i).getMetaData(), rowCount + i));
+      }
+      for (int i = 0; i < submissions.size(); i++) {
+        appendRow(submissions.get(i).getMetaData(), sys[i], dia[i]);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return uniqueIds;
+  }
+
+  /** Append a row to the columns, the write lock must be held */
+  private String appendRow(MetaData metaData, double sys, double dia) {
+    int row = rowCount;
+    // Made before anything is changed, as it may be rejected
+    String uniqueId = idOf(metaData, row);
+    ensureCapacity(row);
+    int ordinal = internPatient(metaData.getPersonID());
+    int chunk = row >>> CHUNK_BITS, offset = row & CHUNK_MASK;
+    timestamps[chunk][offset] = metaData.getTimestamp();
+    systolic[chunk][offset] = sys;
+    diastolic[chunk][offset] = dia;
+    patientOrdinal[chunk][offset] = ordinal;
+    rowsOfPatient.get(ordinal).insert(row);
+    rowCount++;
+    liveCount++;
+    return uniqueId;
+  }
+
+  private String idOf(MetaData metaData, int row) {
+    return new ObservationId(metaData.getTimestamp(), node, shard, row).toString();
+  }
+
+  @Override
+  public List<Document> retriveDocumentSet(String personID, LocalDateTime startTime,
+      LocalDateTime endTime) {
+    long start = Utility.convertLocalDateTimeToUnixEpoch(startTime);
+    long end = Utility.convertLocalDateTimeToUnixEpoch(endTime);
+    List<Document> thelist = new ArrayList<Document>();
+    scan(personID, start, end,
+        (timestamp, sys, dia) -> thelist.add(buildDocument(personID, timestamp, sys, dia)));
+    return thelist;
+  }
+
+  @Override
+  public Stream<Document> streamDocumentSet(String personID, LocalDateTime startTime,
+      LocalDateTime endTime) {
+    long start = Utility.convertLocalDateTimeToUnixEpoch(startTime);
+    long end = Utility.convertLocalDateTimeToUnixEpoch(endTime);
+    // Copy the values, which is cheap; the documents are built as the
+    // stream is consumed
+    List<Row> rows = new ArrayList<Row>();
+    scan(personID, start, end, (timestamp, sys, dia) -> rows.add(new Row(timestamp, sys, dia)));
+    return rows.stream().map(r -> buildDocument(personID, r.timestamp, r.systolic, r.diastolic));
+  }
+
+  /** The values of a row, copied out of the columns */
+  private static class Row {
+    final long timestamp;
+    final double systolic, diastolic;
+
+    Row(long timestamp, double systolic, double diastolic) {
+      this.timestamp = timestamp;
+      this.systolic = systolic;
+      this.diastolic = diastolic;
+    }
+  }
+
+  @Override
+  public List<QuantityStatistics> computeStatistics(String personID, LocalDateTime startTime,
+      LocalDateTime endTime) {
+    long start = Utility.convertLocalDateTimeToUnixEpoch(startTime);
+    long end = Utility.convertLocalDateTimeToUnixEpoch(endTime);
+    // Straight from the columns, no document is built or parsed
+    ClinicalQuantity sysTemplate = BLOOD_PRESSURE_TEMPLATE.getSystolic();
+    ClinicalQuantity diaTemplate = BLOOD_PRESSURE_TEMPLATE.getDiastolic();
+    QuantityStatisticsCollector collector = new QuantityStatisticsCollector();
+    scan(personID, start, end, (timestamp, sys, dia) -> {
+      collector.add(sysTemplate.getCode(), sysTemplate.getDisplayName(), sysTemplate.getUnit(), sys);
+      collector.add(diaTemplate.getCode(), diaTemplate.getDisplayName(), diaTemplate.getUnit(), dia);
+    });
+    return collector.getResult();
+  }
+
+  /**
+   * Visit all observations of the given patient in the time interval
+   * [start;end], in time order. No objects are allocated per observation.
+   *
+   * @param personID
+   *          id of the person searched for
+   * @param start
+   *          begin of time interval as unix epoch timestamp
+   * @param end
+   *          end of time interval as unix epoch timestamp
+   * @param visitor
+   *          the visitor to call for each observation in the interval
+   */
+  public void scan(String personID, long start, long end, ObservationVisitor visitor) {
+    lock.readLock().lock();
+    try {
+      Integer ordinal = ordinalOfPatient.get(personID);
+      if (ordinal == null) { return; }
+      RowIndex index = rowsOfPatient.get(ordinal);
+      for (int i = index.firstAtOrAfter(start); i < index.size; i++) {
+        int row = index.rows[i];
+        int chunk = row >>> CHUNK_BITS, offset = row & CHUNK_MASK;
+        long timestamp = timestamps[chunk][offset];
+        if (timestamp > end) { break; }
+        visitor.visit(timestamp, systolic[chunk][offset], diastolic[chunk][offset]);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public Document retriveDocument(String uniqueId) {
+    String personID;
+    long timestamp;
+    double sys, dia;
+    lock.readLock().lock();
+    try {
+      int row = rowOf(uniqueId);
+      if (!isLive(row)) { return null; }
+      int chunk = row >>> CHUNK_BITS, offset = row & CHUNK_MASK;
+      personID = patientOfOrdinal.get(patientOrdinal[chunk][offset]);
+      timestamp = timestamps[chunk][offset];
+      sys = systolic[chunk][offset];
+      dia = diastolic[chunk][offset];
+    } finally {
+      lock.readLock().unlock();
+    }
+    return buildDocument(personID, timestamp, sys, dia);
+  }
+
+  @Override
+  public boolean correctDocument(String uniqueId, Operation operation, Document doc) {
+    double sys = 0.0, dia = 0.0;
+    if (operation == Operation.UPDATE) {
+      sys = valueOfObservation(0, SYSTOLIC_CODE, doc);
+      dia = valueOfObservation(1, DIASTOLIC_CODE, doc);
+    }
+    lock.writeLock().lock();
+    try {
+      int row = rowOf(uniqueId);
+      if (!isLive(row)) { return false; }
+      int chunk = row >>> CHUNK_BITS, offset = row & CHUNK_MASK;
+      if (operation == Operation.UPDATE) {
+        systolic[chunk][offset] = sys;
+        diastolic[chunk][offset] = dia;
+      } else if (operation == Operation.DELETE) {
+        deleted.set(row);
+        liveCount--;
+        rowsOfPatient.get(patientOrdinal[chunk][offset]).remove(row);
+      }
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Return the number of observations presently stored.
+   *
+   * @return number of observations
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return liveCount;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private boolean isLive(int row) {
+    return row >= 0 && row < rowCount && !deleted.get(row);
+  }
+
+  /** The row of a uniqueId, or -1 if it is not an id of a row; a lock must be held */
+  private int rowOf(String uniqueId) {
+    if (!ObservationId.isObservationId(uniqueId)) { return -1; }
+    ObservationId id = ObservationId.parse(uniqueId);
+    if (id.getNode() != node || id.getShard() != shard || id.getSequence() >= rowCount) { return -1; }
+    int row = (int) id.getSequence();
+    return timestampOf(row) == id.getTimestamp() ? row : -1;
+  }
+
+  private void ensureCapacity(int row) {
+    int chunk = row >>> CHUNK_BITS;
+    if (chunk == timestamps.length) {
+      int newLength = timestamps.length * 2;
+      timestamps = Arrays.copyOf(timestamps, newLength);
+      systolic = Arrays.copyOf(systolic, newLength);
+      diastolic = Arrays.copyOf(diastolic, newLength);
+      patientOrdinal = Arrays.copyOf(patientOrdinal, newLength);
+    }
+    if (timestamps[chunk] == null) {
+      timestamps[chunk] = new long[CHUNK_SIZE];
+      systolic[chunk] = new double[CHUNK_SIZE];
+      diastolic[chunk] = new double[CHUNK_SIZE];
+      patientOrdinal[chunk] = new int[CHUNK_SIZE];
+    }
+  }
+
+  private int internPatient(String personID) {
+    Integer ordinal = ordinalOfPatient.get(personID);
+    if (ordinal == null) {
+      ordinal = patientOfOrdinal.size();
+      ordinalOfPatient.put(personID, ordinal);
+      patientOfOrdinal.add(personID);
+      rowsOfPatient.add(new RowIndex());
+    }
+    return ordinal;
+  }
+
+  private long timestampOf(int row) {
+    return timestamps[row >>> CHUNK_BITS][row & CHUNK_MASK];
+  }
+
+  private double valueOfObservation(int index, String expectedCode, Document doc) {
+    String code = XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("code", index, "code", "observation", doc);
+    if (!expectedCode.equals(code)) {
+      throw new XDSException("Columnar XDS only stores blood pressure, observation "
+          + index + " has code " + code);
+    }
+    String value = XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("value", index, "value", "observation", doc);
+    return Double.parseDouble(value);
+  }
+
+  private Document buildDocument(String personID, long timestamp, double sys, double dia) {
+    TeleObservation to = new TeleObservation(personID, sys, dia);
+    to.setTime(Utility.convertUnixEpochToLocalDateTime(timestamp));
+    LazyHL7Builder builder = new LazyHL7Builder();
+    Director.construct(to, builder);
+    return builder.getResult();
+  }
+
+  /**
+   * The rows of a single patient sorted by timestamp, and by row number for
+   * equal timestamps. Observations mostly arrive in time order, so inserting
+   * is usually an append.
+   */
+  private class RowIndex {
+    int[] rows = new int[4];
+    int size = 0;
+
+    void insert(int row) {
+      if (size == rows.length) {
+        rows = Arrays.copyOf(rows, size * 2);
+      }
+      long timestamp = timestampOf(row);
+      int position = size;
+      while (position > 0 && timestampOf(rows[position - 1]) > timestamp) {
+        position--;
+      }
+      System.arraycopy(rows, position, rows, position + 1, size - position);
+      rows[position] = row;
+      size++;
+    }
+
+    void remove(int row) {
+      for (int i = firstAtOrAfter(timestampOf(row)); i < size; i++) {
+        if (rows[i] == row) {
+          System.arraycopy(rows, i + 1, rows, i, size - i - 1);
+          size--;
+          return;
+        }
+      }
+    }
+
+    /** Binary search for the first position whose timestamp is >= timestamp */
+    int firstAtOrAfter(long timestamp) {
+      int low = 0, high = size;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (timestampOf(rows[mid]) < timestamp) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+}
@@ -0,0 +1,342 @@
+package cs.saip.storage.memory;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.logging.*;
+
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.domain.QuantityStatistics;
+import cs.saip.storage.*;
+import cs.saip.storage.wal.*;
+
+/**
+ * The in-memory XDS made durable by a write-ahead log and periodic
+ * snapshots, so the 'memory' server survives a restart.
+ * <p>
+ * Every store and correction is appended to the write-ahead log before it is
+ * applied to the indexed in-memory XDS, and queries are answered from memory
+ * alone. The log uses group commit, so concurrent writers share the fsyncs.
+ * <p>
+ * A snapshot writes all documents to a binary file together with the lsn of
+ * the log up to which it is complete; the log files before it are then
+ * deleted. Snapshots are taken while writers proceed, so a snapshot may also
+ * contain some later changes; replaying the log after the lsn redoes each
+ * change in order, which brings every document to its final state anyway.
+ * Recovery therefore loads the latest snapshot and replays only the tail of
+ * the log.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class DurableMemoryXDS implements XDSBackend, Closeable {
+
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String SNAPSHOT_SUFFIX = ".bin";
+  private static final int SNAPSHOT_MAGIC = 0x54314458; // 'T1DX'
+
+  // Record types of the log
+  private static final byte PROVIDE = 1;
+  private static final byte UPDATE = 2;
+  private static final byte DELETE = 3;
+
+  private static final int NUMBER_OF_STRIPES = 64;
+
+  private static final Logger logger = Logger.getLogger("TM16Logger");
+
+  private final Path directory;
+  private IndexedMemoryXDS memory;
+  private WriteAheadLog log;
+
+  // Writers share the barrier, a snapshot takes it exclusively to find an
+  // lsn up to which all logged changes have been applied
+  private ReadWriteLock barrier;
+  // Corrections of the same document are logged and applied in the same order
+  private ReentrantLock[] stripes;
+  private Object snapshotMonitor;
+  private ScheduledExecutorService snapshotter;
+
+  /**
+   * Open a durable in-memory XDS in the given directory, recovering the
+   * documents stored by earlier instances.
+   *
+   * @param directory
+   *          the directory of the log and snapshot files
+   * @param policy
+   *          the fsync policy of the write-ahead log
+   * @param flushIntervalMillis
+   *          the interval between batched fsyncs
+   * @param snapshotIntervalSeconds
+   *          how often a snapshot is taken; 0 disables periodic snapshots
+   * @throws IOException
+   *           if recovery fails
+   */
+  public DurableMemoryXDS(Path directory, FsyncPolicy policy, long flushIntervalMillis,
+      int snapshotIntervalSeconds) throws IOException {
+    this.directory = directory;
+    memory = new IndexedMemoryXDS();
+    barrier = new ReentrantReadWriteLock();
+    stripes = new ReentrantLock[NUMBER_OF_STRIPES];
+    for (int i = 0; i < NUMBER_OF_STRIPES; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+    snapshotMonitor = new Object();
+
+    Files.createDirectories(directory);
+    long snapshotLsn = loadLatestSnapshot();
+    log = new WriteAheadLog(directory.resolve("wal"), policy, flushIntervalMillis);
+    log.replay(snapshotLsn, (lsn, record) -> redo(record));
+
+    if (snapshotIntervalSeconds > 0) {
+      snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "xds-snapshotter");
+        t.setDaemon(true);
+        return t;
+      });
+      snapshotter.scheduleWithFixedDelay(() -> {
+        try {
+          snapshot();
+        } catch (IOException e) {
+          // The log still holds everything, the next snapshot may succeed
+          logger.log(Level.WARNING, "DurableMemoryXDS: snapshot failed", e);
+        }
+      }, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  @Override
+  public String provideAndRegisterDocument(MetaData metaData, Document observationAsHL7) {
+    String uniqueId = memory.nextUniqueId(metaData.getTimestamp());
+    String hl7 = XMLUtility.convertXMLDocumentToCompactString(observationAsHL7);
+    barrier.readLock().lock();
+    try {
+      log.append(encode(PROVIDE, uniqueId, metaData, hl7));
+      memory.register(uniqueId, metaData, observationAsHL7);
+    } catch (IOException e) {
+      throw new XDSException("Failed to log document: " + e.getMessage());
+    } finally {
+      barrier.readLock().unlock();
+    }
+    return uniqueId;
+  }
+
+  @Override
+  public List<String> provideAndRegisterDocuments(List<DocumentSubmission> submissions) {
+    List<String> uniqueIds = new ArrayList<String>(submissions.size());
+    List<byte[]> records = new ArrayList<byte[]>(submissions.size());
+    barrier.readLock().lock();
+    try {
+      for (DocumentSubmission submission : submissions) {
+        String uniqueId = memory.nextUniqueId(submission.getMetaData().getTimestamp());
+        String hl7 = XMLUtility.convertXMLDocumentToCompactString(submission.getObservationAsHL7());
+        uniqueIds.add(uniqueId);
+        records.add(encode(PROVIDE, uniqueId, submission.getMetaData(), hl7));
+      }
+      // One log write, and with group commit one wait, for the whole batch
+      log.appendAll(records);
+      for (int i = 0; i < submissions.size(); i++) {
+        DocumentSubmission submission = submissions.get(i);
+        memory.register(uniqueIds.get(i), submission.getMetaData(), submission.getObservationAsHL7());
+      }
+    } catch (IOException e) {
+      throw new XDSException("Failed to log documents: " + e.getMessage());
+    } finally {
+      barrier.readLock().unlock();
+    }
+    return uniqueIds;
+  }
+
+  @Override
+  public List<Document> retriveDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+    return memory.retriveDocumentSet(personID, start, end);
+  }
+
+  @Override
+  public DocumentPage retriveDocumentPage(String personID, LocalDateTime start, LocalDateTime end,
+      int limit, String continuationToken) {
+    return memory.retriveDocumentPage(personID, start, end, limit, continuationToken);
+  }
+
+  @Override
+  public List<QuantityStatistics> computeStatistics(String personID, LocalDateTime start, LocalDateTime end) {
+    return memory.computeStatistics(personID, start, end);
+  }
+
+  @Override
+  public Document retriveDocument(String uniqueId) {
+    return memory.retriveDocument(uniqueId);
+  }
+
+  @Override
+  public boolean correctDocument(String uniqueId, Operation operation, Document doc) {
+    byte type = operation == Operation.UPDATE ? UPDATE : DELETE;
+    String hl7 = operation == Operation.UPDATE ? XMLUtility.convertXMLDocumentToCompactString(doc) : null;
+    ReentrantLock stripe = stripes[(uniqueId.hashCode() & 0x7fffffff) % NUMBER_OF_STRIPES];
+    barrier.readLock().lock();
+    stripe.lock();
+    try {
+      if (memory.retriveDocument(uniqueId) == null) { return false; }
+      log.append(encode(type, uniqueId, null, hl7));
+      return memory.correctDocument(uniqueId, operation, doc);
+    } catch (IOException e) {
+      throw new XDSException("Failed to log correction: " + e.getMessage());
+    } finally {
+      stripe.unlock();
+      barrier.readLock().unlock();
+    }
+  }
+
+  /**
+   * Write a snapshot of all documents, and delete the log files and the
+   * snapshot it makes obsolete.
+   *
+   * @throws IOException
+   *           if the snapshot could not be written
+   */
+  public void snapshot() throws IOException {
+    synchronized (snapshotMonitor) {
+      long lsn;
+      barrier.writeLock().lock();
+      try {
+        // All changes up to lsn are applied; later ones go to a new file
+        lsn = log.rotate();
+      } finally {
+        barrier.writeLock().unlock();
+      }
+      Path temporary = directory.resolve(SNAPSHOT_PREFIX + "tmp");
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeLong(lsn);
+        memory.forEach((uniqueId, metaData, doc) -> {
+          out.writeBoolean(true);
+          out.writeUTF(uniqueId);
+          out.writeUTF(metaData.getPersonID());
+          out.writeLong(metaData.getTimestamp());
+          writeBytes(out, XMLUtility.convertXMLDocumentToCompactString(doc));
+        });
+        out.writeBoolean(false);
+      }
+      try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+        channel.force(true);
+      }
+      Path snapshot = directory.resolve(String.format(SNAPSHOT_PREFIX + "%016d" + SNAPSHOT_SUFFIX, lsn));
+      Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+      for (Path old : snapshots()) {
+        if (!old.equals(snapshot)) {
+          Files.delete(old);
+        }
+      }
+      log.truncate(lsn);
+    }
+  }
+
+  /**
+   * Return the number of documents presently stored.
+   *
+   * @return number of documents
+   */
+  public int size() {
+    return memory.size();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (snapshotter != null) {
+      snapshotter.shutdownNow();
+    }
+    synchronized (snapshotMonitor) {
+      log.close();
+    }
+  }
+
+  // === Recovery
+
+  private long loadLatestSnapshot() throws IOException {
+    List<Path> all = snapshots();
+    if (all.isEmpty()) { return 0; }
+    Path latest = all.get(all.size() - 1);
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(latest)))) {
+      if (in.readInt() != SNAPSHOT_MAGIC) {
+        throw new IOException("Not a snapshot file: " + latest);
+      }
+      long lsn = in.readLong();
+      while (in.readBoolean()) {
+        String uniqueId = in.readUTF();
+        MetaData metaData = new MetaData();
+        metaData.setPersonID(in.readUTF());
+        metaData.setTimestamp(in.readLong());
+        memory.register(uniqueId, metaData, new LazyHL7Document(readBytes(in), true));
+      }
+      return lsn;
+    }
+  }
+
+  private List<Path> snapshots() throws IOException {
+    List<Path> all = new ArrayList<Path>();
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)) {
+      for (Path path : stream) {
+        all.add(path);
+      }
+    }
+    // The lsn is zero padded, so names sort in lsn order
+    Collections.sort(all);
+    return all;
+  }
+
+  private void redo(byte[] record) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    byte type = in.readByte();
+    String uniqueId = in.readUTF();
+    if (type == PROVIDE) {
+      MetaData metaData = new MetaData();
+      metaData.setPersonID(in.readUTF());
+      metaData.setTimestamp(in.readLong());
+      memory.register(uniqueId, metaData, new LazyHL7Document(readBytes(in), true));
+    } else if (type == UPDATE) {
+      memory.correctDocument(uniqueId, Operation.UPDATE, new LazyHL7Document(readBytes(in), true));
+    } else {
+      memory.correctDocument(uniqueId, Operation.DELETE, null);
+    }
+  }
+
+  // === Encoding of log records
+
+  private byte[] encode(byte type, String uniqueId, MetaData metaData, String hl7) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + (hl7 == null ? 0 : hl7.length()));
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(type);
+    out.writeUTF(uniqueId);
+    if (type == PROVIDE) {
+      out.writeUTF(metaData.getPersonID());
+      out.writeLong(metaData.getTimestamp());
+    }
+    if (hl7 != null) {
+      writeBytes(out, hl7);
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static void writeBytes(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readBytes(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,293 @@
+package cs.saip.storage.memory;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.w3c.dom.Document;
+
+import cs.saip.domain.*;
+import cs.saip.storage.*;
+
+/**
+ * An in-memory implementation of the XDS storage system that, contrary to the
+ * fake object, is indexed so it can hold the observations of many patients.
+ * <p>
+ * Documents are indexed twice: a hash index on the uniqueId which makes
+ * retrieval and correction O(1); and for each patient a sorted map keyed on
+ * the metadata timestamp which makes interval queries O(log n + k) and
+ * deletion O(log n), independent of the data stored for other patients.
+ * <p>
+ * The implementation is thread safe, as the server request handlers call it
+ * from many threads. Readers never lock: both indices are concurrent maps,
+ * and the entries in them are immutable, so a correction replaces an entry
+ * instead of changing it (copy-on-write). Writers lock the stripe of the
+ * patient partition they modify, so the two indices are changed consistently
+ * while writers for other patients proceed in parallel. Unique ids are
+ * ObservationIds from a lock free generator.
+ * <p>
+ * (Which of course is still not persistent!)
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class IndexedMemoryXDS implements XDSBackend {
+
+  private static final String LEGACY_UNIQUE_ID_PREFIX = "uid-";
+  private static final int NUMBER_OF_STRIPES = 64;
+
+  private ConcurrentMap<String, Entry> uniqueIdIndex;
+  private ConcurrentMap<String, ConcurrentNavigableMap<TimeKey, Entry>> patientIndex;
+  private ReentrantLock[] stripes;
+
+  private ObservationIdGenerator generator;
+
+  public IndexedMemoryXDS() {
+    this(new ObservationIdGenerator());
+  }
+
+  /**
+   * Construct an XDS that generates the uniqueIds of a given node and shard.
+   *
+   * @param generator
+   *          the generator of uniqueIds
+   */
+  public IndexedMemoryXDS(ObservationIdGenerator generator) {
+    uniqueIdIndex = new ConcurrentHashMap<String, Entry>();
+    patientIndex = new ConcurrentHashMap<String, ConcurrentNavigableMap<TimeKey, Entry>>();
+    stripes = new ReentrantLock[NUMBER_OF_STRIPES];
+    for (int i = 0; i < NUMBER_OF_STRIPES; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+    this.generator = generator;
+  }
+
+  @Override
+  public String provideAndRegisterDocument(MetaData metaData, Document observationAsHL7) {
+    String uniqueId = nextUniqueId(metaData.getTimestamp());
+    register(uniqueId, metaData, observationAsHL7);
+    return uniqueId;
+  }
+
+  /**
+   * Generate the next uniqueId, without storing anything.
+   *
+   * @param timestamp
+   *          the timestamp of the document
+   * @return a uniqueId that has not been handed out before
+   */
+  String nextUniqueId(long timestamp) {
+    return generator.next(timestamp).toString();
+  }
+
+  /**
+   * Store a document under a given uniqueId, replacing any document stored
+   * under it already. Used to restore documents whose uniqueId has been
+   * handed out before.
+   *
+   * @param uniqueId
+   *          the uniqueId of the document
+   * @param metaData
+   *          the meta data of the document
+   * @param observationAsHL7
+   *          the document
+   */
+  void register(String uniqueId, MetaData metaData, Document observationAsHL7) {
+    long sequence = sequenceOf(uniqueId);
+    if (ObservationId.isObservationId(uniqueId)) {
+      generator.advancePast(ObservationId.parse(uniqueId));
+    }
+    TimeKey key = new TimeKey(metaData.getTimestamp(), sequence);
+    Entry entry = new Entry(uniqueId, key, metaData, observationAsHL7);
+
+    String personID = metaData.getPersonID();
+    ReentrantLock lock = stripeOf(personID);
+    lock.lock();
+    try {
+      ConcurrentNavigableMap<TimeKey, Entry> timeIndex = patientIndex.get(personID);
+      if (timeIndex == null) {
+        timeIndex = new ConcurrentSkipListMap<TimeKey, Entry>();
+        patientIndex.put(personID, timeIndex);
+      }
+      timeIndex.put(key, entry);
+      uniqueIdIndex.put(uniqueId, entry);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Receiver of the stored documents, see forEach */
+  interface EntryVisitor {
+    void visit(String uniqueId, MetaData metaData, Document doc) throws IOException;
+  }
+
+  /**
+   * Visit all stored documents. Documents stored or corrected while visiting
+   * may or may not be visited.
+   *
+   * @param visitor
+   *          receives each document
+   * @throws IOException
+   *           if the visitor fails
+   */
+  void forEach(EntryVisitor visitor) throws IOException {
+    for (Entry entry : uniqueIdIndex.values()) {
+      visitor.visit(entry.uniqueId, entry.meta, entry.doc);
+    }
+  }
+
+  @Override
+  public List<Document> retriveDocumentSet(String personID, LocalDateTime startTime,
+      LocalDateTime endTime) {
+    List<Document> thelist = new ArrayList<Document>();
+    for (Entry entry : entriesInInterval(personID, startTime, endTime)) {
+      thelist.add(entry.doc);
+    }
+    return thelist;
+  }
+
+  @Override
+  public List<QuantityStatistics> computeStatistics(String personID, LocalDateTime startTime,
+      LocalDateTime endTime) {
+    // Scan the documents in place, no list of them is built
+    QuantityStatisticsCollector collector = new QuantityStatisticsCollector();
+    for (Entry entry : entriesInInterval(personID, startTime, endTime)) {
+      collector.add(entry.doc);
+    }
+    return collector.getResult();
+  }
+
+  private Collection<Entry> entriesInInterval(String personID, LocalDateTime startTime,
+      LocalDateTime endTime) {
+    ConcurrentNavigableMap<TimeKey, Entry> timeIndex = patientIndex.get(personID);
+    if (timeIndex == null) { return Collections.emptyList(); }
+
+    long start = Utility.convertLocalDateTimeToUnixEpoch(startTime);
+    long end = Utility.convertLocalDateTimeToUnixEpoch(endTime);
+    if (end < start) { return Collections.emptyList(); }
+
+    // Both ends of the interval are inclusive, whatever the sequence number
+    return timeIndex.subMap(TimeKey.first(start), true, TimeKey.last(end), true).values();
+  }
+
+  @Override
+  public DocumentPage retriveDocumentPage(String personID, LocalDateTime startTime,
+      LocalDateTime endTime, int limit, String continuationToken) {
+    List<Document> page = new ArrayList<Document>();
+    long start = Utility.convertLocalDateTimeToUnixEpoch(startTime);
+    long end = Utility.convertLocalDateTimeToUnixEpoch(endTime);
+    TimeKey before = TimeKey.last(end);
+    boolean inclusive = true;
+    if (continuationToken != null) {
+      // Continue just before the last document of the previous page
+      before = new TimeKey(DocumentPage.timestampOf(continuationToken),
+          sequenceOf(DocumentPage.uniqueIdOf(continuationToken)));
+      inclusive = false;
+      if (before.compareTo(TimeKey.last(end)) > 0) {
+        before = TimeKey.last(end);
+        inclusive = true;
+      }
+    }
+    ConcurrentNavigableMap<TimeKey, Entry> timeIndex = patientIndex.get(personID);
+    if (timeIndex == null || TimeKey.first(start).compareTo(before) > 0) {
+      return new DocumentPage(page, null);
+    }
+
+    NavigableMap<TimeKey, Entry> newestFirst =
+        timeIndex.subMap(TimeKey.first(start), true, before, inclusive).descendingMap();
+    Entry lastOnPage = null;
+    for (Entry entry : newestFirst.values()) {
+      if (page.size() == limit) {
+        return new DocumentPage(page, DocumentPage.keysetToken(lastOnPage.key.timestamp, lastOnPage.uniqueId));
+      }
+      page.add(entry.doc);
+      lastOnPage = entry;
+    }
+    return new DocumentPage(page, null);
+  }
+
+  @Override
+  public Document retriveDocument(String uniqueId) {
+    Entry entry = uniqueIdIndex.get(uniqueId);
+    return entry == null ? null : entry.doc;
+  }
+
+  @Override
+  public boolean correctDocument(String uniqueId, Operation operation, Document doc) {
+    Entry entry = uniqueIdIndex.get(uniqueId);
+    if (entry == null) { return false; }
+
+    String personID = entry.meta.getPersonID();
+    ReentrantLock lock = stripeOf(personID);
+    lock.lock();
+    try {
+      // Another writer may have corrected the entry before we got the lock
+      entry = uniqueIdIndex.get(uniqueId);
+      if (entry == null) { return false; }
+      ConcurrentNavigableMap<TimeKey, Entry> timeIndex = patientIndex.get(personID);
+
+      if (operation == Operation.UPDATE) {
+        Entry corrected = new Entry(uniqueId, entry.key, entry.meta, doc);
+        timeIndex.put(entry.key, corrected);
+        uniqueIdIndex.put(uniqueId, corrected);
+      } else if (operation == Operation.DELETE) {
+        uniqueIdIndex.remove(uniqueId);
+        timeIndex.remove(entry.key);
+        if (timeIndex.isEmpty()) {
+          patientIndex.remove(personID);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    return true;
+  }
+
+  /**
+   * Return the number of documents presently stored.
+   *
+   * @return number of documents
+   */
+  public int size() {
+    return uniqueIdIndex.size();
+  }
+
+  /**
+   * Return the tie breaker of the time index of a uniqueId: the low bits of
+   * an ObservationId, or the counter of the ids of earlier versions, which
+   * may still be restored by DurableMemoryXDS.
+   */
+  private static long sequenceOf(String uniqueId) {
+    if (ObservationId.isObservationId(uniqueId)) {
+      return ObservationId.parse(uniqueId).getLeastSignificantBits();
+    }
+    try {
+      return Long.parseLong(uniqueId.substring(LEGACY_UNIQUE_ID_PREFIX.length()));
+    } catch (RuntimeException e) {
+      throw new XDSException("Not a uniqueId of this XDS: " + uniqueId);
+    }
+  }
+
+  private ReentrantLock stripeOf(String personID) {
+    int hash = personID.hashCode();
+    hash ^= (hash >>> 16);
+    return stripes[hash & (NUMBER_OF_STRIPES - 1)];
+  }
+
+  /** A single stored document along with its index keys; immutable */
+  private static class Entry {
+    public final String uniqueId;
+    public final TimeKey key;
+    public final MetaData meta;
+    public final Document doc;
+
+    public Entry(String uniqueId, TimeKey key, MetaData meta, Document doc) {
+      this.uniqueId = uniqueId;
+      this.key = key;
+      this.meta = meta;
+      this.doc = doc;
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package cs.saip.storage.mongo;
+
+import java.util.*;
+
+import org.bson.types.ObjectId;
+import org.w3c.dom.Document;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.*;
+import com.mongodb.client.result.*;
+
+import static com.mongodb.client.model.Filters.*;
+
+import cs.saip.appserver.*;
+import cs.saip.storage.registry.DocumentRepository;
+
+/** A document repository, see RegistryXDS, that stores the
+ * documents as XML strings in a MongoDB collection, without
+ * any meta data; the registry does the indexing.
+ *
+ * Several documents are fetched in a single round trip.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University.
+ *
+ */
+public class MongoDocumentRepository implements DocumentRepository {
+
+  private static final String HL7_KEY = "hl7";
+
+  private final String repositoryId;
+  private MongoClient client;
+  private MongoCollection<org.bson.Document> collection;
+
+  /**
+   * Construct a repository that is based upon a MongoDB
+   * running on the given hostname and port
+   * @param repositoryId the id of the repository, which is
+   * also the name of its collection in the database 'xds'
+   * @param hostname the name of the node on which
+   * MongoDB is running
+   * @param port the port that MongoDB is listening on
+   */
+  public MongoDocumentRepository(String repositoryId, String hostname, int port) {
+    this.repositoryId = repositoryId;
+    client = new MongoClient(hostname, port);
+    collection = client.getDatabase("xds").getCollection(repositoryId);
+  }
+
+  @Override
+  public String getRepositoryId() {
+    return repositoryId;
+  }
+
+  @Override
+  public String store(Document document) {
+    org.bson.Document d = new org.bson.Document(HL7_KEY,
+        XMLUtility.convertXMLDocumentToCompactString(document));
+    collection.insertOne(d);
+    return d.get("_id").toString();
+  }
+
+  @Override
+  public Document fetch(String documentId) {
+    if (!ObjectId.isValid(documentId)) { return null; }
+    org.bson.Document d = collection.find(eq("_id", new ObjectId(documentId))).first();
+    return d == null ? null : new LazyHL7Document(d.getString(HL7_KEY), true);
+  }
+
+  @Override
+  public List<Document> fetchAll(List<String> documentIds) {
+    List<ObjectId> ids = new ArrayList<ObjectId>(documentIds.size());
+    for (String documentId : documentIds) {
+      if (ObjectId.isValid(documentId)) {
+        ids.add(new ObjectId(documentId));
+      }
+    }
+    // One round trip; the server returns the documents in any order
+    Map<String, Document> found = new HashMap<String, Document>();
+    for (org.bson.Document d : collection.find(in("_id", ids))) {
+      found.put(d.get("_id").toString(), new LazyHL7Document(d.getString(HL7_KEY), true));
+    }
+    List<Document> documents = new ArrayList<Document>(documentIds.size());
+    for (String documentId : documentIds) {
+      documents.add(found.get(documentId));
+    }
+    return documents;
+  }
+
+  @Override
+  public boolean replace(String documentId, Document document) {
+    if (!ObjectId.isValid(documentId)) { return false; }
+    UpdateResult result = collection.replaceOne(eq("_id", new ObjectId(documentId)),
+        new org.bson.Document(HL7_KEY, XMLUtility.convertXMLDocumentToCompactString(document)));
+    return result.getMatchedCount() == 1;
+  }
+
+  @Override
+  public boolean remove(String documentId) {
+    if (!ObjectId.isValid(documentId)) { return false; }
+    DeleteResult result = collection.deleteOne(eq("_id", new ObjectId(documentId)));
+    return result.getDeletedCount() == 1;
+  }
+}
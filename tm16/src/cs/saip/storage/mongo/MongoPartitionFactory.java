@@ -0,0 +1,58 @@
+package cs.saip.storage.mongo;
+
+import java.util.*;
+
+import com.mongodb.MongoClient;
+
+import cs.saip.storage.XDSBackend;
+import cs.saip.storage.partition.PartitionFactory;
+
+/** A partition factory that stores each time partition in its
+ * own collection of the database 'xds', as in 'tm16_d20160501',
+ * all through one shared client. Dropping a partition drops its
+ * collection, which is instant whatever the number of documents.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University.
+ *
+ */
+public class MongoPartitionFactory implements PartitionFactory {
+
+  private static final String COLLECTION_PREFIX = "tm16_";
+
+  private MongoClient client;
+  private StorageFormat format;
+
+  /**
+   * Construct a factory of partitions in a MongoDB
+   * running on the given hostname and port
+   * @param hostname the name of the node on which
+   * MongoDB is running
+   * @param port the port that MongoDB is listening on
+   * @param format the format in which documents are stored
+   */
+  public MongoPartitionFactory(String hostname, int port, StorageFormat format) {
+    client = new MongoClient(hostname, port);
+    this.format = format;
+  }
+
+  @Override
+  public XDSBackend create(String name) {
+    return new MongoXDSAdapter(client, COLLECTION_PREFIX + name, format);
+  }
+
+  @Override
+  public void drop(String name, XDSBackend partition) {
+    ((MongoXDSAdapter) partition).dropCollection();
+  }
+
+  @Override
+  public List<String> existing() {
+    List<String> names = new ArrayList<String>();
+    for (String collectionName : client.getDatabase("xds").listCollectionNames()) {
+      if (collectionName.startsWith(COLLECTION_PREFIX)) {
+        names.add(collectionName.substring(COLLECTION_PREFIX.length()));
+      }
+    }
+    return names;
+  }
+}
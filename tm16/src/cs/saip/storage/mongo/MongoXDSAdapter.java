@@ -1,32 +1,72 @@
 package cs.saip.storage.mongo;
 
-import java.time.Instant;
 import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import org.bson.BsonDocument;
+import org.bson.BsonType;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 import org.w3c.dom.Document;
 
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClient;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.client.*;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
 
 import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.*;
+import static com.mongodb.client.model.Sorts.*;
 import static com.mongodb.client.model.Updates.*;
 
-import cs.saip.appserver.XMLUtility;
+import cs.saip.appserver.*;
+import cs.saip.domain.QuantityStatistics;
+import cs.saip.domain.Utility;
 import cs.saip.storage.*;
+import cs.saip.storage.codec.*;
 
 /** An Adapter that implements the XDSBackend interface and translates
  * storage and query to the Mongo DB format.
  *
  * MongoDB is a NoSQL database system, please
  * consult http://http://www.mongodb.org/.
+ *
+ * The adapter ensures a compound index on (pid, timestamp) so
+ * the interval queries of the GP are answered by an index scan,
+ * and verifies the query plan at construction time; a plan that
+ * scans the whole collection is logged as a warning.
+ *
+ * Documents are stored as XML strings, as native BSON fields,
+ * or compressed by a codec, see StorageFormat. Unless another
+ * codec is given, compressed documents use the dictionary
+ * trained on the documents of the HL7Builder.
+ *
+ * The uniqueIds are ObservationIds generated by the app server,
+ * stored as string _ids; app servers sharing a collection must
+ * have distinct node numbers. Documents stored before have
+ * ObjectIds assigned by Mongo, which are still resolved.
  * 
  * @author Henrik Baerbak Christensen, Aarhus University.
  *
@@ -34,102 +74,535 @@ import cs.saip.storage.*;
 public class MongoXDSAdapter implements XDSBackend {
 
   private static final String HL7_KEY = "hl7";
+  private static final String COMPRESSED_HL7_KEY = "hl7z";
   private static final String TIMESTAMP_KEY = "timestamp";
   private static final String PID_KEY = "pid";
+
+  // Number of documents fetched per round trip when streaming
+  private static final int STREAM_BATCH_SIZE = 64;
+
+  private static final Logger logger = Logger.getLogger("TM16Logger");
+
   private MongoClient client;
   private MongoDatabase db;
   private MongoCollection<org.bson.Document> collection;
+  private StorageFormat format;
+  private DocumentCodec codec;
+  private ObservationIdGenerator generator;
 
   /**
    * Construct an XDS that is based upon a MongoDB
-   * running on the given hostname and port
+   * running on the given hostname and port, storing
+   * documents as XML strings
    * @param hostname the name of the node on which
    * MongoDB is running
    * @param port the port that MongoDB is listening on
    */
   public MongoXDSAdapter(String hostname, int port) {
-    client = new MongoClient(hostname, port);
-    // Get database 'xds' and its collection 'tm16'
+    this(hostname, port, StorageFormat.XML_STRING);
+  }
+
+  /**
+   * Construct an XDS that is based upon a MongoDB
+   * running on the given hostname and port
+   * @param hostname the name of the node on which
+   * MongoDB is running
+   * @param port the port that MongoDB is listening on
+   * @param format the format in which new and corrected
+   * documents are stored
+   */
+  public MongoXDSAdapter(String hostname, int port, StorageFormat format) {
+    // Use database 'xds' and its collection 'tm16'
+    this(new MongoClient(hostname, port), "tm16", format);
+  }
+
+  /**
+   * Construct an XDS that is based upon a collection
+   * in the database 'xds' of a MongoDB, through a client
+   * that may be shared with other adapters
+   * @param client the client connected to MongoDB
+   * @param collectionName the name of the collection
+   * @param format the format in which new and corrected
+   * documents are stored
+   */
+  public MongoXDSAdapter(MongoClient client, String collectionName, StorageFormat format) {
+    this(client, collectionName, format, new DictionaryDeflateCodec());
+  }
+
+  /**
+   * Construct an XDS that is based upon a collection
+   * in the database 'xds' of a MongoDB, storing documents
+   * in the COMPRESSED format with the given codec
+   * @param client the client connected to MongoDB
+   * @param collectionName the name of the collection
+   * @param format the format in which new and corrected
+   * documents are stored
+   * @param codec the codec of documents in the COMPRESSED
+   * format; it must decode those already in the collection
+   */
+  public MongoXDSAdapter(MongoClient client, String collectionName, StorageFormat format,
+      DocumentCodec codec) {
+    this.format = format;
+    this.codec = codec;
+    this.client = client;
+    generator = new ObservationIdGenerator();
     db = client.getDatabase("xds");
-    collection = db.getCollection("tm16");
+    collection = db.getCollection(collectionName);
+    // Creating an index that already exists is a no-op
+    collection.createIndex(Indexes.ascending(PID_KEY, TIMESTAMP_KEY));
+    verifyQueryPlan();
   }
 
   @Override
   public String provideAndRegisterDocument(MetaData metaData,
       Document observationAsHL7) {
+    org.bson.Document d = toBson(metaData, observationAsHL7);
+
+    collection.insertOne(d);
+    
+    return d.getString("_id");
+  }
+
+  @Override
+  public List<String> provideAndRegisterDocuments(List<DocumentSubmission> submissions) {
+    if (submissions.isEmpty()) { return new ArrayList<String>(); }
+    List<org.bson.Document> batch = new ArrayList<org.bson.Document>(submissions.size());
+    for (DocumentSubmission submission : submissions) {
+      batch.add(toBson(submission.getMetaData(), submission.getObservationAsHL7()));
+    }
+    List<String> ids = new ArrayList<String>(batch.size());
+    for (org.bson.Document d : batch) {
+      ids.add(d.getString("_id"));
+    }
+    // One round trip; unordered, so the server may apply the inserts in
+    // parallel and does not stop at the first failing one
+    try {
+      collection.insertMany(batch, new InsertManyOptions().ordered(false));
+    } catch (MongoBulkWriteException e) {
+      // Only a failed write concern; whether the documents last is not known
+      if (e.getWriteErrors().isEmpty()) { throw e; }
+      // The documents without a write error are stored
+      List<String> errors = new ArrayList<String>(Collections.nCopies(batch.size(), (String) null));
+      for (BulkWriteError error : e.getWriteErrors()) {
+        ids.set(error.getIndex(), null);
+        errors.set(error.getIndex(), error.getMessage());
+      }
+      throw new PartialBatchException(ids, errors);
+    }
+    return ids;
+  }
+
+  private org.bson.Document toBson(MetaData metaData, Document observationAsHL7) {
     org.bson.Document d = new org.bson.Document();
+    d.append("_id", generator.next(metaData.getTimestamp()).toString());
     d.append(PID_KEY, metaData.getPersonID());
     d.append(TIMESTAMP_KEY, metaData.getTimestamp());
-    d.append(HL7_KEY, XMLUtility.convertXMLDocumentToString(observationAsHL7));
+    if (format == StorageFormat.STRUCTURED) {
+      d.putAll(StructuredObservationMapper.toFields(observationAsHL7));
+    } else if (format == StorageFormat.COMPRESSED) {
+      d.append(COMPRESSED_HL7_KEY, new Binary(codec.encode(observationAsHL7)));
+    } else {
+      d.append(HL7_KEY, XMLUtility.convertXMLDocumentToString(observationAsHL7));
+    }
+    return d;
+  }
 
-    collection.insertOne(d);
-    
-    // Mongo assigns a unique id, we just return that
-    String id = d.get("_id").toString();
-    
-    return id;
+  /** Rebuild the HL7 document of a stored BSON document, in any format */
+  private Document toHL7(org.bson.Document bson) {
+    Binary compressed = bson.get(COMPRESSED_HL7_KEY, Binary.class);
+    if (compressed != null) {
+      return codec.decode(compressed.getData());
+    }
+    String hl7 = bson.getString(HL7_KEY);
+    if (hl7 == null) {
+      return StructuredObservationMapper.toHL7(bson);
+    }
+    return new LazyHL7Document(hl7, false);
+  }
+
+  /**
+   * Rewrite documents read in the XML string format into the structured
+   * format. A document corrected since it was read is left alone.
+   */
+  private void migrate(List<org.bson.Document> legacy, List<Document> hl7) {
+    if (format != StorageFormat.STRUCTURED || legacy.isEmpty()) { return; }
+    List<UpdateOneModel<org.bson.Document>> updates = new ArrayList<UpdateOneModel<org.bson.Document>>();
+    for (int i = 0; i < legacy.size(); i++) {
+      org.bson.Document bson = legacy.get(i);
+      updates.add(new UpdateOneModel<org.bson.Document>(
+          and(eq("_id", bson.get("_id")), eq(HL7_KEY, bson.getString(HL7_KEY))),
+          structuredUpdate(hl7.get(i))));
+    }
+    collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+  }
+
+  private Bson structuredUpdate(Document hl7) {
+    org.bson.Document fields = StructuredObservationMapper.toFields(hl7);
+    List<Bson> updates = new ArrayList<Bson>();
+    for (String key : fields.keySet()) {
+      updates.add(set(key, fields.get(key)));
+    }
+    updates.add(unset(HL7_KEY));
+    updates.add(unset(COMPRESSED_HL7_KEY));
+    return combine(updates);
+  }
+
+  private Bson documentUpdate(Document hl7) {
+    if (format == StorageFormat.STRUCTURED) {
+      return structuredUpdate(hl7);
+    }
+    // A document has one representation only, so the structured fields
+    // never disagree with the XML
+    Bson withoutStructuredFields = combine(unset(StructuredObservationMapper.PATIENT_KEY),
+        unset(StructuredObservationMapper.EFFECTIVE_TIME_KEY),
+        unset(StructuredObservationMapper.OBSERVATIONS_KEY));
+    if (format == StorageFormat.COMPRESSED) {
+      return combine(set(COMPRESSED_HL7_KEY, new Binary(codec.encode(hl7))), unset(HL7_KEY),
+          withoutStructuredFields);
+    }
+    return combine(set(HL7_KEY, XMLUtility.convertXMLDocumentToString(hl7)), unset(COMPRESSED_HL7_KEY),
+        withoutStructuredFields);
   }
 
   @Override
   public List<Document> retriveDocumentSet(String personID, LocalDateTime startTime,
       LocalDateTime endTime) {
-    Instant instant; Date d;
-    
-    // TODO: Duplicated code, same code is in the FakeObject implementation
-    ZoneId cet = ZoneId.of("Europe/Paris");
-    ZonedDateTime start2 = ZonedDateTime.of(startTime, cet);
-    instant = start2.toInstant();
-    d = Date.from(instant);
-    long start = d.getTime();
-    
-    ZonedDateTime end2 = ZonedDateTime.of(endTime, cet);
-    instant = end2.toInstant();
-    d = Date.from(instant);
-    long end = d.getTime();
-
     List<Document> returnList = new ArrayList<Document>();
+    List<org.bson.Document> legacy = new ArrayList<org.bson.Document>();
+    List<Document> legacyHL7 = new ArrayList<Document>();
     MongoCursor<org.bson.Document> cursor = 
         collection.
         // Find with given personID and in time interval
-        find(
-            and(
-                eq(PID_KEY, personID),
-                    and(
-                        gt(TIMESTAMP_KEY, start), 
-                        lte(TIMESTAMP_KEY, end)))
-            ).
+        find(intervalFilter(personID, startTime, endTime)).
+        sort(intervalSort()).
+        projection(intervalProjection()).
         iterator();
     try {
         while (cursor.hasNext()) {
           org.bson.Document bson = cursor.next();
-          String hl7 = bson.getString(HL7_KEY);
-          Document doc = XMLUtility.convertXMLStringToDocument(hl7);
+          Document doc = toHL7(bson);
           returnList.add(doc);
+          if (bson.containsKey(HL7_KEY)) {
+            legacy.add(bson);
+            legacyHL7.add(doc);
+          }
         }
     } finally {
         cursor.close();
     }
+    migrate(legacy, legacyHL7);
     return returnList;
   }
 
+  @Override
+  public Stream<Document> streamDocumentSet(String personID, LocalDateTime startTime,
+      LocalDateTime endTime) {
+    return stream(intervalFilter(personID, startTime, endTime), intervalSort());
+  }
+
+  @Override
+  public Stream<Document> streamDocumentSets(List<String> personIDs, LocalDateTime startTime,
+      LocalDateTime endTime) {
+    // One query for all the persons; sorted by the compound index, each
+    // person's documents come together and in time order
+    long start = Utility.convertLocalDateTimeToUnixEpoch(startTime);
+    long end = Utility.convertLocalDateTimeToUnixEpoch(endTime);
+    Bson filter = and(
+        in(PID_KEY, new LinkedHashSet<String>(personIDs)),
+        gt(TIMESTAMP_KEY, start), 
+        lte(TIMESTAMP_KEY, end));
+    return stream(filter, ascending(PID_KEY, TIMESTAMP_KEY));
+  }
+
+  /**
+   * Stream the meta data, the patient and the time, of all documents, e.g.
+   * to seed a BloomFilteredXDS. The query is covered by the index of
+   * interval queries, so no documents are read.
+   *
+   * @return the meta data of the documents, in patient and time order
+   */
+  public Stream<MetaData> streamMetaData() {
+    MongoCursor<org.bson.Document> cursor = 
+        collection.
+        find().
+        sort(ascending(PID_KEY, TIMESTAMP_KEY)).
+        projection(fields(include(PID_KEY, TIMESTAMP_KEY), excludeId())).
+        batchSize(STREAM_BATCH_SIZE * 16).
+        iterator();
+    Spliterator<org.bson.Document> spliterator = 
+        Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL);
+    return StreamSupport.stream(spliterator, false).
+        map(bson -> {
+          MetaData metaData = new MetaData();
+          metaData.setPersonID(bson.getString(PID_KEY));
+          metaData.setTimestamp(bson.getLong(TIMESTAMP_KEY));
+          return metaData;
+        }).
+        onClose(cursor::close);
+  }
+
+  /**
+   * Return the number of documents in the collection, e.g. to tell a
+   * BloomFilteredXDS whether documents were stored or deleted by others.
+   *
+   * @return number of documents
+   */
+  public long getDocumentCount() {
+    return collection.count();
+  }
+
+  private Stream<Document> stream(Bson filter, Bson sort) {
+    MongoCursor<org.bson.Document> cursor = 
+        collection.
+        find(filter).
+        sort(sort).
+        projection(intervalProjection()).
+        batchSize(STREAM_BATCH_SIZE).
+        iterator();
+    // The cursor fetches the next batch when the previous one is consumed,
+    // and each document is rebuilt only when it is reached
+    Spliterator<org.bson.Document> spliterator = 
+        Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL);
+    return StreamSupport.stream(spliterator, false).
+        map(bson -> {
+          Document doc = toHL7(bson);
+          if (bson.containsKey(HL7_KEY)) {
+            migrate(Collections.singletonList(bson), Collections.singletonList(doc));
+          }
+          return doc;
+        }).
+        onClose(cursor::close);
+  }
+
+  @Override
+  public DocumentPage retriveDocumentPage(String personID, LocalDateTime startTime,
+      LocalDateTime endTime, int limit, String continuationToken) {
+    Bson filter = intervalFilter(personID, startTime, endTime);
+    if (continuationToken != null) {
+      // Keyset: continue with the documents just older than the last one
+      // of the previous page, ties on timestamp broken by the id
+      long timestamp = DocumentPage.timestampOf(continuationToken);
+      Object id = bsonIdOf(DocumentPage.uniqueIdOf(continuationToken));
+      if (id == null) {
+        throw new XDSException("Invalid continuation token: " + continuationToken);
+      }
+      // Ids of a type only compare to ids of that type, and the string ids
+      // sort below the ObjectIds of older documents
+      Bson before = lt("_id", id);
+      if (id instanceof ObjectId) {
+        before = or(before, type("_id", BsonType.STRING));
+      }
+      filter = and(filter, 
+          or(lt(TIMESTAMP_KEY, timestamp), 
+              and(eq(TIMESTAMP_KEY, timestamp), before)));
+    }
+    List<Document> page = new ArrayList<Document>();
+    List<org.bson.Document> legacy = new ArrayList<org.bson.Document>();
+    List<Document> legacyHL7 = new ArrayList<Document>();
+    org.bson.Document lastOnPage = null;
+    boolean more = false;
+    // One extra document tells if there is a next page
+    MongoCursor<org.bson.Document> cursor = 
+        collection.
+        find(filter).
+        sort(descending(TIMESTAMP_KEY, "_id")).
+        projection(intervalProjection()).
+        limit(limit + 1).
+        iterator();
+    try {
+      while (cursor.hasNext()) {
+        org.bson.Document bson = cursor.next();
+        if (page.size() == limit) {
+          more = true;
+          break;
+        }
+        Document doc = toHL7(bson);
+        page.add(doc);
+        lastOnPage = bson;
+        if (bson.containsKey(HL7_KEY)) {
+          legacy.add(bson);
+          legacyHL7.add(doc);
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+    migrate(legacy, legacyHL7);
+    String next = more ? DocumentPage.keysetToken(lastOnPage.getLong(TIMESTAMP_KEY), 
+        lastOnPage.get("_id").toString()) : null;
+    return new DocumentPage(page, next);
+  }
+
+  /**
+   * Compute the statistics in the database. For the structured
+   * observations, an aggregation pipeline computes the count, min, max and
+   * mean of each code on the server, and each percentile is found by
+   * sorting the values of the code on the server and skipping to its rank,
+   * so only a few numbers are returned, however many the values are.
+   * <p>
+   * The documents stored as XML or compressed are opaque to MongoDB; if the
+   * interval holds any of them, they are decoded, and the values of the
+   * structured observations are streamed, to compute the statistics of all
+   * values in the client.
+   */
+  @Override
+  public List<QuantityStatistics> computeStatistics(String personID, LocalDateTime startTime,
+      LocalDateTime endTime) {
+    Bson interval = intervalFilter(personID, startTime, endTime);
+    Bson opaque = and(interval, or(exists(HL7_KEY), exists(COMPRESSED_HL7_KEY)));
+    Bson structured = and(interval, exists(HL7_KEY, false), exists(COMPRESSED_HL7_KEY, false));
+    if (collection.count(opaque, new CountOptions().limit(1)) > 0) {
+      return collectStatistics(opaque, structured);
+    }
+
+    String observation = "$" + StructuredObservationMapper.OBSERVATIONS_KEY;
+    String value = observation + "." + StructuredObservationMapper.VALUE_KEY;
+    List<Bson> pipeline = Arrays.asList(
+        Aggregates.match(structured),
+        Aggregates.project(include(StructuredObservationMapper.OBSERVATIONS_KEY)),
+        Aggregates.unwind(observation),
+        Aggregates.group(observation + "." + StructuredObservationMapper.CODE_KEY,
+            Accumulators.first("displayName", observation + "." + StructuredObservationMapper.DISPLAY_NAME_KEY),
+            Accumulators.first("unit", observation + "." + StructuredObservationMapper.UNIT_KEY),
+            Accumulators.sum("count", 1),
+            Accumulators.min("min", value),
+            Accumulators.max("max", value),
+            Accumulators.avg("mean", value)),
+        Aggregates.sort(ascending("_id")));
+
+    List<QuantityStatistics> result = new ArrayList<QuantityStatistics>();
+    for (org.bson.Document group : collection.aggregate(pipeline)) {
+      String code = group.getString("_id");
+      long count = ((Number) group.get("count")).longValue();
+      double[] percentiles = new double[QuantityStatistics.PERCENTILES.length];
+      long previousRank = 0;
+      for (int i = 0; i < percentiles.length; i++) {
+        // Nearest rank: the smallest value with at least p percent at or below it
+        long rank = Math.max((long) Math.ceil(QuantityStatistics.PERCENTILES[i] / 100.0 * count), 1);
+        percentiles[i] = rank == previousRank ? percentiles[i - 1] : valueAtRank(structured, code, rank);
+        previousRank = rank;
+      }
+      result.add(new QuantityStatistics(code, group.getString("displayName"), group.getString("unit"),
+          count, ((Number) group.get("min")).doubleValue(), ((Number) group.get("max")).doubleValue(),
+          ((Number) group.get("mean")).doubleValue(), percentiles));
+    }
+    return result;
+  }
+
+  /** Return the value of a code at a rank, from 1, of the sorted values of the documents */
+  private double valueAtRank(Bson filter, String code, long rank) {
+    String observation = StructuredObservationMapper.OBSERVATIONS_KEY;
+    String value = observation + "." + StructuredObservationMapper.VALUE_KEY;
+    List<Bson> pipeline = Arrays.asList(
+        Aggregates.match(and(filter, eq(observation + "." + StructuredObservationMapper.CODE_KEY, code))),
+        Aggregates.project(include(observation)),
+        Aggregates.unwind("$" + observation),
+        Aggregates.match(eq(observation + "." + StructuredObservationMapper.CODE_KEY, code)),
+        Aggregates.sort(ascending(value)),
+        Aggregates.skip((int) (rank - 1)),
+        Aggregates.limit(1),
+        Aggregates.project(fields(include(value), excludeId())));
+    org.bson.Document found = collection.aggregate(pipeline).allowDiskUse(true).first();
+    // Documents deleted since the values were counted
+    if (found == null) { return Double.NaN; }
+    org.bson.Document structuredObservation = (org.bson.Document) found.get(observation);
+    return ((Number) structuredObservation.get(StructuredObservationMapper.VALUE_KEY)).doubleValue();
+  }
+
+  /** Compute the statistics of the interval in the client, decoding the opaque documents */
+  private List<QuantityStatistics> collectStatistics(Bson opaque, Bson structured) {
+    QuantityStatisticsCollector collector = new QuantityStatisticsCollector();
+    String observation = "$" + StructuredObservationMapper.OBSERVATIONS_KEY;
+    List<Bson> pipeline = Arrays.asList(
+        Aggregates.match(structured),
+        Aggregates.project(include(StructuredObservationMapper.OBSERVATIONS_KEY)),
+        Aggregates.unwind(observation),
+        Aggregates.project(fields(include(StructuredObservationMapper.OBSERVATIONS_KEY), excludeId())));
+    // Streamed, one value at a time, instead of pushed into one document
+    for (org.bson.Document doc : collection.aggregate(pipeline).allowDiskUse(true)) {
+      org.bson.Document value = (org.bson.Document) doc.get(StructuredObservationMapper.OBSERVATIONS_KEY);
+      collector.add(value.getString(StructuredObservationMapper.CODE_KEY),
+          value.getString(StructuredObservationMapper.DISPLAY_NAME_KEY),
+          value.getString(StructuredObservationMapper.UNIT_KEY),
+          ((Number) value.get(StructuredObservationMapper.VALUE_KEY)).doubleValue());
+    }
+
+    MongoCursor<org.bson.Document> cursor = 
+        collection.
+        find(opaque).
+        projection(include(HL7_KEY, COMPRESSED_HL7_KEY)).
+        iterator();
+    try {
+      while (cursor.hasNext()) {
+        collector.add(toHL7(cursor.next()));
+      }
+    } finally {
+      cursor.close();
+    }
+    return collector.getResult();
+  }
+
   @Override
   public Document retriveDocument(String uniqueId) {
-    ObjectId asBsonID = new ObjectId(uniqueId);
+    Object asBsonID = bsonIdOf(uniqueId);
+    if (asBsonID == null) { return null; }
     org.bson.Document doc = collection.find(eq("_id", asBsonID)).first();
     if ( doc == null ) { return null; }
-    String hl7 = doc.getString(HL7_KEY);
-    return XMLUtility.convertXMLStringToDocument(hl7);
+    Document hl7 = toHL7(doc);
+    if (doc.containsKey(HL7_KEY)) {
+      migrate(Collections.singletonList(doc), Collections.singletonList(hl7));
+    }
+    return hl7;
+  }
+
+  @Override
+  public List<Document> retriveDocuments(List<String> uniqueIds) {
+    // One query for all the ids; an id of neither kind is never found
+    Set<Object> asBsonIDs = new LinkedHashSet<Object>();
+    for (String uniqueId : uniqueIds) {
+      Object asBsonID = bsonIdOf(uniqueId);
+      if (asBsonID != null) {
+        asBsonIDs.add(asBsonID);
+      }
+    }
+    Map<String, Document> found = new HashMap<String, Document>();
+    List<org.bson.Document> legacy = new ArrayList<org.bson.Document>();
+    List<Document> legacyHL7 = new ArrayList<Document>();
+    if (!asBsonIDs.isEmpty()) {
+      MongoCursor<org.bson.Document> cursor =
+          collection.find(in("_id", asBsonIDs)).projection(intervalProjection()).iterator();
+      try {
+        while (cursor.hasNext()) {
+          org.bson.Document bson = cursor.next();
+          Document doc = toHL7(bson);
+          found.put(bson.get("_id").toString(), doc);
+          if (bson.containsKey(HL7_KEY)) {
+            legacy.add(bson);
+            legacyHL7.add(doc);
+          }
+        }
+      } finally {
+        cursor.close();
+      }
+    }
+    migrate(legacy, legacyHL7);
+
+    List<Document> documents = new ArrayList<Document>(uniqueIds.size());
+    for (String uniqueId : uniqueIds) {
+      documents.add(found.get(uniqueId));
+    }
+    return documents;
   }
 
   @Override
   public boolean correctDocument(String uniqueId, Operation operation,
       Document doc) {
-    ObjectId asBsonID = new ObjectId(uniqueId);
+    Object asBsonID = bsonIdOf(uniqueId);
+    if (asBsonID == null) { return false; }
 
     if (operation == Operation.UPDATE) {
       UpdateResult ur =
-          collection.updateOne(eq("_id", asBsonID), 
-              set(HL7_KEY, XMLUtility.convertXMLDocumentToString(doc)));
+          collection.updateOne(eq("_id", asBsonID), documentUpdate(doc));
       return ur.getModifiedCount() == 1;
     } else { 
       DeleteResult dr = 
@@ -139,6 +612,86 @@ public class MongoXDSAdapter implements XDSBackend {
   }
 
   
+  /**
+   * Ask MongoDB to explain how an interval query is executed, and log a
+   * warning if the winning plan is a collection scan, typically because
+   * the (pid, timestamp) index is missing.
+   *
+   * @return true if the query is answered using an index
+   */
+  public boolean verifyQueryPlan() {
+    LocalDateTime now = LocalDateTime.now();
+    Bson filter = intervalFilter("pid-of-explain", now.minusDays(1), now);
+    org.bson.Document find = new org.bson.Document("find", collection.getNamespace().getCollectionName())
+        .append("filter", asBsonDocument(filter))
+        .append("sort", asBsonDocument(intervalSort()))
+        .append("projection", asBsonDocument(intervalProjection()));
+    org.bson.Document explain = db.runCommand(
+        new org.bson.Document("explain", find).append("verbosity", "queryPlanner"));
+
+    org.bson.Document queryPlanner = (org.bson.Document) explain.get("queryPlanner");
+    Object winningPlan = queryPlanner == null ? null : queryPlanner.get("winningPlan");
+    if (winningPlan == null || containsStage(winningPlan, "COLLSCAN")) {
+      logger.warning("MongoXDSAdapter: interval queries on " + collection.getNamespace()
+          + " use a collection scan, winning plan is " + winningPlan);
+      return false;
+    }
+    return true;
+  }
+
+  private Bson intervalFilter(String personID, LocalDateTime startTime, LocalDateTime endTime) {
+    long start = Utility.convertLocalDateTimeToUnixEpoch(startTime);
+    long end = Utility.convertLocalDateTimeToUnixEpoch(endTime);
+    return and(
+        eq(PID_KEY, personID),
+        gt(TIMESTAMP_KEY, start), 
+        lte(TIMESTAMP_KEY, end));
+  }
+
+  private Bson intervalSort() {
+    return ascending(TIMESTAMP_KEY);
+  }
+
+  private Bson intervalProjection() {
+    // The id is needed to migrate documents in the XML string format
+    return include(HL7_KEY, COMPRESSED_HL7_KEY, TIMESTAMP_KEY, StructuredObservationMapper.PATIENT_KEY,
+        StructuredObservationMapper.EFFECTIVE_TIME_KEY, StructuredObservationMapper.OBSERVATIONS_KEY);
+  }
+
+  /**
+   * Return the _id of a uniqueId: the string of an ObservationId, the
+   * ObjectId of a document stored before those, or null if it is neither.
+   */
+  private static Object bsonIdOf(String uniqueId) {
+    if (ObservationId.isObservationId(uniqueId)) { return uniqueId; }
+    return ObjectId.isValid(uniqueId) ? new ObjectId(uniqueId) : null;
+  }
+
+  private BsonDocument asBsonDocument(Bson bson) {
+    return bson.toBsonDocument(org.bson.Document.class, collection.getCodecRegistry());
+  }
+
+  /** Search the plan tree, stages nest as 'inputStage' or 'inputStages' */
+  private static boolean containsStage(Object plan, String stageName) {
+    if (plan instanceof List) {
+      for (Object p : (List<?>) plan) {
+        if (containsStage(p, stageName)) { return true; }
+      }
+      return false;
+    }
+    if (!(plan instanceof org.bson.Document)) { return false; }
+    org.bson.Document stage = (org.bson.Document) plan;
+    if (stageName.equals(stage.get("stage"))) { return true; }
+    return containsStage(stage.get("inputStage"), stageName)
+        || containsStage(stage.get("inputStages"), stageName);
+  }
+
+  /** Drop the collection, used when a whole time partition
+   * has expired, see MongoPartitionFactory */
+  void dropCollection() {
+    collection.drop();
+  }
+
   /** Never-ever use this, it will drop the collection!
    * 
    * @param secret must be set to the secret password
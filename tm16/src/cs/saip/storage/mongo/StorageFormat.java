@@ -0,0 +1,25 @@
+package cs.saip.storage.mongo;
+
+/**
+ * The format in which the Mongo XDS stores the HL7 documents.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University.
+ *
+ */
+public enum StorageFormat {
+  /** The HL7 document as an indented XML string, parsed on every read. */
+  XML_STRING,
+  /**
+   * The contents of the HL7 document as native BSON fields: the patient, the
+   * effective time and a list of the observations. The HL7 document is
+   * rebuilt when it is retrieved, and documents stored as XML strings are
+   * migrated when they are read.
+   */
+  STRUCTURED,
+  /**
+   * The HL7 document as binary data, encoded by a DictionaryDeflateCodec,
+   * next to the patient and timestamp fields. Takes a fraction of the space
+   * of the XML string; the HL7 document is decoded on every read.
+   */
+  COMPRESSED
+}
@@ -0,0 +1,89 @@
+package cs.saip.storage.mongo;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+import org.w3c.dom.*;
+
+import cs.saip.appserver.*;
+import cs.saip.domain.*;
+
+/**
+ * Maps between an HL7 document and the native BSON fields of the structured
+ * storage format: the patient id, the effective time and a list of
+ * observations, each with its code, display name, unit and value.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University.
+ *
+ */
+class StructuredObservationMapper {
+
+  static final String PATIENT_KEY = "patient";
+  static final String EFFECTIVE_TIME_KEY = "effectiveTime";
+  static final String OBSERVATIONS_KEY = "observations";
+
+  static final String CODE_KEY = "code";
+  static final String DISPLAY_NAME_KEY = "displayName";
+  static final String UNIT_KEY = "unit";
+  static final String VALUE_KEY = "value";
+
+  /**
+   * Extract the structured fields of an HL7 document.
+   *
+   * @param hl7
+   *          the HL7 document
+   * @return a BSON document with the patient, effective time and
+   *         observations fields
+   */
+  static org.bson.Document toFields(Document hl7) {
+    org.bson.Document fields = new org.bson.Document();
+    fields.append(PATIENT_KEY, attributeOfFirst(hl7, "id", "extension"));
+    fields.append(EFFECTIVE_TIME_KEY, attributeOfFirst(hl7, "effectiveTime", "value"));
+
+    List<org.bson.Document> observations = new ArrayList<org.bson.Document>();
+    NodeList list = hl7.getElementsByTagName("observation");
+    for (int i = 0; i < list.getLength(); i++) {
+      Element observation = (Element) list.item(i);
+      Element code = (Element) observation.getElementsByTagName("code").item(0);
+      Element value = (Element) observation.getElementsByTagName("value").item(0);
+      observations.add(new org.bson.Document()
+          .append(CODE_KEY, code.getAttribute("code"))
+          .append(DISPLAY_NAME_KEY, code.getAttribute("displayName"))
+          .append(UNIT_KEY, value.getAttribute("unit"))
+          .append(VALUE_KEY, Double.parseDouble(value.getAttribute("value"))));
+    }
+    fields.append(OBSERVATIONS_KEY, observations);
+    return fields;
+  }
+
+  /**
+   * Rebuild the HL7 document from the structured fields. The DOM tree is
+   * only built if more than the attributes are asked for.
+   *
+   * @param fields
+   *          a BSON document with the structured fields
+   * @return the HL7 document
+   */
+  static Document toHL7(org.bson.Document fields) {
+    // The builder needs the patient and time of the observation, the
+    // observations themselves are appended one at a time
+    TeleObservation header = new TeleObservation(fields.getString(PATIENT_KEY), 0.0, 0.0);
+    header.setTime(LocalDateTime.parse(fields.getString(EFFECTIVE_TIME_KEY), HL7Builder.HL7_TIME_FORMAT));
+
+    LazyHL7Builder builder = new LazyHL7Builder();
+    builder.buildHeader(header);
+    builder.buildPatientInfo(header);
+    builder.buildObservationList(header);
+    @SuppressWarnings("unchecked")
+    List<org.bson.Document> observations = (List<org.bson.Document>) fields.get(OBSERVATIONS_KEY);
+    for (org.bson.Document o : observations) {
+      builder.appendObservation(new ClinicalQuantity(o.getDouble(VALUE_KEY), o.getString(UNIT_KEY),
+          o.getString(CODE_KEY), o.getString(DISPLAY_NAME_KEY)));
+    }
+    return builder.getResult();
+  }
+
+  private static String attributeOfFirst(Document hl7, String elementName, String attributeName) {
+    return ((Element) hl7.getElementsByTagName(elementName).item(0)).getAttribute(attributeName);
+  }
+}
@@ -0,0 +1,31 @@
+package cs.saip.storage.partition;
+
+import java.util.*;
+
+import cs.saip.storage.XDSBackend;
+import cs.saip.storage.memory.IndexedMemoryXDS;
+
+/**
+ * A partition factory of in-memory partitions; dropping a partition simply
+ * leaves it to the garbage collector.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class MemoryPartitionFactory implements PartitionFactory {
+
+  @Override
+  public XDSBackend create(String name) {
+    return new IndexedMemoryXDS();
+  }
+
+  @Override
+  public void drop(String name, XDSBackend partition) {
+    // Nothing is kept outside the partition itself
+  }
+
+  @Override
+  public List<String> existing() {
+    return new ArrayList<String>();
+  }
+}
@@ -0,0 +1,42 @@
+package cs.saip.storage.partition;
+
+import java.util.List;
+
+import cs.saip.storage.XDSBackend;
+
+/**
+ * Creates and drops the partitions of a TimePartitionedXDS, like an
+ * IndexedMemoryXDS or a MongoDB collection per period.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public interface PartitionFactory {
+
+  /**
+   * Create, or open if it exists already, the partition of a period.
+   *
+   * @param name
+   *          the name of the partition, see PartitionScheme
+   * @return the XDS storing the documents of the period
+   */
+  public XDSBackend create(String name);
+
+  /**
+   * Drop a partition and all documents in it.
+   *
+   * @param name
+   *          the name of the partition
+   * @param partition
+   *          the XDS returned by create for the name
+   */
+  public void drop(String name, XDSBackend partition);
+
+  /**
+   * Return the names of the partitions that exist already, so they are
+   * opened when the XDS starts.
+   *
+   * @return the names of the existing partitions
+   */
+  public List<String> existing();
+}
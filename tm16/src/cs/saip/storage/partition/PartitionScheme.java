@@ -0,0 +1,81 @@
+package cs.saip.storage.partition;
+
+import java.time.*;
+import java.time.format.*;
+import java.time.temporal.*;
+
+/**
+ * The length of the time partitions of a TimePartitionedXDS. A partition
+ * is named after its scheme and the first day of it, as in 'd20160501' or
+ * 'w20160502', so the names are valid collection names and sort in time
+ * order.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public enum PartitionScheme {
+  /** One partition per day. */
+  DAILY("d"),
+  /** One partition per week, starting on Mondays. */
+  WEEKLY("w");
+
+  private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+  private final String prefix;
+
+  private PartitionScheme(String prefix) {
+    this.prefix = prefix;
+  }
+
+  /**
+   * Return the first day of the partition containing a day.
+   *
+   * @param day
+   *          any day
+   * @return the first day of its partition
+   */
+  public LocalDate startOf(LocalDate day) {
+    if (this == DAILY) { return day; }
+    return day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+  }
+
+  /**
+   * Return the first day of the partition following one.
+   *
+   * @param start
+   *          the first day of a partition
+   * @return the first day of the next partition
+   */
+  public LocalDate next(LocalDate start) {
+    return this == DAILY ? start.plusDays(1) : start.plusWeeks(1);
+  }
+
+  /**
+   * Return the name of a partition.
+   *
+   * @param start
+   *          the first day of the partition
+   * @return the name
+   */
+  public String nameOf(LocalDate start) {
+    return prefix + start.format(DAY_FORMAT);
+  }
+
+  /**
+   * Return the first day of a partition from its name.
+   *
+   * @param name
+   *          the name of a partition
+   * @return the first day of it, or null if the name is not one of a
+   *         partition of this scheme
+   */
+  public LocalDate parse(String name) {
+    if (!name.startsWith(prefix)) { return null; }
+    try {
+      LocalDate start = LocalDate.parse(name.substring(prefix.length()), DAY_FORMAT);
+      return startOf(start).equals(start) ? start : null;
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+}
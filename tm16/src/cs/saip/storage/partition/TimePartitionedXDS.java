@@ -0,0 +1,472 @@
+package cs.saip.storage.partition;
+
+import java.io.Closeable;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.Function;
+import java.util.logging.*;
+import java.util.stream.Stream;
+
+import org.w3c.dom.Document;
+
+import cs.saip.domain.*;
+import cs.saip.storage.*;
+
+/**
+ * An XDS that partitions the documents by the time of the observation,
+ * into one underlying XDS per day or week, created by a partition factory
+ * when the first document of the period arrives.
+ * <p>
+ * A query only visits the partitions that overlap its interval, oldest
+ * first, so its cost does not grow with the amount of old data. As the
+ * TeleMed intervals never look further back than a month, a retention
+ * policy drops the partitions that have expired as a whole, which for
+ * MongoDB is dropping a collection instead of deleting documents one by
+ * one.
+ * <p>
+ * The uniqueIds tell the partition, so retriveDocument and correctDocument
+ * go directly to the right partition: an ObservationId holds the timestamp
+ * of the observation, which gives the partition; other uniqueIds assigned
+ * by a partition get its name put in front of them, as in
+ * 'd20160501:5731f8a3...'. The continuation
+ * token of a page names the partition to continue in and the token of the
+ * partition itself.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class TimePartitionedXDS implements XDSBackend, Closeable {
+
+  /** Separates the partition name from the uniqueId within the partition */
+  public static final char SEPARATOR = ':';
+
+  private static final Logger logger = Logger.getLogger("TM16Logger");
+
+  private final PartitionScheme scheme;
+  private final PartitionFactory factory;
+  private final Duration retention;
+
+  private final ConcurrentNavigableMap<LocalDate, XDSBackend> partitions;
+  // Operations on partitions share the lock, dropping one takes it exclusively
+  private final ReadWriteLock dropLock;
+  // The number of open streams of each partition, and the names of those
+  // removed while streams were open, dropped when the last one closes
+  private final Map<XDSBackend, Integer> openStreams;
+  private final Map<XDSBackend, String> deferredDrops;
+  private ScheduledExecutorService retentionChecker;
+
+  /**
+   * Construct a time partitioned XDS, opening the partitions that exist
+   * already.
+   *
+   * @param scheme
+   *          the length of the partitions
+   * @param factory
+   *          creates and drops the partitions
+   * @param retention
+   *          how long documents are kept; a partition is dropped when all
+   *          of its period is older than this. Null keeps them forever
+   * @param retentionCheckSeconds
+   *          how often expired partitions are dropped; 0 leaves it to calls
+   *          of dropExpiredPartitions
+   */
+  public TimePartitionedXDS(PartitionScheme scheme, PartitionFactory factory, Duration retention,
+      int retentionCheckSeconds) {
+    this.scheme = scheme;
+    this.factory = factory;
+    this.retention = retention;
+    partitions = new ConcurrentSkipListMap<LocalDate, XDSBackend>();
+    dropLock = new ReentrantReadWriteLock();
+    openStreams = new HashMap<XDSBackend, Integer>();
+    deferredDrops = new HashMap<XDSBackend, String>();
+    for (String name : factory.existing()) {
+      LocalDate start = scheme.parse(name);
+      if (start != null) {
+        partitions.put(start, factory.create(name));
+      }
+    }
+
+    if (retention != null && retentionCheckSeconds > 0) {
+      retentionChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "xds-retention");
+        t.setDaemon(true);
+        return t;
+      });
+      retentionChecker.scheduleWithFixedDelay(() -> {
+        try {
+          dropExpiredPartitions(LocalDateTime.now());
+        } catch (RuntimeException e) {
+          // The next check will try again
+          logger.log(Level.WARNING, "TimePartitionedXDS: retention check failed", e);
+        }
+      }, 0, retentionCheckSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  @Override
+  public String provideAndRegisterDocument(MetaData metaData, Document observationAsHL7) {
+    LocalDate start = partitionOf(metaData.getTimestamp());
+    dropLock.readLock().lock();
+    try {
+      return globalIdOf(start, partitionFor(start).provideAndRegisterDocument(metaData, observationAsHL7));
+    } finally {
+      dropLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<String> provideAndRegisterDocuments(List<DocumentSubmission> submissions) {
+    // One batch per partition, remembering where each submission came from
+    Map<LocalDate, List<DocumentSubmission>> batches = new HashMap<LocalDate, List<DocumentSubmission>>();
+    Map<LocalDate, List<Integer>> positions = new HashMap<LocalDate, List<Integer>>();
+    for (int i = 0; i < submissions.size(); i++) {
+      LocalDate start = partitionOf(submissions.get(i).getMetaData().getTimestamp());
+      batches.computeIfAbsent(start, s -> new ArrayList<DocumentSubmission>()).add(submissions.get(i));
+      positions.computeIfAbsent(start, s -> new ArrayList<Integer>()).add(i);
+    }
+    String[] uniqueIds = new String[submissions.size()];
+    String[] errors = new String[submissions.size()];
+    RuntimeException failure = null;
+    dropLock.readLock().lock();
+    try {
+      for (Map.Entry<LocalDate, List<DocumentSubmission>> batch : batches.entrySet()) {
+        LocalDate start = batch.getKey();
+        List<Integer> at = positions.get(start);
+        List<String> ids;
+        // A failing partition does not undo what the other partitions stored
+        try {
+          ids = partitionFor(start).provideAndRegisterDocuments(batch.getValue());
+        } catch (PartialBatchException e) {
+          failure = failure == null ? e : failure;
+          ids = e.getUniqueIds();
+          for (int i = 0; i < ids.size(); i++) {
+            errors[at.get(i)] = e.getErrors().get(i);
+          }
+        } catch (RuntimeException e) {
+          failure = failure == null ? e : failure;
+          ids = Collections.nCopies(at.size(), null);
+          for (int i = 0; i < ids.size(); i++) {
+            errors[at.get(i)] = e.getMessage();
+          }
+        }
+        for (int i = 0; i < ids.size(); i++) {
+          uniqueIds[at.get(i)] = ids.get(i) == null ? null : globalIdOf(start, ids.get(i));
+        }
+      }
+    } finally {
+      dropLock.readLock().unlock();
+    }
+    if (failure != null) {
+      throw PartialBatchException.failureOf(Arrays.asList(uniqueIds), Arrays.asList(errors), failure);
+    }
+    return Arrays.asList(uniqueIds);
+  }
+
+  @Override
+  public List<Document> retriveDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+    List<Document> thelist = new ArrayList<Document>();
+    dropLock.readLock().lock();
+    try {
+      for (XDSBackend partition : overlapping(start, end).values()) {
+        thelist.addAll(partition.retriveDocumentSet(personID, start, end));
+      }
+    } finally {
+      dropLock.readLock().unlock();
+    }
+    return thelist;
+  }
+
+  @Override
+  public Stream<Document> streamDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+    return streamOfPartitions(start, end, partition -> partition.streamDocumentSet(personID, start, end));
+  }
+
+  @Override
+  public Stream<Document> streamDocumentSets(List<String> personIDs, LocalDateTime start, LocalDateTime end) {
+    // One cohort query per partition, so the documents come partition by partition
+    return streamOfPartitions(start, end, partition -> partition.streamDocumentSets(personIDs, start, end));
+  }
+
+  @Override
+  public List<QuantityStatistics> computeStatistics(String personID, LocalDateTime start, LocalDateTime end) {
+    dropLock.readLock().lock();
+    try {
+      NavigableMap<LocalDate, XDSBackend> visited = overlapping(start, end);
+      if (visited.isEmpty()) { return new ArrayList<QuantityStatistics>(); }
+      if (visited.size() == 1) {
+        return visited.firstEntry().getValue().computeStatistics(personID, start, end);
+      }
+    } finally {
+      dropLock.readLock().unlock();
+    }
+    // The percentiles of several partitions cannot be made from the
+    // statistics of each, so their documents are streamed instead
+    return XDSBackend.super.computeStatistics(personID, start, end);
+  }
+
+  @Override
+  public DocumentPage retriveDocumentPage(String personID, LocalDateTime start, LocalDateTime end,
+      int limit, String continuationToken) {
+    NavigableMap<LocalDate, XDSBackend> newestFirst = overlapping(start, end).descendingMap();
+    String innerToken = null;
+    if (continuationToken != null) {
+      // The token names the partition to continue in, and its own token
+      LocalDate from = LocalDate.ofEpochDay(DocumentPage.timestampOf(continuationToken));
+      String inner = DocumentPage.uniqueIdOf(continuationToken);
+      innerToken = inner.isEmpty() ? null : inner;
+      newestFirst = newestFirst.tailMap(from, true);
+    }
+    List<Document> page = new ArrayList<Document>();
+    dropLock.readLock().lock();
+    try {
+      for (Map.Entry<LocalDate, XDSBackend> partition : newestFirst.entrySet()) {
+        if (page.size() == limit) {
+          // Only hand out a token if an older partition has more to come
+          DocumentPage peek = partition.getValue().retriveDocumentPage(personID, start, end, 1, null);
+          if (!peek.getDocuments().isEmpty()) {
+            return new DocumentPage(page, DocumentPage.keysetToken(partition.getKey().toEpochDay(), ""));
+          }
+          continue;
+        }
+        DocumentPage part = partition.getValue().retriveDocumentPage(personID, start, end,
+            limit - page.size(), innerToken);
+        innerToken = null;
+        page.addAll(part.getDocuments());
+        if (part.getContinuationToken() != null) {
+          return new DocumentPage(page,
+              DocumentPage.keysetToken(partition.getKey().toEpochDay(), part.getContinuationToken()));
+        }
+      }
+    } finally {
+      dropLock.readLock().unlock();
+    }
+    return new DocumentPage(page, null);
+  }
+
+  @Override
+  public Document retriveDocument(String uniqueId) {
+    dropLock.readLock().lock();
+    try {
+      XDSBackend partition = partitionOf(uniqueId);
+      return partition == null ? null : partition.retriveDocument(innerIdOf(uniqueId));
+    } finally {
+      dropLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<Document> retriveDocuments(List<String> uniqueIds) {
+    List<Document> documents = new ArrayList<Document>(Collections.nCopies(uniqueIds.size(), (Document) null));
+    dropLock.readLock().lock();
+    try {
+      // Group the ids by partition, so each partition is asked once
+      Map<XDSBackend, List<Integer>> positionsOfPartition = new LinkedHashMap<XDSBackend, List<Integer>>();
+      for (int i = 0; i < uniqueIds.size(); i++) {
+        XDSBackend partition = partitionOf(uniqueIds.get(i));
+        if (partition == null) { continue; }
+        positionsOfPartition.computeIfAbsent(partition, p -> new ArrayList<Integer>()).add(i);
+      }
+      for (Map.Entry<XDSBackend, List<Integer>> entry : positionsOfPartition.entrySet()) {
+        List<Integer> positions = entry.getValue();
+        List<String> innerIds = new ArrayList<String>(positions.size());
+        for (int at : positions) {
+          innerIds.add(innerIdOf(uniqueIds.get(at)));
+        }
+        List<Document> fetched = entry.getKey().retriveDocuments(innerIds);
+        for (int i = 0; i < positions.size(); i++) {
+          documents.set(positions.get(i), fetched.get(i));
+        }
+      }
+    } finally {
+      dropLock.readLock().unlock();
+    }
+    return documents;
+  }
+
+  @Override
+  public boolean correctDocument(String uniqueId, Operation operation, Document doc) {
+    dropLock.readLock().lock();
+    try {
+      XDSBackend partition = partitionOf(uniqueId);
+      return partition != null && partition.correctDocument(innerIdOf(uniqueId), operation, doc);
+    } finally {
+      dropLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Drop the partitions whose whole period is older than the retention. A
+   * partition with open streams is removed at once, so no new query reaches
+   * it, and dropped when its last stream is closed.
+   *
+   * @param now
+   *          the present time
+   * @return the number of partitions dropped
+   */
+  public int dropExpiredPartitions(LocalDateTime now) {
+    if (retention == null) { return 0; }
+    LocalDateTime cutoff = now.minus(retention);
+    int dropped = 0;
+    for (LocalDate start : new ArrayList<LocalDate>(partitions.keySet())) {
+      if (scheme.next(start).atStartOfDay().isAfter(cutoff)) { break; }
+      XDSBackend partition;
+      dropLock.writeLock().lock();
+      try {
+        partition = partitions.remove(start);
+      } finally {
+        dropLock.writeLock().unlock();
+      }
+      if (partition != null) {
+        boolean deferred;
+        synchronized (openStreams) {
+          deferred = openStreams.containsKey(partition);
+          if (deferred) {
+            deferredDrops.put(partition, scheme.nameOf(start));
+          }
+        }
+        if (deferred) {
+          logger.info("TimePartitionedXDS: expired partition " + scheme.nameOf(start)
+              + " is dropped when its open streams are closed");
+        } else {
+          factory.drop(scheme.nameOf(start), partition);
+          logger.info("TimePartitionedXDS: dropped expired partition " + scheme.nameOf(start));
+        }
+        dropped++;
+      }
+    }
+    return dropped;
+  }
+
+  /**
+   * Return the names of the partitions, oldest first.
+   *
+   * @return the partition names
+   */
+  public List<String> getPartitionNames() {
+    List<String> names = new ArrayList<String>();
+    for (LocalDate start : partitions.keySet()) {
+      names.add(scheme.nameOf(start));
+    }
+    return names;
+  }
+
+  @Override
+  public void close() {
+    if (retentionChecker != null) {
+      retentionChecker.shutdownNow();
+    }
+  }
+
+  private LocalDate partitionOf(long timestamp) {
+    return scheme.startOf(Utility.convertUnixEpochToLocalDateTime(timestamp).toLocalDate());
+  }
+
+  /** Return the partitions that may hold documents of the interval, oldest first */
+  private NavigableMap<LocalDate, XDSBackend> overlapping(LocalDateTime start, LocalDateTime end) {
+    LocalDate first = scheme.startOf(start.toLocalDate());
+    LocalDate last = scheme.startOf(end.toLocalDate());
+    if (last.isBefore(first)) { return new TreeMap<LocalDate, XDSBackend>(); }
+    return partitions.subMap(first, true, last, true);
+  }
+
+  /**
+   * Return the stream of a query of each partition that overlaps the
+   * interval, oldest first. The partitions are queried one at a time, as the
+   * stream reaches them; a partition is pinned while its stream is open, so
+   * it is not dropped under it, and a partition dropped before it is reached
+   * is skipped. No lock is held while the consumer runs. flatMap opens and
+   * closes the stream of a partition in the thread consuming the stream.
+   */
+  private Stream<Document> streamOfPartitions(LocalDateTime start, LocalDateTime end,
+      Function<XDSBackend, Stream<Document>> query) {
+    List<Map.Entry<LocalDate, XDSBackend>> visited =
+        new ArrayList<Map.Entry<LocalDate, XDSBackend>>(overlapping(start, end).entrySet());
+    return visited.stream().flatMap(entry -> {
+      XDSBackend partition = entry.getValue();
+      if (!pin(entry.getKey(), partition)) { return Stream.<Document>empty(); }
+      Stream<Document> documents = null;
+      try {
+        documents = query.apply(partition).onClose(() -> unpin(partition));
+        return documents;
+      } finally {
+        if (documents == null) { unpin(partition); }
+      }
+    });
+  }
+
+  /** Count an open stream of the partition; false if it has been dropped */
+  private boolean pin(LocalDate start, XDSBackend partition) {
+    // A drop removes the partition under the write lock before it looks
+    // for open streams, so it either finds this pin or is seen here
+    dropLock.readLock().lock();
+    try {
+      if (partitions.get(start) != partition) { return false; }
+      synchronized (openStreams) {
+        openStreams.merge(partition, 1, Integer::sum);
+      }
+      return true;
+    } finally {
+      dropLock.readLock().unlock();
+    }
+  }
+
+  /** Count a closed stream of the partition, dropping it if it was the last */
+  private void unpin(XDSBackend partition) {
+    String name = null;
+    synchronized (openStreams) {
+      if (openStreams.merge(partition, -1, Integer::sum) == 0) {
+        openStreams.remove(partition);
+        name = deferredDrops.remove(partition);
+      }
+    }
+    if (name != null) {
+      try {
+        factory.drop(name, partition);
+        logger.info("TimePartitionedXDS: dropped expired partition " + name);
+      } catch (RuntimeException e) {
+        // Closing the stream of the caller should not fail on it
+        logger.log(Level.WARNING, "TimePartitionedXDS: dropping partition " + name + " failed", e);
+      }
+    }
+  }
+
+  /** Return the partition of a period, created if missing; holds the read lock */
+  private XDSBackend partitionFor(LocalDate start) {
+    XDSBackend partition = partitions.get(start);
+    if (partition != null) { return partition; }
+    synchronized (partitions) {
+      partition = partitions.get(start);
+      if (partition == null) {
+        partition = factory.create(scheme.nameOf(start));
+        partitions.put(start, partition);
+      }
+      return partition;
+    }
+  }
+
+  /** The uniqueId handed out for a uniqueId assigned by a partition */
+  private String globalIdOf(LocalDate start, String innerId) {
+    if (ObservationId.isObservationId(innerId)
+        && partitionOf(ObservationId.parse(innerId).getTimestamp()).equals(start)) {
+      return innerId;
+    }
+    return scheme.nameOf(start) + SEPARATOR + innerId;
+  }
+
+  private XDSBackend partitionOf(String uniqueId) {
+    if (ObservationId.isObservationId(uniqueId)) {
+      return partitions.get(partitionOf(ObservationId.parse(uniqueId).getTimestamp()));
+    }
+    int separator = uniqueId.indexOf(SEPARATOR);
+    if (separator < 0) { return null; }
+    LocalDate start = scheme.parse(uniqueId.substring(0, separator));
+    return start == null ? null : partitions.get(start);
+  }
+
+  private static String innerIdOf(String uniqueId) {
+    // An ObservationId has no separator, and is passed on as it is
+    return uniqueId.substring(uniqueId.indexOf(SEPARATOR) + 1);
+  }
+}
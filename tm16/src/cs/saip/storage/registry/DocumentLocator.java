@@ -0,0 +1,32 @@
+package cs.saip.storage.registry;
+
+/**
+ * The location of a document: the repository that stores it, and the id of
+ * the document within that repository.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class DocumentLocator {
+
+  private final String repositoryId;
+  private final String documentId;
+
+  public DocumentLocator(String repositoryId, String documentId) {
+    this.repositoryId = repositoryId;
+    this.documentId = documentId;
+  }
+
+  public String getRepositoryId() {
+    return repositoryId;
+  }
+
+  public String getDocumentId() {
+    return documentId;
+  }
+
+  @Override
+  public String toString() {
+    return "DocumentLocator (" + repositoryId + "," + documentId + ")";
+  }
+}
@@ -0,0 +1,257 @@
+package cs.saip.storage.registry;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+import cs.saip.storage.*;
+import cs.saip.storage.wal.*;
+
+/**
+ * The registry of an XDS: an index of the meta data of all documents and
+ * the locators of the documents in the repositories, but not the documents
+ * themselves. An entry is a few dozen bytes, so the registry of millions of
+ * observations fits in memory.
+ * <p>
+ * Entries are indexed by uniqueId and, for each patient, in time order like
+ * the IndexedMemoryXDS. A registry may be made durable by a write-ahead
+ * log, which is replayed when it is opened; the log only holds the small
+ * entries, never any documents.
+ * <p>
+ * The uniqueIds are ObservationIds; logs written before them hold uniqueIds
+ * of the form reg-N, which are still resolved.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class DocumentRegistry implements Closeable {
+
+  private static final String LEGACY_UNIQUE_ID_PREFIX = "reg-";
+
+  // Record types of the log
+  private static final byte REGISTER = 1;
+  private static final byte UNREGISTER = 2;
+
+  private final ConcurrentMap<String, RegistryEntry> uniqueIdIndex;
+  private final ConcurrentMap<String, ConcurrentNavigableMap<TimeKey, RegistryEntry>> patientIndex;
+  private final ObservationIdGenerator generator;
+  private WriteAheadLog log;
+
+  /** Construct a registry that is kept in memory only. */
+  public DocumentRegistry() {
+    uniqueIdIndex = new ConcurrentHashMap<String, RegistryEntry>();
+    patientIndex = new ConcurrentHashMap<String, ConcurrentNavigableMap<TimeKey, RegistryEntry>>();
+    generator = new ObservationIdGenerator();
+  }
+
+  /**
+   * Open a durable registry in the given directory, recovering the entries
+   * registered by earlier instances.
+   *
+   * @param directory
+   *          the directory of the write-ahead log
+   * @param policy
+   *          the fsync policy of the log
+   * @param flushIntervalMillis
+   *          the interval between batched fsyncs
+   * @throws IOException
+   *           if recovery fails
+   */
+  public DocumentRegistry(Path directory, FsyncPolicy policy, long flushIntervalMillis) throws IOException {
+    this();
+    log = new WriteAheadLog(directory, policy, flushIntervalMillis);
+    log.replay(0, (lsn, record) -> redo(record));
+  }
+
+  /**
+   * Register a document that has been stored in a repository.
+   *
+   * @param metaData
+   *          the meta data of the document
+   * @param locator
+   *          where the document is stored
+   * @return the uniqueId of the document
+   */
+  public String register(MetaData metaData, DocumentLocator locator) {
+    ObservationId id = generator.next(metaData.getTimestamp());
+    RegistryEntry entry = new RegistryEntry(id.toString(),
+        new TimeKey(metaData.getTimestamp(), id.getLeastSignificantBits()), metaData, locator);
+    logged(REGISTER, entry);
+    index(entry);
+    return entry.getUniqueId();
+  }
+
+  /**
+   * Return the entry of a document.
+   *
+   * @param uniqueId
+   *          the uniqueId of the document
+   * @return the entry, or null if no such document is registered
+   */
+  public RegistryEntry lookup(String uniqueId) {
+    return uniqueIdIndex.get(uniqueId);
+  }
+
+  /**
+   * Remove the entry of a document.
+   *
+   * @param uniqueId
+   *          the uniqueId of the document
+   * @return the removed entry, or null if no such document is registered
+   */
+  public RegistryEntry unregister(String uniqueId) {
+    RegistryEntry entry = uniqueIdIndex.get(uniqueId);
+    if (entry == null) { return null; }
+    logged(UNREGISTER, entry);
+    return unindex(uniqueId);
+  }
+
+  /**
+   * Return the entries of a patient in a time interval, oldest first.
+   *
+   * @param personID
+   *          the patient
+   * @param start
+   *          the start of the interval, in epoch seconds, inclusive
+   * @param end
+   *          the end of the interval, in epoch seconds, inclusive
+   * @return the entries
+   */
+  public List<RegistryEntry> find(String personID, long start, long end) {
+    ConcurrentNavigableMap<TimeKey, RegistryEntry> timeIndex = patientIndex.get(personID);
+    if (timeIndex == null || end < start) { return new ArrayList<RegistryEntry>(); }
+    return new ArrayList<RegistryEntry>(
+        timeIndex.subMap(TimeKey.first(start), true, TimeKey.last(end), true).values());
+  }
+
+  /**
+   * Return the entries of a patient from the start of an interval up to a
+   * key, newest first.
+   *
+   * @param personID
+   *          the patient
+   * @param start
+   *          the start of the interval, in epoch seconds, inclusive
+   * @param before
+   *          the key the entries are at or before
+   * @param inclusive
+   *          whether an entry with the key itself is included
+   * @param limit
+   *          the maximal number of entries returned
+   * @return the entries
+   */
+  public List<RegistryEntry> findNewestFirst(String personID, long start, TimeKey before,
+      boolean inclusive, int limit) {
+    List<RegistryEntry> entries = new ArrayList<RegistryEntry>();
+    ConcurrentNavigableMap<TimeKey, RegistryEntry> timeIndex = patientIndex.get(personID);
+    if (timeIndex == null || TimeKey.first(start).compareTo(before) > 0) { return entries; }
+    for (RegistryEntry entry :
+        timeIndex.subMap(TimeKey.first(start), true, before, inclusive).descendingMap().values()) {
+      if (entries.size() == limit) { break; }
+      entries.add(entry);
+    }
+    return entries;
+  }
+
+  /**
+   * Return the sequence number of a uniqueId handed out by this registry,
+   * that is, the tie breaker of its time key.
+   *
+   * @param uniqueId
+   *          the uniqueId
+   * @return the sequence number
+   * @throws XDSException
+   *           if the uniqueId is not one of this registry
+   */
+  public static long sequenceOf(String uniqueId) {
+    if (ObservationId.isObservationId(uniqueId)) {
+      return ObservationId.parse(uniqueId).getLeastSignificantBits();
+    }
+    try {
+      return Long.parseLong(uniqueId.substring(LEGACY_UNIQUE_ID_PREFIX.length()));
+    } catch (RuntimeException e) {
+      throw new XDSException("Not a uniqueId of this registry: " + uniqueId);
+    }
+  }
+
+  /**
+   * Return the number of documents presently registered.
+   *
+   * @return number of documents
+   */
+  public int size() {
+    return uniqueIdIndex.size();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (log != null) {
+      log.close();
+    }
+  }
+
+  private synchronized void index(RegistryEntry entry) {
+    String personID = entry.getMetaData().getPersonID();
+    ConcurrentNavigableMap<TimeKey, RegistryEntry> timeIndex = patientIndex.get(personID);
+    if (timeIndex == null) {
+      timeIndex = new ConcurrentSkipListMap<TimeKey, RegistryEntry>();
+      patientIndex.put(personID, timeIndex);
+    }
+    timeIndex.put(entry.getKey(), entry);
+    uniqueIdIndex.put(entry.getUniqueId(), entry);
+  }
+
+  private synchronized RegistryEntry unindex(String uniqueId) {
+    RegistryEntry entry = uniqueIdIndex.remove(uniqueId);
+    if (entry == null) { return null; }
+    String personID = entry.getMetaData().getPersonID();
+    ConcurrentNavigableMap<TimeKey, RegistryEntry> timeIndex = patientIndex.get(personID);
+    timeIndex.remove(entry.getKey());
+    if (timeIndex.isEmpty()) {
+      patientIndex.remove(personID);
+    }
+    return entry;
+  }
+
+  // === Write-ahead log
+
+  private void logged(byte type, RegistryEntry entry) {
+    if (log == null) { return; }
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(type);
+      out.writeUTF(entry.getUniqueId());
+      if (type == REGISTER) {
+        out.writeUTF(entry.getMetaData().getPersonID());
+        out.writeLong(entry.getMetaData().getTimestamp());
+        out.writeUTF(entry.getLocator().getRepositoryId());
+        out.writeUTF(entry.getLocator().getDocumentId());
+      }
+      out.flush();
+      log.append(bytes.toByteArray());
+    } catch (IOException e) {
+      throw new XDSException("Failed to log registry entry: " + e.getMessage());
+    }
+  }
+
+  private void redo(byte[] record) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    byte type = in.readByte();
+    String uniqueId = in.readUTF();
+    if (type == REGISTER) {
+      MetaData metaData = new MetaData();
+      metaData.setPersonID(in.readUTF());
+      metaData.setTimestamp(in.readLong());
+      DocumentLocator locator = new DocumentLocator(in.readUTF(), in.readUTF());
+      long sequence = sequenceOf(uniqueId);
+      if (ObservationId.isObservationId(uniqueId)) {
+        generator.advancePast(ObservationId.parse(uniqueId));
+      }
+      index(new RegistryEntry(uniqueId, new TimeKey(metaData.getTimestamp(), sequence), metaData, locator));
+    } else {
+      unindex(uniqueId);
+    }
+  }
+}
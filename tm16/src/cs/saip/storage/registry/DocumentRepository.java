@@ -0,0 +1,79 @@
+package cs.saip.storage.registry;
+
+import java.util.*;
+
+import org.w3c.dom.Document;
+
+/**
+ * A store of HL7 documents, without any meta data; the service provider
+ * interface of the repositories of the RegistryRepositoryXDS. A repository
+ * only knows documents by the ids it assigns itself.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public interface DocumentRepository {
+
+  /**
+   * Return the id of this repository, which must be stable as it is stored
+   * in the registry.
+   *
+   * @return the repository id
+   */
+  public String getRepositoryId();
+
+  /**
+   * Store a document.
+   *
+   * @param document
+   *          the HL7 document
+   * @return the id assigned to the document in this repository
+   */
+  public String store(Document document);
+
+  /**
+   * Fetch a document.
+   *
+   * @param documentId
+   *          the id of the document
+   * @return the document, or null if it is not stored
+   */
+  public Document fetch(String documentId);
+
+  /**
+   * Fetch several documents. Repositories override this to fetch them in
+   * fewer round trips.
+   *
+   * @param documentIds
+   *          the ids of the documents
+   * @return the documents, in the order of the ids; null for the ones not
+   *         stored
+   */
+  public default List<Document> fetchAll(List<String> documentIds) {
+    List<Document> documents = new ArrayList<Document>(documentIds.size());
+    for (String documentId : documentIds) {
+      documents.add(fetch(documentId));
+    }
+    return documents;
+  }
+
+  /**
+   * Replace a stored document.
+   *
+   * @param documentId
+   *          the id of the document
+   * @param document
+   *          the new document
+   * @return true if the document was replaced, false if it is not stored
+   */
+  public boolean replace(String documentId, Document document);
+
+  /**
+   * Remove a stored document.
+   *
+   * @param documentId
+   *          the id of the document
+   * @return true if the document was removed, false if it is not stored
+   */
+  public boolean remove(String documentId);
+}
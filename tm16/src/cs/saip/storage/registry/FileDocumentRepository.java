@@ -0,0 +1,122 @@
+package cs.saip.storage.registry;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.UUID;
+
+import org.w3c.dom.Document;
+
+import cs.saip.storage.XDSException;
+import cs.saip.storage.codec.*;
+
+/**
+ * A repository that stores each document as a file in a directory, named by
+ * its document id. The contents is the document encoded by a codec, by
+ * default its compact XML.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class FileDocumentRepository implements DocumentRepository {
+
+  private static final String SUFFIX = ".xml";
+
+  private final String repositoryId;
+  private final Path directory;
+  private final DocumentCodec codec;
+
+  /**
+   * Construct a file repository.
+   *
+   * @param repositoryId
+   *          the id of the repository
+   * @param directory
+   *          the directory of the documents, created if missing
+   * @throws IOException
+   *           if the directory cannot be created
+   */
+  public FileDocumentRepository(String repositoryId, Path directory) throws IOException {
+    this(repositoryId, directory, new CompactXMLCodec());
+  }
+
+  /**
+   * Construct a file repository encoding the documents with the given codec.
+   *
+   * @param repositoryId
+   *          the id of the repository
+   * @param directory
+   *          the directory of the documents, created if missing
+   * @param codec
+   *          the codec of the documents; it must decode the files already
+   *          in the directory
+   * @throws IOException
+   *           if the directory cannot be created
+   */
+  public FileDocumentRepository(String repositoryId, Path directory, DocumentCodec codec) throws IOException {
+    this.repositoryId = repositoryId;
+    this.directory = directory;
+    this.codec = codec;
+    Files.createDirectories(directory);
+  }
+
+  @Override
+  public String getRepositoryId() {
+    return repositoryId;
+  }
+
+  @Override
+  public String store(Document document) {
+    // Random ids need no counter to survive a restart
+    String documentId = UUID.randomUUID().toString();
+    try {
+      Files.write(pathOf(documentId), codec.encode(document),
+          StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    } catch (IOException e) {
+      throw new XDSException("Failed to write document " + documentId + ": " + e.getMessage());
+    }
+    return documentId;
+  }
+
+  @Override
+  public Document fetch(String documentId) {
+    Path path = pathOf(documentId);
+    try {
+      return codec.decode(Files.readAllBytes(path));
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      throw new XDSException("Failed to read document " + documentId + ": " + e.getMessage());
+    }
+  }
+
+  @Override
+  public boolean replace(String documentId, Document document) {
+    if (!Files.exists(pathOf(documentId))) { return false; }
+    // Write aside and move, so readers never see a half written document
+    try {
+      Path temporary = Files.createTempFile(directory, documentId, ".tmp");
+      Files.write(temporary, codec.encode(document));
+      Files.move(temporary, pathOf(documentId), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    } catch (IOException e) {
+      throw new XDSException("Failed to replace document " + documentId + ": " + e.getMessage());
+    }
+  }
+
+  @Override
+  public boolean remove(String documentId) {
+    try {
+      return Files.deleteIfExists(pathOf(documentId));
+    } catch (IOException e) {
+      throw new XDSException("Failed to remove document " + documentId + ": " + e.getMessage());
+    }
+  }
+
+  private Path pathOf(String documentId) {
+    // Ids come from the registry, but never resolve outside the directory
+    if (documentId.indexOf('/') >= 0 || documentId.indexOf('\\') >= 0 || documentId.startsWith(".")) {
+      throw new XDSException("Invalid document id: " + documentId);
+    }
+    return directory.resolve(documentId + SUFFIX);
+  }
+}
@@ -0,0 +1,62 @@
+package cs.saip.storage.registry;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.w3c.dom.Document;
+
+/**
+ * A repository that keeps the documents in memory.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class MemoryDocumentRepository implements DocumentRepository {
+
+  private final String repositoryId;
+  private final Map<String, Document> documents;
+  private final AtomicLong countOfStoredDocuments;
+
+  public MemoryDocumentRepository(String repositoryId) {
+    this.repositoryId = repositoryId;
+    documents = new ConcurrentHashMap<String, Document>();
+    countOfStoredDocuments = new AtomicLong();
+  }
+
+  @Override
+  public String getRepositoryId() {
+    return repositoryId;
+  }
+
+  @Override
+  public String store(Document document) {
+    String documentId = "doc-" + countOfStoredDocuments.incrementAndGet();
+    documents.put(documentId, document);
+    return documentId;
+  }
+
+  @Override
+  public Document fetch(String documentId) {
+    return documents.get(documentId);
+  }
+
+  @Override
+  public boolean replace(String documentId, Document document) {
+    return documents.replace(documentId, document) != null;
+  }
+
+  @Override
+  public boolean remove(String documentId) {
+    return documents.remove(documentId) != null;
+  }
+
+  /**
+   * Return the number of documents presently stored.
+   *
+   * @return number of documents
+   */
+  public int size() {
+    return documents.size();
+  }
+}
@@ -0,0 +1,47 @@
+package cs.saip.storage.registry;
+
+import cs.saip.storage.*;
+
+/**
+ * The registry's entry of a single document: its uniqueId, its key in the
+ * time ordered index of the patient, its meta data, and where the document
+ * itself is stored; immutable.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class RegistryEntry {
+
+  private final String uniqueId;
+  private final TimeKey key;
+  private final MetaData metaData;
+  private final DocumentLocator locator;
+
+  public RegistryEntry(String uniqueId, TimeKey key, MetaData metaData, DocumentLocator locator) {
+    this.uniqueId = uniqueId;
+    this.key = key;
+    this.metaData = metaData;
+    this.locator = locator;
+  }
+
+  public String getUniqueId() {
+    return uniqueId;
+  }
+
+  public TimeKey getKey() {
+    return key;
+  }
+
+  public MetaData getMetaData() {
+    return metaData;
+  }
+
+  public DocumentLocator getLocator() {
+    return locator;
+  }
+
+  @Override
+  public String toString() {
+    return "RegistryEntry (" + uniqueId + "," + metaData + "," + locator + ")";
+  }
+}
@@ -0,0 +1,233 @@
+package cs.saip.storage.registry;
+
+import java.io.Closeable;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+import org.w3c.dom.Document;
+
+import cs.saip.domain.Utility;
+import cs.saip.storage.*;
+
+/**
+ * An XDS split into a registry and a set of document repositories, as in
+ * the IHE XDS profile.
+ * <p>
+ * A new document is stored in the repository chosen by a placement
+ * function, by default by hashing the patient id so the documents of a
+ * patient stay together, and then registered with its locator. Queries are
+ * resolved against the registry alone, and only the matching documents are
+ * fetched from the repositories; when they live in several repositories,
+ * these are asked in parallel, each for all its documents at once.
+ * <p>
+ * A document is stored before it is registered, and unregistered before it
+ * is removed, so the registry never points at a missing document.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class RegistryXDS implements XDSBackend, Closeable {
+
+  private final DocumentRegistry registry;
+  private final Map<String, DocumentRepository> repositories;
+  private final Function<MetaData, String> placement;
+  private final ExecutorService fetcher;
+
+  /**
+   * Construct an XDS that places the documents of each patient in one of
+   * the repositories.
+   *
+   * @param registry
+   *          the registry of the documents
+   * @param repositories
+   *          the repositories, at least one
+   * @param fetchThreads
+   *          the number of threads fetching from the repositories
+   */
+  public RegistryXDS(DocumentRegistry registry, List<DocumentRepository> repositories, int fetchThreads) {
+    this(registry, repositories, byPatient(repositories), fetchThreads);
+  }
+
+  /**
+   * Construct an XDS with a given placement of the documents.
+   *
+   * @param registry
+   *          the registry of the documents
+   * @param repositories
+   *          the repositories, at least one
+   * @param placement
+   *          returns the id of the repository of a new document from its
+   *          meta data
+   * @param fetchThreads
+   *          the number of threads fetching from the repositories
+   */
+  public RegistryXDS(DocumentRegistry registry, List<DocumentRepository> repositories,
+      Function<MetaData, String> placement, int fetchThreads) {
+    if (repositories.isEmpty()) { throw new IllegalArgumentException("No repositories"); }
+    this.registry = registry;
+    this.repositories = new LinkedHashMap<String, DocumentRepository>();
+    for (DocumentRepository repository : repositories) {
+      this.repositories.put(repository.getRepositoryId(), repository);
+    }
+    this.placement = placement;
+    fetcher = Executors.newFixedThreadPool(fetchThreads, r -> {
+      Thread t = new Thread(r, "xds-repository-fetcher");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  private static Function<MetaData, String> byPatient(List<DocumentRepository> repositories) {
+    List<String> ids = new ArrayList<String>();
+    for (DocumentRepository repository : repositories) {
+      ids.add(repository.getRepositoryId());
+    }
+    return metaData -> ids.get((metaData.getPersonID().hashCode() & 0x7fffffff) % ids.size());
+  }
+
+  @Override
+  public String provideAndRegisterDocument(MetaData metaData, Document observationAsHL7) {
+    DocumentRepository repository = repositoryOf(placement.apply(metaData));
+    if (repository == null) {
+      throw new XDSException("No repository for document of " + metaData.getPersonID());
+    }
+    String documentId = repository.store(observationAsHL7);
+    return registry.register(metaData, new DocumentLocator(repository.getRepositoryId(), documentId));
+  }
+
+  @Override
+  public List<Document> retriveDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+    return fetch(registry.find(personID, Utility.convertLocalDateTimeToUnixEpoch(start),
+        Utility.convertLocalDateTimeToUnixEpoch(end)));
+  }
+
+  @Override
+  public DocumentPage retriveDocumentPage(String personID, LocalDateTime startTime,
+      LocalDateTime endTime, int limit, String continuationToken) {
+    long start = Utility.convertLocalDateTimeToUnixEpoch(startTime);
+    long end = Utility.convertLocalDateTimeToUnixEpoch(endTime);
+    TimeKey before = TimeKey.last(end);
+    boolean inclusive = true;
+    if (continuationToken != null) {
+      before = new TimeKey(DocumentPage.timestampOf(continuationToken),
+          DocumentRegistry.sequenceOf(DocumentPage.uniqueIdOf(continuationToken)));
+      inclusive = false;
+      if (before.compareTo(TimeKey.last(end)) > 0) {
+        before = TimeKey.last(end);
+        inclusive = true;
+      }
+    }
+    // One entry more than the page tells whether there is a next page
+    List<RegistryEntry> entries = registry.findNewestFirst(personID, start, before, inclusive, limit + 1);
+    String token = null;
+    if (entries.size() > limit) {
+      entries = entries.subList(0, limit);
+      RegistryEntry lastOnPage = entries.get(limit - 1);
+      token = DocumentPage.keysetToken(lastOnPage.getKey().timestamp, lastOnPage.getUniqueId());
+    }
+    return new DocumentPage(fetch(entries), token);
+  }
+
+  @Override
+  public Document retriveDocument(String uniqueId) {
+    RegistryEntry entry = registry.lookup(uniqueId);
+    if (entry == null) { return null; }
+    DocumentRepository repository = repositoryOf(entry.getLocator().getRepositoryId());
+    return repository == null ? null : repository.fetch(entry.getLocator().getDocumentId());
+  }
+
+  @Override
+  public boolean correctDocument(String uniqueId, Operation operation, Document doc) {
+    RegistryEntry entry = registry.lookup(uniqueId);
+    if (entry == null) { return false; }
+    DocumentRepository repository = repositoryOf(entry.getLocator().getRepositoryId());
+    if (repository == null) { return false; }
+    String documentId = entry.getLocator().getDocumentId();
+    if (operation == Operation.UPDATE) {
+      return repository.replace(documentId, doc);
+    }
+    if (registry.unregister(uniqueId) == null) { return false; }
+    repository.remove(documentId);
+    return true;
+  }
+
+  /**
+   * Return the registry of this XDS.
+   *
+   * @return the registry
+   */
+  public DocumentRegistry getRegistry() {
+    return registry;
+  }
+
+  @Override
+  public void close() {
+    fetcher.shutdown();
+  }
+
+  private DocumentRepository repositoryOf(String repositoryId) {
+    return repositories.get(repositoryId);
+  }
+
+  /** Fetch the documents of the entries, in the order of the entries */
+  private List<Document> fetch(List<RegistryEntry> entries) {
+    // Group the positions of the entries by repository
+    Map<String, List<Integer>> positions = new LinkedHashMap<String, List<Integer>>();
+    for (int i = 0; i < entries.size(); i++) {
+      String repositoryId = entries.get(i).getLocator().getRepositoryId();
+      List<Integer> list = positions.get(repositoryId);
+      if (list == null) {
+        list = new ArrayList<Integer>();
+        positions.put(repositoryId, list);
+      }
+      list.add(i);
+    }
+
+    Document[] documents = new Document[entries.size()];
+    if (positions.size() == 1) {
+      // A single repository is asked directly by the calling thread
+      Map.Entry<String, List<Integer>> only = positions.entrySet().iterator().next();
+      fetchFrom(only.getKey(), only.getValue(), entries, documents);
+    } else {
+      List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+      for (Map.Entry<String, List<Integer>> group : positions.entrySet()) {
+        futures.add(CompletableFuture.runAsync(
+            () -> fetchFrom(group.getKey(), group.getValue(), entries, documents), fetcher));
+      }
+      try {
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new XDSException("Failed to fetch documents: " + e.getCause());
+      }
+    }
+
+    // A document removed since the registry was read is simply left out
+    List<Document> result = new ArrayList<Document>(documents.length);
+    for (Document document : documents) {
+      if (document != null) {
+        result.add(document);
+      }
+    }
+    return result;
+  }
+
+  private void fetchFrom(String repositoryId, List<Integer> positions, List<RegistryEntry> entries,
+      Document[] documents) {
+    DocumentRepository repository = repositoryOf(repositoryId);
+    if (repository == null) { return; }
+    List<String> documentIds = new ArrayList<String>(positions.size());
+    for (int position : positions) {
+      documentIds.add(entries.get(position).getLocator().getDocumentId());
+    }
+    List<Document> fetched = repository.fetchAll(documentIds);
+    // Each group writes its own slots of the array
+    for (int i = 0; i < positions.size(); i++) {
+      documents[positions.get(i)] = fetched.get(i);
+    }
+  }
+}
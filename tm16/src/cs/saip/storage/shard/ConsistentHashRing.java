@@ -0,0 +1,87 @@
+package cs.saip.storage.shard;
+
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+
+/**
+ * A consistent hash ring that maps keys to named nodes. Each node is placed
+ * on the ring at a number of pseudo random points (virtual nodes), and a key
+ * belongs to the node of the first point at or after the hash of the key.
+ * <p>
+ * Adding or removing a node thus only moves the keys of the ring segments
+ * next to its points, about 1/N of all keys, and the virtual nodes even out
+ * the share of keys each node gets.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class ConsistentHashRing {
+
+  private final NavigableMap<Long, String> ring;
+  private final int virtualNodes;
+
+  /**
+   * Construct an empty ring.
+   *
+   * @param virtualNodes
+   *          the number of points on the ring of each node
+   */
+  public ConsistentHashRing(int virtualNodes) {
+    this.virtualNodes = virtualNodes;
+    ring = new TreeMap<Long, String>();
+  }
+
+  /**
+   * Add a node to the ring.
+   *
+   * @param node
+   *          the name of the node
+   */
+  public void add(String node) {
+    for (int i = 0; i < virtualNodes; i++) {
+      ring.put(hash(node + "#" + i), node);
+    }
+  }
+
+  /**
+   * Remove a node from the ring; its keys move to the neighbouring nodes.
+   *
+   * @param node
+   *          the name of the node
+   */
+  public void remove(String node) {
+    for (int i = 0; i < virtualNodes; i++) {
+      ring.remove(hash(node + "#" + i));
+    }
+  }
+
+  /**
+   * Return the node that the given key belongs to.
+   *
+   * @param key
+   *          the key, like the id of a person
+   * @return the name of the node, null if the ring is empty
+   */
+  public String nodeFor(String key) {
+    if (ring.isEmpty()) { return null; }
+    Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+    // Past the last point, wrap around to the first
+    return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+  }
+
+  private static long hash(String key) {
+    try {
+      // MD5 spreads similar keys, like 'pid001' and 'pid002', evenly
+      byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+      long hash = 0;
+      for (int i = 0; i < 8; i++) {
+        hash = (hash << 8) | (digest[i] & 0xff);
+      }
+      return hash;
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support MD5
+      throw new IllegalStateException(e);
+    }
+  }
+}
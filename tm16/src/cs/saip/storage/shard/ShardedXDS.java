@@ -0,0 +1,254 @@
+package cs.saip.storage.shard;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.stream.Stream;
+
+import org.w3c.dom.Document;
+
+import cs.saip.domain.QuantityStatistics;
+import cs.saip.storage.*;
+
+/**
+ * An XDS that spreads the patients over a number of underlying XDS
+ * instances, the shards, like several MongoDB databases or in-memory
+ * partitions. All documents of a patient are stored in the same shard, found
+ * by consistent hashing of the person id, so a query for a patient is
+ * answered by exactly one shard.
+ * <p>
+ * The uniqueIds tell the shard, so retriveDocument and correctDocument go
+ * directly to the right shard. When a shard assigns an ObservationId of
+ * shard 0, the shard field is set to a number derived from the name of the
+ * shard; other uniqueIds get the name of the shard put in front of them, as
+ * in 'shard2:5731f8a3...'. Shard names must therefore be stable, must not
+ * contain the separator, and must have distinct shard numbers.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class ShardedXDS implements XDSBackend {
+
+  /** Separates the shard name from the uniqueId within the shard */
+  public static final char SEPARATOR = ':';
+
+  /** The default number of points on the hash ring per shard */
+  public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+  private final Map<String, XDSBackend> shards;
+  private final Map<Integer, String> nameOfNumber;
+  private final ConsistentHashRing ring;
+
+  /**
+   * Construct a sharded XDS.
+   *
+   * @param shards
+   *          the shards by name
+   * @param virtualNodes
+   *          the number of points on the hash ring per shard
+   */
+  public ShardedXDS(Map<String, XDSBackend> shards, int virtualNodes) {
+    this.shards = new HashMap<String, XDSBackend>(shards);
+    nameOfNumber = new HashMap<Integer, String>();
+    ring = new ConsistentHashRing(virtualNodes);
+    for (String name : shards.keySet()) {
+      if (name.indexOf(SEPARATOR) >= 0) {
+        throw new IllegalArgumentException("Shard name '" + name + "' contains '" + SEPARATOR + "'");
+      }
+      String other = nameOfNumber.put(numberOf(name), name);
+      if (other != null) {
+        throw new IllegalArgumentException("Shard names '" + name + "' and '" + other
+            + "' have the same shard number, rename one of them");
+      }
+      ring.add(name);
+    }
+  }
+
+  /**
+   * Construct a sharded XDS with the default number of virtual nodes.
+   *
+   * @param shards
+   *          the shards by name
+   */
+  public ShardedXDS(Map<String, XDSBackend> shards) {
+    this(shards, DEFAULT_VIRTUAL_NODES);
+  }
+
+  @Override
+  public String provideAndRegisterDocument(MetaData metaData, Document observationAsHL7) {
+    String shard = shardOf(metaData.getPersonID());
+    return globalIdOf(shard, shards.get(shard).provideAndRegisterDocument(metaData, observationAsHL7));
+  }
+
+  @Override
+  public List<String> provideAndRegisterDocuments(List<DocumentSubmission> submissions) {
+    // One batch per shard, remembering where each submission came from
+    Map<String, List<DocumentSubmission>> batches = new HashMap<String, List<DocumentSubmission>>();
+    Map<String, List<Integer>> positions = new HashMap<String, List<Integer>>();
+    for (int i = 0; i < submissions.size(); i++) {
+      String shard = shardOf(submissions.get(i).getMetaData().getPersonID());
+      batches.computeIfAbsent(shard, s -> new ArrayList<DocumentSubmission>()).add(submissions.get(i));
+      positions.computeIfAbsent(shard, s -> new ArrayList<Integer>()).add(i);
+    }
+    String[] uniqueIds = new String[submissions.size()];
+    String[] errors = new String[submissions.size()];
+    RuntimeException failure = null;
+    for (Map.Entry<String, List<DocumentSubmission>> batch : batches.entrySet()) {
+      String shard = batch.getKey();
+      List<Integer> at = positions.get(shard);
+      List<String> ids;
+      // A failing shard does not undo what the other shards stored
+      try {
+        ids = shards.get(shard).provideAndRegisterDocuments(batch.getValue());
+      } catch (PartialBatchException e) {
+        failure = failure == null ? e : failure;
+        ids = e.getUniqueIds();
+        for (int i = 0; i < ids.size(); i++) {
+          errors[at.get(i)] = e.getErrors().get(i);
+        }
+      } catch (RuntimeException e) {
+        failure = failure == null ? e : failure;
+        ids = Collections.nCopies(at.size(), null);
+        for (int i = 0; i < ids.size(); i++) {
+          errors[at.get(i)] = e.getMessage();
+        }
+      }
+      for (int i = 0; i < ids.size(); i++) {
+        uniqueIds[at.get(i)] = ids.get(i) == null ? null : globalIdOf(shard, ids.get(i));
+      }
+    }
+    if (failure != null) {
+      throw PartialBatchException.failureOf(Arrays.asList(uniqueIds), Arrays.asList(errors), failure);
+    }
+    return Arrays.asList(uniqueIds);
+  }
+
+  @Override
+  public List<Document> retriveDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+    return shardFor(personID).retriveDocumentSet(personID, start, end);
+  }
+
+  @Override
+  public Stream<Document> streamDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+    return shardFor(personID).streamDocumentSet(personID, start, end);
+  }
+
+  @Override
+  public Stream<Document> streamDocumentSets(List<String> personIDs, LocalDateTime start, LocalDateTime end) {
+    // Group the persons by shard, so each shard is asked once
+    Map<String, List<String>> personsOfShard = new LinkedHashMap<String, List<String>>();
+    for (String personID : new LinkedHashSet<String>(personIDs)) {
+      personsOfShard.computeIfAbsent(shardOf(personID), name -> new ArrayList<String>()).add(personID);
+    }
+    return personsOfShard.entrySet().stream().flatMap(entry -> 
+      shards.get(entry.getKey()).streamDocumentSets(entry.getValue(), start, end));
+  }
+
+  @Override
+  public DocumentPage retriveDocumentPage(String personID, LocalDateTime start, LocalDateTime end,
+      int limit, String continuationToken) {
+    // The token is made by the shard of the patient, and is passed back to it
+    return shardFor(personID).retriveDocumentPage(personID, start, end, limit, continuationToken);
+  }
+
+  @Override
+  public List<QuantityStatistics> computeStatistics(String personID, LocalDateTime start, LocalDateTime end) {
+    return shardFor(personID).computeStatistics(personID, start, end);
+  }
+
+  @Override
+  public Document retriveDocument(String uniqueId) {
+    String name = shardNameOf(uniqueId);
+    if (name == null) { return null; }
+    return shards.get(name).retriveDocument(localIdOf(uniqueId));
+  }
+
+  @Override
+  public List<Document> retriveDocuments(List<String> uniqueIds) {
+    // Group the ids by shard, so each shard is asked once
+    Map<String, List<Integer>> positionsOfShard = new LinkedHashMap<String, List<Integer>>();
+    for (int i = 0; i < uniqueIds.size(); i++) {
+      String name = shardNameOf(uniqueIds.get(i));
+      if (name == null) { continue; }
+      positionsOfShard.computeIfAbsent(name, n -> new ArrayList<Integer>()).add(i);
+    }
+    List<Document> documents = new ArrayList<Document>(Collections.nCopies(uniqueIds.size(), (Document) null));
+    for (Map.Entry<String, List<Integer>> entry : positionsOfShard.entrySet()) {
+      List<Integer> positions = entry.getValue();
+      List<String> localIds = new ArrayList<String>(positions.size());
+      for (int at : positions) {
+        localIds.add(localIdOf(uniqueIds.get(at)));
+      }
+      List<Document> fetched = shards.get(entry.getKey()).retriveDocuments(localIds);
+      for (int i = 0; i < positions.size(); i++) {
+        documents.set(positions.get(i), fetched.get(i));
+      }
+    }
+    return documents;
+  }
+
+  @Override
+  public boolean correctDocument(String uniqueId, Operation operation, Document doc) {
+    String name = shardNameOf(uniqueId);
+    if (name == null) { return false; }
+    return shards.get(name).correctDocument(localIdOf(uniqueId), operation, doc);
+  }
+
+  /**
+   * Return the name of the shard that stores the documents of the given
+   * person.
+   *
+   * @param personID
+   *          id of the person
+   * @return the name of the shard
+   */
+  public String shardOf(String personID) {
+    return ring.nodeFor(personID);
+  }
+
+  private XDSBackend shardFor(String personID) {
+    return shards.get(shardOf(personID));
+  }
+
+  /**
+   * Return the shard number of a shard name, which is put in the
+   * ObservationIds of the shard. It is a hash of the name, so it does not
+   * change when shards are added.
+   *
+   * @param name
+   *          the name of the shard
+   * @return the shard number, between 1 and ObservationId.MAX_SHARD
+   */
+  public static int numberOf(String name) {
+    int hash = name.hashCode();
+    hash ^= (hash >>> 16);
+    // Shard 0 is left to the ids of the shards themselves
+    return 1 + (hash & 0x7fffffff) % ObservationId.MAX_SHARD;
+  }
+
+  /** The uniqueId handed out for a uniqueId assigned by a shard */
+  private String globalIdOf(String name, String localId) {
+    if (ObservationId.isObservationId(localId)) {
+      ObservationId id = ObservationId.parse(localId);
+      if (id.getShard() == 0) { return id.withShard(numberOf(name)).toString(); }
+    }
+    return name + SEPARATOR + localId;
+  }
+
+  /** The name of the shard of a uniqueId, or null if it is not of a shard */
+  private String shardNameOf(String uniqueId) {
+    if (ObservationId.isObservationId(uniqueId)) {
+      return nameOfNumber.get(ObservationId.parse(uniqueId).getShard());
+    }
+    int at = uniqueId.indexOf(SEPARATOR);
+    if (at < 0 || !shards.containsKey(uniqueId.substring(0, at))) { return null; }
+    return uniqueId.substring(0, at);
+  }
+
+  /** The uniqueId assigned by the shard, see globalIdOf */
+  private String localIdOf(String uniqueId) {
+    if (ObservationId.isObservationId(uniqueId)) {
+      return ObservationId.parse(uniqueId).withShard(0).toString();
+    }
+    return uniqueId.substring(uniqueId.indexOf(SEPARATOR) + 1);
+  }
+}
@@ -0,0 +1,25 @@
+package cs.saip.storage.wal;
+
+/**
+ * The policy for forcing the records of a write-ahead log to disk, that is,
+ * the trade off between durability and write throughput.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public enum FsyncPolicy {
+  /** Every append is forced to disk before it returns. */
+  EVERY_WRITE,
+  /**
+   * Appends wait until the next batched fsync, which is made once per flush
+   * interval for all records appended since the last one (group commit).
+   */
+  GROUP_COMMIT,
+  /**
+   * Appends return at once and are forced to disk once per flush interval; a
+   * crash may lose the records of the last interval.
+   */
+  INTERVAL,
+  /** The log is never forced, the operating system decides. */
+  NEVER
+}
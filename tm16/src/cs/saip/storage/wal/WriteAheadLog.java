@@ -0,0 +1,332 @@
+package cs.saip.storage.wal;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.*;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of binary records, each assigned a log sequence number
+ * (lsn) that increases by one for each record appended.
+ * <p>
+ * The log is stored in a directory as a series of files, each named after
+ * the lsn of its first record. Rotating the log starts a new file, so the
+ * files whose records are all covered by a snapshot can be deleted.
+ * <p>
+ * Records are forced to disk according to the fsync policy. With group
+ * commit a flusher thread forces the log once per flush interval, and every
+ * append waits for the fsync that covers its record, so one fsync makes a
+ * whole batch of concurrent appends durable.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class WriteAheadLog implements Closeable {
+
+  private static final String PREFIX = "wal-";
+  private static final String SUFFIX = ".log";
+
+  // length, crc, lsn
+  private static final int HEADER_SIZE = 4 + 4 + 8;
+
+  private static final Logger logger = Logger.getLogger("TM16Logger");
+
+  private final Path directory;
+  private final FsyncPolicy policy;
+  private final long flushIntervalMillis;
+
+  private FileChannel channel;
+  private long lastLsn;
+  private long durableLsn;
+  private boolean closed;
+  private Thread flusher;
+
+  /**
+   * Open the write-ahead log in the given directory; appends continue after
+   * the last valid record.
+   *
+   * @param directory
+   *          the directory of the log files, created if missing
+   * @param policy
+   *          when to force records to disk
+   * @param flushIntervalMillis
+   *          the interval between batched fsyncs for the GROUP_COMMIT and
+   *          INTERVAL policies
+   * @throws IOException
+   *           if the log cannot be opened
+   */
+  public WriteAheadLog(Path directory, FsyncPolicy policy, long flushIntervalMillis) throws IOException {
+    this.directory = directory;
+    this.policy = policy;
+    this.flushIntervalMillis = flushIntervalMillis;
+    Files.createDirectories(directory);
+
+    List<Long> files = logFiles();
+    lastLsn = 0;
+    if (files.isEmpty()) {
+      channel = openFile(1);
+    } else {
+      // Only the last file can end in a torn record; cut it off
+      long first = files.get(files.size() - 1);
+      channel = openFile(first);
+      long[] position = { 0 };
+      lastLsn = first - 1;
+      scan(channel, (lsn, record) -> lastLsn = lsn, position);
+      channel.truncate(position[0]);
+      channel.position(position[0]);
+    }
+    durableLsn = lastLsn;
+
+    if (policy == FsyncPolicy.GROUP_COMMIT || policy == FsyncPolicy.INTERVAL) {
+      flusher = new Thread(this::flushPeriodically, "wal-flusher");
+      flusher.setDaemon(true);
+      flusher.start();
+    }
+  }
+
+  /**
+   * Append a record to the log. Depending on the fsync policy, the method
+   * returns when the record is on disk.
+   *
+   * @param record
+   *          the contents of the record
+   * @return the lsn assigned to the record
+   * @throws IOException
+   *           if the record could not be written
+   */
+  public long append(byte[] record) throws IOException {
+    return appendAll(Collections.singletonList(record));
+  }
+
+  /**
+   * Append a batch of records to the log in one write. The records get
+   * consecutive lsns, and depending on the fsync policy the method returns
+   * when all of them are on disk.
+   *
+   * @param records
+   *          the contents of the records
+   * @return the lsn assigned to the last record
+   * @throws IOException
+   *           if the records could not be written
+   */
+  public long appendAll(List<byte[]> records) throws IOException {
+    long lsn;
+    synchronized (this) {
+      if (closed) { throw new IOException("Write-ahead log is closed"); }
+      int size = 0;
+      for (byte[] record : records) {
+        size += HEADER_SIZE + record.length;
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(size);
+      lsn = lastLsn;
+      for (byte[] record : records) {
+        lsn++;
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        buffer.putInt(record.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.putLong(lsn);
+        buffer.put(record);
+      }
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      lastLsn = lsn;
+      if (policy == FsyncPolicy.EVERY_WRITE) {
+        channel.force(false);
+        durableLsn = lsn;
+      }
+    }
+    if (policy == FsyncPolicy.GROUP_COMMIT) {
+      awaitDurable(lsn);
+    }
+    return lsn;
+  }
+
+  /**
+   * Force all appended records to disk.
+   *
+   * @throws IOException
+   *           if the log could not be forced
+   */
+  public synchronized void sync() throws IOException {
+    if (durableLsn < lastLsn) {
+      channel.force(false);
+      durableLsn = lastLsn;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Start a new log file, so all records up to and including the returned
+   * lsn are in files that can later be deleted by truncate.
+   *
+   * @return the lsn of the last record in the previous files
+   * @throws IOException
+   *           if the new file could not be created
+   */
+  public synchronized long rotate() throws IOException {
+    sync();
+    channel.close();
+    channel = openFile(lastLsn + 1);
+    return lastLsn;
+  }
+
+  /**
+   * Delete the log files whose records all have lsn less than or equal to
+   * the given lsn, typically because a snapshot covers them.
+   *
+   * @param lsn
+   *          the lsn covered by a snapshot
+   * @throws IOException
+   *           if the files could not be deleted
+   */
+  public synchronized void truncate(long lsn) throws IOException {
+    List<Long> files = logFiles();
+    for (int i = 0; i < files.size() - 1; i++) {
+      // A file ends just before the next one begins
+      if (files.get(i + 1) - 1 <= lsn) {
+        Files.delete(pathOf(files.get(i)));
+      }
+    }
+  }
+
+  /** Receiver of records during replay */
+  public interface RecordVisitor {
+    void visit(long lsn, byte[] record) throws IOException;
+  }
+
+  /**
+   * Replay all records with an lsn greater than the given one, in lsn order.
+   *
+   * @param afterLsn
+   *          records up to and including this lsn are skipped
+   * @param visitor
+   *          receives each record
+   * @throws IOException
+   *           if the log could not be read
+   */
+  public synchronized void replay(long afterLsn, RecordVisitor visitor) throws IOException {
+    for (long first : logFiles()) {
+      try (FileChannel file = FileChannel.open(pathOf(first), StandardOpenOption.READ)) {
+        scan(file, (lsn, record) -> {
+          if (lsn > afterLsn) {
+            visitor.visit(lsn, record);
+          }
+        }, new long[1]);
+      }
+    }
+  }
+
+  /**
+   * Return the lsn of the last record appended.
+   *
+   * @return the last lsn, 0 if the log is empty
+   */
+  public synchronized long lastLsn() {
+    return lastLsn;
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) { return; }
+      sync();
+      closed = true;
+      channel.close();
+      notifyAll();
+    }
+    if (flusher != null) {
+      flusher.interrupt();
+    }
+  }
+
+  private synchronized void awaitDurable(long lsn) throws IOException {
+    try {
+      while (durableLsn < lsn) {
+        if (closed) { throw new IOException("Write-ahead log closed before record was forced"); }
+        wait();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for group commit");
+    }
+  }
+
+  private void flushPeriodically() {
+    while (true) {
+      try {
+        Thread.sleep(flushIntervalMillis);
+        synchronized (this) {
+          if (closed) { return; }
+          sync();
+        }
+      } catch (InterruptedException e) {
+        return;
+      } catch (IOException e) {
+        // Waiting appends are released by close, or by the next fsync
+        logger.log(Level.WARNING, "WriteAheadLog: periodic fsync failed", e);
+      }
+    }
+  }
+
+  /** Read valid records from the start of the file, positions[0] is set after the last */
+  private void scan(FileChannel file, RecordVisitor visitor, long[] position) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    long at = 0;
+    while (true) {
+      header.clear();
+      if (readFully(file, header, at) < HEADER_SIZE) { break; }
+      header.flip();
+      int length = header.getInt();
+      int crc = header.getInt();
+      long lsn = header.getLong();
+      if (length < 0) { break; }
+      ByteBuffer body = ByteBuffer.allocate(length);
+      if (readFully(file, body, at + HEADER_SIZE) < length) { break; }
+      CRC32 check = new CRC32();
+      check.update(body.array());
+      if ((int) check.getValue() != crc) { break; }
+      visitor.visit(lsn, body.array());
+      at += HEADER_SIZE + length;
+    }
+    position[0] = at;
+  }
+
+  private int readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+    int total = 0;
+    while (buffer.hasRemaining()) {
+      int read = file.read(buffer, position + total);
+      if (read < 0) { break; }
+      total += read;
+    }
+    return total;
+  }
+
+  private FileChannel openFile(long firstLsn) throws IOException {
+    FileChannel file = FileChannel.open(pathOf(firstLsn), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    file.position(file.size());
+    return file;
+  }
+
+  private Path pathOf(long firstLsn) {
+    return directory.resolve(String.format(PREFIX + "%016d" + SUFFIX, firstLsn));
+  }
+
+  private List<Long> logFiles() throws IOException {
+    List<Long> files = new ArrayList<Long>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+      for (Path path : stream) {
+        String name = path.getFileName().toString();
+        files.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+      }
+    }
+    Collections.sort(files);
+    return files;
+  }
+}
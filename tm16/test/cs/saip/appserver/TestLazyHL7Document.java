@@ -0,0 +1,108 @@
+package cs.saip.appserver;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.*;
+import org.w3c.dom.*;
+
+import cs.saip.domain.*;
+import cs.saip.helper.HelperMethods;
+
+/**
+ * Test cases for the HL7 documents that are only parsed when more than
+ * their attributes are asked for.
+ *
+ * @author Henrik Baerbak Christensen, Computer Science, Aarhus University
+ *
+ */
+public class TestLazyHL7Document {
+
+  private static final String[][] LOOKUPS = {
+    { "value", "0", "effectiveTime", "ClinicalDocument" },
+    { "extension", "0", "id", "patient" },
+    { "code", "0", "code", "observation" },
+    { "displayName", "1", "code", "observation" },
+    { "unit", "1", "value", "observation" },
+    { "value", "0", "value", "observation" },
+    { "value", "1", "value", "observation" },
+  };
+
+  private TeleObservation to;
+  private Document dom;
+  private String compactXML;
+
+  @Before
+  public void setUp() {
+    to = HelperMethods.createObservation120over70forNancy();
+    HL7Builder builder = new HL7Builder();
+    Director.construct(to, builder);
+    dom = builder.getResult();
+    compactXML = XMLUtility.convertXMLDocumentToCompactString(dom);
+  }
+
+  @Test
+  public void shouldAnswerAttributesFromXMLWithoutParsing() {
+    LazyHL7Document lazy = new LazyHL7Document(compactXML, true);
+    assertSameAttributes(lazy);
+    assertThat(lazy.isMaterialized(), is(false));
+
+    // The XML is stored as it is
+    assertThat(XMLUtility.convertXMLDocumentToCompactString(lazy), is(compactXML));
+    assertThat(lazy.isMaterialized(), is(false));
+  }
+
+  @Test
+  public void shouldAnswerAttributesFromBuilderWithoutParsing() {
+    LazyHL7Builder builder = new LazyHL7Builder();
+    Director.construct(to, builder);
+    LazyHL7Document lazy = (LazyHL7Document) builder.getResult();
+    assertSameAttributes(lazy);
+    assertThat(lazy.isMaterialized(), is(false));
+
+    // The tree built is the one of the HL7Builder
+    assertThat(XMLUtility.convertXMLDocumentToCompactString(lazy), is(compactXML));
+    assertThat(lazy.isMaterialized(), is(true));
+  }
+
+  @Test
+  public void shouldBuildTreeForOtherDOMMethods() {
+    LazyHL7Document lazy = new LazyHL7Document(compactXML, false);
+    assertThat(lazy.getDocumentElement().getNodeName(), is("ClinicalDocument"));
+    assertThat(lazy.isMaterialized(), is(true));
+    assertThat(lazy.isEqualNode(dom), is(true));
+
+    // Changes to the tree are seen by lookups and in the XML
+    Element time = (Element) lazy.getElementsByTagName("effectiveTime").item(0);
+    time.setAttribute("value", "20160501120000");
+    assertThat(XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc(
+        "value", 0, "effectiveTime", "ClinicalDocument", lazy), is("20160501120000"));
+    assertThat(XMLUtility.convertXMLDocumentToCompactString(lazy).contains("20160501120000"), is(true));
+  }
+
+  @Test
+  public void shouldScanBeyondCommentsAndEscapes() {
+    String xml = "<?xml version=\"1.0\"?><!-- <observation> --><ClinicalDocument>"
+        + "<component><observation><code code='a&amp;b &#65;'/><value value=\"1.0\">"
+        + "<![CDATA[<value value=\"2.0\"/>]]></value></observation>"
+        + "<observation><observation><value value=\"3.0\"/></observation><value value=\"4.0\"/>"
+        + "</observation></component></ClinicalDocument>";
+    LazyHL7Document lazy = new LazyHL7Document(xml, false);
+    Document parsed = XMLUtility.convertXMLStringToDocument(xml);
+    for (int i = 0; i < 3; i++) {
+      assertThat(lazy.lookupAttribute("value", i, "value", "observation"),
+          is(XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("value", i, "value", "observation", parsed)));
+    }
+    assertThat(lazy.lookupAttribute("code", 0, "code", "observation"), is("a&b A"));
+    assertThat(lazy.lookupAttribute("unit", 0, "value", "observation"), is(nullValue()));
+    assertThat(lazy.isMaterialized(), is(false));
+  }
+
+  private void assertSameAttributes(Document lazy) {
+    for (String[] lookup : LOOKUPS) {
+      int index = Integer.parseInt(lookup[1]);
+      assertThat(XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc(lookup[0], index, lookup[2], lookup[3], lazy),
+          is(XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc(lookup[0], index, lookup[2], lookup[3], dom)));
+    }
+  }
+}
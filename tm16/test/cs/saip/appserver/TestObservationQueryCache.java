@@ -0,0 +1,128 @@
+package cs.saip.appserver;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.time.*;
+import java.util.*;
+
+import org.junit.*;
+
+import cs.saip.authorization.AuthorizeAllStub;
+import cs.saip.domain.*;
+import cs.saip.storage.XDSBackend;
+import cs.saip.storage.memory.IndexedMemoryXDS;
+
+/**
+ * Test cases for the query result cache of the servant.
+ *
+ * @author Henrik Baerbak Christensen, Computer Science, Aarhus University
+ *
+ */
+public class TestObservationQueryCache {
+
+  private IndexedMemoryXDS xds;
+  private ObservationQueryCache cache;
+  private TeleMed telemed;
+  private LocalDateTime now;
+
+  @Before
+  public void setUp() {
+    xds = new IndexedMemoryXDS();
+    cache = new ObservationQueryCache(100, Duration.ofMinutes(5));
+    telemed = new TeleMedServant(xds, new AuthorizeAllStub(), cache);
+    now = LocalDateTime.now().withNano(0);
+  }
+
+  @Test
+  public void shouldSupportQueriesThroughServant() {
+    TestTeleMedServant.verifyQueries(telemed, xds);
+    TestTeleMedServant.validateModificationMethods(telemed);
+    TestTeleMedServant.verifyPagination(telemed);
+  }
+
+  @Test
+  public void shouldAnswerRepeatedPollsFromCache() {
+    store("pid001", 120, 2);
+    store("pid001", 130, 50);
+    store("pid001", 140, 60 * 24 * 20);
+
+    assertThat(systolicValuesFor("pid001", TimeInterval.LAST_WEEK), is(Arrays.asList(130.0, 120.0)));
+    assertThat(cache.getMissCount(), is(1L));
+    for (int i = 0; i < 10; i++) {
+      assertThat(systolicValuesFor("pid001", TimeInterval.LAST_WEEK), is(Arrays.asList(130.0, 120.0)));
+    }
+    // The other intervals are answered by the same entry
+    assertThat(systolicValuesFor("pid001", TimeInterval.LAST_DAY), is(Arrays.asList(130.0, 120.0)));
+    assertThat(systolicValuesFor("pid001", TimeInterval.LAST_MONTH), is(Arrays.asList(140.0, 130.0, 120.0)));
+    assertThat(systolicValuesFor("pid001", TimeInterval.LAST_DAY).size(), is(2));
+    assertThat(cache.getMissCount(), is(1L));
+    assertThat(cache.getHitCount(), is(13L));
+  }
+
+  @Test
+  public void shouldExtendCachedResultOnStore() {
+    store("pid001", 120, 60);
+    systolicValuesFor("pid001", TimeInterval.LAST_DAY);
+
+    store("pid001", 130, 1);
+    store("pid001", 125, 30);
+    // Another patient is not affected
+    store("pid002", 180, 1);
+
+    assertThat(systolicValuesFor("pid001", TimeInterval.LAST_DAY), is(Arrays.asList(120.0, 125.0, 130.0)));
+    assertThat(cache.getMissCount(), is(1L));
+  }
+
+  @Test
+  public void shouldInvalidateOnCorrectAndDelete() {
+    String id = store("pid001", 120, 60);
+    store("pid001", 130, 30);
+    systolicValuesFor("pid001", TimeInterval.LAST_DAY);
+
+    assertThat(telemed.correct(id, new TeleObservation("pid001", 121, 80), ""), is(true));
+    assertThat(systolicValuesFor("pid001", TimeInterval.LAST_DAY), is(Arrays.asList(121.0, 130.0)));
+    assertThat(cache.getMissCount(), is(2L));
+
+    assertThat(telemed.delete(id, ""), is(true));
+    assertThat(systolicValuesFor("pid001", TimeInterval.LAST_DAY), is(Arrays.asList(130.0)));
+    assertThat(cache.getMissCount(), is(3L));
+  }
+
+  @Test
+  public void shouldNotShareObservationsWithCallers() {
+    store("pid001", 120, 60);
+    List<TeleObservation> list = telemed.getObservationsFor("pid001", TimeInterval.LAST_DAY, "");
+    list.get(0).setTime(now.minusYears(1));
+    list.clear();
+
+    List<TeleObservation> again = telemed.getObservationsFor("pid001", TimeInterval.LAST_DAY, "");
+    assertThat(again.size(), is(1));
+    assertThat(again.get(0).getTime(), is(now.minusMinutes(60)));
+  }
+
+  @Test
+  public void shouldReloadAfterMaximalAge() {
+    cache = new ObservationQueryCache(100, Duration.ZERO);
+    telemed = new TeleMedServant(xds, new AuthorizeAllStub(), cache);
+    String uniqueId = store("pid001", 120, 60);
+    systolicValuesFor("pid001", TimeInterval.LAST_DAY);
+    // The change is not made through the servant
+    xds.correctDocument(uniqueId, XDSBackend.Operation.DELETE, null);
+    assertThat(systolicValuesFor("pid001", TimeInterval.LAST_DAY).size(), is(0));
+  }
+
+  private String store(String patientId, double systolic, int minutesAgo) {
+    TeleObservation to = new TeleObservation(patientId, systolic, 80);
+    to.setTime(now.minusMinutes(minutesAgo));
+    return telemed.processAndStore(to, "");
+  }
+
+  private List<Double> systolicValuesFor(String patientId, TimeInterval interval) {
+    List<Double> values = new ArrayList<>();
+    for (TeleObservation to : telemed.getObservationsFor(patientId, interval, "")) {
+      values.add(to.getSystolic().getValue());
+    }
+    return values;
+  }
+}
@@ -298,5 +298,201 @@ public class TestTeleMedServant {
         telemed.getObservationsFor("pid001", TimeInterval.LAST_DAY, "");
     assertThat(intervalTOList.size(), is(1));
   }
+
+  @Test
+  public void shouldPageThroughObservations() {
+    verifyPagination(telemed);
+  }
+
+  @Test
+  public void shouldComputeStatistics() {
+    verifyStatistics(telemed);
+  }
+
+  @Test
+  public void shouldGetObservationsByIds() {
+    verifyMultiGet(telemed);
+  }
+
+  @Test
+  public void shouldAuthorizeMultiGetOncePerPatient() {
+    List<String> ids = new ArrayList<>();
+    for (String patientId : new String[] { "pid001", "pid002", "pid001", "pid002", "pid001" }) {
+      ids.add(telemed.processAndStore(new TeleObservation(patientId, 120, 80), ""));
+    }
+    // Only pid001 may be read
+    List<String> asked = new ArrayList<>();
+    ((TeleMedServant) telemed).SetAuthorization(new AuthorizeAllStub() {
+      @Override
+      public Boolean allowReadPatientData(String token, String pId) {
+        asked.add(pId);
+        return pId.equals("pid001");
+      }
+    });
+
+    List<TeleObservation> found = telemed.getObservations(ids, "");
+    assertThat(asked, is(Arrays.asList("pid001", "pid002")));
+    assertThat(found.size(), is(5));
+    assertThat(found.get(0).getPatientId(), is("pid001"));
+    assertThat(found.get(1), is(nullValue()));
+    assertThat(found.get(3), is(nullValue()));
+    assertThat(found.get(4).getPatientId(), is("pid001"));
+  }
+
+  @Test
+  public void shouldQueryCohortOfPatients() {
+    verifyCohortQuery(telemed);
+  }
+
+  @Test
+  public void shouldDenyCohortQueryIfOnePatientIsDenied() {
+    telemed.processAndStore(new TeleObservation("pid001", 120, 80), "");
+    telemed.processAndStore(new TeleObservation("pid002", 130, 85), "");
+    ((TeleMedServant) telemed).SetAuthorization(new AuthorizeAllStub() {
+      @Override
+      public Boolean allowReadPatientData(String token, String pId) {
+        return !pId.equals("pid002");
+      }
+    });
+
+    assertThat(telemed.getObservationsForPatients(Arrays.asList("pid001", "pid002"), 
+        TimeInterval.LAST_DAY, ""), is(nullValue()));
+    assertThat(telemed.getObservationsForPatients(Arrays.asList("pid001"), 
+        TimeInterval.LAST_DAY, "").get("pid001").size(), is(1));
+  }
+
+  public static void verifyCohortQuery(TeleMed telemed) {
+    LocalDateTime now = LocalDateTime.now().withNano(0);
+    // Outside the last day
+    TeleObservation old = new TeleObservation("pid093", 200, 100);
+    old.setTime(now.minusDays(3));
+    telemed.processAndStore(old, "");
+    String[] patients = { "pid091", "pid092", "pid091", "pid093", "pid091", "pid092" };
+    for (int i = 0; i < patients.length; i++) {
+      TeleObservation to = new TeleObservation(patients[i], 120 + i, 80);
+      to.setTime(now.minusMinutes(30 - i));
+      telemed.processAndStore(to, "");
+    }
+
+    // Patients in the order asked for, each with the observations in time order
+    Map<String, List<TeleObservation>> observationsOfPatient = telemed.getObservationsForPatients(
+        Arrays.asList("pid093", "pid091", "pid094", "pid092"), TimeInterval.LAST_DAY, "");
+    assertThat(new ArrayList<>(observationsOfPatient.keySet()), 
+        is(Arrays.asList("pid093", "pid091", "pid094", "pid092")));
+    assertThat(systolicValuesOf(observationsOfPatient.get("pid091")), is(Arrays.asList(120.0, 122.0, 124.0)));
+    assertThat(systolicValuesOf(observationsOfPatient.get("pid092")), is(Arrays.asList(121.0, 125.0)));
+    assertThat(systolicValuesOf(observationsOfPatient.get("pid093")), is(Arrays.asList(123.0)));
+    assertThat(observationsOfPatient.get("pid094").size(), is(0));
+
+    observationsOfPatient = telemed.getObservationsForPatients(
+        Arrays.asList("pid093"), TimeInterval.LAST_WEEK, "");
+    assertThat(systolicValuesOf(observationsOfPatient.get("pid093")), is(Arrays.asList(200.0, 123.0)));
+  }
+
+  private static List<Double> systolicValuesOf(List<TeleObservation> observations) {
+    List<Double> values = new ArrayList<>();
+    for (TeleObservation to : observations) {
+      values.add(to.getSystolic().getValue());
+    }
+    return values;
+  }
+
+  public static void verifyMultiGet(TeleMed telemed) {
+    String id1 = telemed.processAndStore(new TeleObservation("pid081", 121, 81), "");
+    String id2 = telemed.processAndStore(new TeleObservation("pid082", 122, 82), "");
+    String id3 = telemed.processAndStore(new TeleObservation("pid081", 123, 83), "");
+    telemed.delete(id2, "");
+
+    // Missing ids leave gaps, and an id may be asked for twice
+    List<TeleObservation> found = telemed.getObservations(
+        Arrays.asList(id3, id2, id1, "no-such-id", id3), "");
+    assertThat(found.size(), is(5));
+    assertThat(found.get(0).getSystolic().getValue(), is(123.0));
+    assertThat(found.get(1), is(nullValue()));
+    assertThat(found.get(2).getSystolic().getValue(), is(121.0));
+    assertThat(found.get(2).getPatientId(), is("pid081"));
+    assertThat(found.get(3), is(nullValue()));
+    assertThat(found.get(4).getDiastolic().getValue(), is(83.0));
+
+    assertThat(telemed.getObservations(new ArrayList<String>(), "").size(), is(0));
+  }
+
+  public static void verifyStatistics(TeleMed telemed) {
+    LocalDateTime now = LocalDateTime.now().withNano(0);
+    double[] systolic = { 120, 130, 110, 150, 140 };
+    double[] diastolic = { 80, 85, 75, 95, 90 };
+    for (int i = 0; i < systolic.length; i++) {
+      TeleObservation to = new TeleObservation("pid077", systolic[i], diastolic[i]);
+      to.setTime(now.minusMinutes(10 + i));
+      telemed.processAndStore(to, "");
+    }
+    // Outside the last day and week, and another patient
+    TeleObservation old = new TeleObservation("pid077", 200, 100);
+    old.setTime(now.minusDays(10));
+    telemed.processAndStore(old, "");
+    TeleObservation other = new TeleObservation("pid078", 90, 60);
+    other.setTime(now.minusMinutes(5));
+    telemed.processAndStore(other, "");
+
+    List<QuantityStatistics> statistics = telemed.getStatisticsFor("pid077", TimeInterval.LAST_DAY, "");
+    assertThat(statistics.size(), is(2));
+    QuantityStatistics sys = statistics.get(0);
+    assertThat(sys.getCode(), is("MSC88019"));
+    assertThat(sys.getUnit(), is("mm(Hg)"));
+    assertThat(sys.getCount(), is(5L));
+    assertThat(sys.getMin(), is(110.0));
+    assertThat(sys.getMax(), is(150.0));
+    assertThat(sys.getMean(), is(130.0));
+    assertThat(sys.getMedian(), is(130.0));
+    // Nearest rank percentiles
+    assertThat(sys.getPercentile(5), is(110.0));
+    assertThat(sys.getPercentile(25), is(120.0));
+    assertThat(sys.getPercentile(75), is(140.0));
+    assertThat(sys.getPercentile(95), is(150.0));
+    QuantityStatistics dia = statistics.get(1);
+    assertThat(dia.getCode(), is("MSC88020"));
+    assertThat(dia.getMean(), is(85.0));
+
+    statistics = telemed.getStatisticsFor("pid077", TimeInterval.LAST_MONTH, "");
+    assertThat(statistics.get(0).getCount(), is(6L));
+    assertThat(statistics.get(0).getMax(), is(200.0));
+
+    // No measurements give no statistics
+    assertThat(telemed.getStatisticsFor("pid079", TimeInterval.LAST_DAY, "").size(), is(0));
+  }
+
+  public static void verifyPagination(TeleMed telemed) {
+    // Stored oldest first; two of them are made at the same time
+    LocalDateTime now = LocalDateTime.now().withNano(0);
+    double[] systolic = { 105, 103, 104, 102, 101 };
+    int[] minutesAgo = { 4, 3, 3, 2, 1 };
+    for (int i = 0; i < systolic.length; i++) {
+      TeleObservation to = new TeleObservation("pid042", systolic[i], 80);
+      to.setTime(now.minusMinutes(minutesAgo[i]));
+      telemed.processAndStore(to, "");
+    }
+
+    // Page through them, newest first
+    List<Double> values = new ArrayList<>();
+    ObservationPage page = telemed.getObservationPageFor("pid042", TimeInterval.LAST_DAY, 2, null, "");
+    assertThat(page.getObservations().size(), is(2));
+    page.getObservations().forEach( (to) -> values.add(to.getSystolic().getValue()) );
+    
+    page = telemed.getObservationPageFor("pid042", TimeInterval.LAST_DAY, 2, page.getContinuationToken(), "");
+    assertThat(page.getObservations().size(), is(2));
+    page.getObservations().forEach( (to) -> values.add(to.getSystolic().getValue()) );
+    
+    page = telemed.getObservationPageFor("pid042", TimeInterval.LAST_DAY, 2, page.getContinuationToken(), "");
+    assertThat(page.getObservations().size(), is(1));
+    assertThat(page.hasNextPage(), is(false));
+    page.getObservations().forEach( (to) -> values.add(to.getSystolic().getValue()) );
+
+    assertThat(values, is(Arrays.asList(101.0, 102.0, 104.0, 103.0, 105.0)));
+
+    // A page larger than the result has no next page
+    page = telemed.getObservationPageFor("pid042", TimeInterval.LAST_DAY, 20, null, "");
+    assertThat(page.getObservations().size(), is(5));
+    assertThat(page.getContinuationToken(), is(nullValue()));
+  }
   
 }
@@ -6,8 +6,9 @@ import java.time.LocalDateTime;
 
 import org.w3c.dom.Document;
 
-import cs.saip.appserver.XMLUtility;
+import cs.saip.appserver.*;
 import cs.saip.domain.*;
+import cs.saip.storage.*;
 
 /**
  * Container of methods that are used in multiple test cases to establish and
@@ -37,6 +38,46 @@ public class HelperMethods {
     return to;
   }
 
+  /** Create a tele observation of systolic over 80 for a patient at
+   * 12.00 May 1st 2016 plus as many minutes as the systolic value, so
+   * observations of different values get different times, in the
+   * order of the values.
+   */
+  public static TeleObservation observationAt(String patientId, double systolic) {
+    return observationAt(patientId, systolic, 
+        LocalDateTime.of(2016, 5, 1, 12, 0).plusMinutes((long) systolic));
+  }
+
+  /** Create a tele observation of systolic over 80 for a patient at
+   * the given time.
+   */
+  public static TeleObservation observationAt(String patientId, double systolic, LocalDateTime time) {
+    TeleObservation to = new TeleObservation(patientId, systolic, 80.0);
+    to.setTime(time);
+    return to;
+  }
+
+  /** Build the meta data of a tele observation. */
+  public static MetaData buildMetaData(TeleObservation to) {
+    MetadataBuilder mdBuilder = new MetadataBuilder();
+    Director.construct(to, mdBuilder);
+    return mdBuilder.getResult();
+  }
+
+  /** Build the HL7 document of a tele observation. */
+  public static Document buildHL7(TeleObservation to) {
+    HL7Builder hl7Builder = new HL7Builder();
+    Director.construct(to, hl7Builder);
+    return hl7Builder.getResult();
+  }
+
+  /** Store a tele observation in an XDS the way the servant does, and
+   * return the uniqueId of its document.
+   */
+  public static String store(XDSBackend xds, TeleObservation to) {
+    return xds.provideAndRegisterDocument(buildMetaData(to), buildHL7(to));
+  }
+
   /** Validate that an HL7 document contains the tags containing information
    * for Nancy's blood pressure of 120 over 70.
    * @param doc Document to validate
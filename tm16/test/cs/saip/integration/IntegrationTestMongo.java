@@ -66,5 +66,20 @@ public class IntegrationTestMongo {
     TestTeleMedServant.validateModificationMethods(telemed);
   }
 
+  @Test
+  public void shouldPageThroughObservations() {
+    TestTeleMedServant.verifyPagination(telemed);
+  }
+
+  @Test
+  public void shouldGetObservationsByIds() {
+    TestTeleMedServant.verifyMultiGet(telemed);
+  }
+
+  @Test
+  public void shouldQueryCohortOfPatients() {
+    TestTeleMedServant.verifyCohortQuery(telemed);
+  }
+
 
 }
@@ -61,6 +61,11 @@ public class TestScenario2016 {
     HelperMethods.assertThatDocumentRepresentsObservation120over70forNancy(stored);
   }
   
+  @Test
+  public void shouldPageFromClient() {
+    TestTeleMedServant.verifyPagination(teleMed);
+  }
+
   @Test
   public void shouldFetchFromClient() {
     TeleObservation to1, to2;
@@ -98,4 +103,19 @@ public class TestScenario2016 {
     TestTeleMedServant.validateModificationMethods(teleMed);
   }
 
+  @Test
+  public void shouldComputeStatisticsFromClient() {
+    TestTeleMedServant.verifyStatistics(teleMed);
+  }
+
+  @Test
+  public void shouldGetObservationsByIdsFromClient() {
+    TestTeleMedServant.verifyMultiGet(teleMed);
+  }
+
+  @Test
+  public void shouldQueryCohortOfPatientsFromClient() {
+    TestTeleMedServant.verifyCohortQuery(teleMed);
+  }
+
 }
@@ -0,0 +1,52 @@
+package cs.saip.storage;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.domain.TeleObservation;
+import cs.saip.storage.codec.*;
+
+/**
+ * Benchmark of the compression ratio and the encode and decode throughput of
+ * the dictionary codec. Not a test case; run it using 'ant benchmark.codec'.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class CodecBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int documents = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+    List<Document> hl7 = new ArrayList<>();
+    for (int i = 0; i < documents; i++) {
+      TeleObservation to = new TeleObservation("pid" + (i % 100), 120.0 + i % 40, 80.0 + i % 15);
+      to.setTime(LocalDateTime.of(2016, 5, 1, 12, 0).plusSeconds(37 * i));
+      HL7Builder hl7Builder = new HL7Builder();
+      Director.construct(to, hl7Builder);
+      hl7.add(hl7Builder.getResult());
+    }
+
+    // The first round warms up the JIT, the second is measured
+    DictionaryDeflateCodec codec = null;
+    long plainBytes = 0;
+    for (int round = 0; round < 2; round++) {
+      codec = new DictionaryDeflateCodec();
+      CompactXMLCodec plain = new CompactXMLCodec();
+      plainBytes = 0;
+      for (Document doc : hl7) {
+        plainBytes += plain.encode(doc).length;
+        codec.decode(codec.encode(doc));
+      }
+    }
+
+    System.out.println("=== Dictionary codec benchmark: " + documents + " documents ===");
+    System.out.println(String.format("  compact XML      %10.1f bytes/document", (double) plainBytes / documents));
+    System.out.println(String.format("  compression      %10.1f x", codec.getCompressionRatio()));
+    System.out.println(String.format("  encode           %10.1f MB/sec", codec.getEncodeThroughput()));
+    System.out.println(String.format("  decode           %10.1f MB/sec", codec.getDecodeThroughput()));
+  }
+}
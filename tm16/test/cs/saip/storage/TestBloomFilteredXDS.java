@@ -0,0 +1,221 @@
+package cs.saip.storage;
+
+import static cs.saip.helper.HelperMethods.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.stream.Stream;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.authorization.AuthorizeAllStub;
+import cs.saip.domain.*;
+import cs.saip.storage.memory.IndexedMemoryXDS;
+
+/**
+ * Test cases for the XDS that rules out queries of patients without
+ * documents by bloom filters.
+ *
+ * @author Henrik Baerbak Christensen, Computer Science, Aarhus University
+ *
+ */
+public class TestBloomFilteredXDS {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path directory;
+  private List<String> queried;
+  private IndexedMemoryXDS memory;
+  private BloomFilteredXDS xds;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = folder.getRoot().toPath();
+    queried = new ArrayList<>();
+    memory = new IndexedMemoryXDS() {
+      @Override
+      public List<Document> retriveDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+        queried.add(personID);
+        return super.retriveDocumentSet(personID, start, end);
+      }
+    };
+    xds = new BloomFilteredXDS(memory, directory, true, 0, null);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    xds.close();
+  }
+
+  @Test
+  public void shouldSupportQueriesThroughServant() {
+    TeleMed telemed = new TeleMedServant(xds, new AuthorizeAllStub());
+    TestTeleMedServant.verifyQueries(telemed, xds);
+    TestTeleMedServant.validateModificationMethods(telemed);
+    TestTeleMedServant.verifyPagination(telemed);
+    TestTeleMedServant.verifyMultiGet(telemed);
+    TestTeleMedServant.verifyCohortQuery(telemed);
+  }
+
+  @Test
+  public void shouldAnswerPatientsWithoutDocumentsWithoutQuery() {
+    store(xds, observationAt("pid001", 150.0));
+
+    assertThat(xds.retriveDocumentSet("pid002", base(), base().plusDays(1)).size(), is(0));
+    assertThat(xds.computeStatistics("pid002", base(), base().plusDays(1)).size(), is(0));
+    assertThat(xds.retriveDocumentPage("pid002", base(), base().plusDays(1), 10, null)
+        .getDocuments().size(), is(0));
+    try (Stream<Document> stream = xds.streamDocumentSet("pid002", base(), base().plusDays(1))) {
+      assertThat(stream.count(), is(0L));
+    }
+    assertThat(queried.isEmpty(), is(true));
+    assertThat(xds.getSkipCount(), is(4L));
+
+    assertThat(xds.retriveDocumentSet("pid001", base(), base().plusDays(1)).size(), is(1));
+    assertThat(queried, is(Arrays.asList("pid001")));
+  }
+
+  @Test
+  public void shouldRuleOutDaysWithoutDocumentsOfPatient() {
+    store(xds, observationAt("pid001", 150.0));
+    store(xds, observationAt("pid002", 150.0 + 3 * 24 * 60));
+
+    // pid001 is known, but has nothing the following days
+    assertThat(xds.retriveDocumentSet("pid001", base().plusDays(2), base().plusDays(5)).size(), is(0));
+    assertThat(xds.retriveDocumentSet("pid002", base().plusDays(2), base().plusDays(5)).size(), is(1));
+    assertThat(queried, is(Arrays.asList("pid002")));
+
+    // An interval of a day with a document may still be empty
+    assertThat(xds.retriveDocumentSet("pid001", base(), base().plusMinutes(60)).size(), is(0));
+    assertThat(xds.getSkipCount(), is(1L));
+    assertThat(xds.getObservedFalsePositiveRate(), is(0.5));
+  }
+
+  @Test
+  public void shouldRecoverFiltersFromLogAndSnapshot() throws IOException {
+    store(xds, observationAt("pid001", 150.0));
+    restart();
+    assertThat(xds.retriveDocumentSet("pid001", base(), base().plusDays(1)).size(), is(1));
+
+    // Closed without a snapshot, the patient is recovered from the log
+    store(xds, observationAt("pid002", 150.0));
+    xds = new BloomFilteredXDS(memory, directory, true, 0, null);
+    assertThat(xds.retriveDocumentSet("pid002", base(), base().plusDays(1)).size(), is(1));
+    assertThat(xds.retriveDocumentSet("pid003", base(), base().plusDays(1)).size(), is(0));
+    assertThat(xds.getPatientCount(), is(2L));
+  }
+
+  @Test
+  public void shouldRebuildFiltersFromSeed() throws IOException {
+    List<MetaData> stored = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      TeleObservation to = observationAt("pid10" + i, 120.0);
+      store(memory, to);
+      stored.add(buildMetaData(to));
+    }
+    xds.close();
+    xds = new BloomFilteredXDS(memory, folder.newFolder().toPath(), true, 0, stored::stream);
+
+    for (int i = 0; i < 10; i++) {
+      assertThat(xds.retriveDocumentSet("pid10" + i, base(), base().plusDays(1)).size(), is(1));
+    }
+    assertThat(xds.getPatientCount(), is(10L));
+    assertThat(xds.getSkipCount(), is(0L));
+  }
+
+  @Test
+  public void shouldRebuildFiltersWhenDocumentsWereStoredElsewhere() throws IOException {
+    List<MetaData> stored = new ArrayList<>();
+    xds.close();
+    xds = new BloomFilteredXDS(memory, directory, true, 0, stored::stream, memory::size);
+    TeleObservation first = observationAt("pid001", 150.0);
+    store(xds, first);
+    stored.add(buildMetaData(first));
+    xds.close();
+
+    // Another app server stores a document of a patient new to the filters
+    TeleObservation elsewhere = observationAt("pid002", 150.0);
+    store(memory, elsewhere);
+    stored.add(buildMetaData(elsewhere));
+    xds = new BloomFilteredXDS(memory, directory, true, 0, stored::stream, memory::size);
+    assertThat(xds.retriveDocumentSet("pid002", base(), base().plusDays(1)).size(), is(1));
+    assertThat(xds.getPatientCount(), is(2L));
+    assertThat(xds.getSkipCount(), is(0L));
+
+    // The filters are trusted when the count is unchanged
+    xds.close();
+    xds = new BloomFilteredXDS(memory, directory, true, 0, () -> {
+      throw new AssertionError("Should not rebuild");
+    }, memory::size);
+    assertThat(xds.retriveDocumentSet("pid001", base(), base().plusDays(1)).size(), is(1));
+  }
+
+  @Test
+  public void shouldAddDocumentsStoredElsewhereWhileRunning() throws IOException {
+    List<MetaData> stored = new ArrayList<>();
+    xds.close();
+    xds = new BloomFilteredXDS(memory, directory, true, 0, stored::stream, memory::size);
+    TeleObservation first = observationAt("pid001", 150.0);
+    store(xds, first);
+    stored.add(buildMetaData(first));
+    assertThat(xds.reseedIfStoredElsewhere(), is(false));
+
+    // Another app server stores a document while this one runs
+    TeleObservation elsewhere = observationAt("pid002", 150.0);
+    store(memory, elsewhere);
+    stored.add(buildMetaData(elsewhere));
+    assertThat(xds.reseedIfStoredElsewhere(), is(true));
+    assertThat(xds.retriveDocumentSet("pid002", base(), base().plusDays(1)).size(), is(1));
+    assertThat(xds.reseedIfStoredElsewhere(), is(false));
+  }
+
+  @Test
+  public void shouldNotCoverDocumentsStoredElsewhereInSnapshot() throws IOException {
+    List<MetaData> stored = new ArrayList<>();
+    xds.close();
+    xds = new BloomFilteredXDS(memory, directory, true, 0, stored::stream, memory::size);
+    TeleObservation elsewhere = observationAt("pid002", 150.0);
+    store(memory, elsewhere);
+    stored.add(buildMetaData(elsewhere));
+    // The snapshot counts only the documents stored through the filters, so
+    // the next start finds the difference
+    xds.close();
+    xds = new BloomFilteredXDS(memory, directory, true, 0, stored::stream, memory::size);
+    assertThat(xds.retriveDocumentSet("pid002", base(), base().plusDays(1)).size(), is(1));
+  }
+
+  @Test
+  public void shouldKeepFalsePositiveRateAsFilterGrows() {
+    ScalableBloomFilter filter = new ScalableBloomFilter(100, 0.01);
+    for (int i = 0; i < 10000; i++) {
+      filter.add("pid" + i);
+    }
+    for (int i = 0; i < 10000; i++) {
+      assertThat(filter.mightContain("pid" + i), is(true));
+    }
+    int falsePositives = 0;
+    for (int i = 10000; i < 20000; i++) {
+      falsePositives += filter.mightContain("pid" + i) ? 1 : 0;
+    }
+    assertThat(falsePositives < 100, is(true));
+    assertThat(filter.getFalsePositiveRate() < 0.01, is(true));
+    assertThat(xds.getFalsePositiveRate(), is(0.0));
+  }
+
+  private void restart() throws IOException {
+    xds.close();
+    xds = new BloomFilteredXDS(memory, directory, true, 0, null);
+  }
+
+  private LocalDateTime base() {
+    return LocalDateTime.of(2016, 5, 1, 12, 0);
+  }
+}
@@ -0,0 +1,196 @@
+package cs.saip.storage;
+
+import static cs.saip.helper.HelperMethods.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+import org.w3c.dom.*;
+
+import cs.saip.appserver.*;
+import cs.saip.authorization.AuthorizeAllStub;
+import cs.saip.domain.*;
+import cs.saip.storage.memory.*;
+
+/**
+ * Test cases for the document caching XDS.
+ *
+ * @author Henrik Baerbak Christensen, Computer Science, Aarhus University
+ *
+ */
+public class TestCachingXDS {
+
+  private IndexedMemoryXDS memory;
+  private CachingXDS xds;
+
+  @Before
+  public void setUp() {
+    memory = new IndexedMemoryXDS();
+    xds = new CachingXDS(memory, 100, 1024 * 1024);
+  }
+
+  @Test
+  public void shouldSupportQueriesThroughServant() {
+    TeleMed telemed = new TeleMedServant(xds, new AuthorizeAllStub());
+    TestTeleMedServant.verifyQueries(telemed, xds);
+    TestTeleMedServant.validateModificationMethods(telemed);
+    TestTeleMedServant.verifyPagination(telemed);
+    TestTeleMedServant.verifyMultiGet(telemed);
+    TestTeleMedServant.verifyCohortQuery(telemed);
+  }
+
+  @Test
+  public void shouldAnswerRepeatedReadsFromCache() {
+    String uniqueId = store(xds, observationAt("pid001", 150.0));
+    for (int i = 0; i < 10; i++) {
+      assertThat(valueOfSystolic(xds.retriveDocument(uniqueId)), is("150.0"));
+    }
+    assertThat(xds.getMissCount(), is(1L));
+    assertThat(xds.getHitCount(), is(9L));
+    assertThat(xds.getHitRate(), is(0.9));
+    assertThat(xds.size(), is(1));
+
+    // Unknown documents are not cached
+    assertThat(xds.retriveDocument("uid-4711"), is(nullValue()));
+    assertThat(xds.size(), is(1));
+  }
+
+  @Test
+  public void shouldFetchMissesOfMultiGetInOneCall() {
+    List<List<String>> fetches = new ArrayList<>();
+    xds = new CachingXDS(new IndexedMemoryXDS() {
+      @Override
+      public List<Document> retriveDocuments(List<String> uniqueIds) {
+        fetches.add(uniqueIds);
+        return super.retriveDocuments(uniqueIds);
+      }
+    }, 100, 1024 * 1024);
+    String a = store(xds, observationAt("pid001", 150.0));
+    String b = store(xds, observationAt("pid001", 151.0));
+    String c = store(xds, observationAt("pid002", 152.0));
+    xds.retriveDocument(a);
+
+    List<Document> read = xds.retriveDocuments(Arrays.asList(b, a, "uid-4711", c, b));
+    assertThat(fetches, is(Arrays.asList(Arrays.asList(b, "uid-4711", c))));
+    assertThat(valueOfSystolic(read.get(0)), is("151.0"));
+    assertThat(valueOfSystolic(read.get(1)), is("150.0"));
+    assertThat(read.get(2), is(nullValue()));
+    assertThat(valueOfSystolic(read.get(3)), is("152.0"));
+    assertThat(read.get(4) == read.get(0), is(false));
+    assertThat(xds.getHitCount(), is(1L));
+    assertThat(xds.getMissCount(), is(5L));
+
+    // The fetched documents are now cached
+    xds.retriveDocuments(Arrays.asList(c, b));
+    assertThat(fetches.size(), is(1));
+    assertThat(xds.size(), is(3));
+  }
+
+  @Test
+  public void shouldHandOutCopiesOnly() {
+    String uniqueId = store(xds, observationAt("pid001", 150.0));
+    xds.retriveDocument(uniqueId);
+    Document read = xds.retriveDocument(uniqueId);
+    Element value = (Element) read.getElementsByTagName("value").item(0);
+    value.setAttribute("value", "999.0");
+
+    assertThat(valueOfSystolic(xds.retriveDocument(uniqueId)), is("150.0"));
+    assertThat(valueOfSystolic(memory.retriveDocument(uniqueId)), is("150.0"));
+  }
+
+  @Test
+  public void shouldKeepLazyDocumentsUnparsed() {
+    // Documents backed by compact XML
+    xds = new CachingXDS(new IndexedMemoryXDS() {
+      @Override
+      public Document retriveDocument(String uniqueId) {
+        Document doc = super.retriveDocument(uniqueId);
+        return doc == null ? null : new LazyHL7Document(XMLUtility.convertXMLDocumentToCompactString(doc), true);
+      }
+    }, 100, 1024 * 1024);
+    verifyLazyReads(store(xds, observationAt("pid001", 150.0)));
+
+    // Documents backed by attributes
+    xds = new CachingXDS(new ColumnarObservationXDS(), 100, 1024 * 1024);
+    verifyLazyReads(store(xds, observationAt("pid001", 150.0)));
+  }
+
+  private void verifyLazyReads(String uniqueId) {
+    LazyHL7Document miss = (LazyHL7Document) xds.retriveDocument(uniqueId);
+    LazyHL7Document hit = (LazyHL7Document) xds.retriveDocuments(Arrays.asList(uniqueId)).get(0);
+    assertThat(xds.getHitCount(), is(1L));
+    assertThat(valueOfSystolic(miss), is("150.0"));
+    assertThat(valueOfSystolic(hit), is("150.0"));
+    assertThat(miss.isMaterialized(), is(false));
+    assertThat(hit.isMaterialized(), is(false));
+    assertThat(xds.sizeInBytes() > 0, is(true));
+
+    // A reader that changes the tree of its document changes no other
+    Element value = (Element) hit.getElementsByTagName("value").item(0);
+    value.setAttribute("value", "999.0");
+    LazyHL7Document again = (LazyHL7Document) xds.retriveDocument(uniqueId);
+    assertThat(valueOfSystolic(again), is("150.0"));
+    assertThat(again.isMaterialized(), is(false));
+  }
+
+  @Test
+  public void shouldInvalidateOnCorrection() {
+    String uniqueId = store(xds, observationAt("pid001", 150.0));
+    xds.retriveDocument(uniqueId);
+    xds.correctDocument(uniqueId, XDSBackend.Operation.UPDATE, buildHL7(observationAt("pid001", 151.0)));
+    assertThat(valueOfSystolic(xds.retriveDocument(uniqueId)), is("151.0"));
+
+    xds.correctDocument(uniqueId, XDSBackend.Operation.DELETE, null);
+    assertThat(xds.retriveDocument(uniqueId), is(nullValue()));
+    assertThat(xds.size(), is(0));
+  }
+
+  @Test
+  public void shouldKeepFrequentlyReadDocumentsDuringScan() {
+    List<String> hot = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      hot.add(store(xds, observationAt("pid001", 100.0 + i)));
+    }
+    for (int round = 0; round < 5; round++) {
+      for (String uniqueId : hot) {
+        xds.retriveDocument(uniqueId);
+      }
+    }
+    // A scan of far more documents than fit, each read once
+    for (int i = 0; i < 500; i++) {
+      xds.retriveDocument(store(xds, observationAt("pid002", 100.0 + i)));
+    }
+    assertThat(xds.size() <= 100, is(true));
+    assertThat(xds.getRejectionCount() > 0, is(true));
+
+    long hitsBefore = xds.getHitCount();
+    for (String uniqueId : hot) {
+      xds.retriveDocument(uniqueId);
+    }
+    assertThat(xds.getHitCount() - hitsBefore, is(50L));
+  }
+
+  @Test
+  public void shouldRespectByteBound() {
+    String first = store(xds, observationAt("pid001", 150.0));
+    xds.retriveDocument(first);
+    long oneDocument = xds.sizeInBytes();
+    assertThat(oneDocument > 0, is(true));
+
+    xds = new CachingXDS(memory, 100, 3 * oneDocument);
+    for (int i = 0; i < 10; i++) {
+      String uniqueId = store(xds, observationAt("pid001", 160.0 + i));
+      xds.retriveDocument(uniqueId);
+      xds.retriveDocument(uniqueId);
+    }
+    assertThat(xds.size() <= 3, is(true));
+    assertThat(xds.sizeInBytes() <= 3 * oneDocument, is(true));
+    assertThat(xds.getEvictionCount() + xds.getRejectionCount() >= 7, is(true));
+  }
+
+  private String valueOfSystolic(Document doc) {
+    return XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("value", 0, "value", "observation", doc);
+  }
+}
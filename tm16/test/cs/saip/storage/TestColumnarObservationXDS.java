@@ -0,0 +1,113 @@
+package cs.saip.storage;
+
+import static cs.saip.helper.HelperMethods.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+import org.junit.*;
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.authorization.AuthorizeAllStub;
+import cs.saip.domain.*;
+import cs.saip.helper.HelperMethods;
+import cs.saip.storage.memory.ColumnarObservationXDS;
+
+/**
+ * Test cases for the columnar in-memory XDS.
+ *
+ * @author Henrik Baerbak Christensen, Computer Science, Aarhus University
+ *
+ */
+public class TestColumnarObservationXDS {
+
+  private ColumnarObservationXDS xds;
+
+  @Before
+  public void setUp() {
+    xds = new ColumnarObservationXDS();
+  }
+
+  @Test
+  public void shouldRebuildEquivalentHL7Document() {
+    TeleObservation to = HelperMethods.createObservation120over70forNancy();
+    String uniqueId = store(xds, to);
+
+    Document stored = xds.retriveDocument(uniqueId);
+    HelperMethods.assertThatDocumentRepresentsObservation120over70forNancy(stored);
+
+    assertThat(xds.retriveDocument("obs-117"), is(nullValue()));
+    assertThat(xds.retriveDocument("uid-1"), is(nullValue()));
+  }
+
+  @Test
+  public void shouldSupportQueriesThroughServant() {
+    TeleMed telemed = new TeleMedServant(xds, new AuthorizeAllStub());
+    TestTeleMedServant.verifyQueries(telemed, xds);
+    TestTeleMedServant.validateModificationMethods(telemed);
+    TestTeleMedServant.verifyStatistics(telemed);
+  }
+
+  @Test
+  public void shouldScanPatientInTimeOrder() {
+    LocalDateTime base = LocalDateTime.of(2016, 5, 1, 12, 0);
+    // Stored out of time order, and interleaved with another patient
+    String last = store(xds, observationAt("pid001", 150.0, base.plusHours(3)));
+    store(xds, observationAt("pid001", 130.0, base.plusHours(1)));
+    store(xds, observationAt("pid002", 200.0, base.plusHours(2)));
+    store(xds, observationAt("pid001", 140.0, base.plusHours(2)));
+    store(xds, observationAt("pid001", 120.0, base));
+
+    final List<Double> values = new ArrayList<>();
+    long start = Utility.convertLocalDateTimeToUnixEpoch(base.plusHours(1));
+    long end = Utility.convertLocalDateTimeToUnixEpoch(base.plusHours(3));
+    xds.scan("pid001", start, end, (timestamp, sys, dia) -> values.add(sys));
+    assertThat(values, is(Arrays.asList(130.0, 140.0, 150.0)));
+
+    // Deleted rows are no longer visited
+    assertThat(xds.correctDocument(last, XDSBackend.Operation.DELETE, null), is(true));
+    values.clear();
+    xds.scan("pid001", start, end, (timestamp, sys, dia) -> values.add(sys));
+    assertThat(values, is(Arrays.asList(130.0, 140.0)));
+    assertThat(xds.size(), is(4));
+  }
+
+  @Test
+  public void shouldGrowBeyondASingleChunk() {
+    LocalDateTime base = LocalDateTime.of(2016, 5, 1, 12, 0);
+    MetaData md = new MetaData();
+    md.setPersonID("pid001");
+    Document hl7 = buildHL7(observationAt("pid001", 120.0, base));
+    int count = 70000;
+    String last = null;
+    for (int i = 0; i < count; i++) {
+      md.setTimestamp(Utility.convertLocalDateTimeToUnixEpoch(base.plusSeconds(i)));
+      last = xds.provideAndRegisterDocument(md, hl7);
+    }
+    final int[] visited = { 0 };
+    xds.scan("pid001", Long.MIN_VALUE, Long.MAX_VALUE, (timestamp, sys, dia) -> visited[0]++);
+    assertThat(visited[0], is(count));
+    assertThat(ObservationId.parse(last).getSequence(), is(count - 1L));
+    assertThat(xds.retriveDocument(last), is(notNullValue()));
+  }
+
+  @Test
+  public void shouldNotAppendRowWhoseIdIsRejected() {
+    TeleObservation early = observationAt("pid001", 120.0, LocalDateTime.of(1960, 5, 1, 12, 0));
+    try {
+      store(xds, early);
+      fail("Should reject a timestamp before the epoch");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertThat(xds.size(), is(0));
+    final int[] visited = { 0 };
+    xds.scan("pid001", Long.MIN_VALUE, Long.MAX_VALUE, (timestamp, sys, dia) -> visited[0]++);
+    assertThat(visited[0], is(0));
+    String id = store(xds, observationAt("pid001", 125.0));
+    assertThat(ObservationId.parse(id).getSequence(), is(0L));
+  }
+}
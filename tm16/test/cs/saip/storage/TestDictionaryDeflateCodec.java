@@ -0,0 +1,159 @@
+package cs.saip.storage;
+
+import static cs.saip.helper.HelperMethods.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.authorization.AuthorizeAllStub;
+import cs.saip.domain.*;
+import cs.saip.helper.HelperMethods;
+import cs.saip.storage.codec.*;
+import cs.saip.storage.file.LogStructuredXDS;
+import cs.saip.storage.registry.FileDocumentRepository;
+
+/**
+ * Test cases for the codec that deflates HL7 documents against a shared
+ * dictionary, alone and plugged into the file based XDSs.
+ *
+ * @author Henrik Baerbak Christensen, Computer Science, Aarhus University
+ *
+ */
+public class TestDictionaryDeflateCodec {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private DictionaryDeflateCodec codec;
+
+  @Before
+  public void setUp() {
+    codec = new DictionaryDeflateCodec();
+  }
+
+  @Test
+  public void shouldRoundTripDocuments() {
+    Document nancy = buildHL7(HelperMethods.createObservation120over70forNancy());
+    HelperMethods.assertThatDocumentRepresentsObservation120over70forNancy(codec.decode(codec.encode(nancy)));
+
+    Document other = buildHL7(observationAt("pid042", 187.5));
+    assertThat(valueOfSystolic(codec.decode(codec.encode(other))), is("187.5"));
+    assertThat(codec.getEncodeCount(), is(2L));
+    assertThat(codec.getDecodeCount(), is(2L));
+    assertThat(codec.getEncodeThroughput() > 0.0, is(true));
+    assertThat(codec.getDecodeThroughput() > 0.0, is(true));
+  }
+
+  @Test
+  public void shouldCompressFarBetterWithDictionary() {
+    Document doc = buildHL7(observationAt("pid007", 133.0));
+    int plainSize = new CompactXMLCodec().encode(doc).length;
+    int encodedSize = codec.encode(doc).length;
+
+    // Only the values that differ from the skeleton are left
+    assertThat("encoded " + encodedSize + " of " + plainSize, encodedSize * 4 < plainSize, is(true));
+    assertThat(codec.getCompressionRatio() > 4.0, is(true));
+  }
+
+  @Test
+  public void shouldTrainDictionaryWithSharedSkeletonLast() {
+    List<Document> samples = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      samples.add(buildHL7(observationAt("pid00" + i, 120.0 + i)));
+    }
+    String dictionary = new String(DictionaryDeflateCodec.train(samples, 32 * 1024));
+    // Tags in all samples end the dictionary, in document order
+    assertThat(dictionary.endsWith("</component></ClinicalDocument>"), is(true));
+    assertThat(dictionary.indexOf("pid000") < dictionary.indexOf("<ClinicalDocument>"), is(true));
+
+    byte[] small = DictionaryDeflateCodec.train(samples, 64);
+    assertThat(small.length, is(64));
+    assertThat(new String(small).endsWith("</ClinicalDocument>"), is(true));
+  }
+
+  @Test
+  public void shouldDecodePlainXML() {
+    Document doc = buildHL7(observationAt("pid001", 141.0));
+    assertThat(valueOfSystolic(codec.decode(new CompactXMLCodec().encode(doc))), is("141.0"));
+  }
+
+  @Test(expected = XDSException.class)
+  public void shouldRejectDocumentEncodedWithUnknownDictionary() {
+    DictionaryDeflateCodec other = new DictionaryDeflateCodec("<ClinicalDocument>".getBytes());
+    codec.decode(other.encode(buildHL7(observationAt("pid001", 141.0))));
+  }
+
+  @Test
+  public void shouldSelectDictionaryByIdWhenDecoding() {
+    DictionaryDeflateCodec other = new DictionaryDeflateCodec("<ClinicalDocument>".getBytes());
+    byte[] encoded = codec.encode(buildHL7(observationAt("pid001", 141.0)));
+    // Encoded with the shipped dictionary, which every codec knows
+    assertThat(valueOfSystolic(other.decode(encoded)), is("141.0"));
+  }
+
+  @Test
+  public void shouldNeverChangeShippedDictionary() {
+    // Documents stored with version 1 must stay readable
+    assertThat(new DictionaryDeflateCodec(1).getDictionaryId(), is(0xf79c911d));
+    assertThat(codec.getDictionaryId(), is(0xf79c911d));
+  }
+
+  @Test(expected = XDSException.class)
+  public void shouldRejectTruncatedDocument() {
+    byte[] encoded = codec.encode(buildHL7(observationAt("pid001", 141.0)));
+    codec.decode(Arrays.copyOf(encoded, encoded.length / 2));
+  }
+
+  @Test
+  public void shouldSupportQueriesThroughServantInLogStructuredXDS() throws IOException {
+    try (LogStructuredXDS xds = new LogStructuredXDS(folder.getRoot().toPath(), 4096, 0.5, 0, codec)) {
+      TeleMed telemed = new TeleMedServant(xds, new AuthorizeAllStub());
+      TestTeleMedServant.verifyQueries(telemed, xds);
+      TestTeleMedServant.validateModificationMethods(telemed);
+      TestTeleMedServant.verifyPagination(telemed);
+    }
+  }
+
+  @Test
+  public void shouldReadPlainLogAfterSwitchingToCodec() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    String plain;
+    try (LogStructuredXDS xds = new LogStructuredXDS(directory, 4096, 0.5, 0)) {
+      plain = store(xds, observationAt("pid001", 150.0));
+    }
+    String compressed;
+    try (LogStructuredXDS xds = new LogStructuredXDS(directory, 4096, 0.5, 0, codec)) {
+      assertThat(valueOfSystolic(xds.retriveDocument(plain)), is("150.0"));
+      compressed = store(xds, observationAt("pid001", 160.0));
+    }
+    try (LogStructuredXDS xds = new LogStructuredXDS(directory, 4096, 0.5, 0, codec)) {
+      assertThat(valueOfSystolic(xds.retriveDocument(plain)), is("150.0"));
+      assertThat(valueOfSystolic(xds.retriveDocument(compressed)), is("160.0"));
+      LocalDateTime base = LocalDateTime.of(2016, 5, 1, 12, 0);
+      assertThat(xds.retriveDocumentSet("pid001", base, base.plusDays(1)).size(), is(2));
+    }
+  }
+
+  @Test
+  public void shouldStoreEncodedFilesInRepository() throws IOException {
+    FileDocumentRepository repository = new FileDocumentRepository("file", folder.getRoot().toPath(), codec);
+    String id = repository.store(buildHL7(observationAt("pid001", 150.0)));
+    assertThat(valueOfSystolic(repository.fetch(id)), is("150.0"));
+    assertThat(repository.replace(id, buildHL7(observationAt("pid001", 151.0))), is(true));
+    assertThat(valueOfSystolic(repository.fetch(id)), is("151.0"));
+    assertThat(codec.getEncodeCount(), is(2L));
+  }
+
+  private String valueOfSystolic(Document doc) {
+    return XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("value", 0, "value", "observation", doc);
+  }
+}
@@ -0,0 +1,176 @@
+package cs.saip.storage;
+
+import static cs.saip.helper.HelperMethods.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.authorization.AuthorizeAllStub;
+import cs.saip.domain.*;
+import cs.saip.helper.HelperMethods;
+import cs.saip.storage.memory.DurableMemoryXDS;
+import cs.saip.storage.wal.*;
+
+/**
+ * Test cases for the write-ahead logged in-memory XDS.
+ *
+ * @author Henrik Baerbak Christensen, Computer Science, Aarhus University
+ *
+ */
+public class TestDurableMemoryXDS {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path directory;
+  private DurableMemoryXDS xds;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = folder.getRoot().toPath();
+    xds = new DurableMemoryXDS(directory, FsyncPolicy.GROUP_COMMIT, 2, 0);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    xds.close();
+  }
+
+  @Test
+  public void shouldSupportQueriesThroughServant() {
+    TeleMed telemed = new TeleMedServant(xds, new AuthorizeAllStub());
+    TestTeleMedServant.verifyQueries(telemed, xds);
+    TestTeleMedServant.validateModificationMethods(telemed);
+    TestTeleMedServant.verifyPagination(telemed);
+  }
+
+  @Test
+  public void shouldRecoverFromLogAlone() throws IOException {
+    List<String> ids = storeAndCorrect();
+    restart();
+    verifyStoredAndCorrected(ids);
+  }
+
+  @Test
+  public void shouldRecoverFromSnapshotAndLogTail() throws IOException {
+    List<String> ids = storeAndCorrect();
+    xds.snapshot();
+    // Changes after the snapshot are only in the log
+    String after = store(xds, observationAt("pid002", 170.0));
+    xds.correctDocument(ids.get(0), XDSBackend.Operation.DELETE, null);
+
+    restart();
+
+    assertThat(xds.retriveDocument(ids.get(0)), is(nullValue()));
+    assertThat(valueOfSystolic(xds.retriveDocument(ids.get(1))), is("151.0"));
+    assertThat(valueOfSystolic(xds.retriveDocument(after)), is("170.0"));
+    assertThat(xds.size(), is(2));
+
+    // Only the tail since the snapshot is left in the log
+    try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory.resolve("wal"))) {
+      int count = 0;
+      for (Path p : logs) { count++; }
+      assertThat(count, is(1));
+    }
+  }
+
+  @Test
+  public void shouldIgnoreTornRecordAtEndOfLog() throws IOException {
+    List<String> ids = storeAndCorrect();
+    xds.close();
+    // Simulate a crash in the middle of an append
+    Path log = Files.newDirectoryStream(directory.resolve("wal")).iterator().next();
+    try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 3);
+    }
+    xds = new DurableMemoryXDS(directory, FsyncPolicy.GROUP_COMMIT, 2, 0);
+    // The last record, the delete, is lost; the rest is recovered
+    HelperMethods.assertThatDocumentRepresentsObservation120over70forNancy(xds.retriveDocument(ids.get(0)));
+    assertThat(valueOfSystolic(xds.retriveDocument(ids.get(1))), is("151.0"));
+    assertThat(valueOfSystolic(xds.retriveDocument(ids.get(2))), is("160.0"));
+    // and new records are appended after the cut
+    String next = store(xds, observationAt("pid001", 180.0));
+    restart();
+    assertThat(valueOfSystolic(xds.retriveDocument(next)), is("180.0"));
+  }
+
+  @Test
+  public void shouldRecoverBatchFromLog() throws IOException {
+    List<DocumentSubmission> batch = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      TeleObservation to = observationAt("pid001", 120.0 + i);
+      MetadataBuilder mdBuilder = new MetadataBuilder();
+      Director.construct(to, mdBuilder);
+      batch.add(new DocumentSubmission(mdBuilder.getResult(), buildHL7(to)));
+    }
+    List<String> ids = xds.provideAndRegisterDocuments(batch);
+    assertThat(ids.size(), is(10));
+    assertThat(new HashSet<>(ids).size(), is(10));
+
+    restart();
+    for (int i = 0; i < 10; i++) {
+      assertThat(valueOfSystolic(xds.retriveDocument(ids.get(i))), is((120.0 + i) + ""));
+    }
+  }
+
+  @Test
+  public void shouldGroupCommitConcurrentWriters() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(16);
+    List<Future<String>> futures = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      final double value = 100.0 + i;
+      futures.add(pool.submit(() -> store(xds, observationAt("pid00" + ((int) value % 4), value))));
+    }
+    // Snapshot while the writers are busy
+    xds.snapshot();
+    Set<String> ids = new HashSet<>();
+    for (Future<String> f : futures) {
+      ids.add(f.get(30, TimeUnit.SECONDS));
+    }
+    pool.shutdown();
+    assertThat(ids.size(), is(200));
+
+    restart();
+    assertThat(xds.size(), is(200));
+  }
+
+  private List<String> storeAndCorrect() {
+    String nancy = store(xds, HelperMethods.createObservation120over70forNancy());
+    String updated = store(xds, observationAt("pid001", 150.0));
+    String deleted = store(xds, observationAt("pid001", 160.0));
+    xds.correctDocument(updated, XDSBackend.Operation.UPDATE, buildHL7(observationAt("pid001", 151.0)));
+    xds.correctDocument(deleted, XDSBackend.Operation.DELETE, null);
+    return Arrays.asList(nancy, updated, deleted);
+  }
+
+  private void verifyStoredAndCorrected(List<String> ids) {
+    HelperMethods.assertThatDocumentRepresentsObservation120over70forNancy(xds.retriveDocument(ids.get(0)));
+    assertThat(valueOfSystolic(xds.retriveDocument(ids.get(1))), is("151.0"));
+    assertThat(xds.retriveDocument(ids.get(2)), is(nullValue()));
+    assertThat(xds.size(), is(2));
+    LocalDateTime base = LocalDateTime.of(2016, 5, 1, 12, 0);
+    assertThat(xds.retriveDocumentSet("pid001", base, base.plusDays(1)).size(), is(1));
+    // Unique ids are never handed out twice
+    assertThat(ids.contains(store(xds, observationAt("pid001", 170.0))), is(false));
+  }
+
+  private void restart() throws IOException {
+    xds.close();
+    xds = new DurableMemoryXDS(directory, FsyncPolicy.GROUP_COMMIT, 2, 0);
+  }
+
+  private String valueOfSystolic(Document doc) {
+    return XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("value", 0, "value", "observation", doc);
+  }
+}
@@ -33,7 +33,8 @@ public class TestFakeXDS {
     // Store it and validate generated ID
     String uniqueId = xds.provideAndRegisterDocument(md, hl7);
     
-    assertThat(uniqueId, is("uid-1"));
+    assertThat(ObservationId.parse(uniqueId).getSequence(), is(1L));
+    assertThat(ObservationId.parse(uniqueId).getTimestamp(), is(md.getTimestamp()));
     
     // Retrieve based upon ID
     Document stored = xds.retriveDocument(uniqueId);
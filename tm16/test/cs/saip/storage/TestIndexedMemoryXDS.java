@@ -0,0 +1,174 @@
+package cs.saip.storage;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.authorization.AuthorizeAllStub;
+import cs.saip.domain.*;
+import cs.saip.storage.memory.IndexedMemoryXDS;
+
+/**
+ * Test cases for the indexed in-memory XDS.
+ *
+ * @author Henrik Baerbak Christensen, Computer Science, Aarhus University
+ *
+ */
+public class TestIndexedMemoryXDS {
+
+  private IndexedMemoryXDS xds;
+  private MetaData md;
+  private Document hl7;
+
+  @Before
+  public void setUp() {
+    xds = new IndexedMemoryXDS();
+  }
+
+  @Test
+  public void shouldSupportStoreFetchRoundTrip() {
+    TeleObservation to = new TeleObservation("bjarne", 128.0, 89.0);
+    buildMdAndHl7For(to);
+
+    String uniqueId = xds.provideAndRegisterDocument(md, hl7);
+    Document stored = xds.retriveDocument(uniqueId);
+    assertThat(stored, is(notNullValue()));
+    assertThat(valueOfSystolic(stored), is("128.0"));
+
+    // UPDATING existing teleobs
+    to = new TeleObservation("bjarne", 132.0, 91.0);
+    buildMdAndHl7For(to);
+    assertThat(xds.correctDocument(uniqueId, XDSBackend.Operation.UPDATE, hl7), is(true));
+    assertThat(valueOfSystolic(xds.retriveDocument(uniqueId)), is("132.0"));
+    assertThat(xds.correctDocument("non-existing-id", XDSBackend.Operation.UPDATE, hl7), is(false));
+
+    // DELETING existing teleobs, second delete is not valid
+    assertThat(xds.correctDocument(uniqueId, XDSBackend.Operation.DELETE, null), is(true));
+    assertThat(xds.correctDocument(uniqueId, XDSBackend.Operation.DELETE, null), is(false));
+    assertThat(xds.retriveDocument(uniqueId), is(nullValue()));
+    assertThat(xds.size(), is(0));
+  }
+
+  @Test
+  public void shouldSupportQueriesThroughServant() {
+    TeleMed telemed = new TeleMedServant(xds, new AuthorizeAllStub());
+    TestTeleMedServant.verifyQueries(telemed, xds);
+    TestTeleMedServant.validateModificationMethods(telemed);
+    TestTeleMedServant.verifyPagination(telemed);
+    TestTeleMedServant.verifyStatistics(telemed);
+  }
+
+  @Test(expected = XDSException.class)
+  public void shouldRejectInvalidContinuationToken() {
+    LocalDateTime now = LocalDateTime.now();
+    xds.retriveDocumentPage("pid001", now.minusDays(1), now, 10, "not-a-token");
+  }
+
+  @Test
+  public void shouldReturnIntervalInTimeOrderAndInclusive() {
+    LocalDateTime base = LocalDateTime.of(2016, 5, 1, 12, 0);
+    // Store out of time order, and two at the exact same time
+    storeAt("pid001", base.plusHours(2), 140.0);
+    storeAt("pid001", base, 120.0);
+    storeAt("pid001", base.plusHours(1), 130.0);
+    storeAt("pid001", base.plusHours(1), 131.0);
+    storeAt("pid002", base.plusHours(1), 200.0);
+
+    List<Document> list = xds.retriveDocumentSet("pid001", base, base.plusHours(1));
+    assertThat(list.size(), is(3));
+    assertThat(valueOfSystolic(list.get(0)), is("120.0"));
+    assertThat(valueOfSystolic(list.get(1)), is("130.0"));
+    assertThat(valueOfSystolic(list.get(2)), is("131.0"));
+
+    assertThat(xds.retriveDocumentSet("pid003", base, base.plusDays(1)).size(), is(0));
+    assertThat(xds.retriveDocumentSet("pid001", base.plusHours(1), base).size(), is(0));
+  }
+
+  @Test
+  public void shouldNotLoseWritesUnderConcurrentLoad() throws Exception {
+    final int threads = 32;
+    final int documentsPerThread = 500;
+    final LocalDateTime base = LocalDateTime.of(2016, 5, 1, 12, 0);
+    // The same document instance is shared, DOM trees are not thread safe
+    // to read, so the readers below only count
+    buildMdAndHl7For(new TeleObservation("pid000", 120.0, 80.0));
+    final Document shared = hl7;
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    final CountDownLatch startSignal = new CountDownLatch(1);
+    List<Future<List<String>>> results = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final int threadNo = t;
+      results.add(pool.submit(() -> {
+        startSignal.await();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < documentsPerThread; i++) {
+          // Eight patients, so threads contend on the same partitions
+          String patientId = "pid00" + (i % 8);
+          MetaData meta = new MetaData();
+          meta.setPersonID(patientId);
+          meta.setTimestamp(Utility.convertLocalDateTimeToUnixEpoch(base.plusSeconds(i)));
+          String uid = xds.provideAndRegisterDocument(meta, shared);
+          ids.add(uid);
+          // Every thread deletes its own every tenth, and updates others
+          if (i % 10 == 0) {
+            assertThat(xds.correctDocument(uid, XDSBackend.Operation.DELETE, null), is(true));
+          } else if (i % 10 == 1) {
+            assertThat(xds.correctDocument(uid, XDSBackend.Operation.UPDATE, shared), is(true));
+          }
+          if (threadNo % 4 == 0) {
+            xds.retriveDocumentSet(patientId, base, base.plusDays(1)).size();
+          }
+        }
+        return ids;
+      }));
+    }
+    startSignal.countDown();
+
+    Set<String> allIds = new HashSet<>();
+    for (Future<List<String>> f : results) {
+      allIds.addAll(f.get(60, TimeUnit.SECONDS));
+    }
+    pool.shutdown();
+
+    // All generated ids are distinct, and no write is lost
+    int total = threads * documentsPerThread;
+    int expected = total - total / 10;
+    assertThat(allIds.size(), is(total));
+    assertThat(xds.size(), is(expected));
+
+    int sumOfQueries = 0;
+    for (int p = 0; p < 8; p++) {
+      sumOfQueries += xds.retriveDocumentSet("pid00" + p, base, base.plusDays(1)).size();
+    }
+    assertThat(sumOfQueries, is(expected));
+  }
+
+  private String storeAt(String patientId, LocalDateTime time, double systolic) {
+    TeleObservation to = new TeleObservation(patientId, systolic, 80.0);
+    to.setTime(time);
+    buildMdAndHl7For(to);
+    return xds.provideAndRegisterDocument(md, hl7);
+  }
+
+  private String valueOfSystolic(Document doc) {
+    return XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("value", 0, "value", "observation", doc);
+  }
+
+  private void buildMdAndHl7For(TeleObservation to) {
+    MetadataBuilder mdBuilder = new MetadataBuilder();
+    Director.construct(to, mdBuilder);
+    md = mdBuilder.getResult();
+
+    HL7Builder hl7Builder = new HL7Builder();
+    Director.construct(to, hl7Builder);
+    hl7 = hl7Builder.getResult();
+  }
+}
@@ -0,0 +1,251 @@
+package cs.saip.storage;
+
+import static cs.saip.helper.HelperMethods.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.authorization.AuthorizeAllStub;
+import cs.saip.domain.*;
+import cs.saip.helper.HelperMethods;
+import cs.saip.storage.codec.CompactXMLCodec;
+import cs.saip.storage.lsm.LSMTreeXDS;
+import cs.saip.storage.wal.FsyncPolicy;
+
+/**
+ * Test cases for the log-structured merge-tree XDS. The memtable and levels
+ * are tiny, so a few documents are enough to flush and compact.
+ *
+ * @author Henrik Baerbak Christensen, Computer Science, Aarhus University
+ *
+ */
+public class TestLSMTreeXDS {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path directory;
+  private LSMTreeXDS xds;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = folder.getRoot().toPath();
+    xds = open();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    xds.close();
+  }
+
+  @Test
+  public void shouldSupportQueriesThroughServant() {
+    TeleMed telemed = new TeleMedServant(xds, new AuthorizeAllStub());
+    TestTeleMedServant.verifyQueries(telemed, xds);
+    TestTeleMedServant.validateModificationMethods(telemed);
+    TestTeleMedServant.verifyPagination(telemed);
+    TestTeleMedServant.verifyMultiGet(telemed);
+    TestTeleMedServant.verifyCohortQuery(telemed);
+  }
+
+  @Test
+  public void shouldRecoverMemtableFromLogAfterRestart() throws IOException {
+    String nancy = store(xds, HelperMethods.createObservation120over70forNancy());
+    String updated = store(xds, observationAt("pid001", 150.0));
+    String deleted = store(xds, observationAt("pid001", 160.0));
+    xds.correctDocument(updated, XDSBackend.Operation.UPDATE, buildHL7(observationAt("pid001", 151.0)));
+    xds.correctDocument(deleted, XDSBackend.Operation.DELETE, null);
+    assertThat(xds.tableCount(0), is(0));
+
+    restart();
+
+    HelperMethods.assertThatDocumentRepresentsObservation120over70forNancy(xds.retriveDocument(nancy));
+    assertThat(valueOfSystolic(xds.retriveDocument(updated)), is("151.0"));
+    assertThat(xds.retriveDocument(deleted), is(nullValue()));
+
+    // Unique ids are never handed out twice
+    String next = store(xds, observationAt("pid001", 170.0));
+    assertThat(Arrays.asList(nancy, updated, deleted).contains(next), is(false));
+  }
+
+  @Test
+  public void shouldFlushFullMemtableToTables() throws IOException {
+    List<String> ids = storeMany("pid001", 12);
+    assertThat(totalTableCount() > 0, is(true));
+    verifyMany(ids);
+
+    restart();
+
+    verifyMany(ids);
+    assertThat(xds.retriveDocumentSet("pid001", base(), base().plusDays(1)).size(), is(12));
+    // Unique ids are never handed out twice, even when the log is truncated
+    assertThat(ids.contains(store(xds, observationAt("pid001", 170.0))), is(false));
+  }
+
+  @Test
+  public void shouldCompactLevelsAndDropTombstones() throws IOException {
+    List<String> ids = storeMany("pid001", 40);
+    // Correct them all, and delete half
+    for (int i = 0; i < 40; i++) {
+      if (i % 2 == 0) {
+        xds.correctDocument(ids.get(i), XDSBackend.Operation.DELETE, null);
+      } else {
+        xds.correctDocument(ids.get(i), XDSBackend.Operation.UPDATE, buildHL7(observationAt("pid001", 200.0 + i)));
+      }
+    }
+    xds.flush();
+    xds.compact();
+
+    assertThat(xds.getCompactionCount() > 0, is(true));
+    assertThat(xds.tableCount(0) < 4, is(true));
+    assertThat(xds.tableCount(1) + xds.tableCount(2) > 0, is(true));
+    // Compaction rewrites the data, so it is written more than once
+    assertThat(xds.getWriteAmplification() > 1.0, is(true));
+
+    verifyAfterCorrections(ids);
+    restart();
+    verifyAfterCorrections(ids);
+  }
+
+  @Test
+  public void shouldReturnDocumentsInTimeOrderAcrossTables() throws IOException {
+    // Stored out of time order, and spread over the memtable and the tables
+    for (double value : new double[] { 150.0, 120.0, 140.0, 130.0 }) {
+      store(xds, observationAt("pid001", value));
+      xds.flush();
+    }
+    store(xds, observationAt("pid001", 125.0));
+    store(xds, observationAt("pid002", 135.0));
+
+    List<String> values = new ArrayList<>();
+    for (Document doc : xds.retriveDocumentSet("pid001", base(), base().plusDays(1))) {
+      values.add(valueOfSystolic(doc));
+    }
+    assertThat(values, is(Arrays.asList("120.0", "125.0", "130.0", "140.0", "150.0")));
+
+    // The interval is inclusive in both ends
+    values.clear();
+    for (Document doc : xds.retriveDocumentSet("pid001", base().plusMinutes(125), base().plusMinutes(140))) {
+      values.add(valueOfSystolic(doc));
+    }
+    assertThat(values, is(Arrays.asList("125.0", "130.0", "140.0")));
+  }
+
+  @Test
+  public void shouldPageNewestFirstByKeyAcrossTables() throws IOException {
+    List<String> ids = storeMany("pid001", 30);
+    storeMany("pid002", 5);
+    xds.correctDocument(ids.get(3), XDSBackend.Operation.DELETE, null);
+    xds.flush();
+    xds.correctDocument(ids.get(20), XDSBackend.Operation.DELETE, null);
+    store(xds, observationAt("pid001", 100.5));
+    assertThat(totalTableCount() > 1, is(true));
+
+    List<String> expected = new ArrayList<>();
+    for (int i = 29; i >= 0; i--) {
+      if (i != 3 && i != 20) {
+        expected.add("" + (100.0 + i));
+      }
+      if (i == 0) {
+        expected.add(expected.size() - 1, "100.5");
+      }
+    }
+    List<String> values = new ArrayList<>();
+    String token = null;
+    do {
+      DocumentPage page = xds.retriveDocumentPage("pid001", base(), base().plusDays(1), 4, token);
+      assertThat(page.getDocuments().size() <= 4, is(true));
+      page.getDocuments().forEach(doc -> values.add(valueOfSystolic(doc)));
+      token = page.getContinuationToken();
+      if (token != null) {
+        // A key, not an offset
+        assertThat(DocumentPage.uniqueIdOf(token), is(notNullValue()));
+      }
+    } while (token != null);
+    assertThat(values, is(expected));
+
+    // The interval bounds the pages too
+    DocumentPage page = xds.retriveDocumentPage("pid001", base().plusMinutes(110), base().plusMinutes(112), 10, null);
+    assertThat(page.getDocuments().size(), is(3));
+    assertThat(valueOfSystolic(page.getDocuments().get(0)), is("112.0"));
+    assertThat(page.getContinuationToken(), is(nullValue()));
+  }
+
+  @Test
+  public void shouldSkipTablesByBloomFilter() throws IOException {
+    // Each table holds the documents of one patient; the id entries sort
+    // first, so the tables of later patients overlap the range of pid000
+    for (int p = 0; p < 3; p++) {
+      store(xds, observationAt("pid00" + p, 120.0));
+      xds.flush();
+    }
+    assertThat(xds.tableCount(0), is(3));
+
+    assertThat(xds.retriveDocumentSet("pid000", base(), base().plusDays(1)).size(), is(1));
+    // Only the table of pid000 is read, the others are ruled out by their
+    // bloom filters
+    assertThat(xds.getBloomFilterSkipCount(), is(2L));
+    assertThat(xds.getReadAmplification(), is(1.0));
+    assertThat(xds.toString(), containsString("bloom filter skips"));
+  }
+
+  private void verifyMany(List<String> ids) {
+    for (int i = 0; i < ids.size(); i++) {
+      assertThat(valueOfSystolic(xds.retriveDocument(ids.get(i))), is("" + (100.0 + i)));
+    }
+  }
+
+  private void verifyAfterCorrections(List<String> ids) {
+    for (int i = 0; i < ids.size(); i++) {
+      Document doc = xds.retriveDocument(ids.get(i));
+      if (i % 2 == 0) {
+        assertThat(doc, is(nullValue()));
+      } else {
+        assertThat(valueOfSystolic(doc), is("" + (200.0 + i)));
+      }
+    }
+    assertThat(xds.retriveDocumentSet("pid001", base(), base().plusDays(1)).size(), is(ids.size() / 2));
+  }
+
+  private List<String> storeMany(String patientId, int count) {
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      ids.add(store(xds, observationAt(patientId, 100.0 + i)));
+    }
+    return ids;
+  }
+
+  private int totalTableCount() {
+    int count = 0;
+    for (int level = 0; level < 7; level++) {
+      count += xds.tableCount(level);
+    }
+    return count;
+  }
+
+  private LSMTreeXDS open() throws IOException {
+    return new LSMTreeXDS(directory, 4096, 8192, FsyncPolicy.EVERY_WRITE, 5, new CompactXMLCodec(), false);
+  }
+
+  private void restart() throws IOException {
+    xds.close();
+    xds = open();
+  }
+
+  private LocalDateTime base() {
+    return LocalDateTime.of(2016, 5, 1, 12, 0);
+  }
+
+  private String valueOfSystolic(Document doc) {
+    return XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("value", 0, "value", "observation", doc);
+  }
+}
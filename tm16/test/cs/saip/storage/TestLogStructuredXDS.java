@@ -0,0 +1,183 @@
+package cs.saip.storage;
+
+import static cs.saip.helper.HelperMethods.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.stream.Stream;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.authorization.AuthorizeAllStub;
+import cs.saip.domain.*;
+import cs.saip.helper.HelperMethods;
+import cs.saip.storage.file.LogStructuredXDS;
+
+/**
+ * Test cases for the append-only, file based XDS.
+ *
+ * @author Henrik Baerbak Christensen, Computer Science, Aarhus University
+ *
+ */
+public class TestLogStructuredXDS {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path directory;
+  private LogStructuredXDS xds;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = folder.getRoot().toPath();
+    xds = new LogStructuredXDS(directory, 4096, 0.5, 0);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    xds.close();
+  }
+
+  @Test
+  public void shouldSupportQueriesThroughServant() {
+    TeleMed telemed = new TeleMedServant(xds, new AuthorizeAllStub());
+    TestTeleMedServant.verifyQueries(telemed, xds);
+    TestTeleMedServant.validateModificationMethods(telemed);
+    TestTeleMedServant.verifyPagination(telemed);
+  }
+
+  @Test
+  public void shouldReportDocumentsAppendedBeforeFailureOfBatch() {
+    StringBuilder longId = new StringBuilder();
+    while (longId.length() < 4096) {
+      longId.append("pid");
+    }
+    List<DocumentSubmission> batch = new ArrayList<>();
+    for (String pid : Arrays.asList("pid001", longId.toString(), "pid002")) {
+      TeleObservation to = observationAt(pid, 150.0);
+      batch.add(new DocumentSubmission(buildMetaData(to), buildHL7(to)));
+    }
+    // The second record exceeds the segment capacity
+    try {
+      xds.provideAndRegisterDocuments(batch);
+      fail("Should throw PartialBatchException");
+    } catch (PartialBatchException e) {
+      assertThat(e.isStored(0), is(true));
+      assertThat(e.isStored(1), is(false));
+      assertThat(e.isStored(2), is(false));
+      assertThat(xds.retriveDocument(e.getUniqueIds().get(0)), is(notNullValue()));
+    }
+  }
+
+  @Test
+  public void shouldRecoverContentsAfterRestart() throws IOException {
+    String nancy = store(xds, HelperMethods.createObservation120over70forNancy());
+    String updated = store(xds, observationAt("pid001", 150.0));
+    String deleted = store(xds, observationAt("pid001", 160.0));
+    xds.correctDocument(updated, XDSBackend.Operation.UPDATE, buildHL7(observationAt("pid001", 151.0)));
+    xds.correctDocument(deleted, XDSBackend.Operation.DELETE, null);
+
+    restart();
+
+    HelperMethods.assertThatDocumentRepresentsObservation120over70forNancy(xds.retriveDocument(nancy));
+    assertThat(valueOfSystolic(xds.retriveDocument(updated)), is("151.0"));
+    assertThat(xds.retriveDocument(deleted), is(nullValue()));
+    assertThat(xds.size(), is(2));
+
+    // Unique ids are never handed out twice
+    String next = store(xds, observationAt("pid001", 170.0));
+    assertThat(Arrays.asList(nancy, updated, deleted).contains(next), is(false));
+  }
+
+  @Test
+  public void shouldRollSegmentsAndLoadThemFromHints() throws IOException {
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      ids.add(store(xds, observationAt("pid001", 100.0 + i)));
+    }
+    assertThat(xds.segmentCount() > 1, is(true));
+    int segments = xds.segmentCount();
+
+    restart();
+
+    assertThat(xds.segmentCount(), is(segments));
+    assertThat(xds.size(), is(40));
+    for (int i = 0; i < 40; i++) {
+      assertThat(valueOfSystolic(xds.retriveDocument(ids.get(i))), is("" + (100.0 + i)));
+    }
+    LocalDateTime base = LocalDateTime.of(2016, 5, 1, 12, 0);
+    assertThat(xds.retriveDocumentSet("pid001", base, base.plusDays(1)).size(), is(40));
+  }
+
+  @Test
+  public void shouldMergeSealedSegments() throws IOException {
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      ids.add(store(xds, observationAt("pid001", 100.0 + i)));
+    }
+    // Correct them all, and delete half; most of the log is now dead
+    for (int i = 0; i < 20; i++) {
+      if (i % 2 == 0) {
+        xds.correctDocument(ids.get(i), XDSBackend.Operation.DELETE, null);
+      } else {
+        xds.correctDocument(ids.get(i), XDSBackend.Operation.UPDATE, buildHL7(observationAt("pid001", 200.0 + i)));
+      }
+    }
+    int before = xds.segmentCount();
+    xds.merge();
+    assertThat(xds.segmentCount() < before, is(true));
+
+    verifyAfterMerge(ids);
+    restart();
+    verifyAfterMerge(ids);
+  }
+
+  @Test
+  public void shouldStreamDocumentsInTimeOrder() {
+    // Stored out of time order
+    for (double value : new double[] { 150.0, 120.0, 140.0, 130.0 }) {
+      store(xds, observationAt("pid001", value));
+    }
+    store(xds, observationAt("pid002", 135.0));
+    LocalDateTime base = LocalDateTime.of(2016, 5, 1, 12, 0);
+
+    List<String> values = new ArrayList<>();
+    try (Stream<Document> stream = xds.streamDocumentSet("pid001", base, base.plusDays(1))) {
+      stream.forEach(doc -> values.add(valueOfSystolic(doc)));
+    }
+    assertThat(values, is(Arrays.asList("120.0", "130.0", "140.0", "150.0")));
+
+    // Consuming only the first document parses only that one
+    try (Stream<Document> stream = xds.streamDocumentSet("pid001", base, base.plusDays(1))) {
+      assertThat(valueOfSystolic(stream.findFirst().get()), is("120.0"));
+    }
+  }
+
+  private void verifyAfterMerge(List<String> ids) {
+    assertThat(xds.size(), is(10));
+    for (int i = 0; i < 20; i++) {
+      Document doc = xds.retriveDocument(ids.get(i));
+      if (i % 2 == 0) {
+        assertThat(doc, is(nullValue()));
+      } else {
+        assertThat(valueOfSystolic(doc), is("" + (200.0 + i)));
+      }
+    }
+  }
+
+  private void restart() throws IOException {
+    xds.close();
+    xds = new LogStructuredXDS(directory, 4096, 0.5, 0);
+  }
+
+  private String valueOfSystolic(Document doc) {
+    return XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("value", 0, "value", "observation", doc);
+  }
+}
@@ -0,0 +1,141 @@
+package cs.saip.storage;
+
+import static cs.saip.helper.HelperMethods.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.authorization.AuthorizeAllStub;
+import cs.saip.domain.*;
+import cs.saip.storage.memory.IndexedMemoryXDS;
+
+/**
+ * Test cases for the micro batching XDS decorator.
+ *
+ * @author Henrik Baerbak Christensen, Computer Science, Aarhus University
+ *
+ */
+public class TestMicroBatchingXDS {
+
+  private IndexedMemoryXDS memory;
+  private MicroBatchingXDS xds;
+
+  @Before
+  public void setUp() {
+    memory = new IndexedMemoryXDS();
+    xds = new MicroBatchingXDS(memory, 20, 100);
+  }
+
+  @After
+  public void tearDown() {
+    xds.close();
+  }
+
+  @Test
+  public void shouldSupportQueriesThroughServant() {
+    TeleMed telemed = new TeleMedServant(xds, new AuthorizeAllStub());
+    TestTeleMedServant.verifyQueries(telemed, xds);
+    TestTeleMedServant.validateModificationMethods(telemed);
+  }
+
+  @Test
+  public void shouldMergeConcurrentStoresIntoBatches() throws Exception {
+    int writers = 50;
+    ExecutorService pool = Executors.newFixedThreadPool(writers);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<String>> futures = new ArrayList<>();
+    for (int i = 0; i < writers; i++) {
+      final double value = 100.0 + i;
+      futures.add(pool.submit(() -> {
+        start.await();
+        return store(xds, observationAt("pid001", value));
+      }));
+    }
+    start.countDown();
+    Set<String> ids = new HashSet<>();
+    for (Future<String> f : futures) {
+      ids.add(f.get(30, TimeUnit.SECONDS));
+    }
+    pool.shutdown();
+
+    // Every caller got its own id, and the documents are stored
+    assertThat(ids.size(), is(writers));
+    assertThat(memory.size(), is(writers));
+    assertThat(xds.getDocumentCount(), is((long) writers));
+    // but far fewer writes were made to the decorated XDS
+    assertThat(xds.getBatchCount() < writers / 2, is(true));
+  }
+
+  @Test
+  public void shouldReportFailureToEveryCallerOfBatch() {
+    XDSBackend failing = new IndexedMemoryXDS() {
+      @Override
+      public List<String> provideAndRegisterDocuments(List<DocumentSubmission> submissions) {
+        throw new XDSException("Disk full");
+      }
+    };
+    try (MicroBatchingXDS batching = new MicroBatchingXDS(failing, 1, 10)) {
+      MetadataBuilder mdBuilder = new MetadataBuilder();
+      TeleObservation to = observationAt("pid001", 120.0);
+      Director.construct(to, mdBuilder);
+      batching.provideAndRegisterDocument(mdBuilder.getResult(), buildHL7(to));
+      fail("Should report the failure of the batch");
+    } catch (XDSException e) {
+      assertThat(e.getMessage(), is("Disk full"));
+    }
+  }
+
+  @Test
+  public void shouldReportEachCallerOfPartiallyStoredBatch() throws Exception {
+    // Documents of one patient are refused; the default batch stores the others
+    memory = new IndexedMemoryXDS() {
+      @Override
+      public String provideAndRegisterDocument(MetaData metaData, Document observationAsHL7) {
+        if (metaData.getPersonID().equals("pid666")) { throw new XDSException("Refused"); }
+        return super.provideAndRegisterDocument(metaData, observationAsHL7);
+      }
+    };
+    xds.close();
+    xds = new MicroBatchingXDS(memory, 200, 100);
+    int writers = 10;
+    ExecutorService pool = Executors.newFixedThreadPool(writers);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<String>> futures = new ArrayList<>();
+    for (int i = 0; i < writers; i++) {
+      final String patientId = i == 3 ? "pid666" : "pid001";
+      final double value = 100.0 + i;
+      futures.add(pool.submit(() -> {
+        start.await();
+        return store(xds, observationAt(patientId, value));
+      }));
+    }
+    start.countDown();
+    for (int i = 0; i < writers; i++) {
+      try {
+        assertThat(futures.get(i).get(30, TimeUnit.SECONDS), is(notNullValue()));
+        assertThat(i, is(not(3)));
+      } catch (ExecutionException e) {
+        assertThat(i, is(3));
+        assertThat(e.getCause().getMessage(), is("Refused"));
+      }
+    }
+    pool.shutdown();
+    assertThat(memory.size(), is(writers - 1));
+    assertThat(xds.getDocumentCount(), is((long) writers - 1));
+
+    // A closed XDS accepts no more documents
+    xds.close();
+    try {
+      store(xds, observationAt("pid001", 120.0));
+      fail("Should refuse documents once closed");
+    } catch (XDSException e) {
+      assertThat(e.getMessage(), is("Micro batching XDS is closed"));
+    }
+  }
+}
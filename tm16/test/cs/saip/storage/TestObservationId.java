@@ -0,0 +1,130 @@
+package cs.saip.storage;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import cs.saip.appserver.*;
+import cs.saip.domain.*;
+import cs.saip.helper.HelperMethods;
+import cs.saip.storage.partition.*;
+
+/**
+ * Test cases for the uniqueIds that tell the time, node, shard and
+ * sequence of an observation.
+ *
+ * @author Henrik Baerbak Christensen, Computer Science, Aarhus University
+ *
+ */
+public class TestObservationId {
+
+  private long timestamp;
+
+  @Before
+  public void setUp() {
+    timestamp = Utility.convertLocalDateTimeToUnixEpoch(LocalDateTime.of(2016, 5, 1, 12, 0));
+  }
+
+  @Test
+  public void shouldRoundTripFieldsThroughString() {
+    ObservationId id = new ObservationId(timestamp, 17, 4095, ObservationId.MAX_SEQUENCE);
+    String uniqueId = id.toString();
+    assertThat(uniqueId.length(), is(32));
+    assertThat(ObservationId.isObservationId(uniqueId), is(true));
+
+    ObservationId parsed = ObservationId.parse(uniqueId);
+    assertThat(parsed, is(id));
+    assertThat(parsed.getTimestamp(), is(timestamp));
+    assertThat(parsed.getNode(), is(17));
+    assertThat(parsed.getShard(), is(4095));
+    assertThat(parsed.getSequence(), is(ObservationId.MAX_SEQUENCE));
+    assertThat(parsed.withShard(3).getShard(), is(3));
+    assertThat(parsed.withShard(3).getSequence(), is(ObservationId.MAX_SEQUENCE));
+  }
+
+  @Test
+  public void shouldTellOtherIdsApart() {
+    assertThat(ObservationId.isObservationId("uid-17"), is(false));
+    assertThat(ObservationId.isObservationId("5731f8a3e4b0a1c2d3e4f5a6"), is(false));
+    assertThat(ObservationId.isObservationId("shard2:00000154c4ff7a800000000000000001"), is(false));
+    assertThat(ObservationId.isObservationId("00000154C4FF7A800000000000000001"), is(false));
+    assertThat(ObservationId.isObservationId("00000154c4ff7a808000000000000001"), is(false));
+    assertThat(ObservationId.isObservationId(null), is(false));
+    try {
+      new ObservationId(timestamp, ObservationId.MAX_NODE + 1, 0, 0);
+      fail("Node out of range");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void shouldSortByTimeAsStringsAndObjects() {
+    ObservationIdGenerator generator = new ObservationIdGenerator(3, 0);
+    List<String> ids = new ArrayList<String>();
+    for (int minutes : new int[] { 60, 0, 30, 30, 59 }) {
+      ids.add(generator.next(timestamp + minutes * 60000L).toString());
+    }
+    List<String> byString = new ArrayList<String>(ids);
+    Collections.sort(byString);
+    List<ObservationId> byObject = new ArrayList<ObservationId>();
+    for (String id : ids) {
+      byObject.add(ObservationId.parse(id));
+    }
+    Collections.sort(byObject);
+
+    assertThat(byString, is(Arrays.asList(ids.get(1), ids.get(2), ids.get(3), ids.get(4), ids.get(0))));
+    for (int i = 0; i < ids.size(); i++) {
+      assertThat(byObject.get(i).toString(), is(byString.get(i)));
+    }
+  }
+
+  @Test
+  public void shouldGenerateUniqueIdsConcurrently() throws Exception {
+    ObservationIdGenerator generator = new ObservationIdGenerator(5, 2);
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    Set<String> ids = ConcurrentHashMap.newKeySet();
+    List<Future<?>> done = new ArrayList<Future<?>>();
+    for (int t = 0; t < 8; t++) {
+      done.add(pool.submit(() -> {
+        for (int i = 0; i < 10000; i++) {
+          ids.add(generator.next(timestamp).toString());
+        }
+      }));
+    }
+    for (Future<?> f : done) {
+      f.get(10, TimeUnit.SECONDS);
+    }
+    pool.shutdown();
+    assertThat(ids.size(), is(80000));
+
+    // A restarted node continues above the ids it has handed out
+    ObservationIdGenerator restarted = new ObservationIdGenerator(5, 2);
+    restarted.advancePast(generator.getLastSequence());
+    assertThat(ids.contains(restarted.next(timestamp).toString()), is(false));
+    assertThat(restarted.next(timestamp).getSequence() > generator.getLastSequence(), is(true));
+  }
+
+  @Test
+  public void shouldRouteIdsToPartitionByTimestamp() {
+    TimePartitionedXDS xds = new TimePartitionedXDS(PartitionScheme.DAILY, new MemoryPartitionFactory(), null, 0);
+    TeleObservation to = HelperMethods.createObservation120over70forNancy();
+    to.setTime(LocalDateTime.of(2016, 5, 1, 12, 0));
+    MetadataBuilder mdBuilder = new MetadataBuilder();
+    Director.construct(to, mdBuilder);
+    HL7Builder hl7Builder = new HL7Builder();
+    Director.construct(to, hl7Builder);
+    String uniqueId = xds.provideAndRegisterDocument(mdBuilder.getResult(), hl7Builder.getResult());
+
+    // No partition name in front: the timestamp tells the partition
+    assertThat(ObservationId.parse(uniqueId).getTimestamp(), is(timestamp));
+    assertThat(xds.retriveDocument(uniqueId), is(notNullValue()));
+    assertThat(xds.correctDocument(uniqueId, XDSBackend.Operation.DELETE, null), is(true));
+    assertThat(xds.retriveDocument(uniqueId), is(nullValue()));
+  }
+}
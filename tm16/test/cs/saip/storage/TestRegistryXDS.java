@@ -0,0 +1,134 @@
+package cs.saip.storage;
+
+import static cs.saip.helper.HelperMethods.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.authorization.AuthorizeAllStub;
+import cs.saip.domain.*;
+import cs.saip.storage.registry.*;
+import cs.saip.storage.wal.FsyncPolicy;
+
+/**
+ * Test cases for the XDS split into a registry and document repositories.
+ *
+ * @author Henrik Baerbak Christensen, Computer Science, Aarhus University
+ *
+ */
+public class TestRegistryXDS {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path directory;
+  private DocumentRegistry registry;
+  private MemoryDocumentRepository memory;
+  private FileDocumentRepository file;
+  private RegistryXDS xds;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = folder.getRoot().toPath();
+    memory = new MemoryDocumentRepository("memory");
+    open();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    xds.close();
+    registry.close();
+  }
+
+  @Test
+  public void shouldSupportQueriesThroughServant() {
+    TeleMed telemed = new TeleMedServant(xds, new AuthorizeAllStub());
+    TestTeleMedServant.verifyQueries(telemed, xds);
+    TestTeleMedServant.validateModificationMethods(telemed);
+    TestTeleMedServant.verifyPagination(telemed);
+  }
+
+  @Test
+  public void shouldFetchFromAllRepositoriesInTimeOrder() {
+    for (int i = 0; i < 10; i++) {
+      store(xds, observationAt("pid001", 120.0 + i));
+    }
+    // The documents alternate between the two repositories
+    assertThat(memory.size(), is(5));
+
+    List<Document> documents = xds.retriveDocumentSet("pid001",
+        LocalDateTime.of(2016, 5, 1, 0, 0), LocalDateTime.of(2016, 5, 2, 0, 0));
+    assertThat(documents.size(), is(10));
+    for (int i = 0; i < 10; i++) {
+      assertThat(valueOfSystolic(documents.get(i)), is((120.0 + i) + ""));
+    }
+  }
+
+  @Test
+  public void shouldOnlyFetchMatchingDocuments() {
+    for (int i = 0; i < 10; i++) {
+      store(xds, observationAt("pid001", 120.0 + i));
+    }
+    // Minutes 120 to 129 after noon; ask for the last three
+    List<Document> documents = xds.retriveDocumentSet("pid001",
+        LocalDateTime.of(2016, 5, 1, 14, 7), LocalDateTime.of(2016, 5, 1, 14, 9));
+    assertThat(documents.size(), is(3));
+    assertThat(xds.retriveDocumentSet("pid002",
+        LocalDateTime.of(2016, 5, 1, 0, 0), LocalDateTime.of(2016, 5, 2, 0, 0)).size(), is(0));
+  }
+
+  @Test
+  public void shouldRemoveDocumentFromRepositoryOnDelete() {
+    String first = store(xds, observationAt("pid001", 150.0));
+    String second = store(xds, observationAt("pid001", 151.0));
+    assertThat(xds.correctDocument(first, XDSBackend.Operation.DELETE, null), is(true));
+    assertThat(xds.correctDocument(second, XDSBackend.Operation.DELETE, null), is(true));
+    assertThat(xds.retriveDocument(first), is(nullValue()));
+    assertThat(registry.size(), is(0));
+    assertThat(memory.size(), is(0));
+    assertThat(xds.correctDocument(first, XDSBackend.Operation.DELETE, null), is(false));
+  }
+
+  @Test
+  public void shouldRecoverRegistryAndFileRepository() throws IOException {
+    String kept = store(xds, observationAt("pid001", 150.0));
+    String updated = store(xds, observationAt("pid001", 160.0));
+    String deleted = store(xds, observationAt("pid001", 170.0));
+    xds.correctDocument(updated, XDSBackend.Operation.UPDATE, buildHL7(observationAt("pid001", 161.0)));
+    xds.correctDocument(deleted, XDSBackend.Operation.DELETE, null);
+
+    xds.close();
+    registry.close();
+    open();
+
+    assertThat(registry.size(), is(2));
+    assertThat(valueOfSystolic(xds.retriveDocument(kept)), is("150.0"));
+    assertThat(valueOfSystolic(xds.retriveDocument(updated)), is("161.0"));
+    assertThat(xds.retriveDocument(deleted), is(nullValue()));
+    // Unique ids are never handed out twice
+    String next = store(xds, observationAt("pid001", 180.0));
+    assertThat(Arrays.asList(kept, updated, deleted).contains(next), is(false));
+  }
+
+  private void open() throws IOException {
+    registry = new DocumentRegistry(directory.resolve("registry"), FsyncPolicy.NEVER, 0);
+    file = new FileDocumentRepository("file", directory.resolve("documents"));
+    AtomicInteger count = new AtomicInteger();
+    xds = new RegistryXDS(registry, Arrays.<DocumentRepository> asList(memory, file),
+        metaData -> count.getAndIncrement() % 2 == 0 ? "memory" : "file", 4);
+  }
+
+  private String valueOfSystolic(Document doc) {
+    return XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("value", 0, "value", "observation", doc);
+  }
+}
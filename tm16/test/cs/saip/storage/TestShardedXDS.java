@@ -0,0 +1,132 @@
+package cs.saip.storage;
+
+import static cs.saip.helper.HelperMethods.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+import cs.saip.appserver.*;
+import cs.saip.authorization.AuthorizeAllStub;
+import cs.saip.domain.*;
+import cs.saip.storage.memory.IndexedMemoryXDS;
+import cs.saip.storage.shard.*;
+
+/**
+ * Test cases for the patient sharded XDS.
+ *
+ * @author Henrik Baerbak Christensen, Computer Science, Aarhus University
+ *
+ */
+public class TestShardedXDS {
+
+  private Map<String, IndexedMemoryXDS> shards;
+  private ShardedXDS xds;
+
+  @Before
+  public void setUp() {
+    shards = new HashMap<>();
+    for (int i = 0; i < 4; i++) {
+      shards.put("shard" + i, new IndexedMemoryXDS());
+    }
+    xds = new ShardedXDS(new HashMap<String, XDSBackend>(shards));
+  }
+
+  @Test
+  public void shouldSupportQueriesThroughServant() {
+    TeleMed telemed = new TeleMedServant(xds, new AuthorizeAllStub());
+    TestTeleMedServant.verifyQueries(telemed, xds);
+    TestTeleMedServant.validateModificationMethods(telemed);
+    TestTeleMedServant.verifyPagination(telemed);
+    TestTeleMedServant.verifyMultiGet(telemed);
+    TestTeleMedServant.verifyCohortQuery(telemed);
+  }
+
+  @Test
+  public void shouldKeepAllDocumentsOfPatientInOneShard() {
+    for (int i = 0; i < 10; i++) {
+      store(xds, observationAt("pid001", 120.0 + i));
+    }
+    int shardsWithDocuments = 0;
+    for (IndexedMemoryXDS shard : shards.values()) {
+      if (shard.size() > 0) {
+        assertThat(shard.size(), is(10));
+        shardsWithDocuments++;
+      }
+    }
+    assertThat(shardsWithDocuments, is(1));
+    assertThat(shards.get(xds.shardOf("pid001")).size(), is(10));
+  }
+
+  @Test
+  public void shouldRouteByShardInUniqueId() {
+    String uniqueId = store(xds, observationAt("pid002", 150.0));
+    ObservationId id = ObservationId.parse(uniqueId);
+    assertThat(id.getShard(), is(ShardedXDS.numberOf(xds.shardOf("pid002"))));
+    // The shard itself knows the id with shard 0
+    assertThat(shards.get(xds.shardOf("pid002")).retriveDocument(id.withShard(0).toString()),
+        is(notNullValue()));
+    assertThat(xds.retriveDocument(uniqueId), is(notNullValue()));
+    assertThat(xds.correctDocument(uniqueId, XDSBackend.Operation.DELETE, null), is(true));
+    assertThat(xds.retriveDocument(uniqueId), is(nullValue()));
+
+    // Unknown shards and ids without a shard are simply not found
+    assertThat(xds.retriveDocument("shard17:uid-1"), is(nullValue()));
+    assertThat(xds.retriveDocument("uid-1"), is(nullValue()));
+    assertThat(xds.retriveDocument(id.withShard(0).toString()), is(nullValue()));
+    assertThat(xds.correctDocument("uid-1", XDSBackend.Operation.DELETE, null), is(false));
+  }
+
+  @Test
+  public void shouldStoreBatchAcrossShards() {
+    List<DocumentSubmission> batch = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      TeleObservation to = observationAt("pid" + i, 120.0 + i);
+      MetadataBuilder mdBuilder = new MetadataBuilder();
+      Director.construct(to, mdBuilder);
+      batch.add(new DocumentSubmission(mdBuilder.getResult(), buildHL7(to)));
+    }
+    List<String> ids = xds.provideAndRegisterDocuments(batch);
+    // The ids are in the order of the submissions
+    for (int i = 0; i < 20; i++) {
+      assertThat(ObservationId.parse(ids.get(i)).getShard(), is(ShardedXDS.numberOf(xds.shardOf("pid" + i))));
+      String systolic = XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc(
+          "value", 0, "value", "observation", xds.retriveDocument(ids.get(i)));
+      assertThat(systolic, is((120.0 + i) + ""));
+    }
+  }
+
+  @Test
+  public void shouldSpreadAndMoveFewPatientsWhenShardIsAdded() {
+    ConsistentHashRing ring = new ConsistentHashRing(ShardedXDS.DEFAULT_VIRTUAL_NODES);
+    for (int i = 0; i < 4; i++) {
+      ring.add("shard" + i);
+    }
+    Map<String, String> before = new HashMap<>();
+    Map<String, Integer> count = new HashMap<>();
+    for (int p = 0; p < 10000; p++) {
+      String node = ring.nodeFor("pid" + p);
+      before.put("pid" + p, node);
+      count.merge(node, 1, Integer::sum);
+    }
+    // Each shard gets a fair share, 2500 on average
+    for (int c : count.values()) {
+      assertThat(c > 1800 && c < 3200, is(true));
+    }
+
+    ring.add("shard4");
+    int moved = 0;
+    for (int p = 0; p < 10000; p++) {
+      String node = ring.nodeFor("pid" + p);
+      if (!node.equals(before.get("pid" + p))) {
+        // Patients only move to the new shard
+        assertThat(node, is("shard4"));
+        moved++;
+      }
+    }
+    // About a fifth of the patients move
+    assertThat(moved > 1400 && moved < 2600, is(true));
+  }
+}
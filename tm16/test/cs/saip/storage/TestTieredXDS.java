@@ -0,0 +1,158 @@
+package cs.saip.storage;
+
+import static cs.saip.helper.HelperMethods.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.time.*;
+import java.util.*;
+
+import org.junit.*;
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.authorization.AuthorizeAllStub;
+import cs.saip.domain.*;
+import cs.saip.storage.memory.IndexedMemoryXDS;
+
+/**
+ * Test cases for the hot/cold tiered XDS.
+ *
+ * @author Henrik Baerbak Christensen, Computer Science, Aarhus University
+ *
+ */
+public class TestTieredXDS {
+
+  private int coldQueries;
+  private IndexedMemoryXDS cold;
+  private TieredXDS xds;
+  private LocalDateTime now;
+
+  @Before
+  public void setUp() {
+    cold = new IndexedMemoryXDS() {
+      @Override
+      public List<Document> retriveDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+        coldQueries++;
+        return super.retriveDocumentSet(personID, start, end);
+      }
+    };
+    xds = new TieredXDS(cold, Duration.ofDays(31), 100, 0);
+    now = LocalDateTime.now().withNano(0);
+  }
+
+  @Test
+  public void shouldSupportQueriesThroughServant() {
+    TeleMed telemed = new TeleMedServant(xds, new AuthorizeAllStub());
+    TestTeleMedServant.verifyQueries(telemed, xds);
+    TestTeleMedServant.validateModificationMethods(telemed);
+    TestTeleMedServant.verifyPagination(telemed);
+    TestTeleMedServant.verifyMultiGet(telemed);
+    TestTeleMedServant.verifyCohortQuery(telemed);
+  }
+
+  @Test
+  public void shouldAnswerRecentQueriesFromMemory() {
+    store(xds, observationAt("pid001", 120.0, now.minusDays(20)));
+    store(xds, observationAt("pid001", 130.0, now.minusHours(2)));
+    store(xds, observationAt("pid001", 110.0, now.minusDays(40)));
+
+    assertThat(valuesOf(xds.retriveDocumentSet("pid001", now.minusDays(7), now)), is(Arrays.asList(130.0)));
+    assertThat(coldQueries, is(1));
+    for (int i = 0; i < 5; i++) {
+      assertThat(valuesOf(xds.retriveDocumentSet("pid001", now.minusMonths(1), now)),
+          is(Arrays.asList(120.0, 130.0)));
+    }
+    assertThat(coldQueries, is(1));
+    assertThat(xds.getHotQueryCount(), is(6L));
+
+    // Further back than the window goes to the cold tier
+    assertThat(valuesOf(xds.retriveDocumentSet("pid001", now.minusDays(60), now)),
+        is(Arrays.asList(110.0, 120.0, 130.0)));
+    assertThat(coldQueries, is(2));
+  }
+
+  @Test
+  public void shouldComputeStatisticsInTheTierHoldingTheInterval() {
+    store(xds, observationAt("pid001", 120.0, now.minusDays(20)));
+    store(xds, observationAt("pid001", 130.0, now.minusHours(2)));
+    store(xds, observationAt("pid001", 110.0, now.minusDays(40)));
+
+    List<QuantityStatistics> recent = xds.computeStatistics("pid001", now.minusDays(7), now);
+    assertThat(recent.get(0).getCount(), is(1L));
+    assertThat(xds.getHotQueryCount(), is(1L));
+
+    // One cold query loaded the window, the next is pushed to the cold tier
+    List<QuantityStatistics> all = xds.computeStatistics("pid001", now.minusDays(60), now);
+    assertThat(all.get(0).getCount(), is(3L));
+    assertThat(all.get(0).getMean(), is(120.0));
+    assertThat(xds.getColdQueryCount(), is(2L));
+    assertThat(xds.getHotQueryCount(), is(1L));
+  }
+
+  @Test
+  public void shouldAddNewDocumentsToLoadedWindow() {
+    store(xds, observationAt("pid001", 120.0, now.minusDays(2)));
+    xds.retriveDocumentSet("pid001", now.minusDays(7), now);
+    String uniqueId = store(xds, observationAt("pid001", 125.0, now.minusDays(1)));
+    store(xds, observationAt("pid001", 130.0, now.minusMinutes(1)));
+
+    assertThat(valuesOf(xds.retriveDocumentSet("pid001", now.minusDays(7), now)),
+        is(Arrays.asList(120.0, 125.0, 130.0)));
+    assertThat(coldQueries, is(1));
+    // Point reads of new documents are answered by the hot tier too
+    assertThat(xds.retriveDocument(uniqueId), is(notNullValue()));
+    assertThat(xds.getHotDocumentCount(), is(3));
+  }
+
+  @Test
+  public void shouldReloadWindowAfterCorrection() {
+    String first = store(xds, observationAt("pid001", 120.0, now.minusDays(2)));
+    store(xds, observationAt("pid001", 130.0, now.minusDays(1)));
+    xds.retriveDocumentSet("pid001", now.minusDays(7), now);
+
+    assertThat(xds.correctDocument(first, XDSBackend.Operation.UPDATE,
+        buildHL7(observationAt("pid001", 121.0, now.minusDays(2)))), is(true));
+    assertThat(valuesOf(xds.retriveDocumentSet("pid001", now.minusDays(7), now)),
+        is(Arrays.asList(121.0, 130.0)));
+
+    assertThat(xds.correctDocument(first, XDSBackend.Operation.DELETE, null), is(true));
+    assertThat(valuesOf(xds.retriveDocumentSet("pid001", now.minusDays(7), now)), is(Arrays.asList(130.0)));
+    assertThat(coldQueries, is(3));
+    assertThat(xds.correctDocument(first, XDSBackend.Operation.DELETE, null), is(false));
+  }
+
+  @Test
+  public void shouldDemoteOldDocumentsAndUnloadIdlePatients() {
+    xds = new TieredXDS(cold, Duration.ofDays(31), 1, 0);
+    store(xds, observationAt("pid001", 120.0, now.minusDays(1)));
+    store(xds, observationAt("pid002", 130.0, now.minusDays(30)));
+    store(xds, observationAt("pid002", 140.0, now.minusDays(1)));
+    xds.retriveDocumentSet("pid001", now.minusDays(7), now);
+    assertThat(xds.getHotDocumentCount(), is(1));
+
+    // Only the most recently queried patient is kept, without a sweep
+    xds.retriveDocumentSet("pid002", now.minusDays(7), now);
+    assertThat(xds.getHotDocumentCount(), is(2));
+
+    String recent = store(xds, observationAt("pid002", 150.0, now.minusMinutes(5)));
+    assertThat(xds.getHotDocumentCount(), is(3));
+
+    // Two days on, the oldest document has left the window
+    xds.sweep(now.plusDays(2));
+    assertThat(xds.getHotDocumentCount(), is(2));
+    assertThat(xds.retriveDocument(recent), is(notNullValue()));
+
+    xds.retriveDocumentSet("pid001", now.minusDays(7), now);
+    assertThat(xds.getHotDocumentCount(), is(1));
+  }
+
+  private List<Double> valuesOf(List<Document> documents) {
+    List<Double> values = new ArrayList<>();
+    for (Document doc : documents) {
+      values.add(Double.parseDouble(XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc(
+          "value", 0, "value", "observation", doc)));
+    }
+    return values;
+  }
+}
@@ -0,0 +1,233 @@
+package cs.saip.storage;
+
+import static cs.saip.helper.HelperMethods.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+import org.junit.*;
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.authorization.AuthorizeAllStub;
+import cs.saip.domain.*;
+import cs.saip.storage.memory.IndexedMemoryXDS;
+import cs.saip.storage.partition.*;
+
+/**
+ * Test cases for the time partitioned XDS.
+ *
+ * @author Henrik Baerbak Christensen, Computer Science, Aarhus University
+ *
+ */
+public class TestTimePartitionedXDS {
+
+  private static final LocalDateTime BASE = LocalDateTime.of(2016, 5, 1, 12, 0);
+
+  private Map<String, Integer> queriesPerPartition;
+  private List<String> forwarded;
+  private List<String> dropped;
+  private TimePartitionedXDS xds;
+
+  @Before
+  public void setUp() {
+    queriesPerPartition = new HashMap<>();
+    forwarded = new ArrayList<>();
+    dropped = new ArrayList<>();
+    xds = new TimePartitionedXDS(PartitionScheme.DAILY, new CountingFactory(), Duration.ofDays(3), 0);
+  }
+
+  @Test
+  public void shouldSupportQueriesThroughServant() {
+    TeleMed telemed = new TeleMedServant(xds, new AuthorizeAllStub());
+    TestTeleMedServant.verifyQueries(telemed, xds);
+    TestTeleMedServant.validateModificationMethods(telemed);
+    TestTeleMedServant.verifyPagination(telemed);
+    TestTeleMedServant.verifyMultiGet(telemed);
+    TestTeleMedServant.verifyCohortQuery(telemed);
+  }
+
+  @Test
+  public void shouldForwardQueriesToEachOverlappingPartition() {
+    List<String> ids = new ArrayList<>();
+    for (int day = 0; day < 3; day++) {
+      ids.add(store(xds, observationAt("pid001", 120.0 + day, BASE.plusDays(day))));
+      ids.add(store(xds, observationAt("pid002", 130.0 + day, BASE.plusDays(day))));
+    }
+
+    // One multi-get per partition holding some of the ids
+    List<Document> read = xds.retriveDocuments(Arrays.asList(ids.get(4), ids.get(0), "uid-4711", ids.get(1)));
+    assertThat(forwarded, is(Arrays.asList("d20160503 retriveDocuments", "d20160501 retriveDocuments")));
+    assertThat(valueOfSystolic(read.get(0)), is("122.0"));
+    assertThat(valueOfSystolic(read.get(1)), is("120.0"));
+    assertThat(read.get(2), is(nullValue()));
+    assertThat(valueOfSystolic(read.get(3)), is("130.0"));
+
+    // One cohort query per overlapping partition
+    forwarded.clear();
+    List<String> values = new ArrayList<>();
+    xds.streamDocumentSets(Arrays.asList("pid001", "pid002"), BASE.plusDays(1), BASE.plusDays(2))
+      .forEach(doc -> values.add(valueOfSystolic(doc)));
+    assertThat(forwarded, is(Arrays.asList("d20160502 streamDocumentSets", "d20160503 streamDocumentSets")));
+    assertThat(values.size(), is(4));
+    assertThat(values.indexOf("121.0") < values.indexOf("122.0"), is(true));
+
+    // Statistics are computed by the partition, if only one overlaps
+    forwarded.clear();
+    assertThat(xds.computeStatistics("pid001", BASE.plusDays(1), BASE.plusDays(1)).get(0).getCount(), is(1L));
+    assertThat(forwarded, is(Arrays.asList("d20160502 computeStatistics")));
+    forwarded.clear();
+    List<QuantityStatistics> statistics = xds.computeStatistics("pid001", BASE, BASE.plusDays(2));
+    assertThat(statistics.get(0).getCount(), is(3L));
+    assertThat(statistics.get(0).getMedian(), is(121.0));
+    assertThat(forwarded.contains("d20160501 computeStatistics"), is(false));
+  }
+
+  @Test
+  public void shouldNotDropPartitionUnderOpenStream() throws Exception {
+    store(xds, observationAt("pid001", 120.0, BASE));
+    store(xds, observationAt("pid001", 125.0, BASE.plusDays(5)));
+    List<String> values = new ArrayList<>();
+    Thread dropper = new Thread(() -> xds.dropExpiredPartitions(BASE.plusDays(4)));
+    try (Stream<Document> documents = xds.streamDocumentSet("pid001", BASE.minusDays(1), BASE.plusDays(6))) {
+      documents.forEach(doc -> {
+        values.add(valueOfSystolic(doc));
+        if (values.size() == 1) {
+          // The first partition expires while it is streamed; it is removed
+          // without waiting for the stream, and dropped when it is closed
+          dropper.start();
+          try {
+            dropper.join(5000);
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+          assertThat(dropper.isAlive(), is(false));
+          assertThat(xds.getPartitionNames(), is(Arrays.asList("d20160506")));
+          assertThat(dropped.isEmpty(), is(true));
+          // Other queries are not blocked by the open stream
+          assertThat(xds.retriveDocumentSet("pid001", BASE, BASE.plusDays(6)).size(), is(1));
+        }
+      });
+    }
+    assertThat(values, is(Arrays.asList("120.0", "125.0")));
+    assertThat(dropped, is(Arrays.asList("d20160501")));
+
+    // A partition dropped before the stream reaches it is skipped
+    store(xds, observationAt("pid001", 126.0, BASE.plusDays(6)));
+    Stream<Document> documents = xds.streamDocumentSet("pid001", BASE.minusDays(1), BASE.plusDays(6));
+    xds.dropExpiredPartitions(BASE.plusDays(9));
+    assertThat(documents.count(), is(1L));
+    documents.close();
+  }
+
+  @Test
+  public void shouldOnlyQueryOverlappingPartitions() {
+    for (int day = 0; day < 10; day++) {
+      store(xds, observationAt("pid001", 120.0 + day, BASE.plusDays(day)));
+    }
+    assertThat(xds.getPartitionNames().size(), is(10));
+    assertThat(xds.getPartitionNames().get(0), is("d20160501"));
+
+    List<Document> documents = xds.retriveDocumentSet("pid001", BASE.plusDays(3), BASE.plusDays(5));
+    assertThat(documents.size(), is(3));
+    assertThat(valueOfSystolic(documents.get(0)), is("123.0"));
+    assertThat(valueOfSystolic(documents.get(2)), is("125.0"));
+    assertThat(queriesPerPartition.keySet(), is(new HashSet<>(Arrays.asList("d20160504", "d20160505", "d20160506"))));
+  }
+
+  @Test
+  public void shouldDropExpiredPartitionsWhole() {
+    List<String> ids = new ArrayList<>();
+    for (int day = 0; day < 10; day++) {
+      ids.add(store(xds, observationAt("pid001", 120.0 + day, BASE.plusDays(day))));
+    }
+    // Three days back from the afternoon of May 10th is May 7th, whose
+    // partition has not expired as a whole yet
+    assertThat(xds.dropExpiredPartitions(BASE.plusDays(9).plusHours(2)), is(6));
+    assertThat(dropped, is(Arrays.asList("d20160501", "d20160502", "d20160503",
+        "d20160504", "d20160505", "d20160506")));
+    assertThat(xds.getPartitionNames().get(0), is("d20160507"));
+
+    assertThat(xds.retriveDocument(ids.get(0)), is(nullValue()));
+    assertThat(xds.correctDocument(ids.get(5), XDSBackend.Operation.DELETE, null), is(false));
+    assertThat(valueOfSystolic(xds.retriveDocument(ids.get(6))), is("126.0"));
+    assertThat(xds.retriveDocumentSet("pid001", BASE.minusDays(1), BASE.plusDays(10)).size(), is(4));
+  }
+
+  @Test
+  public void shouldPageAcrossPartitions() {
+    for (int day = 0; day < 3; day++) {
+      for (int i = 0; i < 3; i++) {
+        store(xds, observationAt("pid001", 100.0 + 10 * day + i, BASE.plusDays(day).plusMinutes(i)));
+      }
+    }
+    List<Double> values = new ArrayList<>();
+    String token = null;
+    int pages = 0;
+    do {
+      DocumentPage page = xds.retriveDocumentPage("pid001", BASE.minusDays(1), BASE.plusDays(5), 2, token);
+      for (Document doc : page.getDocuments()) {
+        values.add(Double.parseDouble(valueOfSystolic(doc)));
+      }
+      token = page.getContinuationToken();
+      pages++;
+    } while (token != null);
+    assertThat(pages, is(5));
+    assertThat(values, is(Arrays.asList(122.0, 121.0, 120.0, 112.0, 111.0, 110.0, 102.0, 101.0, 100.0)));
+  }
+
+  @Test
+  public void shouldPartitionByWeekStartingMonday() {
+    xds = new TimePartitionedXDS(PartitionScheme.WEEKLY, new CountingFactory(), null, 0);
+    // May 1st 2016 is a Sunday
+    store(xds, observationAt("pid001", 120.0, BASE));
+    store(xds, observationAt("pid001", 121.0, BASE.plusDays(1)));
+    store(xds, observationAt("pid001", 122.0, BASE.plusDays(7)));
+    assertThat(xds.getPartitionNames(), is(Arrays.asList("w20160425", "w20160502")));
+    assertThat(xds.dropExpiredPartitions(BASE.plusYears(1)), is(0));
+  }
+
+  /** Creates in-memory partitions that count the interval queries */
+  private class CountingFactory extends MemoryPartitionFactory {
+    @Override
+    public XDSBackend create(String name) {
+      return new IndexedMemoryXDS() {
+        @Override
+        public List<Document> retriveDocumentSet(String personID, LocalDateTime start, LocalDateTime end) {
+          queriesPerPartition.merge(name, 1, Integer::sum);
+          return super.retriveDocumentSet(personID, start, end);
+        }
+
+        @Override
+        public List<Document> retriveDocuments(List<String> uniqueIds) {
+          forwarded.add(name + " retriveDocuments");
+          return super.retriveDocuments(uniqueIds);
+        }
+
+        @Override
+        public Stream<Document> streamDocumentSets(List<String> personIDs, LocalDateTime start, LocalDateTime end) {
+          forwarded.add(name + " streamDocumentSets");
+          return super.streamDocumentSets(personIDs, start, end);
+        }
+
+        @Override
+        public List<QuantityStatistics> computeStatistics(String personID, LocalDateTime start, LocalDateTime end) {
+          forwarded.add(name + " computeStatistics");
+          return super.computeStatistics(personID, start, end);
+        }
+      };
+    }
+
+    @Override
+    public void drop(String name, XDSBackend partition) {
+      dropped.add(name);
+    }
+  }
+
+  private String valueOfSystolic(Document doc) {
+    return XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("value", 0, "value", "observation", doc);
+  }
+}
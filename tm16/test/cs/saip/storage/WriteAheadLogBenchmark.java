@@ -0,0 +1,91 @@
+package cs.saip.storage;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.domain.TeleObservation;
+import cs.saip.storage.memory.DurableMemoryXDS;
+import cs.saip.storage.wal.FsyncPolicy;
+
+/**
+ * Benchmark of the write throughput of the durable in-memory XDS for each
+ * fsync policy of the write-ahead log. Not a test case; run it using
+ * 'ant benchmark.wal'.
+ *
+ * @author Henrik Baerbak Christensen, Aarhus University
+ *
+ */
+public class WriteAheadLogBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int writesPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+    long flushIntervalMillis = args.length > 2 ? Long.parseLong(args[2]) : 5;
+
+    System.out.println("=== Write-ahead log benchmark: " + threads + " threads, "
+        + writesPerThread + " writes each, flush interval " + flushIntervalMillis + " ms ===");
+    for (FsyncPolicy policy : FsyncPolicy.values()) {
+      double writesPerSecond = run(policy, threads, writesPerThread, flushIntervalMillis);
+      System.out.println(String.format("  %-12s %10.0f writes/sec", policy, writesPerSecond));
+    }
+  }
+
+  private static double run(FsyncPolicy policy, int threads, int writesPerThread,
+      long flushIntervalMillis) throws Exception {
+    Path directory = Files.createTempDirectory("wal-benchmark");
+    DurableMemoryXDS xds = new DurableMemoryXDS(directory, policy, flushIntervalMillis, 0);
+
+    // Build the documents up front, only the storing is measured
+    List<MetaData> metaData = new ArrayList<>();
+    List<Document> documents = new ArrayList<>();
+    for (int i = 0; i < threads * writesPerThread; i++) {
+      TeleObservation to = new TeleObservation("pid" + (i % 100), 120.0 + i % 40, 80.0);
+      to.setTime(LocalDateTime.of(2016, 5, 1, 12, 0).plusSeconds(i));
+      MetadataBuilder mdBuilder = new MetadataBuilder();
+      Director.construct(to, mdBuilder);
+      metaData.add(mdBuilder.getResult());
+      HL7Builder hl7Builder = new HL7Builder();
+      Director.construct(to, hl7Builder);
+      documents.add(hl7Builder.getResult());
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final int first = t * writesPerThread;
+      futures.add(pool.submit(() -> {
+        start.await();
+        for (int i = first; i < first + writesPerThread; i++) {
+          xds.provideAndRegisterDocument(metaData.get(i), documents.get(i));
+        }
+        return null;
+      }));
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    for (Future<?> f : futures) {
+      f.get();
+    }
+    long elapsed = System.nanoTime() - begin;
+    pool.shutdown();
+    xds.close();
+    deleteRecursively(directory);
+    return threads * writesPerThread / (elapsed / 1e9);
+  }
+
+  private static void deleteRecursively(Path directory) throws IOException {
+    List<Path> paths = new ArrayList<>();
+    Files.walk(directory).forEach(paths::add);
+    Collections.reverse(paths);
+    for (Path p : paths) {
+      Files.delete(p);
+    }
+  }
+}
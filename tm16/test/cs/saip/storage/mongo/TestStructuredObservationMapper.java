@@ -0,0 +1,57 @@
+package cs.saip.storage.mongo;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.*;
+import org.w3c.dom.Document;
+
+import cs.saip.appserver.*;
+import cs.saip.domain.TeleObservation;
+import cs.saip.helper.HelperMethods;
+
+/**
+ * Test cases for the mapping between HL7 documents and the structured Mongo
+ * storage format. Requires no running MongoDB.
+ *
+ * @author Henrik Baerbak Christensen, Computer Science, Aarhus University
+ *
+ */
+public class TestStructuredObservationMapper {
+
+  private Document hl7;
+
+  @Before
+  public void setUp() {
+    TeleObservation to = HelperMethods.createObservation120over70forNancy();
+    HL7Builder builder = new HL7Builder();
+    Director.construct(to, builder);
+    hl7 = builder.getResult();
+  }
+
+  @Test
+  public void shouldExtractNativeFields() {
+    org.bson.Document fields = StructuredObservationMapper.toFields(hl7);
+    assertThat(fields.getString(StructuredObservationMapper.PATIENT_KEY), is(HelperMethods.NANCY_CPR));
+    assertThat(fields.getString(StructuredObservationMapper.EFFECTIVE_TIME_KEY), is("20120601073000"));
+
+    @SuppressWarnings("unchecked")
+    List<org.bson.Document> observations =
+        (List<org.bson.Document>) fields.get(StructuredObservationMapper.OBSERVATIONS_KEY);
+    assertThat(observations.size(), is(2));
+    assertThat(observations.get(0).getString("code"), is("MSC88019"));
+    assertThat(observations.get(0).getDouble("value"), is(120.0));
+    assertThat(observations.get(1).getString("unit"), is("mm(Hg)"));
+    assertThat(observations.get(1).getDouble("value"), is(70.0));
+  }
+
+  @Test
+  public void shouldRebuildEquivalentHL7Document() {
+    Document rebuilt = StructuredObservationMapper.toHL7(StructuredObservationMapper.toFields(hl7));
+    HelperMethods.assertThatDocumentRepresentsObservation120over70forNancy(rebuilt);
+    assertThat(XMLUtility.convertXMLDocumentToCompactString(rebuilt),
+        is(XMLUtility.convertXMLDocumentToCompactString(hl7)));
+  }
+}